@@ -9,6 +9,7 @@ package io.nats.client;
 import io.nats.client.Constants.ConnState;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -69,6 +70,83 @@ interface AbstractConnection extends AutoCloseable {
      */
     public AsyncSubscription subscribe(String subject, String queue, MessageHandler cb);
 
+    /**
+     * Creates a conflating {@code AsyncSubscription} keyed by message subject. Its pending queue
+     * holds at most one message per subject: a message that arrives while an earlier message on
+     * the same subject is still pending replaces it, keeping its place in the queue. A handler
+     * that falls behind therefore always receives the latest message for each subject, and the
+     * pending queue is bounded by the number of subjects rather than the message rate.
+     *
+     * @param subject the subject of interest
+     * @param cb a {@code MessageHandler} object used to process messages received by the
+     *        {@code AsyncSubscription}
+     * @return the started {@code AsyncSubscription}
+     * @throws IllegalArgumentException if the subject name contains illegal characters.
+     * @throws NullPointerException if the subject name is null
+     * @throws IllegalStateException if the connection is closed
+     * @see Subscription#getConflated()
+     */
+    public AsyncSubscription subscribeConflating(String subject, MessageHandler cb);
+
+    /**
+     * Creates a conflating {@code AsyncSubscription} whose pending queue holds at most one message
+     * per key, as returned by {@code keys}. Messages with a {@code null} key are never conflated.
+     *
+     * @param subject the subject of interest
+     * @param keys extracts the conflation key of each received message
+     * @param cb a {@code MessageHandler} object used to process messages received by the
+     *        {@code AsyncSubscription}
+     * @return the started {@code AsyncSubscription}
+     * @throws IllegalArgumentException if the subject name contains illegal characters.
+     * @throws NullPointerException if the subject name or {@code keys} is null
+     * @throws IllegalStateException if the connection is closed
+     * @see #subscribeConflating(String, MessageHandler)
+     */
+    public AsyncSubscription subscribeConflating(String subject, MessageKeyExtractor keys,
+            MessageHandler cb);
+
+    /**
+     * Creates an {@code AsyncSubscription} that never drops messages because its handler falls
+     * behind. Up to {@code memoryLimit} payload bytes are queued on the heap; further messages are
+     * appended to memory-mapped segment files in the directory set by
+     * {@link ConnectionFactory#setSubscriptionSpillDir(String)}, read back in order as the handler
+     * catches up, and reused once consumed; they are deleted when the subscription is closed. The
+     * subscription has no pending limits; messages are dropped as a slow consumer only once the
+     * segment files would exceed {@code spillLimit} bytes.
+     *
+     * @param subject the subject of interest
+     * @param queue the name of the queue group, or {@code null}
+     * @param cb a {@code MessageHandler} object used to process messages received by the
+     *        {@code AsyncSubscription}
+     * @param memoryLimit the number of payload bytes that may be queued on the heap
+     * @param spillLimit the total size, in bytes, of the segment files
+     * @return the started {@code AsyncSubscription}
+     * @throws IllegalArgumentException if the subject (or queue) name contains illegal characters.
+     * @throws NullPointerException if the subject name is null
+     * @throws IllegalStateException if the connection is closed
+     */
+    public AsyncSubscription subscribeSpilling(String subject, String queue, MessageHandler cb,
+            long memoryLimit, long spillLimit);
+
+    /**
+     * Creates an {@code AsyncSubscription} whose pending messages are stored compactly. Each
+     * pending message is held as a length-prefixed frame in a per-subscription byte ring, rather
+     * than as a {@link Message} object with separate subject, reply and payload arrays, and the
+     * {@code Message} is only built when it is delivered. Small messages take several times less
+     * heap while they wait, so a subscription with a deep backlog fits more of it in the same
+     * pending limits and heap. Pending limits apply as usual.
+     *
+     * @param subject the subject of interest
+     * @param queue the name of the queue group, or {@code null}
+     * @param cb a {@code MessageHandler} object used to process messages received by the
+     *        {@code AsyncSubscription}
+     * @return the started {@code AsyncSubscription}
+     * @throws IllegalArgumentException if the subject (or queue) name contains illegal characters.
+     * @throws NullPointerException if the subject name is null
+     * @throws IllegalStateException if the connection is closed
+     */
+    public AsyncSubscription subscribeCompact(String subject, String queue, MessageHandler cb);
+
     /**
      * Creates a {@code AsyncSubscription} with interest in a given subject, assign the callback,
      * and immediately start receiving messages
@@ -200,6 +278,60 @@ interface AbstractConnection extends AutoCloseable {
      */
     void resetStats();
 
+    /**
+     * Returns the round-trip times of the PINGs sent on this connection, for flush calls,
+     * publish fences and keepalives, measured from writing the PING to processing its PONG. PINGs
+     * replayed after a reconnect are not measured.
+     * 
+     * @return a snapshot of the PING round-trip histogram
+     */
+    LatencyHistogram getPingRttHistogram();
+
+    /**
+     * Returns how long published messages waited before the flusher wrote them to the socket.
+     * Each flush records the wait of the first message published since the previous flush, the
+     * longest in its batch. Recorded only if {@link ConnectionFactory#setLatencyHistograms(boolean)}
+     * is set.
+     * 
+     * @return a snapshot of the publish-to-flush histogram
+     */
+    LatencyHistogram getPublishFlushHistogram();
+
+    /**
+     * Returns the queue sojourn times of all subscriptions on this connection merged together.
+     * 
+     * @return the merged sojourn histogram
+     * @see Subscription#getSojournHistogram()
+     */
+    LatencyHistogram getSojournHistogram();
+
+    /**
+     * Returns the message handler times of all subscriptions on this connection merged together.
+     * 
+     * @return the merged handler histogram
+     * @see Subscription#getHandlerHistogram()
+     */
+    LatencyHistogram getHandlerHistogram();
+
+    /**
+     * Returns the subjects with the most messages and bytes received by this connection, whether
+     * or not a subscription matched them. Tracked only if
+     * {@link ConnectionFactory#setHeavyHitters(int)} is set; the tracker is live, and can be
+     * queried and reset while messages flow.
+     * 
+     * @return the inbound heavy hitters, or {@code null} if they are not tracked
+     */
+    HeavyHitters getInboundHeavyHitters();
+
+    /**
+     * Returns the subjects with the most messages and bytes published by this connection.
+     * Tracked only if {@link ConnectionFactory#setHeavyHitters(int)} is set.
+     * 
+     * @return the outbound heavy hitters, or {@code null} if they are not tracked
+     * @see #getInboundHeavyHitters()
+     */
+    HeavyHitters getOutboundHeavyHitters();
+
     /**
      * Gets the maximum payload size this connection will accept.
      * 
@@ -227,6 +359,21 @@ interface AbstractConnection extends AutoCloseable {
      */
     void flush() throws IOException, Exception;
 
+    /**
+     * Flushes the current connection without waiting, and returns a {@code Future} that completes
+     * once the server has processed everything written before the call.
+     * 
+     * <p>If a PING is already outstanding and nothing has been written since it was sent, its PONG
+     * completes the returned {@code Future}, so many threads can await one round trip. If the
+     * connection is lost before the PONG arrives, the {@code Future} fails with an
+     * {@link java.util.concurrent.ExecutionException} wrapping an {@code IOException}.
+     * 
+     * @return a {@code Future} that completes when the server has processed the flushed data
+     * @throws IllegalStateException if the connection is closed
+     * @see #flush(int)
+     */
+    Future<Void> flushAsync();
+
     /**
      * Returns the connection's asynchronous exception callback.
      * 
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the pending limits of a subscription from its measured consumption, so that the pending
+ * queue holds what the subscription can consume in a target burst duration.
+ *
+ * <p>Consumption is sampled in windows of {@link #SAMPLE_INTERVAL_NANOS}. When the handler time
+ * of the messages is known (asynchronous subscriptions), the consumption rate is the rate the
+ * handler can sustain, one message per average handler latency; otherwise it is the observed
+ * dequeue rate. Rate, handler latency and message size are smoothed with an exponentially
+ * weighted moving average, and windows without messages leave the estimates unchanged.
+ *
+ * <p>The limits are {@code rate * burst} messages and twice that many average-sized messages in
+ * bytes, kept between a small floor and the given maximums. A new limit is only adopted when it
+ * differs from the current one by more than a quarter, so the limits do not churn.
+ *
+ * <p>Not thread-safe; the owning subscription calls it under its lock.
+ */
+class AdaptivePendingLimits {
+
+    static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    static final int MIN_PENDING_MSGS = 64;
+    static final int MIN_PENDING_BYTES = 64 * 1024;
+
+    // Weight of the latest window in the moving averages.
+    private static final double ALPHA = 0.3;
+    private static final double HYSTERESIS = 0.25;
+
+    private final long burstNanos;
+
+    private long windowStart = -1;
+    private long windowMsgs;
+    private long windowBytes;
+    private long windowHandled;
+    private long windowHandlerNanos;
+
+    private double rate; // messages per second
+    private double latency; // handler nanoseconds per message, 0 if unknown
+    private double msgSize;
+    private long adjustments;
+
+    AdaptivePendingLimits(long burstNanos) {
+        if (burstNanos <= 0) {
+            throw new IllegalArgumentException("nats: burst duration must be greater than 0");
+        }
+        this.burstNanos = burstNanos;
+    }
+
+    /**
+     * Records the time the handler spent on a message.
+     */
+    void recordHandled(long handlerNanos) {
+        windowHandled++;
+        windowHandlerNanos += handlerNanos;
+    }
+
+    /**
+     * Records a message taken from the pending queue.
+     *
+     * @return {@code true} if this closed a sample window and the estimates were updated
+     */
+    boolean recordDequeued(int size, long now) {
+        if (windowStart < 0) {
+            windowStart = now;
+        }
+        windowMsgs++;
+        windowBytes += size;
+        long elapsed = now - windowStart;
+        if (elapsed < SAMPLE_INTERVAL_NANOS) {
+            return false;
+        }
+
+        double observed = windowMsgs * 1e9 / elapsed;
+        double avg = (double) windowBytes / windowMsgs;
+        msgSize = (msgSize == 0) ? avg : msgSize + ALPHA * (avg - msgSize);
+        if (windowHandled > 0) {
+            double lat = Math.max(1.0, (double) windowHandlerNanos / windowHandled);
+            latency = (latency == 0) ? lat : latency + ALPHA * (lat - latency);
+        }
+        double sample = (latency > 0) ? 1e9 / latency : observed;
+        rate = (rate == 0) ? sample : rate + ALPHA * (sample - rate);
+
+        windowStart = now;
+        windowMsgs = 0;
+        windowBytes = 0;
+        windowHandled = 0;
+        windowHandlerNanos = 0;
+        return true;
+    }
+
+    /**
+     * @return the number of pending messages to allow, given the current estimates.
+     */
+    int msgsLimit(int maxMsgs) {
+        double msgs = Math.ceil(rate * burstNanos / 1e9);
+        return (int) Math.max(MIN_PENDING_MSGS, Math.min(maxMsgs, msgs));
+    }
+
+    /**
+     * @return the number of pending bytes to allow for {@code msgs} pending messages, at most
+     *         {@link Integer#MAX_VALUE}.
+     */
+    int bytesLimit(int msgs, long maxBytes) {
+        double bytes = 2.0 * msgs * Math.max(1.0, msgSize);
+        return (int) Math.max(MIN_PENDING_BYTES,
+                Math.min(Integer.MAX_VALUE, Math.min(maxBytes, bytes)));
+    }
+
+    /**
+     * @return {@code true} if {@code proposed} differs enough from {@code current} to adopt it.
+     */
+    static boolean shouldAdjust(int current, int proposed) {
+        return current <= 0 || Math.abs(proposed - current) > HYSTERESIS * current;
+    }
+
+    void adjusted() {
+        adjustments++;
+    }
+
+    long getBurst(TimeUnit unit) {
+        return unit.convert(burstNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the estimated consumption rate, in messages per second.
+     */
+    double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the estimated handler latency, in nanoseconds, or 0 if unknown.
+     */
+    double getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of times the limits were changed.
+     */
+    long getAdjustments() {
+        return adjustments;
+    }
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * When a {@code Connection}'s outbound buffer crosses its high watermark, or drains back to its
+ * low watermark, the {@code Connection} object's {@code BackpressureCallback} is notified, if one
+ * has been registered. Producers can use it to slow down before publishes start to block or fail.
+ */
+public interface BackpressureCallback {
+    /**
+     * This callback notification method is invoked when the number of bytes waiting to be written
+     * to the socket reaches the high watermark.
+     * 
+     * @param event contains information pertinent to the event.
+     * @see ConnectionFactory#setBackpressureCallback(BackpressureCallback)
+     */
+    void onHighWatermark(ConnectionEvent event);
+
+    /**
+     * This callback notification method is invoked when the number of bytes waiting to be written
+     * to the socket falls back to the low watermark.
+     * 
+     * @param event contains information pertinent to the event.
+     * @see ConnectionFactory#setBackpressureCallback(BackpressureCallback)
+     */
+    void onLowWatermark(ConnectionEvent event);
+}
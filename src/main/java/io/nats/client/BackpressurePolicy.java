@@ -0,0 +1,28 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * What a publish does when the connection's outbound buffer is above its high watermark. See
+ * {@link ConnectionFactory#setOutboundHighWatermark(long)}.
+ */
+public enum BackpressurePolicy {
+    /**
+     * Wait for the buffer to drain to its low watermark, for up to the backpressure timeout, and
+     * fail with {@link Constants#ERR_OUTBOUND_BUFFER_FULL} if it does not.
+     */
+    BLOCK,
+    /**
+     * Fail immediately with {@link Constants#ERR_OUTBOUND_BUFFER_FULL}.
+     */
+    FAIL_FAST,
+    /**
+     * Accept the message and drop the oldest message on the same subject that is still waiting to
+     * be written to the socket, if there is one.
+     */
+    DROP_OLDEST
+}
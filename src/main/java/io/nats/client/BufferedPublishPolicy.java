@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@code BufferedPublishPolicy} controls how messages published while a connection is
+ * reconnecting are replayed once it reconnects. Policies are assigned to subjects with
+ * {@link ConnectionFactory#setBufferedPublishPolicy(String, BufferedPublishPolicy)}.
+ *
+ * <p>On replay, buffered messages whose time-to-live has elapsed are dropped, and the remaining
+ * messages are sent in priority order. Messages of equal priority are sent in the order they were
+ * published. Messages on subjects without a policy have {@link Priority#NORMAL} priority and never
+ * expire.
+ */
+public final class BufferedPublishPolicy {
+
+    /**
+     * The replay priority of a buffered message.
+     */
+    public enum Priority {
+        /** Replayed first. */
+        HIGH,
+        /** Replayed after {@link #HIGH}; the priority of messages without a policy. */
+        NORMAL,
+        /** Replayed last. */
+        LOW
+    }
+
+    private final Priority priority;
+    private final long ttlNanos;
+
+    /**
+     * Creates a policy whose messages never expire.
+     *
+     * @param priority the replay priority
+     */
+    public BufferedPublishPolicy(Priority priority) {
+        this(priority, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a policy.
+     *
+     * @param priority the replay priority
+     * @param ttl how long a buffered message remains worth sending, or {@code 0} for no expiry
+     * @param unit the time unit of {@code ttl}
+     */
+    public BufferedPublishPolicy(Priority priority, long ttl, TimeUnit unit) {
+        if (priority == null) {
+            throw new NullPointerException("nats: priority cannot be null");
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("nats: ttl cannot be negative");
+        }
+        this.priority = priority;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * @return the replay priority.
+     */
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param unit the time unit of the returned value
+     * @return the time-to-live, or {@code 0} if messages never expire.
+     */
+    public long getTtl(TimeUnit unit) {
+        return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} after which a message buffered at {@code now} expires.
+     */
+    long expiresAt(long now) {
+        if (ttlNanos == 0) {
+            return 0;
+        }
+        long expires = now + ttlNanos;
+        // 0 means "never"; nudge the rare exact hit.
+        return expires == 0 ? 1 : expires;
+    }
+
+    /**
+     * {@inheritDoc}.
+     */
+    public String toString() {
+        return String.format("{priority=%s ttl=%dms}", priority,
+                TimeUnit.NANOSECONDS.toMillis(ttlNanos));
+    }
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The pending message queue of a compact subscription.
+ *
+ * <p>Instead of holding a {@link Message} per pending message, each with its own subject, reply
+ * and payload arrays plus a queue node, the queue stores each message as a length-prefixed frame
+ * in a single byte ring: the subject, the reply subject and the payload, each preceded by its
+ * length as an {@code int} (-1 for a missing reply subject). If the subscription records latency
+ * histograms, each frame starts with the message's enqueue time as a {@code long}, so that its
+ * sojourn time survives the queue. The {@code Message} is rebuilt when it is dequeued. A small
+ * message therefore costs its bytes plus 12 bytes of framing, or 20 with the enqueue time, while
+ * it waits. The connection frames incoming messages straight from its read buffer with
+ * {@link #offer(SubscriptionImpl, Parser.MsgArg, byte[], int, int, long)}, so no intermediate
+ * {@code Message} is created for them either.
+ *
+ * <p>The ring doubles when it is full and shrinks back to its initial size whenever it drains, so
+ * a burst does not pin its peak footprint.
+ */
+class CompactMessageQueue extends LockedMessageQueue {
+
+    static final int DEFAULT_INITIAL_CAPACITY = 64 * 1024;
+
+    private final int initialCapacity;
+    private byte[] ring;
+    private int head; // read position
+    private int tail; // write position
+    private int used;
+    private int count;
+
+    // Dequeued messages are rebuilt on behalf of this subscription.
+    private SubscriptionImpl sub;
+    // Whether frames carry the enqueue time; fixed by the first message.
+    private boolean timed;
+
+    CompactMessageQueue() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    CompactMessageQueue(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("nats: initial capacity must be greater than 0");
+        }
+        this.initialCapacity = initialCapacity;
+        this.ring = new byte[initialCapacity];
+    }
+
+    @Override
+    boolean doOffer(Message msg) {
+        setSub(msg.sub);
+        byte[] subject = msg.getSubjectBytes();
+        byte[] reply = msg.getReplyToBytes();
+        byte[] data = msg.getData();
+        return append(subject, subject.length, reply, reply == null ? -1 : reply.length, data, 0,
+                data == null ? 0 : data.length, msg.enqueuedNanos);
+    }
+
+    /**
+     * Adds the message described by {@code ma} with the payload {@code buf[offset, offset +
+     * length)} to the tail of the queue, without creating a {@link Message} for it.
+     *
+     * @return {@code false} if the queue cannot accept the message
+     */
+    boolean offer(SubscriptionImpl sub, Parser.MsgArg ma, byte[] buf, int offset, int length,
+            long enqueuedNanos) {
+        lock.lock();
+        try {
+            setSub(sub);
+            int replyLen = ma.reply.limit() > 0 ? ma.reply.limit() : -1;
+            if (!append(ma.subject.array(), ma.subject.limit(), ma.reply.array(), replyLen, buf,
+                    offset, length, enqueuedNanos)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setSub(SubscriptionImpl owner) {
+        if (sub == null && owner != null) {
+            sub = owner;
+            timed = (count == 0 && owner.sojourn != null);
+        }
+    }
+
+    // Appends one frame; a replyLen of -1 means there is no reply subject.
+    private boolean append(byte[] subject, int subjectLen, byte[] reply, int replyLen, byte[] data,
+            int offset, int length, long enqueuedNanos) {
+        long len = (timed ? 20L : 12L) + subjectLen + Math.max(0, replyLen) + length;
+        if (used + len > ring.length) {
+            if (used + len > Integer.MAX_VALUE - 8) {
+                return false;
+            }
+            grow((int) (used + len));
+        }
+        if (timed) {
+            putLong(enqueuedNanos);
+        }
+        putInt(subjectLen);
+        put(subject, 0, subjectLen);
+        putInt(replyLen);
+        if (replyLen > 0) {
+            put(reply, 0, replyLen);
+        }
+        putInt(length);
+        if (length > 0) {
+            put(data, offset, length);
+        }
+        count++;
+        return true;
+    }
+
+    @Override
+    Message doPoll() {
+        if (count == 0) {
+            return null;
+        }
+        Message msg = read(head);
+        int len = frameLength(msg);
+        head = advance(head, len);
+        used -= len;
+        count--;
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+            if (ring.length > initialCapacity) {
+                ring = new byte[initialCapacity];
+            }
+        }
+        return msg;
+    }
+
+    @Override
+    Message doPeek() {
+        return count == 0 ? null : read(head);
+    }
+
+    @Override
+    int doSize() {
+        return count;
+    }
+
+    @Override
+    void doClear() {
+        count = 0;
+        used = 0;
+        head = 0;
+        tail = 0;
+        ring = new byte[initialCapacity];
+    }
+
+    @Override
+    Iterator<Message> doSnapshot() {
+        List<Message> copy = new ArrayList<Message>(count);
+        int pos = head;
+        for (int i = 0; i < count; i++) {
+            Message msg = read(pos);
+            pos = advance(pos, frameLength(msg));
+            copy.add(msg);
+        }
+        return copy.iterator();
+    }
+
+    /**
+     * @return the number of bytes the pending frames occupy.
+     */
+    int usedBytes() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current size of the ring, in bytes.
+     */
+    int capacity() {
+        lock.lock();
+        try {
+            return ring.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int frameLength(Message msg) {
+        byte[] reply = msg.getReplyToBytes();
+        byte[] data = msg.getData();
+        return (timed ? 20 : 12) + msg.getSubjectBytes().length
+                + (reply == null ? 0 : reply.length) + (data == null ? 0 : data.length);
+    }
+
+    // Rebuilds the message framed at pos.
+    private Message read(int pos) {
+        Message msg = new Message();
+        if (timed) {
+            long high = getInt(pos);
+            msg.enqueuedNanos = (high << 32) | (getInt(advance(pos, 4)) & 0xffffffffL);
+            pos = advance(pos, 8);
+        }
+        byte[] subject = new byte[getInt(pos)];
+        pos = get(advance(pos, 4), subject);
+        msg.setSubject(subject, subject.length);
+        int replyLen = getInt(pos);
+        pos = advance(pos, 4);
+        if (replyLen >= 0) {
+            byte[] reply = new byte[replyLen];
+            pos = get(pos, reply);
+            msg.setReplyTo(reply, reply.length);
+        }
+        int dataLen = getInt(pos);
+        pos = advance(pos, 4);
+        if (dataLen > 0) {
+            if (pos + dataLen <= ring.length) {
+                msg.setData(ring, pos, dataLen);
+            } else {
+                // The payload wraps around the end of the ring.
+                byte[] data = new byte[dataLen];
+                get(pos, data);
+                msg.setData(data);
+            }
+        }
+        msg.sub = sub;
+        return msg;
+    }
+
+    private void grow(int needed) {
+        int cap = ring.length;
+        while (cap < needed) {
+            cap = (cap > (Integer.MAX_VALUE - 8) / 2) ? Integer.MAX_VALUE - 8 : cap * 2;
+        }
+        byte[] bigger = new byte[cap];
+        // Unwrap the pending frames to the start of the new ring.
+        get(head, bigger, 0, used);
+        ring = bigger;
+        head = 0;
+        tail = used;
+    }
+
+    private int advance(int pos, int n) {
+        pos += n;
+        return pos >= ring.length ? pos - ring.length : pos;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putInt(int v) {
+        put((byte) (v >>> 24));
+        put((byte) (v >>> 16));
+        put((byte) (v >>> 8));
+        put((byte) v);
+    }
+
+    private void put(byte b) {
+        ring[tail] = b;
+        tail = advance(tail, 1);
+        used++;
+    }
+
+    private void put(byte[] src, int off, int len) {
+        int first = Math.min(len, ring.length - tail);
+        System.arraycopy(src, off, ring, tail, first);
+        System.arraycopy(src, off + first, ring, 0, len - first);
+        tail = advance(tail, len);
+        used += len;
+    }
+
+    private int getInt(int pos) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (ring[pos] & 0xff);
+            pos = advance(pos, 1);
+        }
+        return v;
+    }
+
+    // Copies dst.length bytes starting at pos and returns the position after them.
+    private int get(int pos, byte[] dst) {
+        get(pos, dst, 0, dst.length);
+        return advance(pos, dst.length);
+    }
+
+    private void get(int pos, byte[] dst, int off, int len) {
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(ring, pos, dst, off, first);
+        System.arraycopy(ring, 0, dst, off + first, len - first);
+    }
+}
@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code ConflatingPublisher} publishes only the latest message per subject within a time
+ * window.
+ *
+ * <p>The first message published to a subject is held for up to the conflation window. A message
+ * published to the same subject before the window closes replaces the held message, so at most one
+ * message per subject is written to the connection per window. When the window closes, the held
+ * messages are published in the order their subjects were first published. This suits feeds where
+ * only the latest value on a subject matters: during a burst, each subject costs one message per
+ * window on the wire, and subscribers still see its latest value within the window.
+ *
+ * <p>The payload is copied when it is published to this publisher, so the caller may reuse its
+ * array. Messages held when the publisher is closed are published by {@link #close()}.
+ */
+public class ConflatingPublisher implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(ConflatingPublisher.class);
+
+    static final String EXEC_NAME = "jnats-conflating-publisher";
+
+    private final Connection conn;
+    private final long windowNanos;
+    private final ScheduledThreadPoolExecutor exec;
+    // Serializes flushes, so that a subject's messages reach the connection in order.
+    private final Object flushLock = new Object();
+
+    // Guarded by this.
+    private LinkedHashMap<String, Held> held = new LinkedHashMap<String, Held>();
+    private boolean scheduled;
+    private boolean closed;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Creates a {@code ConflatingPublisher}.
+     *
+     * @param conn the connection to publish on
+     * @param window how long a message is held for replacement before it is published
+     * @param unit the time unit of {@code window}
+     */
+    public ConflatingPublisher(Connection conn, long window, TimeUnit unit) {
+        if (conn == null) {
+            throw new NullPointerException("nats: connection cannot be null");
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("nats: conflation window must be greater than 0");
+        }
+        this.conn = conn;
+        this.windowNanos = unit.toNanos(window);
+        this.exec = new ScheduledThreadPoolExecutor(1, new NatsThreadFactory(EXEC_NAME));
+        this.exec.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Publishes {@code data} to {@code subject}, replacing any message held for the subject.
+     *
+     * @param subject the subject to publish the message to
+     * @param data the message payload
+     * @throws IllegalStateException if the publisher is closed
+     */
+    public void publish(String subject, byte[] data) {
+        publish(subject, null, data);
+    }
+
+    /**
+     * Publishes {@code data} to {@code subject} with a reply subject, replacing any message held
+     * for the subject. {@code data} is copied, since it is published later.
+     *
+     * @param subject the subject to publish the message to
+     * @param reply the subject to which subscribers should send responses
+     * @param data the message payload
+     * @throws IllegalStateException if the publisher is closed
+     */
+    public void publish(String subject, String reply, byte[] data) {
+        if (subject == null || subject.isEmpty()) {
+            throw new IllegalArgumentException(Constants.ERR_BAD_SUBJECT);
+        }
+        byte[] copy = (data == null) ? null : data.clone();
+        boolean schedule = false;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("nats: conflating publisher is closed");
+            }
+            published.incrementAndGet();
+            Held previous = held.get(subject);
+            if (previous != null) {
+                previous.reply = reply;
+                previous.data = copy;
+                conflated.incrementAndGet();
+            } else {
+                held.put(subject, new Held(reply, copy));
+            }
+            if (!scheduled) {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+        if (schedule) {
+            try {
+                exec.schedule(new Runnable() {
+                    public void run() {
+                        flush();
+                    }
+                }, windowNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // close() ran since the message was held, and its flush publishes it.
+            }
+        }
+    }
+
+    /**
+     * Publishes the held messages now.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            LinkedHashMap<String, Held> batch;
+            synchronized (this) {
+                scheduled = false;
+                if (held.isEmpty()) {
+                    return;
+                }
+                batch = held;
+                held = new LinkedHashMap<String, Held>();
+            }
+            for (Map.Entry<String, Held> entry : batch.entrySet()) {
+                Held msg = entry.getValue();
+                try {
+                    conn.publish(entry.getKey(), msg.reply, msg.data);
+                    sent.incrementAndGet();
+                } catch (IllegalStateException | IOException e) {
+                    errors.incrementAndGet();
+                    logger.warn("nats: unable to publish conflated message on '{}'",
+                            entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the held messages and stops the publisher. The connection is not closed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        exec.shutdown();
+        flush();
+    }
+
+    /**
+     * @return the number of messages passed to {@code publish}.
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return the number of messages published to the connection.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of held messages that were replaced by a newer message.
+     */
+    public long getConflated() {
+        return conflated.get();
+    }
+
+    /**
+     * @return the number of messages that could not be published to the connection.
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of subjects with a held message.
+     */
+    public synchronized int getHeld() {
+        return held.size();
+    }
+
+    static final class Held {
+        String reply;
+        byte[] data;
+
+        Held(String reply, byte[] data) {
+            this.reply = reply;
+            this.data = data;
+        }
+    }
+}
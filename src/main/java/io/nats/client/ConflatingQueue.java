@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The pending message queue of a conflating subscription. It holds at most one message per key;
+ * {@link #replace(Message)} overwrites a pending message in place, so the key keeps its position
+ * in the queue and the consumer sees the newest message for it. Messages whose key is {@code null}
+ * are queued individually.
+ */
+class ConflatingQueue extends LockedMessageQueue {
+
+    static final MessageKeyExtractor SUBJECT = new MessageKeyExtractor() {
+        public Object extractKey(Message msg) {
+            return msg.getSubject();
+        }
+    };
+
+    private final MessageKeyExtractor keys;
+    private final LinkedHashMap<Object, Message> pending = new LinkedHashMap<Object, Message>();
+
+    ConflatingQueue(MessageKeyExtractor keys) {
+        if (keys == null) {
+            throw new NullPointerException("nats: key extractor cannot be null");
+        }
+        this.keys = keys;
+    }
+
+    /**
+     * Replaces the pending message with the same key as {@code msg}, if there is one.
+     *
+     * @param msg the newer message
+     * @return the replaced message, or {@code null} if no message with the key was pending, in
+     *         which case {@code msg} was not queued
+     */
+    Message replace(Message msg) {
+        Object key = keys.extractKey(msg);
+        if (key == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            Message previous = pending.get(key);
+            if (previous != null) {
+                pending.put(key, msg);
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    boolean doOffer(Message msg) {
+        Object key = keys.extractKey(msg);
+        // A fresh object never collides, so unkeyed messages are never conflated.
+        pending.put(key == null ? new Object() : key, msg);
+        return true;
+    }
+
+    @Override
+    Message doPoll() {
+        Iterator<Map.Entry<Object, Message>> it = pending.entrySet().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Message msg = it.next().getValue();
+        it.remove();
+        return msg;
+    }
+
+    @Override
+    Message doPeek() {
+        Iterator<Message> it = pending.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    @Override
+    int doSize() {
+        return pending.size();
+    }
+
+    @Override
+    void doClear() {
+        pending.clear();
+    }
+
+    @Override
+    Iterator<Message> doSnapshot() {
+        return new ArrayList<Message>(pending.values()).iterator();
+    }
+}
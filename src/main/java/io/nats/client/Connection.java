@@ -7,6 +7,7 @@
 package io.nats.client;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -58,6 +59,52 @@ public interface Connection extends AbstractConnection {
      */
     void publish(String subject, String reply, byte[] data, boolean flush) throws IOException;
 
+    /**
+     * Publishes the payload specified by {@code data} to the subject specified by {@code subject},
+     * and returns a {@code Future} that completes once the server has processed the message.
+     * 
+     * <p>NATS does not acknowledge publishes. Instead, the connection follows batches of
+     * asynchronous publishes with a PING, and the matching PONG confirms the messages of the batch
+     * that were written before it. A single round trip therefore confirms all of the publishes
+     * made between two runs of the flusher. The {@code Future} fails with an
+     * {@link java.util.concurrent.ExecutionException} wrapping an {@code IOException} if the
+     * connection is lost before the PONG arrives, or if a message of the batch was dropped before
+     * reaching the server, by {@link BackpressurePolicy#DROP_OLDEST} or because it expired in the
+     * reconnect buffer under a {@link BufferedPublishPolicy}. Such a failure is reported for the
+     * whole batch, with the message {@link Constants#ERR_PUBLISH_NOT_CONFIRMED}.
+     * 
+     * @param subject the subject to publish the message to
+     * @param data the message payload
+     * @return a {@code Future} that completes when the server has processed the message
+     * @throws IOException if an I/O error is encountered
+     */
+    Future<Void> publishAsync(String subject, byte[] data) throws IOException;
+
+    /**
+     * Publishes the payload specified by {@code data} to the subject specified by {@code subject},
+     * with an optional reply subject, and returns a {@code Future} that completes once the server
+     * has processed the message.
+     * 
+     * @param subject the subject to publish the message to
+     * @param reply the subject to which subscribers should send responses
+     * @param data the message payload
+     * @return a {@code Future} that completes when the server has processed the message
+     * @throws IOException if an I/O error is encountered
+     * @see #publishAsync(String, byte[])
+     */
+    Future<Void> publishAsync(String subject, String reply, byte[] data) throws IOException;
+
+    /**
+     * Publishes a message to a subject and returns a {@code Future} that completes once the server
+     * has processed the message.
+     * 
+     * @param msg the {@code Message} to publish
+     * @return a {@code Future} that completes when the server has processed the message
+     * @throws IOException if an I/O error is encountered
+     * @see #publishAsync(String, byte[])
+     */
+    Future<Void> publishAsync(Message msg) throws IOException;
+
     /**
      * Publishes a request message to the specified subject, waiting up to {@code timeout} msec for
      * a response.
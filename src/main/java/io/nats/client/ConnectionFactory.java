@@ -15,7 +15,11 @@ import java.lang.reflect.Constructor;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.TimeoutException;
 
@@ -93,6 +97,66 @@ public class ConnectionFactory implements Cloneable {
      * This property is defined as String {@value #PROP_RECONNECT_BUF_SIZE}.
      */
     public static final String PROP_RECONNECT_BUF_SIZE = PFX + "reconnect.buffer.size";
+    /**
+     * This property is defined as String {@value #PROP_RECONNECT_SPILL_SIZE}.
+     */
+    public static final String PROP_RECONNECT_SPILL_SIZE = PFX + "reconnect.spill.size";
+    /**
+     * This property is defined as String {@value #PROP_RECONNECT_SPILL_DIR}.
+     */
+    public static final String PROP_RECONNECT_SPILL_DIR = PFX + "reconnect.spill.dir";
+    /**
+     * This property is defined as String {@value #PROP_SUBSCRIPTION_SPILL_DIR}.
+     */
+    public static final String PROP_SUBSCRIPTION_SPILL_DIR = PFX + "subscription.spill.dir";
+    /**
+     * This property is defined as String {@value #PROP_MAX_PENDING_BYTES}.
+     */
+    public static final String PROP_MAX_PENDING_BYTES = PFX + "pending.bytes.max";
+    /**
+     * This property is defined as String {@value #PROP_LATENCY_HISTOGRAMS}.
+     */
+    public static final String PROP_LATENCY_HISTOGRAMS = PFX + "latency.histograms";
+    /**
+     * This property is defined as String {@value #PROP_JMX_ENABLED}.
+     */
+    public static final String PROP_JMX_ENABLED = PFX + "jmx.enabled";
+    /**
+     * This property is defined as String {@value #PROP_METRICS_COLLECTOR}.
+     */
+    public static final String PROP_METRICS_COLLECTOR = PFX + "metrics.collector";
+    /**
+     * This property is defined as String {@value #PROP_METRICS_INTERVAL}.
+     */
+    public static final String PROP_METRICS_INTERVAL = PFX + "metrics.interval";
+    /**
+     * This property is defined as String {@value #PROP_METRICS_SUBJECT_PATTERNS}.
+     */
+    public static final String PROP_METRICS_SUBJECT_PATTERNS = PFX + "metrics.subjects";
+    /**
+     * This property is defined as String {@value #PROP_HEAVY_HITTERS}.
+     */
+    public static final String PROP_HEAVY_HITTERS = PFX + "heavyhitters";
+    /**
+     * This property is defined as String {@value #PROP_STALL_THRESHOLD}.
+     */
+    public static final String PROP_STALL_THRESHOLD = PFX + "stall.threshold";
+    /**
+     * This property is defined as String {@value #PROP_OUTBOUND_HIGH_WATERMARK}.
+     */
+    public static final String PROP_OUTBOUND_HIGH_WATERMARK = PFX + "outbound.watermark.high";
+    /**
+     * This property is defined as String {@value #PROP_OUTBOUND_LOW_WATERMARK}.
+     */
+    public static final String PROP_OUTBOUND_LOW_WATERMARK = PFX + "outbound.watermark.low";
+    /**
+     * This property is defined as String {@value #PROP_BACKPRESSURE_POLICY}.
+     */
+    public static final String PROP_BACKPRESSURE_POLICY = PFX + "backpressure.policy";
+    /**
+     * This property is defined as String {@value #PROP_BACKPRESSURE_TIMEOUT}.
+     */
+    public static final String PROP_BACKPRESSURE_TIMEOUT = PFX + "backpressure.timeout";
     /**
      * This property is defined as String {@value #PROP_CONNECTION_TIMEOUT}.
      */
@@ -121,6 +185,10 @@ public class ConnectionFactory implements Cloneable {
      * This property is defined as String {@value #PROP_RECONNECTED_CB}.
      */
     public static final String PROP_RECONNECTED_CB = PFX + "callback.reconnected";
+    /**
+     * This property is defined as String {@value #PROP_BACKPRESSURE_CB}.
+     */
+    public static final String PROP_BACKPRESSURE_CB = PFX + "callback.backpressure";
 
     /**
      * Default server host.
@@ -165,6 +233,27 @@ public class ConnectionFactory implements Cloneable {
      * <p>This property is defined as String {@value #DEFAULT_RECONNECT_BUF_SIZE}
      */
     public static final int DEFAULT_RECONNECT_BUF_SIZE = 8 * 1024 * 1024;
+    /**
+     * Default size of the memory-mapped file that the reconnect buffer spills to once its heap
+     * tier is full. {@code 0} means disabled.
+     * 
+     * <p>This property is defined as String {@value #DEFAULT_RECONNECT_SPILL_SIZE}
+     */
+    public static final long DEFAULT_RECONNECT_SPILL_SIZE = 0L;
+    /**
+     * Default number of bytes waiting to be written to the socket at which publishes are subject
+     * to the backpressure policy. {@code 0} means disabled.
+     * 
+     * <p>This property is defined as String {@value #DEFAULT_OUTBOUND_HIGH_WATERMARK}
+     */
+    public static final long DEFAULT_OUTBOUND_HIGH_WATERMARK = 0L;
+    /**
+     * Default maximum time, in milliseconds, that a publish waits for the outbound buffer to drain
+     * under {@link BackpressurePolicy#BLOCK}.
+     * 
+     * <p>This property is defined as String {@value #DEFAULT_BACKPRESSURE_TIMEOUT}
+     */
+    public static final long DEFAULT_BACKPRESSURE_TIMEOUT = 2 * 1000;
     /**
      * Default connection timeout.
      * 
@@ -183,6 +272,12 @@ public class ConnectionFactory implements Cloneable {
      * <p>This property is defined as String {@value #DEFAULT_MAX_PINGS_OUT}
      */
     public static final int DEFAULT_MAX_PINGS_OUT = 2;
+    /**
+     * Default interval, in milliseconds, at which metrics are reported to the metrics collector.
+     * 
+     * <p>This property is defined as String {@value #DEFAULT_METRICS_INTERVAL}
+     */
+    public static final long DEFAULT_METRICS_INTERVAL = 1000;
 
     private URI url = null;
     private String host = null;
@@ -199,6 +294,23 @@ public class ConnectionFactory implements Cloneable {
     private int maxReconnect = DEFAULT_MAX_RECONNECT;
     private long reconnectWait = DEFAULT_RECONNECT_WAIT;
     private int reconnectBufSize = DEFAULT_RECONNECT_BUF_SIZE;
+    private long reconnectSpillSize = DEFAULT_RECONNECT_SPILL_SIZE;
+    private String reconnectSpillDir = null;
+    private String subscriptionSpillDir = null;
+    private long maxPendingBytes = 0;
+    private boolean latencyHistograms = false;
+    private boolean jmxEnabled = false;
+    private MetricsCollector metricsCollector = null;
+    private long metricsInterval = DEFAULT_METRICS_INTERVAL;
+    private List<String> metricsSubjectPatterns = null;
+    private int heavyHitters = 0;
+    private long stallThreshold = 0;
+    private Map<String, BufferedPublishPolicy> bufferedPublishPolicies =
+            new LinkedHashMap<String, BufferedPublishPolicy>();
+    private long outboundHighWatermark = DEFAULT_OUTBOUND_HIGH_WATERMARK;
+    private long outboundLowWatermark = 0;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private long backpressureTimeout = DEFAULT_BACKPRESSURE_TIMEOUT;
     private int connectionTimeout = DEFAULT_TIMEOUT;
     private long pingInterval = DEFAULT_PING_INTERVAL;
     private int maxPingsOut = DEFAULT_MAX_PINGS_OUT;
@@ -207,6 +319,7 @@ public class ConnectionFactory implements Cloneable {
     private ClosedCallback closedCallback;
     private DisconnectedCallback disconnectedCallback;
     private ReconnectedCallback reconnectedCallback;
+    private BackpressureCallback backpressureCallback;
     private String urlString = null;
     private boolean tlsDebug;
 
@@ -295,6 +408,84 @@ public class ConnectionFactory implements Cloneable {
             this.setReconnectBufSize(Integer.parseInt(props.getProperty(PROP_RECONNECT_BUF_SIZE,
                     Integer.toString(DEFAULT_RECONNECT_BUF_SIZE))));
         }
+        // PROP_RECONNECT_SPILL_SIZE
+        if (props.containsKey(PROP_RECONNECT_SPILL_SIZE)) {
+            this.setReconnectSpillSize(Long.parseLong(props.getProperty(PROP_RECONNECT_SPILL_SIZE,
+                    Long.toString(DEFAULT_RECONNECT_SPILL_SIZE))));
+        }
+        // PROP_RECONNECT_SPILL_DIR
+        if (props.containsKey(PROP_RECONNECT_SPILL_DIR)) {
+            this.setReconnectSpillDir(props.getProperty(PROP_RECONNECT_SPILL_DIR));
+        }
+        // PROP_SUBSCRIPTION_SPILL_DIR
+        if (props.containsKey(PROP_SUBSCRIPTION_SPILL_DIR)) {
+            this.setSubscriptionSpillDir(props.getProperty(PROP_SUBSCRIPTION_SPILL_DIR));
+        }
+        // PROP_MAX_PENDING_BYTES
+        if (props.containsKey(PROP_MAX_PENDING_BYTES)) {
+            this.setMaxPendingBytes(Long.parseLong(props.getProperty(PROP_MAX_PENDING_BYTES)));
+        }
+        // PROP_LATENCY_HISTOGRAMS
+        if (props.containsKey(PROP_LATENCY_HISTOGRAMS)) {
+            this.setLatencyHistograms(
+                    Boolean.parseBoolean(props.getProperty(PROP_LATENCY_HISTOGRAMS)));
+        }
+        // PROP_JMX_ENABLED
+        if (props.containsKey(PROP_JMX_ENABLED)) {
+            this.setJmxEnabled(Boolean.parseBoolean(props.getProperty(PROP_JMX_ENABLED)));
+        }
+        // PROP_METRICS_COLLECTOR
+        if (props.containsKey(PROP_METRICS_COLLECTOR)) {
+            Object instance = null;
+            try {
+                String str = props.getProperty(PROP_METRICS_COLLECTOR);
+                Class<?> clazz = Class.forName(str);
+                Constructor<?> constructor = clazz.getConstructor();
+                instance = constructor.newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+            this.setMetricsCollector((MetricsCollector) instance);
+        }
+        // PROP_METRICS_INTERVAL
+        if (props.containsKey(PROP_METRICS_INTERVAL)) {
+            this.setMetricsInterval(Long.parseLong(props.getProperty(PROP_METRICS_INTERVAL)));
+        }
+        // PROP_METRICS_SUBJECT_PATTERNS
+        if (props.containsKey(PROP_METRICS_SUBJECT_PATTERNS)) {
+            String str = props.getProperty(PROP_METRICS_SUBJECT_PATTERNS).trim();
+            if (!str.isEmpty()) {
+                this.setMetricsSubjectPatterns(str.split("\\s*,\\s*"));
+            }
+        }
+        // PROP_HEAVY_HITTERS
+        if (props.containsKey(PROP_HEAVY_HITTERS)) {
+            this.setHeavyHitters(Integer.parseInt(props.getProperty(PROP_HEAVY_HITTERS)));
+        }
+        // PROP_STALL_THRESHOLD
+        if (props.containsKey(PROP_STALL_THRESHOLD)) {
+            this.setStallThreshold(Long.parseLong(props.getProperty(PROP_STALL_THRESHOLD)));
+        }
+        // PROP_OUTBOUND_HIGH_WATERMARK
+        if (props.containsKey(PROP_OUTBOUND_HIGH_WATERMARK)) {
+            this.setOutboundHighWatermark(Long.parseLong(props.getProperty(
+                    PROP_OUTBOUND_HIGH_WATERMARK, Long.toString(DEFAULT_OUTBOUND_HIGH_WATERMARK))));
+        }
+        // PROP_OUTBOUND_LOW_WATERMARK
+        if (props.containsKey(PROP_OUTBOUND_LOW_WATERMARK)) {
+            this.setOutboundLowWatermark(
+                    Long.parseLong(props.getProperty(PROP_OUTBOUND_LOW_WATERMARK, "0")));
+        }
+        // PROP_BACKPRESSURE_POLICY
+        if (props.containsKey(PROP_BACKPRESSURE_POLICY)) {
+            this.setBackpressurePolicy(BackpressurePolicy
+                    .valueOf(props.getProperty(PROP_BACKPRESSURE_POLICY).trim().toUpperCase()));
+        }
+        // PROP_BACKPRESSURE_TIMEOUT
+        if (props.containsKey(PROP_BACKPRESSURE_TIMEOUT)) {
+            this.setBackpressureTimeout(Long.parseLong(props.getProperty(PROP_BACKPRESSURE_TIMEOUT,
+                    Long.toString(DEFAULT_BACKPRESSURE_TIMEOUT))));
+        }
         // PROP_CONNECTION_TIMEOUT
         if (props.containsKey(PROP_CONNECTION_TIMEOUT)) {
             this.setConnectionTimeout(Integer.parseInt(
@@ -364,6 +555,19 @@ public class ConnectionFactory implements Cloneable {
             }
             this.setReconnectedCallback((ReconnectedCallback) instance);
         }
+        // PROP_BACKPRESSURE_CB
+        if (props.containsKey(PROP_BACKPRESSURE_CB)) {
+            Object instance = null;
+            try {
+                String str = props.getProperty(PROP_BACKPRESSURE_CB);
+                Class<?> clazz = Class.forName(str);
+                Constructor<?> constructor = clazz.getConstructor();
+                instance = constructor.newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(e);
+            }
+            this.setBackpressureCallback((BackpressureCallback) instance);
+        }
     }
 
     /**
@@ -434,6 +638,23 @@ public class ConnectionFactory implements Cloneable {
         this.reconnectAllowed = cf.reconnectAllowed;
         this.maxReconnect = cf.maxReconnect;
         this.reconnectBufSize = cf.reconnectBufSize;
+        this.reconnectSpillSize = cf.reconnectSpillSize;
+        this.reconnectSpillDir = cf.reconnectSpillDir;
+        this.subscriptionSpillDir = cf.subscriptionSpillDir;
+        this.maxPendingBytes = cf.maxPendingBytes;
+        this.latencyHistograms = cf.latencyHistograms;
+        this.jmxEnabled = cf.jmxEnabled;
+        this.metricsCollector = cf.metricsCollector;
+        this.metricsInterval = cf.metricsInterval;
+        this.metricsSubjectPatterns = cf.metricsSubjectPatterns;
+        this.heavyHitters = cf.heavyHitters;
+        this.stallThreshold = cf.stallThreshold;
+        this.bufferedPublishPolicies =
+                new LinkedHashMap<String, BufferedPublishPolicy>(cf.bufferedPublishPolicies);
+        this.outboundHighWatermark = cf.outboundHighWatermark;
+        this.outboundLowWatermark = cf.outboundLowWatermark;
+        this.backpressurePolicy = cf.backpressurePolicy;
+        this.backpressureTimeout = cf.backpressureTimeout;
         this.reconnectWait = cf.reconnectWait;
         this.connectionTimeout = cf.connectionTimeout;
         this.pingInterval = cf.pingInterval;
@@ -443,6 +664,7 @@ public class ConnectionFactory implements Cloneable {
         this.closedCallback = cf.closedCallback;
         this.disconnectedCallback = cf.disconnectedCallback;
         this.reconnectedCallback = cf.reconnectedCallback;
+        this.backpressureCallback = cf.backpressureCallback;
         this.urlString = cf.urlString;
         this.tlsDebug = cf.tlsDebug;
     }
@@ -514,6 +736,22 @@ public class ConnectionFactory implements Cloneable {
         result.setReconnectAllowed(reconnectAllowed);
         result.setMaxReconnect(maxReconnect);
         result.setReconnectBufSize(reconnectBufSize);
+        result.setReconnectSpillSize(reconnectSpillSize);
+        result.setReconnectSpillDir(reconnectSpillDir);
+        result.setSubscriptionSpillDir(subscriptionSpillDir);
+        result.setMaxPendingBytes(maxPendingBytes);
+        result.setLatencyHistograms(latencyHistograms);
+        result.setJmxEnabled(jmxEnabled);
+        result.setMetricsCollector(metricsCollector);
+        result.setMetricsInterval(metricsInterval);
+        result.setMetricsSubjectPatterns(metricsSubjectPatterns);
+        result.setHeavyHitters(heavyHitters);
+        result.setStallThreshold(stallThreshold);
+        result.setBufferedPublishPolicies(bufferedPublishPolicies);
+        result.setOutboundHighWatermark(outboundHighWatermark);
+        result.setOutboundLowWatermark(outboundLowWatermark);
+        result.setBackpressurePolicy(backpressurePolicy);
+        result.setBackpressureTimeout(backpressureTimeout);
         result.setReconnectWait(reconnectWait);
         result.setConnectionTimeout(connectionTimeout);
         result.setPingInterval(pingInterval);
@@ -522,6 +760,7 @@ public class ConnectionFactory implements Cloneable {
         result.setClosedCallback(closedCallback);
         result.setDisconnectedCallback(disconnectedCallback);
         result.setReconnectedCallback(reconnectedCallback);
+        result.setBackpressureCallback(backpressureCallback);
         result.setSslContext(sslContext);
         return result;
     }
@@ -924,6 +1163,377 @@ public class ConnectionFactory implements Cloneable {
         return this.reconnectBufSize;
     }
 
+    /**
+     * Sets the maximum size in bytes of the memory-mapped file that the pending message buffer
+     * spills to once {@link #getReconnectBufSize()} bytes are buffered on the heap. The file is
+     * only created if a reconnect actually needs it. {@code 0} disables spilling.
+     * 
+     * @param size the reconnect spill size, in bytes
+     */
+    public void setReconnectSpillSize(long size) {
+        if (size < 0) {
+            this.reconnectSpillSize = DEFAULT_RECONNECT_SPILL_SIZE;
+        } else {
+            this.reconnectSpillSize = size;
+        }
+    }
+
+    /**
+     * Returns the maximum size in bytes of the reconnect spill file.
+     * 
+     * @return the reconnect spill size, in bytes
+     */
+    public long getReconnectSpillSize() {
+        return this.reconnectSpillSize;
+    }
+
+    /**
+     * Sets the directory in which the reconnect spill file is created. {@code null} means the
+     * default temporary-file directory.
+     * 
+     * @param dir the reconnect spill directory
+     */
+    public void setReconnectSpillDir(String dir) {
+        this.reconnectSpillDir = dir;
+    }
+
+    /**
+     * Returns the directory in which the reconnect spill file is created.
+     * 
+     * @return the reconnect spill directory, or {@code null} for the default
+     */
+    public String getReconnectSpillDir() {
+        return this.reconnectSpillDir;
+    }
+
+    /**
+     * Sets the directory in which spilling subscriptions create their segment files. {@code null}
+     * means the default temporary-file directory.
+     * 
+     * @param dir the subscription spill directory
+     * @see Connection#subscribeSpilling(String, String, MessageHandler, long, long)
+     */
+    public void setSubscriptionSpillDir(String dir) {
+        this.subscriptionSpillDir = dir;
+    }
+
+    /**
+     * Returns the directory in which spilling subscriptions create their segment files.
+     * 
+     * @return the subscription spill directory, or {@code null} for the default
+     */
+    public String getSubscriptionSpillDir() {
+        return this.subscriptionSpillDir;
+    }
+
+    /**
+     * Sets the connection-wide budget for pending inbound message payloads, in bytes, across all
+     * subscriptions. While the budget has room, any subscription may queue up to its own pending
+     * limits. Once it is exhausted, a subscription that holds more than its fair share (the budget
+     * divided evenly among the subscriptions) is treated as a slow consumer, and its
+     * {@link SlowConsumerPolicy} applies. Spilling subscriptions are not counted. {@code 0}, the
+     * default, disables the budget.
+     * 
+     * @param bytes the pending budget, in bytes
+     * @see Subscription#setPendingLimits(int, int)
+     */
+    public void setMaxPendingBytes(long bytes) {
+        this.maxPendingBytes = (bytes < 0) ? 0 : bytes;
+    }
+
+    /**
+     * Returns the connection-wide budget for pending inbound message payloads.
+     * 
+     * @return the pending budget, in bytes, or {@code 0} if there is none
+     */
+    public long getMaxPendingBytes() {
+        return this.maxPendingBytes;
+    }
+
+    /**
+     * Enables the per-message latency histograms: queue sojourn and handler time per
+     * subscription, and publish-to-flush delay. They cost two clock reads per message, so they are
+     * off by default. The PING round-trip histogram is always recorded.
+     * 
+     * @param enabled whether to record the per-message latency histograms
+     * @see Connection#getPublishFlushHistogram()
+     * @see Subscription#getSojournHistogram()
+     */
+    public void setLatencyHistograms(boolean enabled) {
+        this.latencyHistograms = enabled;
+    }
+
+    /**
+     * Indicates whether the per-message latency histograms are recorded.
+     * 
+     * @return {@code true} if the per-message latency histograms are recorded
+     */
+    public boolean isLatencyHistograms() {
+        return this.latencyHistograms;
+    }
+
+    /**
+     * Registers an MBean for each connection, and for each of its subscriptions, with the
+     * platform MBean server. Connections are registered once connected and unregistered when
+     * closed. Subscriptions on reply inboxes ({@code _INBOX.*}), such as the one {@code request()}
+     * creates for each call, are not registered.
+     * 
+     * @param enabled whether to register MBeans
+     * @see ConnectionMXBean
+     * @see SubscriptionMXBean
+     */
+    public void setJmxEnabled(boolean enabled) {
+        this.jmxEnabled = enabled;
+    }
+
+    /**
+     * Indicates whether connections and subscriptions are registered as MBeans.
+     * 
+     * @return {@code true} if connections and subscriptions are registered as MBeans
+     */
+    public boolean isJmxEnabled() {
+        return this.jmxEnabled;
+    }
+
+    /**
+     * Sets the collector to report the metrics of each connection to, such as a
+     * {@link PrometheusMetricsCollector}. Metrics are reported as increments of counters the
+     * connection keeps anyway, every {@link #setMetricsInterval(long) metrics interval}.
+     * 
+     * @param collector the metrics collector, or {@code null} to not report metrics
+     */
+    public void setMetricsCollector(MetricsCollector collector) {
+        this.metricsCollector = collector;
+    }
+
+    /**
+     * Returns the collector metrics are reported to.
+     * 
+     * @return the metrics collector, or {@code null} if metrics are not reported
+     */
+    public MetricsCollector getMetricsCollector() {
+        return this.metricsCollector;
+    }
+
+    /**
+     * Sets the interval at which metrics are reported to the metrics collector.
+     * 
+     * @param interval the reporting interval, in milliseconds
+     */
+    public void setMetricsInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("nats: metrics interval must be greater than 0");
+        }
+        this.metricsInterval = interval;
+    }
+
+    /**
+     * Returns the interval at which metrics are reported to the metrics collector.
+     * 
+     * @return the reporting interval, in milliseconds
+     */
+    public long getMetricsInterval() {
+        return this.metricsInterval;
+    }
+
+    /**
+     * Sets the subject patterns published messages are counted under. A published message is
+     * counted under the first pattern its subject matches, or under {@code ">"} if it matches
+     * none. Without patterns, which is the default, all published messages are counted under
+     * {@code ">"} and publishing does no extra work for metrics.
+     * 
+     * @param patterns the subject patterns, which may contain {@code *} and {@code >} wildcards
+     */
+    public void setMetricsSubjectPatterns(String... patterns) {
+        if (patterns == null || patterns.length == 0) {
+            this.metricsSubjectPatterns = null;
+            return;
+        }
+        for (String pattern : patterns) {
+            if (pattern == null || pattern.isEmpty()) {
+                throw new IllegalArgumentException(Constants.ERR_BAD_SUBJECT);
+            }
+        }
+        this.metricsSubjectPatterns = new ArrayList<String>(Arrays.asList(patterns));
+    }
+
+    /**
+     * Returns the subject patterns published messages are counted under.
+     * 
+     * @return the subject patterns, or {@code null} if none are set
+     */
+    public List<String> getMetricsSubjectPatterns() {
+        return (metricsSubjectPatterns == null) ? null
+                : Collections.unmodifiableList(metricsSubjectPatterns);
+    }
+
+    /**
+     * Tracks the {@code count} subjects with the most messages and the most bytes received and
+     * published by each connection, in a count-min sketch of fixed size (64KB per direction).
+     * When a subscription becomes a slow consumer, the top inbound subjects are logged.
+     * 
+     * @param count the number of subjects to track in each ranking, or 0 to disable tracking
+     * @see AbstractConnection#getInboundHeavyHitters()
+     * @see AbstractConnection#getOutboundHeavyHitters()
+     */
+    public void setHeavyHitters(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("nats: heavy hitter count cannot be negative");
+        }
+        this.heavyHitters = count;
+    }
+
+    /**
+     * Returns the number of subjects tracked in each heavy hitter ranking.
+     * 
+     * @return the number of subjects tracked, or 0 if tracking is disabled
+     */
+    public int getHeavyHitters() {
+        return this.heavyHitters;
+    }
+
+    /**
+     * Sets how long a connection thread may make no progress before it is reported as stalled:
+     * the read loop while it parses and dispatches what it read, the flusher while it writes to
+     * the socket, a subscription's message handler, or any thread holding the connection lock.
+     * A stall is logged with the stack of the stalled thread, passed to the
+     * {@link ExceptionHandler} as a {@link StallException}, counted in
+     * {@link ConnectionMXBean#getStalls()} and reported to the {@link MetricsCollector}. Each
+     * stall is reported once, however long it lasts.
+     * 
+     * @param threshold the stall threshold, in milliseconds, or 0 to disable stall detection
+     */
+    public void setStallThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("nats: stall threshold cannot be negative");
+        }
+        this.stallThreshold = threshold;
+    }
+
+    /**
+     * Returns how long a connection thread may make no progress before it is reported as
+     * stalled.
+     * 
+     * @return the stall threshold, in milliseconds, or 0 if stall detection is disabled
+     */
+    public long getStallThreshold() {
+        return this.stallThreshold;
+    }
+
+    /**
+     * Sets the replay priority and time-to-live of messages published on subjects matching
+     * {@code subject} while the connection is reconnecting. Patterns are evaluated in the order
+     * they were first set, and the first match applies. A {@code null} policy removes the pattern.
+     * 
+     * @param subject the subject pattern, which may contain {@code *} and {@code >} wildcards
+     * @param policy the policy for matching subjects, or {@code null}
+     */
+    public void setBufferedPublishPolicy(String subject, BufferedPublishPolicy policy) {
+        if (subject == null || subject.isEmpty()) {
+            throw new IllegalArgumentException(Constants.ERR_BAD_SUBJECT);
+        }
+        if (policy == null) {
+            bufferedPublishPolicies.remove(subject);
+        } else {
+            bufferedPublishPolicies.put(subject, policy);
+        }
+    }
+
+    /**
+     * Returns the buffered publish policies, keyed by subject pattern.
+     * 
+     * @return the buffered publish policies
+     */
+    public Map<String, BufferedPublishPolicy> getBufferedPublishPolicies() {
+        return Collections.unmodifiableMap(bufferedPublishPolicies);
+    }
+
+    /**
+     * Sets the number of bytes waiting to be written to the socket at which publishes become
+     * subject to the {@link BackpressurePolicy} and the {@link BackpressureCallback} is notified.
+     * {@code 0} disables backpressure.
+     * 
+     * @param bytes the outbound high watermark, in bytes
+     */
+    public void setOutboundHighWatermark(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("nats: outbound high watermark cannot be negative");
+        }
+        this.outboundHighWatermark = bytes;
+    }
+
+    /**
+     * Returns the outbound high watermark, in bytes.
+     * 
+     * @return the outbound high watermark, or {@code 0} if backpressure is disabled
+     */
+    public long getOutboundHighWatermark() {
+        return this.outboundHighWatermark;
+    }
+
+    /**
+     * Sets the number of bytes waiting to be written to the socket at or below which an outbound
+     * buffer that crossed its high watermark is considered drained. {@code 0} means half the high
+     * watermark.
+     * 
+     * @param bytes the outbound low watermark, in bytes
+     */
+    public void setOutboundLowWatermark(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("nats: outbound low watermark cannot be negative");
+        }
+        this.outboundLowWatermark = bytes;
+    }
+
+    /**
+     * Returns the outbound low watermark, in bytes.
+     * 
+     * @return the outbound low watermark, or {@code 0} for half the high watermark
+     */
+    public long getOutboundLowWatermark() {
+        return this.outboundLowWatermark;
+    }
+
+    /**
+     * Sets what a publish does when the outbound buffer is above its high watermark.
+     * 
+     * @param policy the backpressure policy
+     */
+    public void setBackpressurePolicy(BackpressurePolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("nats: backpressure policy cannot be null");
+        }
+        this.backpressurePolicy = policy;
+    }
+
+    /**
+     * Returns the backpressure policy.
+     * 
+     * @return the backpressure policy
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+        return this.backpressurePolicy;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, that a publish waits for the outbound buffer to
+     * drain under {@link BackpressurePolicy#BLOCK}.
+     * 
+     * @param timeout the backpressure timeout, in milliseconds
+     */
+    public void setBackpressureTimeout(long timeout) {
+        this.backpressureTimeout = timeout;
+    }
+
+    /**
+     * Returns the backpressure timeout, in milliseconds.
+     * 
+     * @return the backpressure timeout
+     */
+    public long getBackpressureTimeout() {
+        return this.backpressureTimeout;
+    }
+
     /**
      * Sets the reconnect wait interval in milliseconds. This is the amount of time to wait before
      * attempting reconnection to the current server
@@ -1053,6 +1663,24 @@ public class ConnectionFactory implements Cloneable {
         this.reconnectedCallback = cb;
     }
 
+    /**
+     * Returns the {@link BackpressureCallback}, if one is registered.
+     * 
+     * @return the {@link BackpressureCallback}, if one is registered
+     */
+    public BackpressureCallback getBackpressureCallback() {
+        return backpressureCallback;
+    }
+
+    /**
+     * Sets the {@link BackpressureCallback}.
+     * 
+     * @param cb the {@link BackpressureCallback} to set
+     */
+    public void setBackpressureCallback(BackpressureCallback cb) {
+        this.backpressureCallback = cb;
+    }
+
     /**
      * Returns the {@link ExceptionHandler}, if one is registered.
      * 
@@ -14,6 +14,7 @@ import static io.nats.client.Constants.ERR_CONNECTION_READ;
 import static io.nats.client.Constants.ERR_MAX_PAYLOAD;
 import static io.nats.client.Constants.ERR_NO_INFO_RECEIVED;
 import static io.nats.client.Constants.ERR_NO_SERVERS;
+import static io.nats.client.Constants.ERR_OUTBOUND_BUFFER_FULL;
 import static io.nats.client.Constants.ERR_RECONNECT_BUF_EXCEEDED;
 import static io.nats.client.Constants.ERR_SECURE_CONN_REQUIRED;
 import static io.nats.client.Constants.ERR_SECURE_CONN_WANTED;
@@ -34,8 +35,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -45,6 +46,7 @@ import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -56,24 +58,26 @@ import java.util.TimerTask;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import javax.management.ObjectName;
 
 public class ConnectionImpl implements Connection {
     final Logger logger = LoggerFactory.getLogger(ConnectionImpl.class);
 
     String version = null;
 
-    private static final String inboxPrefix = "_INBOX.";
+    static final String inboxPrefix = "_INBOX.";
 
     public ConnState status = ConnState.DISCONNECTED;
 
@@ -134,7 +138,7 @@ public class ConnectionImpl implements Connection {
     }
 
     private ConnectionImpl nc = null;
-    protected final Lock mu = new ReentrantLock();
+    protected final StallWatchdog.TimedLock mu = new StallWatchdog.TimedLock();
     // protected final Lock mu = new AlternateDeadlockDetectingLock(true, true);
 
     private AtomicLong sidCounter = new AtomicLong();
@@ -155,9 +159,13 @@ public class ConnectionImpl implements Connection {
     private OutputStream bw = null;
 
     private InputStream br = null;
-    private ByteArrayOutputStream pending = null;
+    private ReconnectBuffer pending = null;
 
     protected Map<Long, SubscriptionImpl> subs = new ConcurrentHashMap<Long, SubscriptionImpl>();
+    // Pending bytes of all subscriptions, checked against Options#getMaxPendingBytes().
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // Subscriptions that share the pending budget: budgeted ones, other than reply inboxes.
+    private final AtomicInteger budgetShares = new AtomicInteger();
     protected List<Srv> srvPool = null;
     protected Map<String, URI> urls = null;
     private Exception lastEx = null;
@@ -179,7 +187,33 @@ public class ConnectionImpl implements Connection {
     protected int crlfProtoBytesLen = 0;
 
     protected Statistics stats = null;
-    private ArrayList<BlockingQueue<Boolean>> pongs;
+    // PINGs sent and PONGs received. The server answers PINGs in order, so PONG n answers PING n.
+    private long pingsSent;
+    private long pongsReceived;
+    // Sequence number and send time of the PINGs written while connected, for the RTT histogram.
+    private final ArrayDeque<long[]> pingTimes = new ArrayDeque<long[]>();
+    private final LatencyHistogram pingRtt = new LatencyHistogram();
+    private final LatencyHistogram publishFlush = new LatencyHistogram();
+    // Set while registered with the platform MBean server.
+    ObjectName mbeanName;
+    // Set once connected, if a metrics collector is configured.
+    MetricsReporter metrics;
+    // Set if a stall threshold is configured.
+    StallWatchdog watchdog;
+    // Set if heavy hitter subjects are tracked.
+    private HeavyHitters inHitters;
+    private HeavyHitters outHitters;
+    // When the first message since the last flush was published; 0 if none.
+    private long firstUnflushedNanos;
+    // The last PING sent before the connection was lost.
+    private long pingsSentAtDisconnect;
+    // Fences waiting for the PONG to their PING, in sequence order.
+    private final ArrayDeque<PublishFence> pongWaiters = new ArrayDeque<PublishFence>();
+    // The outbound buffer the last PING was written to, and its write count just after.
+    private OutboundBuffer lastPingBuffer;
+    private long writtenAtLastPing;
+    // The fence covering publishAsync calls made since the last fence PING.
+    private PublishFence fence;
 
 
     protected static final int NUM_CORE_THREADS = 4;
@@ -221,6 +255,15 @@ public class ConnectionImpl implements Connection {
         this.nc = this;
         this.opts = opts;
         this.stats = new Statistics();
+        this.inHitters = (opts.getHeavyHitters() > 0) ? new HeavyHitters(opts.getHeavyHitters())
+                : null;
+        this.outHitters = (opts.getHeavyHitters() > 0) ? new HeavyHitters(opts.getHeavyHitters())
+                : null;
+        if (opts.getStallThreshold() > 0) {
+            this.watchdog =
+                    new StallWatchdog(this, opts.getStallThreshold(), TimeUnit.MILLISECONDS);
+            mu.setTimed(true);
+        }
         // this.msgArgs = new MsgArg();
         if (connFac != null) {
             tcf = connFac;
@@ -264,7 +307,6 @@ public class ConnectionImpl implements Connection {
         subexec = createSubscriptionScheduler();
         cbexec = createCallbackScheduler();
         fch = createFlushChannel();
-        pongs = createPongs();
         subs.clear();
     }
 
@@ -449,6 +491,21 @@ public class ConnectionImpl implements Connection {
             if (returnedErr != null) {
                 throw (returnedErr);
             }
+            if (opts.isJmxEnabled()) {
+                NatsMBeans.register(this);
+            }
+            if (opts.getMetricsCollector() != null) {
+                metrics = new MetricsReporter(this, opts.getMetricsCollector(),
+                        opts.getMetricsSubjectPatterns());
+                tasks.add(exec.scheduleAtFixedRate(metrics, opts.getMetricsInterval(),
+                        opts.getMetricsInterval(), TimeUnit.MILLISECONDS));
+                postConnectionEvent(ConnState.CONNECTED);
+            }
+            if (watchdog != null) {
+                long interval = watchdog.getCheckInterval();
+                tasks.add(exec.scheduleWithFixedDelay(watchdog, interval, interval,
+                        TimeUnit.NANOSECONDS));
+            }
         } finally {
             mu.unlock();
         }
@@ -486,7 +543,7 @@ public class ConnectionImpl implements Connection {
                 logger.warn(ERR_TCP_FLUSH_FAILED);
             }
         }
-        bw = conn.getOutputStream(DEFAULT_STREAM_BUF_SIZE);
+        bw = createOutboundBuffer(conn.getOutputStream(DEFAULT_STREAM_BUF_SIZE));
         br = conn.getInputStream(DEFAULT_STREAM_BUF_SIZE);
     }
 
@@ -523,19 +580,22 @@ public class ConnectionImpl implements Connection {
     // This will clear any pending flush calls and release pending calls.
     // Lock is assumed to be held by the caller.
     void clearPendingFlushCalls() {
-        // Clear any queued pongs, e.g. pending flush calls.
-        if (pongs == null) {
-            return;
+        clearPendingFlushCalls(pingsSent);
+    }
+
+    // Fails the flush calls waiting on PINGs up to and including lastLost, whose PONGs will never
+    // arrive, and counts those PONGs as received. Later PINGs are still in the pending buffer and
+    // will be answered once it is replayed.
+    // Lock is assumed to be held by the caller.
+    void clearPendingFlushCalls(long lastLost) {
+        while (!pongWaiters.isEmpty() && pongWaiters.peek().seq <= lastLost) {
+            pongWaiters.poll().complete(false);
         }
-        for (BlockingQueue<Boolean> ch : pongs) {
-            if (ch != null) {
-                ch.clear();
-                // Signal other waiting threads that we're done
-                ch.add(false);
-            }
+        if (pongsReceived < lastLost) {
+            pongsReceived = lastLost;
         }
-        pongs.clear();
-        pongs = null;
+        pingTimes.clear();
+        lastPingBuffer = null;
     }
 
     @Override
@@ -566,10 +626,21 @@ public class ConnectionImpl implements Connection {
             mu.unlock();
         }
 
+        // Report what was counted since the last report, before the subscriptions go. Not under
+        // the lock, which the reporter takes itself.
+        if (metrics != null) {
+            metrics.run();
+        }
+
         mu.lock();
         try {
             // Clear any queued pongs, e.g. pending flush calls.
             clearPendingFlushCalls();
+            // Fail the open publish fence; its PING will never be sent.
+            if (fence != null) {
+                fence.complete(false);
+                fence = null;
+            }
 
             // Go ahead and make sure we have flushed the outbound
             if (conn != null) {
@@ -600,11 +671,25 @@ public class ConnectionImpl implements Connection {
                 } finally {
                     sub.unlock();
                 }
+                NatsMBeans.unregister(sub);
             }
             subs.clear();
+            NatsMBeans.unregister(this);
+
+            // Release the reconnect buffer, including any spill file.
+            if (pending != null) {
+                pending.close();
+                pending = null;
+            }
 
             // perform appropriate callback if needed for a disconnect;
             if (doCBs) {
+                if (conn != null) {
+                    postConnectionEvent(ConnState.DISCONNECTED);
+                }
+                if (closeState == ConnState.CLOSED) {
+                    postConnectionEvent(ConnState.CLOSED);
+                }
                 if (opts.getDisconnectedCallback() != null && conn != null) {
                     cbexec.submit(new Runnable() {
                         public void run() {
@@ -689,7 +774,7 @@ public class ConnectionImpl implements Connection {
     void makeTLSConn() throws IOException {
         conn.setTlsDebug(opts.isTlsDebug());
         conn.makeTLS(opts.getSslContext());
-        bw = conn.getOutputStream(DEFAULT_STREAM_BUF_SIZE);
+        bw = createOutboundBuffer(conn.getOutputStream(DEFAULT_STREAM_BUF_SIZE));
         br = conn.getInputStream(DEFAULT_STREAM_BUF_SIZE);
     }
 
@@ -730,25 +815,22 @@ public class ConnectionImpl implements Connection {
     // messages. We use pings for the flush mechanism as well.
     protected void processPong() {
         logger.trace("Processing PONG");
-        BlockingQueue<Boolean> ch = createBooleanChannel(1);
         mu.lock();
         try {
-            if (pongs != null && pongs.size() > 0) {
-                ch = pongs.get(0);
-                pongs.remove(0);
+            pongsReceived++;
+            while (!pongWaiters.isEmpty() && pongWaiters.peek().seq <= pongsReceived) {
+                pongWaiters.poll().complete(true);
+            }
+            while (!pingTimes.isEmpty() && pingTimes.peek()[0] < pongsReceived) {
+                pingTimes.poll();
+            }
+            if (!pingTimes.isEmpty() && pingTimes.peek()[0] == pongsReceived) {
+                pingRtt.record(System.nanoTime() - pingTimes.poll()[1]);
             }
             setActualPingsOutstanding(0);
         } finally {
             mu.unlock();
         }
-        if (ch != null) {
-            try {
-                ch.put(true);
-            } catch (InterruptedException e) {
-                logger.warn("processPong interrupted", e);
-                Thread.currentThread().interrupt();
-            }
-        }
         logger.trace("Processed PONG");
     }
 
@@ -829,7 +911,17 @@ public class ConnectionImpl implements Connection {
                 // stream while we are reconnecting.
                 logger.trace("processOpError: redirecting output to pending buffer");
 
-                setPending(new ByteArrayOutputStream(opts.getReconnectBufSize()));
+                // The publishes covered by the open fence went to the old socket, and its PING
+                // would go to the pending buffer, so its PONG could not confirm them. Fail it.
+                if (fence != null) {
+                    fence.lose();
+                    fence.complete(false);
+                    fence = null;
+                }
+
+                // PINGs sent from here on go to the pending buffer and are replayed.
+                pingsSentAtDisconnect = pingsSent;
+                setPending(createReconnectBuffer());
                 setOutputStream(getPending());
 
                 logger.trace("\t\tspawning doReconnect() in state {}", status);
@@ -919,13 +1011,30 @@ public class ConnectionImpl implements Connection {
         if (pending.size() > 0) {
             try {
                 logger.trace("flushReconnectPendingItems() writing {} bytes.", pending.size());
-                bw.write(pending.toByteArray(), 0, (int) pending.size());
+                // The open fence covers the publishes after the last PING in the buffer.
+                if (fence != null) {
+                    pending.markFence(fence);
+                }
+                // The replay is written in arbitrary slices; keep control frames out of it.
+                OutboundBuffer outbound =
+                        (bw instanceof OutboundBuffer) ? (OutboundBuffer) bw : null;
+                if (outbound != null) {
+                    outbound.beginFrame(null);
+                }
+                try {
+                    pending.writeTo(bw);
+                } finally {
+                    if (outbound != null) {
+                        outbound.endFrame();
+                    }
+                }
                 bw.flush();
             } catch (IOException e) {
                 logger.error("Error flushing pending items", e);
             }
         }
 
+        pending.close();
         pending = null;
         logger.trace("flushReconnectPendingItems() DONE");
     }
@@ -938,20 +1047,18 @@ public class ConnectionImpl implements Connection {
         // here before we proceed past this point
         waitForExits();
 
-        // FIXME(dlc) - We have an issue here if we have
-        // outstanding flush points (pongs) and they were not
-        // sent out, but are still in the pipe.
-
         // Hold the lock manually and release where needed below.
         mu.lock();
         try {
-            // Clear any queued pongs, e.g. pending flush calls.
-            nc.clearPendingFlushCalls();
+            // Fail the flush calls whose PINGs were lost with the old socket. Those still in the
+            // pending buffer are answered after it is replayed.
+            nc.clearPendingFlushCalls(pingsSentAtDisconnect);
 
             // Clear any errors.
             setLastError(null);
 
             // Perform appropriate callback if needed for a disconnect
+            postConnectionEvent(ConnState.DISCONNECTED);
             if (opts.getDisconnectedCallback() != null) {
                 logger.trace("Spawning disconnectCB from doReconnect()");
                 cbexec.submit(new Runnable() {
@@ -1044,6 +1151,8 @@ public class ConnectionImpl implements Connection {
                 // Now send off and clear pending buffer
                 flushReconnectPendingItems();
                 logger.debug("just called flushReconnectPendingItems");
+                // Fence the replayed publishes made with publishAsync.
+                sendFencePing();
                 // Flush the buffer
                 try {
                     getOutputStream().flush();
@@ -1061,6 +1170,14 @@ public class ConnectionImpl implements Connection {
                 status = ConnState.CONNECTED;
 
                 // Queue up the reconnect callback.
+                if (metrics != null) {
+                    final MetricsCollector collector = opts.getMetricsCollector();
+                    cbexec.submit(new Runnable() {
+                        public void run() {
+                            collector.reconnected(nc);
+                        }
+                    });
+                }
                 if (opts.getReconnectedCallback() != null) {
                     logger.trace("Spawning reconnectedCb from doReconnect()");
                     cbexec.submit(new Runnable() {
@@ -1211,14 +1328,15 @@ public class ConnectionImpl implements Connection {
     }
 
     /*
-     * This method is only used by processPing. It is also used in the gnatsd tests.
+     * This method is only used by processPing. It is also used in the gnatsd tests. The protocol
+     * message is written as a control frame, ahead of queued data.
      */
     protected void sendProto(byte[] value, int length) throws IOException {
         logger.trace("in sendProto()");
         mu.lock();
         try {
             logger.trace("in sendProto(), writing");
-            bw.write(value, 0, length);
+            writeControl(value, length, false);
             logger.trace("=> {}", new String(value).trim());
             kickFlusher();
         } finally {
@@ -1482,36 +1600,49 @@ public class ConnectionImpl implements Connection {
         // Stack based buffer.
         byte[] buffer = new byte[DEFAULT_BUF_SIZE];
 
-        while (true) {
-            mu.lock();
-            try {
-                sb = (_isClosed() || _isReconnecting());
-                if (sb) {
-                    this.ps = parser.new ParseState();
+        // Idle while blocked in read(), busy while parsing and dispatching what was read.
+        final StallWatchdog.Heartbeat hb = startHeartbeat("readloop", null);
+        try {
+            while (true) {
+                mu.lock();
+                try {
+                    sb = (_isClosed() || _isReconnecting());
+                    if (sb) {
+                        this.ps = parser.new ParseState();
+                    }
+                    conn = this.conn;
+                } finally {
+                    mu.unlock();
                 }
-                conn = this.conn;
-            } finally {
-                mu.unlock();
-            }
-
-            if (sb || conn == null) {
-                break;
-            }
 
-            try {
-                len = br.read(buffer);
-                // len = br.read(buffer, 0, DEFAULT_BUF_SIZE);
-                if (len == -1) {
-                    throw new IOException(ERR_STALE_CONNECTION);
+                if (sb || conn == null) {
+                    break;
                 }
-                parser.parse(buffer, len);
-            } catch (IOException | ParseException e) {
-                logger.debug("Exception in readloop(): '{}' (state: {})", e.getMessage(), status);
-                if (status != ConnState.CLOSED) {
-                    processOpError(e);
+
+                try {
+                    len = br.read(buffer);
+                    // len = br.read(buffer, 0, DEFAULT_BUF_SIZE);
+                    if (len == -1) {
+                        throw new IOException(ERR_STALE_CONNECTION);
+                    }
+                    if (hb != null) {
+                        hb.busy();
+                    }
+                    parser.parse(buffer, len);
+                    if (hb != null) {
+                        hb.idle();
+                    }
+                } catch (IOException | ParseException e) {
+                    logger.debug("Exception in readloop(): '{}' (state: {})", e.getMessage(),
+                            status);
+                    if (status != ConnState.CLOSED) {
+                        processOpError(e);
+                    }
+                    break;
                 }
-                break;
             }
+        } finally {
+            stopHeartbeat(hb);
         }
 
         mu.lock();
@@ -1533,55 +1664,85 @@ public class ConnectionImpl implements Connection {
         Message msg;
         MessageHandler mcb;
         BlockingQueue<Message> mch;
+        boolean timed;
+        // Handler time of the previous message, for adaptive pending limits.
+        long handlerNanos = -1L;
 
-        while (true) {
-            sub.lock();
-            try {
-                mch = sub.getChannel();
-                while (mch.size() == 0 && !sub.isClosed()) {
-                    sub.pCond.await();
-                }
-                msg = mch.poll();
-                if (msg != null) {
-                    sub.pMsgs--;
-                    sub.pBytes -= (msg.getData() == null ? 0 : msg.getData().length);
+        // Busy only while the message handler runs.
+        final StallWatchdog.Heartbeat hb = startHeartbeat("dispatcher", sub);
+        try {
+            while (true) {
+                sub.lock();
+                try {
+                    mch = sub.getChannel();
+                    while (mch.size() == 0 && !sub.isClosed()) {
+                        sub.pCond.await();
+                    }
+                    msg = mch.poll();
+                    if (msg != null) {
+                        sub.pMsgs--;
+                        sub.addPendingBytes(-(msg.getData() == null ? 0 : msg.getData().length));
+                        sub.pSpace.signal();
+                        sub.recordConsumption(msg, handlerNanos);
+                    }
+                    timed = (sub.adaptive != null || sub.handlerTime != null);
+
+                    mcb = sub.msgHandler;
+                    max = sub.max;
+                    closed = sub.isClosed();
+                    if (!closed) {
+                        sub.delivered++;
+                        delivered = sub.delivered;
+                    }
+                } finally {
+                    sub.unlock();
                 }
 
-                mcb = sub.msgHandler;
-                max = sub.max;
-                closed = sub.isClosed();
-                if (!closed) {
-                    sub.delivered++;
-                    delivered = sub.delivered;
+                if (closed) {
+                    break;
                 }
-            } finally {
-                sub.unlock();
-            }
-
-            if (closed) {
-                break;
-            }
-            // Deliver the message.
-            if (msg != null && (max <= 0 || delivered <= max)) {
-                mcb.onMessage(msg);
-            }
-            // If we have hit the max for delivered msgs, remove sub.
-            if (max > 0 && delivered >= max) {
-                mu.lock();
-                try {
-                    removeSub(sub);
-                } finally {
-                    mu.unlock();
+                // Deliver the message.
+                if (msg != null && (max <= 0 || delivered <= max)) {
+                    if (hb != null) {
+                        hb.busy();
+                    }
+                    if (timed) {
+                        long start = System.nanoTime();
+                        sub.recordSojourn(msg, start);
+                        mcb.onMessage(msg);
+                        handlerNanos = System.nanoTime() - start;
+                        if (sub.handlerTime != null) {
+                            sub.handlerTime.record(handlerNanos);
+                        }
+                    } else {
+                        mcb.onMessage(msg);
+                        handlerNanos = -1L;
+                    }
+                    if (hb != null) {
+                        hb.idle();
+                    }
+                }
+                // If we have hit the max for delivered msgs, remove sub.
+                if (max > 0 && delivered >= max) {
+                    mu.lock();
+                    try {
+                        removeSub(sub);
+                    } finally {
+                        mu.unlock();
+                    }
+                    break;
                 }
-                break;
             }
+        } finally {
+            stopHeartbeat(hb);
         }
     }
 
     /**
      * processMsg is called by parse and will place the msg on the appropriate channel/pending queue
      * for processing. If the channel is full, or the pending queue is over the pending limits, the
-     * connection is considered a slow consumer.
+     * connection is considered a slow consumer, and the subscription's {@link SlowConsumerPolicy}
+     * decides what happens to the message.
      * 
      * @param data the buffer containing the message body
      * @param offset the offset within this buffer of the beginning of the message body
@@ -1589,49 +1750,60 @@ public class ConnectionImpl implements Connection {
      */
     protected void processMsg(byte[] data, int offset, int length) {
         SubscriptionImpl sub;
+        Message blocked = null;
 
         mu.lock();
         try {
             stats.incrementInMsgs();
             stats.incrementInBytes(length);
+            if (inHitters != null) {
+                inHitters.record(ps.ma.subject.array(), 0, ps.ma.subject.limit(), length);
+            }
 
             sub = subs.get(ps.ma.sid);
             if (sub == null) {
                 return;
             }
 
+            // A compact subscription frames the message straight from the read buffer, so no
+            // Message is created for it unless it has to wait for pending capacity.
+            CompactMessageQueue compact = (sub.getChannel() instanceof CompactMessageQueue)
+                    ? (CompactMessageQueue) sub.getChannel() : null;
+
             // Doing message create outside of the sub's lock to reduce contention.
             // It's possible that we end up not using the message, but that's ok.
-            Message msg = new Message(ps.ma, sub, data, offset, length);
+            Message msg = (compact != null) ? null : new Message(ps.ma, sub, data, offset, length);
 
             sub.lock();
             try {
-                sub.pMsgs++;
-                if (sub.pMsgs > sub.pMsgsMax) {
-                    sub.pMsgsMax = sub.pMsgs;
-                }
-                sub.pBytes += (msg.getData() == null ? 0 : msg.getData().length);
-                if (sub.pBytes > sub.pBytesMax) {
-                    sub.pBytesMax = sub.pBytes;
+                // Single writer (this thread), so the volatile counters need no atomic update.
+                sub.msgs++;
+                sub.bytes += length;
+
+                // On a conflating subscription, a newer message overwrites the pending message
+                // with the same key and the pending count does not grow.
+                if (sub.getChannel() instanceof ConflatingQueue) {
+                    if (sub.sojourn != null) {
+                        msg.enqueuedNanos = System.nanoTime();
+                    }
+                    Message replaced = ((ConflatingQueue) sub.getChannel()).replace(msg);
+                    if (replaced != null) {
+                        sub.conflated++;
+                        sub.addPendingBytes((msg.getData() == null ? 0 : msg.getData().length)
+                                - (replaced.getData() == null ? 0 : replaced.getData().length));
+                        return;
+                    }
                 }
 
-                // Check for a Slow Consumer
-                if ((sub.pMsgsLimit > 0 && sub.pMsgs > sub.pMsgsLimit)
-                        || (sub.pBytesLimit > 0 && sub.pBytes > sub.pBytesLimit)) {
-                    handleSlowConsumer(sub, msg);
-                    return;
+                if (sub.slowConsumerPolicy == SlowConsumerPolicy.BLOCK && sub.pMsgs > 0
+                        && sub.isOverPendingLimits(1, length)) {
+                    // Queued by awaitPendingCapacity once the locks are released.
+                    sub.slowConsumerEvents++;
+                    blocked = (msg != null) ? msg : new Message(ps.ma, sub, data, offset, length);
+                } else if (msg != null) {
+                    enqueueMsg(sub, msg);
                 } else {
-                    // We use mch for everything, unlike Go client
-                    if (sub.getChannel() != null) {
-                        if (sub.getChannel().add(msg)) {
-                            sub.pCond.signal();
-                            // Clear Slow Consumer status
-                            sub.setSlowConsumer(false);
-                        } else {
-                            handleSlowConsumer(sub, msg);
-                            return;
-                        }
-                    }
+                    enqueueFrame(sub, compact, data, offset, length);
                 }
             } finally {
                 sub.unlock();
@@ -1639,22 +1811,187 @@ public class ConnectionImpl implements Connection {
         } finally {
             mu.unlock();
         }
+
+        if (blocked != null) {
+            awaitPendingCapacity(sub, blocked);
+        }
+    }
+
+    // Adds msg to the pending queue, applying the slow consumer policy if the queue is over its
+    // limits. Assumes the sub lock is held.
+    void enqueueMsg(SubscriptionImpl sub, Message msg) {
+        if (!admit(sub, msg.getData() == null ? 0 : msg.getData().length)) {
+            handleSlowConsumer(sub, msg);
+            return;
+        }
+        if (sub.sojourn != null) {
+            msg.enqueuedNanos = System.nanoTime();
+        }
+        // We use mch for everything, unlike Go client
+        if (sub.getChannel() != null) {
+            if (sub.getChannel().add(msg)) {
+                sub.pCond.signal();
+                // Clear Slow Consumer status
+                sub.setSlowConsumer(false);
+            } else {
+                handleSlowConsumer(sub, msg);
+            }
+        }
+    }
+
+    // Adds the message described by ps.ma with the payload buf[offset, offset + length) to the
+    // compact pending queue of sub, like enqueueMsg but without creating a Message for it.
+    // Assumes the sub lock is held.
+    void enqueueFrame(SubscriptionImpl sub, CompactMessageQueue queue, byte[] buf, int offset,
+            int length) {
+        if (!admit(sub, length)) {
+            handleSlowConsumer(sub, length);
+            return;
+        }
+        long now = (sub.sojourn != null) ? System.nanoTime() : 0;
+        if (sub.getChannel() != null) {
+            if (queue.offer(sub, ps.ma, buf, offset, length, now)) {
+                sub.pCond.signal();
+                sub.setSlowConsumer(false);
+            } else {
+                handleSlowConsumer(sub, length);
+            }
+        }
+    }
+
+    // Counts a message of size bytes as pending and, if that puts the queue over its limits,
+    // applies the slow consumer policy. Returns false if the message is to be dropped.
+    // Assumes the sub lock is held.
+    private boolean admit(SubscriptionImpl sub, int size) {
+        sub.pMsgs++;
+        if (sub.pMsgs > sub.pMsgsMax) {
+            sub.pMsgsMax = sub.pMsgs;
+        }
+        sub.addPendingBytes(size);
+
+        // Check for a Slow Consumer. Under BLOCK, the only message that gets here over the limits
+        // is one that exceeds them on its own, and it is accepted rather than lost.
+        if (sub.isOverPendingLimits(0, 0) && sub.slowConsumerPolicy != SlowConsumerPolicy.BLOCK) {
+            sub.slowConsumerEvents++;
+            return sub.slowConsumerPolicy == SlowConsumerPolicy.DROP_OLDEST && dropOldest(sub);
+        }
+        return true;
+    }
+
+    // Drops pending messages, oldest first, until the pending queue is back within its limits.
+    // Returns false if the queue ran out first. Assumes the sub lock is held.
+    boolean dropOldest(SubscriptionImpl sub) {
+        BlockingQueue<Message> mch = sub.getChannel();
+        while (sub.isOverPendingLimits(0, 0)) {
+            Message oldest = (mch == null) ? null : mch.poll();
+            if (oldest == null) {
+                return false;
+            }
+            sub.dropped++;
+            sub.pMsgs--;
+            sub.addPendingBytes(-(oldest.getData() == null ? 0 : oldest.getData().length));
+        }
+        processSlowConsumer(sub);
+        return true;
+    }
+
+    /**
+     * Waits until the pending queue of {@code sub} has room for {@code msg}, then queues it. This
+     * runs on the reader thread without the connection lock, so while it waits the socket is not
+     * read and the server sees TCP backpressure, but the message handler can still publish.
+     */
+    void awaitPendingCapacity(SubscriptionImpl sub, Message msg) {
+        int size = (msg.getData() == null ? 0 : msg.getData().length);
+        long start = System.nanoTime();
+        sub.lock();
+        try {
+            while (!sub.isClosed() && sub.getChannel() != null && sub.pMsgs > 0
+                    && sub.isOverPendingLimits(1, size)) {
+                // Timed, so that a subscription closed without a signal is noticed.
+                sub.pSpace.await(100, TimeUnit.MILLISECONDS);
+            }
+            if (!sub.isClosed()) {
+                enqueueMsg(sub, msg);
+            }
+        } catch (InterruptedException e) {
+            logger.debug("nats: interrupted while blocked on slow consumer");
+            sub.dropped++;
+            Thread.currentThread().interrupt();
+        } finally {
+            sub.blockedNanos += System.nanoTime() - start;
+            sub.unlock();
+        }
     }
 
     // Assumes you already have the lock
     protected void handleSlowConsumer(SubscriptionImpl sub, Message msg) {
+        handleSlowConsumer(sub, msg.getData() == null ? 0 : msg.getData().length);
+    }
+
+    // Drops a message of size bytes that was counted as pending. Assumes the sub lock is held.
+    void handleSlowConsumer(SubscriptionImpl sub, int size) {
         sub.dropped++;
         processSlowConsumer(sub);
         sub.pMsgs--;
-        if (msg.getData() != null) {
-            sub.pBytes -= msg.getData().length;
+        sub.addPendingBytes(-size);
+    }
+
+    /**
+     * Returns whether a subscription holding {@code subPending} pending bytes is over its share of
+     * the connection-wide pending budget once {@code extra} more bytes are queued. While the total
+     * is within {@link Options#getMaxPendingBytes()}, any subscription may use the free space.
+     * Once it is exhausted, a subscription may only grow up to its fair share, the budget divided
+     * evenly among the budgeted subscriptions other than reply inboxes, which are short-lived and
+     * would otherwise shrink every share, and beyond that its slow consumer policy applies. A
+     * subscription that hogs the budget is therefore held back while the others can still fill
+     * their shares, and the pending total stays within about twice the budget.
+     */
+    boolean isOverPendingBudget(long subPending, int extra) {
+        long budget = getMaxPendingBytes();
+        if (budget <= 0 || pendingBytes.get() + extra <= budget) {
+            return false;
         }
+        return subPending + extra > budget / Math.max(1, budgetShares.get());
+    }
+
+    // Counts sub toward the fair share of the pending budget, unless it is exempt from the budget
+    // or a reply inbox.
+    void takeBudgetShare(SubscriptionImpl sub) {
+        if (sub.budgeted && !sub.budgetShare && !sub.getSubject().startsWith(inboxPrefix)) {
+            sub.budgetShare = true;
+            budgetShares.incrementAndGet();
+        }
+    }
+
+    void releaseBudgetShare() {
+        budgetShares.decrementAndGet();
+    }
+
+    long getMaxPendingBytes() {
+        return opts.getMaxPendingBytes();
+    }
+
+    void addPendingBytes(long n) {
+        pendingBytes.addAndGet(n);
+    }
+
+    /**
+     * @return the number of pending bytes held by all subscriptions that count against the
+     *         connection-wide pending budget.
+     */
+    long getPendingBytes() {
+        return pendingBytes.get();
     }
 
     void removeSub(SubscriptionImpl sub) {
         subs.remove(sub.getSid());
+        NatsMBeans.unregister(sub);
+        if (metrics != null) {
+            metrics.retire(sub);
+        }
         sub.lock();
         try {
+            sub.releasePendingBytes();
             if (sub.getChannel() != null) {
                 sub.mch.clear();
                 sub.mch = null;
@@ -1674,6 +2011,10 @@ public class ConnectionImpl implements Connection {
         final IOException ex = new IOException(ERR_SLOW_CONSUMER);
         final NATSException nex = new NATSException(ex, this, sub);
         setLastError(ex);
+        if (inHitters != null && !sub.isSlowConsumer()) {
+            logger.warn("nats: slow consumer on '{}', top inbound subjects: {}", sub.getSubject(),
+                    inHitters.getTopByMessages());
+        }
         if (opts.getExceptionHandler() != null && !sub.isSlowConsumer()) {
             cbexec.submit(new Runnable() {
                 public void run() {
@@ -1684,6 +2025,42 @@ public class ConnectionImpl implements Connection {
         sub.setSlowConsumer(true);
     }
 
+    // Called from the watchdog, which must not wait for the connection lock.
+    void processStall(final StallException ex, SubscriptionImpl sub) {
+        logger.warn(ex.getMessage(), ex);
+        final NATSException nex = new NATSException(ex, this, sub);
+        final ExceptionHandler handler = opts.getExceptionHandler();
+        final MetricsCollector collector = (metrics != null) ? opts.getMetricsCollector() : null;
+        if (handler == null && collector == null) {
+            return;
+        }
+        try {
+            cbexec.submit(new Runnable() {
+                public void run() {
+                    if (collector != null) {
+                        collector.stalled(ConnectionImpl.this, ex.getComponent(),
+                                ex.getDuration(TimeUnit.NANOSECONDS));
+                    }
+                    if (handler != null) {
+                        handler.onException(nex);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("nats: stall not reported, connection closing");
+        }
+    }
+
+    private StallWatchdog.Heartbeat startHeartbeat(String component, SubscriptionImpl sub) {
+        return (watchdog == null) ? null : watchdog.register(component, sub);
+    }
+
+    private void stopHeartbeat(StallWatchdog.Heartbeat hb) {
+        if (hb != null) {
+            watchdog.unregister(hb);
+        }
+    }
+
     void processPermissionsViolation(String err) {
         final IOException serverEx = new IOException("nats: " + err);
         final NATSException nex = new NATSException(serverEx);
@@ -1698,52 +2075,119 @@ public class ConnectionImpl implements Connection {
         }
     }
 
-    // FIXME: This is a hack
-    // removeFlushEntry is needed when we need to discard queued up responses
-    // for our pings as part of a flush call. This happens when we have a flush
-    // call outstanding and we call close.
-    protected boolean removeFlushEntry(BlockingQueue<Boolean> ch) {
-        mu.lock();
-        try {
-            if (pongs == null) {
-                return false;
-            }
-
-            for (BlockingQueue<Boolean> c : pongs) {
-                if (c == ch) {
-                    c.clear();
-                    pongs.remove(c);
-                    return true;
-                }
-
-            }
-            return false;
-        } finally {
-            mu.unlock();
+    // Writes a numbered PING to the outbound stream without flushing it, registering the waiter,
+    // if any, for its PONG. Keepalive pings have no waiter but are still counted, so that each
+    // PONG is matched with its own PING.
+    // The lock must be held entering this function.
+    void writePing(PublishFence waiter) throws IOException {
+        pingsSent++;
+        if (status == ConnState.CONNECTED) {
+            pingTimes.add(new long[] {pingsSent, System.nanoTime()});
+        }
+        if (waiter != null) {
+            waiter.seq = pingsSent;
+            pongWaiters.add(waiter);
+            if (bw == pending && pending != null) {
+                pending.markFence(waiter);
+            }
+        }
+        if (waiter == null) {
+            // Keepalive pings only need to reach the server, so they jump ahead of queued data,
+            // but not ahead of PINGs that are waited on.
+            writeControl(pingProtoBytes, pingProtoBytesLen, true);
+        } else if (bw instanceof OutboundBuffer) {
+            ((OutboundBuffer) bw).writeFence(pingProtoBytes, 0, pingProtoBytesLen);
+        } else {
+            bw.write(pingProtoBytes, 0, pingProtoBytesLen);
+        }
+        logger.trace("=> {}", new String(pingProtoBytes).trim());
+        // Only a PING written in the data lane follows everything written before it, so only
+        // such a PING can be shared by a later flush. A keepalive may have overtaken queued data.
+        if (waiter != null && bw instanceof OutboundBuffer) {
+            lastPingBuffer = (OutboundBuffer) bw;
+            writtenAtLastPing = lastPingBuffer.getWrittenBytes();
+        } else {
+            lastPingBuffer = null;
         }
     }
 
+    // Writes a control frame: a protocol message that does not need to follow the data written
+    // before it, and so is written to the socket ahead of queued publishes. If behindFences is set,
+    // it stays behind queued PINGs that are waited on.
     // The lock must be held entering this function.
-    protected void sendPing(BlockingQueue<Boolean> ch) {
-        if (pongs == null) {
-            pongs = createPongs();
+    void writeControl(byte[] frame, int length, boolean behindFences) throws IOException {
+        if (bw instanceof OutboundBuffer) {
+            ((OutboundBuffer) bw).writeControl(frame, 0, length, behindFences);
+        } else {
+            bw.write(frame, 0, length);
+        }
+    }
+
+    // Hands the outbound buffer to the flusher, which drains it without holding the lock and
+    // writes waiting control frames at the next frame boundary, or flushes any other stream
+    // directly. The lock must be held entering this function.
+    void flushOutbound() throws IOException {
+        if (bw instanceof OutboundBuffer) {
+            kickFlusher();
+        } else {
+            bw.flush();
         }
+    }
 
-        if (ch != null) {
-            pongs.add(ch);
+    // The lock must be held entering this function.
+    protected void sendPing(PublishFence waiter) {
+        try {
+            writePing(waiter);
+            flushOutbound();
+        } catch (IOException e) {
+            setLastError(e);
         }
+    }
 
+    // Returns a fence for a flush call. If the last PING is an outstanding fence PING and nothing
+    // has been written since, its PONG already confirms everything the caller wrote, so the caller
+    // shares it.
+    // Otherwise a new PING is written. If flush is true, the outbound buffer is flushed to the
+    // socket in either case.
+    // The lock must be held entering this function.
+    PublishFence flushFence(boolean flush) {
+        PublishFence waiter = null;
         try {
-            bw.write(pingProtoBytes, 0, pingProtoBytesLen);
-            logger.trace("=> {}", new String(pingProtoBytes).trim());
-            bw.flush();
+            if (pingsSent > pongsReceived && lastPingBuffer != null && bw == lastPingBuffer
+                    && lastPingBuffer.getWrittenBytes() == writtenAtLastPing) {
+                waiter = pongWaiters.peekLast();
+            } else {
+                waiter = createPongWaiter();
+                writePing(waiter);
+            }
+            if (flush) {
+                flushOutbound();
+            }
         } catch (IOException e) {
             setLastError(e);
         }
+        return waiter;
+    }
+
+    PublishFence createPongWaiter() {
+        return new PublishFence();
     }
 
-    ArrayList<BlockingQueue<Boolean>> createPongs() {
-        return new ArrayList<BlockingQueue<Boolean>>();
+    // Closes the open publish fence, if any, by queueing a PING behind the publishes it covers.
+    // The PING is written to the outbound buffer and goes out with the next flush.
+    // The lock must be held entering this function.
+    void sendFencePing() {
+        if (fence == null) {
+            return;
+        }
+        logger.trace("=> PING (fence for {} publishes)", fence.size());
+        PublishFence closing = fence;
+        fence = null;
+        try {
+            writePing(closing);
+        } catch (IOException e) {
+            setLastError(e);
+        }
     }
 
     // This will fire periodically and send a client origin
@@ -1771,6 +2215,19 @@ public class ConnectionImpl implements Connection {
         }
     }
 
+    // Reports a connection event to the metrics collector, from the callback thread.
+    private void postConnectionEvent(final ConnState state) {
+        if (metrics == null) {
+            return;
+        }
+        final MetricsCollector collector = opts.getMetricsCollector();
+        cbexec.submit(new Runnable() {
+            public void run() {
+                collector.connectionEvent(ConnectionImpl.this, state);
+            }
+        });
+    }
+
     ScheduledFuture<?> createPingTimer() {
         PingTimerTask pinger = new PingTimerTask();
         ScheduledFuture<?> future = exec.scheduleWithFixedDelay(pinger, opts.getPingInterval(),
@@ -1799,7 +2256,7 @@ public class ConnectionImpl implements Connection {
         String str = String.format(UNSUB_PROTO, sub.getSid(), max > 0 ? Long.toString(max) : "");
         str = str.replaceAll(" +\r\n", "\r\n");
         byte[] unsub = str.getBytes();
-        bw.write(unsub);
+        writeControl(unsub, unsub.length, false);
         logger.trace("=> {}", str.trim());
     }
 
@@ -1862,23 +2319,50 @@ public class ConnectionImpl implements Connection {
             return;
         }
         logger.trace("entering flusher loop...");
-        while (fch.take()) {
-            mu.lock();
-            try {
-                // logger.info("Flushing output stream...");
-                // Check to see if we should bail out.
-                if (!_isConnected() || isConnecting() || bw != this.bw || conn != this.conn) {
-                    return;
+        // Busy only while writing to the socket.
+        final StallWatchdog.Heartbeat hb = startHeartbeat("flusher", null);
+        try {
+            while (fch.take()) {
+                long published;
+                mu.lock();
+                try {
+                    // Check to see if we should bail out.
+                    if (!_isConnected() || isConnecting() || bw != this.bw || conn != this.conn) {
+                        return;
+                    }
+                    sendFencePing();
+                    published = firstUnflushedNanos;
+                    firstUnflushedNanos = 0;
+                } finally {
+                    mu.unlock();
                 }
-                bw.flush();
-                stats.incrementFlushes();
-            } catch (IOException e) {
-                logger.debug("I/O exception encountered during flush");
-                this.setLastError(e);
-            } finally {
-                mu.unlock();
+                // The outbound buffer drains to the socket without the connection lock, so
+                // publishers are not held up by a slow socket.
+                try {
+                    if (hb != null) {
+                        hb.busy();
+                    }
+                    bw.flush();
+                    stats.incrementFlushes();
+                    recordPublishFlush(published);
+                } catch (IOException e) {
+                    logger.debug("I/O exception encountered during flush");
+                    mu.lock();
+                    try {
+                        if (bw == this.bw) {
+                            this.setLastError(e);
+                        }
+                    } finally {
+                        mu.unlock();
+                    }
+                }
+                if (hb != null) {
+                    hb.idle();
+                }
+                sleepInterval(flushTimerInterval, flushTimerUnit);
             }
-            sleepInterval(flushTimerInterval, flushTimerUnit);
+        } finally {
+            stopHeartbeat(hb);
         }
     }
 
@@ -1889,47 +2373,48 @@ public class ConnectionImpl implements Connection {
      */
     @Override
     public void flush(int timeout) throws Exception {
-        Exception err = null;
         if (timeout <= 0) {
             throw new IllegalArgumentException(ERR_BAD_TIMEOUT);
         }
 
-        BlockingQueue<Boolean> ch = null;
+        PublishFence waiter = null;
         mu.lock();
         try {
             if (_isClosed()) {
                 throw new IllegalStateException(ERR_CONNECTION_CLOSED);
             }
-
-            ch = createBooleanChannel(1);
-            sendPing(ch);
+            waiter = flushFence(true);
         } finally {
             mu.unlock();
         }
 
-        Boolean rv = null;
-        while (!(Thread.currentThread().isInterrupted())) {
-            try {
-                rv = ch.poll(timeout, TimeUnit.MILLISECONDS);
-                if (rv == null) {
-                    err = new TimeoutException(ERR_TIMEOUT);
-                } else if (rv == true) {
-                    ch.clear();
-                } else {
-                    err = new IllegalStateException(ERR_CONNECTION_CLOSED);
-                }
-                break;
-            } catch (InterruptedException e) {
-                // Set interrupted flag.
-                logger.debug("flush was interrupted while waiting for PONG", e);
-                Thread.currentThread().interrupt();
-            }
+        // A waiter that times out stays queued until its PONG arrives or the connection is lost;
+        // the queue never holds more waiters than there are PINGs outstanding.
+        try {
+            waiter.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(ERR_CONNECTION_CLOSED);
+        } catch (InterruptedException e) {
+            // Set interrupted flag.
+            logger.debug("flush was interrupted while waiting for PONG", e);
+            Thread.currentThread().interrupt();
         }
+    }
 
-        if (err != null) {
-            this.removeFlushEntry(ch);
-            throw err;
+    @Override
+    public Future<Void> flushAsync() {
+        PublishFence waiter = null;
+        mu.lock();
+        try {
+            if (_isClosed()) {
+                throw new IllegalStateException(ERR_CONNECTION_CLOSED);
+            }
+            waiter = flushFence(false);
+        } finally {
+            mu.unlock();
         }
+        kickFlusher();
+        return waiter;
     }
 
 
@@ -2011,6 +2496,9 @@ public class ConnectionImpl implements Connection {
 
             if (cb != null) {
                 sub = new AsyncSubscriptionImpl(this, subject, queue, cb);
+                if (ch != null) {
+                    sub.setChannel(ch);
+                }
                 // If we have an async callback, start up a sub specific Runnable to deliver the
                 // messages
                 logger.debug("Starting subscription for subject '{}'", subject);
@@ -2077,9 +2565,56 @@ public class ConnectionImpl implements Connection {
         return (AsyncSubscriptionImpl) subscribe(subj, null, cb);
     }
 
+    @Override
+    public AsyncSubscription subscribeConflating(String subject, MessageHandler cb) {
+        return subscribeConflating(subject, ConflatingQueue.SUBJECT, cb);
+    }
+
+    @Override
+    public AsyncSubscription subscribeConflating(String subject, MessageKeyExtractor keys,
+            MessageHandler cb) {
+        if (cb == null) {
+            throw new IllegalArgumentException(ERR_BAD_SUBSCRIPTION);
+        }
+        return (AsyncSubscriptionImpl) subscribe(subject, null, cb, new ConflatingQueue(keys));
+    }
+
+    @Override
+    public AsyncSubscription subscribeSpilling(String subject, String queue, MessageHandler cb,
+            long memoryLimit, long spillLimit) {
+        if (cb == null) {
+            throw new IllegalArgumentException(ERR_BAD_SUBSCRIPTION);
+        }
+        String dir = opts.getSubscriptionSpillDir();
+        SubscriptionImpl sub = subscribe(subject, queue, cb, new SpillingMessageQueue(memoryLimit,
+                spillLimit, dir == null ? null : new File(dir)));
+        // The queue enforces the spill limit; offer() refusing a message makes it a slow consumer.
+        // Its heap share is bounded by memoryLimit, so it is also exempt from the pending budget.
+        sub.setPendingLimits(-1, -1);
+        sub.lock();
+        try {
+            sub.releasePendingBytes();
+        } finally {
+            sub.unlock();
+        }
+        return (AsyncSubscriptionImpl) sub;
+    }
+
+    @Override
+    public AsyncSubscription subscribeCompact(String subject, String queue, MessageHandler cb) {
+        if (cb == null) {
+            throw new IllegalArgumentException(ERR_BAD_SUBSCRIPTION);
+        }
+        return (AsyncSubscriptionImpl) subscribe(subject, queue, cb, new CompactMessageQueue());
+    }
+
     private void addSubscription(SubscriptionImpl sub) {
         sub.setSid(sidCounter.incrementAndGet());
         subs.put(sub.getSid(), sub);
+        takeBudgetShare(sub);
+        if (mbeanName != null && !sub.getSubject().startsWith(inboxPrefix)) {
+            NatsMBeans.register(this, sub);
+        }
         logger.trace("Successfully added subscription to {} [{}]", sub.getSubject(), sub.getSid());
     }
 
@@ -2126,7 +2661,19 @@ public class ConnectionImpl implements Connection {
     // The internal publish operation sends a protocol data message by queueing into the buffered
     // OutputStream and kicking the flush go routine. These writes should be protected.
     void publish(byte[] subject, byte[] reply, byte[] data, boolean forceFlush) throws IOException {
+        publish(subject, reply, data, forceFlush, false);
+    }
+
+    // If async is set, the publish also joins the open fence, which is returned.
+    PublishFence publish(byte[] subject, byte[] reply, byte[] data, boolean forceFlush,
+            boolean async) throws IOException {
         int msgSize = (data != null) ? data.length : 0;
+        // Apply backpressure before taking the lock, so a blocked publisher does not stall the
+        // rest of the connection.
+        final OutputStream out = bw;
+        if (out instanceof OutboundBuffer) {
+            awaitOutboundCapacity((OutboundBuffer) out);
+        }
         mu.lock();
         try {
             // Proactively reject payloads over the threshold set by server.
@@ -2149,7 +2696,7 @@ public class ConnectionImpl implements Connection {
                 } catch (IOException e) {
                     logger.error("I/O exception during flush", e);
                 }
-                if (pending.size() >= opts.getReconnectBufSize()) {
+                if (pending.isFull()) {
                     throw new IOException(ERR_RECONNECT_BUF_EXCEEDED);
                 }
             }
@@ -2169,6 +2716,36 @@ public class ConnectionImpl implements Connection {
                 writePublishProto(pubProtoBuf, subject, reply, msgSize);
             }
 
+            // Tag the frame with its replay policy if it is going to the reconnect buffer, or
+            // with its subject if it is going to the outbound buffer. When policies are configured,
+            // publishes without one are tagged too, so that only other protocol messages are
+            // replay barriers; otherwise nothing is tagged and untagged writes share one frame.
+            final ReconnectBuffer framed = (bw == pending
+                    && !opts.getBufferedPublishPolicies().isEmpty()) ? pending : null;
+            if (framed != null) {
+                BufferedPublishPolicy policy = bufferedPublishPolicy(subject);
+                if (policy != null) {
+                    framed.beginFrame(policy.getPriority(), policy.expiresAt(System.nanoTime()));
+                } else {
+                    framed.beginFrame(BufferedPublishPolicy.Priority.NORMAL, 0);
+                }
+            }
+            // Join the open fence under the same lock hold as the write, so that whichever fence
+            // it is, its PING follows the message. The frame records the fence, so that it fails
+            // if drop-oldest drops the frame.
+            PublishFence joined = null;
+            if (async) {
+                if (fence == null) {
+                    fence = new PublishFence();
+                }
+                fence.add();
+                joined = fence;
+            }
+            final OutboundBuffer outbound =
+                    (bw instanceof OutboundBuffer) ? (OutboundBuffer) bw : null;
+            if (outbound != null) {
+                outbound.beginFrame(subject, joined);
+            }
             try {
                 bw.write(pubProtoBuf.array(), 0, pubProtoBuf.position());
                 pubProtoBuf.position(pubPrimBytesLen);
@@ -2180,21 +2757,40 @@ public class ConnectionImpl implements Connection {
                 bw.write(crlfProtoBytes, 0, crlfProtoBytesLen);
             } catch (IOException e) {
                 setLastError(e);
-                return;
+                return joined;
+            } finally {
+                if (framed != null) {
+                    framed.endFrame();
+                }
+                if (outbound != null) {
+                    outbound.endFrame();
+                }
             }
 
             stats.incrementOutMsgs();
             stats.incrementOutBytes(msgSize);
+            if (metrics != null && metrics.published != null) {
+                metrics.published.record(subject, msgSize);
+            }
+            if (outHitters != null) {
+                outHitters.record(subject, msgSize);
+            }
+            if (firstUnflushedNanos == 0 && opts.isLatencyHistograms()) {
+                firstUnflushedNanos = System.nanoTime();
+            }
 
             if (forceFlush) {
                 bw.flush();
                 stats.incrementFlushes();
+                recordPublishFlush(firstUnflushedNanos);
+                firstUnflushedNanos = 0;
             } else {
                 // Opportunistic flush
                 if (fch.isEmpty()) {
                     kickFlusher();
                 }
             }
+            return joined;
         } finally {
             mu.unlock();
         }
@@ -2235,6 +2831,35 @@ public class ConnectionImpl implements Connection {
         publish(msg.getSubjectBytes(), msg.getReplyToBytes(), msg.getData(), false);
     }
 
+    @Override
+    public Future<Void> publishAsync(String subject, byte[] data) throws IOException {
+        return publishAsync(subject, null, data);
+    }
+
+    @Override
+    public Future<Void> publishAsync(String subject, String reply, byte[] data)
+            throws IOException {
+        if (subject == null) {
+            throw new NullPointerException(ERR_BAD_SUBJECT);
+        }
+        if (subject.isEmpty()) {
+            throw new IllegalArgumentException(ERR_BAD_SUBJECT);
+        }
+        return publishAsync(subject.getBytes(), reply == null ? null : reply.getBytes(), data);
+    }
+
+    @Override
+    public Future<Void> publishAsync(Message msg) throws IOException {
+        return publishAsync(msg.getSubjectBytes(), msg.getReplyToBytes(), msg.getData());
+    }
+
+    // Publishes and joins the open fence.
+    Future<Void> publishAsync(byte[] subject, byte[] reply, byte[] data) throws IOException {
+        PublishFence joined = publish(subject, reply, data, false, true);
+        kickFlusher();
+        return joined;
+    }
+
     @Override
     public Message request(String subject, byte[] data, long timeout, TimeUnit unit)
             throws TimeoutException, IOException {
@@ -2276,13 +2901,66 @@ public class ConnectionImpl implements Connection {
         return inbox;
     }
 
+    // Records the delay from publishedNanos, if set, to now.
+    void recordPublishFlush(long publishedNanos) {
+        if (publishedNanos != 0) {
+            publishFlush.record(System.nanoTime() - publishedNanos);
+        }
+    }
+
+    boolean isLatencyHistograms() {
+        return opts.isLatencyHistograms();
+    }
+
+    @Override
+    public LatencyHistogram getPingRttHistogram() {
+        return pingRtt.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram getPublishFlushHistogram() {
+        return publishFlush.snapshot();
+    }
+
+    @Override
+    public HeavyHitters getInboundHeavyHitters() {
+        return inHitters;
+    }
+
+    @Override
+    public HeavyHitters getOutboundHeavyHitters() {
+        return outHitters;
+    }
+
+    @Override
+    public LatencyHistogram getSojournHistogram() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (SubscriptionImpl sub : subs.values()) {
+            if (sub.sojourn != null) {
+                merged.merge(sub.sojourn);
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public LatencyHistogram getHandlerHistogram() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (SubscriptionImpl sub : subs.values()) {
+            if (sub.handlerTime != null) {
+                merged.merge(sub.handlerTime);
+            }
+        }
+        return merged;
+    }
+
     @Override
-    public synchronized Statistics getStats() {
+    public Statistics getStats() {
         return new Statistics(stats);
     }
 
     @Override
-    public synchronized void resetStats() {
+    public void resetStats() {
         stats.clear();
     }
 
@@ -2299,7 +2977,8 @@ public class ConnectionImpl implements Connection {
         String subLine = String.format(SUB_PROTO, sub.getSubject(),
                 (queue != null && !queue.isEmpty()) ? " " + queue : "", sub.getSid());
         try {
-            bw.write(subLine.getBytes());
+            byte[] line = subLine.getBytes();
+            writeControl(line, line.length, false);
             // logger.trace("=> {}", s.trim() );
         } catch (IOException e) {
             logger.warn("nats: I/O exception while sending subscription message");
@@ -2428,14 +3107,124 @@ public class ConnectionImpl implements Connection {
         return this.opts;
     }
 
-    void setPending(ByteArrayOutputStream pending) {
+    void setPending(ReconnectBuffer pending) {
+        if (this.pending != null && this.pending != pending) {
+            this.pending.close();
+        }
         this.pending = pending;
     }
 
-    ByteArrayOutputStream getPending() {
+    ReconnectBuffer getPending() {
         return this.pending;
     }
 
+    // Returns the policy of the first pattern matching subject, or null.
+    BufferedPublishPolicy bufferedPublishPolicy(byte[] subject) {
+        Map<String, BufferedPublishPolicy> policies = opts.getBufferedPublishPolicies();
+        if (policies.isEmpty()) {
+            return null;
+        }
+        String subj = new String(subject);
+        for (Map.Entry<String, BufferedPublishPolicy> entry : policies.entrySet()) {
+            if (SubjectMatcher.matches(entry.getKey(), subj)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    ReconnectBuffer createReconnectBuffer() {
+        String dir = opts.getReconnectSpillDir();
+        return new ReconnectBuffer(opts.getReconnectBufSize(), opts.getReconnectSpillSize(),
+                dir == null ? null : new File(dir));
+    }
+
+    OutputStream createOutboundBuffer(OutputStream out) {
+        long high = opts.getOutboundHighWatermark();
+        long low = opts.getOutboundLowWatermark();
+        if (high > 0 && (low <= 0 || low > high)) {
+            low = high / 2;
+        }
+        return new OutboundBuffer(out, high, low,
+                opts.getBackpressurePolicy() == BackpressurePolicy.DROP_OLDEST,
+                new OutboundBuffer.WatermarkListener() {
+                    public void onHighWatermark() {
+                        logger.debug("nats: outbound buffer reached high watermark");
+                        fireBackpressureCallback(true);
+                    }
+
+                    public void onLowWatermark() {
+                        logger.debug("nats: outbound buffer drained to low watermark");
+                        fireBackpressureCallback(false);
+                    }
+                });
+    }
+
+    // Applies the backpressure policy when the outbound buffer is above its high watermark.
+    // DROP_OLDEST is applied by the buffer itself as the frame is written. If the buffer has
+    // reached its write-through limit anyway, as it can under DROP_OLDEST or without a high
+    // watermark, the publisher drains it here, before taking the connection lock, so that the
+    // connection is not held up while the socket is written.
+    void awaitOutboundCapacity(OutboundBuffer out) throws IOException {
+        if (out.needsWriteThrough()) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                logger.debug("I/O exception encountered during write-through");
+                mu.lock();
+                try {
+                    if (out == this.bw) {
+                        setLastError(e);
+                    }
+                } finally {
+                    mu.unlock();
+                }
+            }
+        }
+        if (!out.isAboveHighWatermark()) {
+            return;
+        }
+        switch (opts.getBackpressurePolicy()) {
+            case FAIL_FAST:
+                throw new IOException(ERR_OUTBOUND_BUFFER_FULL);
+            case BLOCK:
+                kickFlusher();
+                try {
+                    if (!out.awaitBelowHighWatermark(
+                            TimeUnit.MILLISECONDS.toNanos(opts.getBackpressureTimeout()))) {
+                        throw new IOException(ERR_OUTBOUND_BUFFER_FULL);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(ERR_OUTBOUND_BUFFER_FULL, e);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void fireBackpressureCallback(final boolean high) {
+        final BackpressureCallback cb = opts.getBackpressureCallback();
+        if (cb == null || cbexec == null) {
+            return;
+        }
+        final ConnectionImpl nc = this;
+        try {
+            cbexec.submit(new Runnable() {
+                public void run() {
+                    if (high) {
+                        cb.onHighWatermark(new ConnectionEvent(nc));
+                    } else {
+                        cb.onLowWatermark(new ConnectionEvent(nc));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("nats: backpressure callback not run, connection closing");
+        }
+    }
+
     protected void sleepInterval(long timeout, TimeUnit unit) throws InterruptedException {
         unit.sleep(timeout);
     }
@@ -2467,12 +3256,17 @@ public class ConnectionImpl implements Connection {
     }
 
 
-    protected ArrayList<BlockingQueue<Boolean>> getPongs() {
-        return pongs;
+    // Test hooks for the PING/PONG sequence.
+    long getPingsSent() {
+        return pingsSent;
     }
 
-    protected void setPongs(ArrayList<BlockingQueue<Boolean>> pongs) {
-        this.pongs = pongs;
+    long getPongsReceived() {
+        return pongsReceived;
+    }
+
+    int getPongWaiterCount() {
+        return pongWaiters.size();
     }
 
     protected Map<Long, SubscriptionImpl> getSubs() {
@@ -2481,6 +3275,9 @@ public class ConnectionImpl implements Connection {
 
     protected void setSubs(Map<Long, SubscriptionImpl> subs) {
         this.subs = subs;
+        for (SubscriptionImpl sub : subs.values()) {
+            takeBudgetShare(sub);
+        }
     }
 
     // for testing purposes
@@ -2497,7 +3294,7 @@ public class ConnectionImpl implements Connection {
     public int getPendingByteCount() {
         int rv = 0;
         if (getPending() != null) {
-            rv = getPending().size();
+            rv = (int) Math.min(getPending().size(), Integer.MAX_VALUE);
         }
         return rv;
     }
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * The JMX management interface of a connection, registered as
+ * {@code io.nats.client:type=Connection,id=<n>} when
+ * {@link ConnectionFactory#setJmxEnabled(boolean)} is set.
+ */
+public interface ConnectionMXBean {
+
+    /**
+     * @return the connection state.
+     * @see Connection#getState()
+     */
+    String getState();
+
+    /**
+     * @return the URL of the connected server, or {@code null} if not connected.
+     */
+    String getConnectedUrl();
+
+    /**
+     * @return the id of the connected server, or {@code null} if not connected.
+     */
+    String getConnectedServerId();
+
+    /**
+     * @return the number of messages received on this connection.
+     */
+    long getInMsgs();
+
+    /**
+     * @return the number of messages published on this connection.
+     */
+    long getOutMsgs();
+
+    /**
+     * @return the number of bytes received on this connection.
+     */
+    long getInBytes();
+
+    /**
+     * @return the number of bytes published on this connection.
+     */
+    long getOutBytes();
+
+    /**
+     * @return the number of times this connection has reconnected.
+     */
+    long getReconnects();
+
+    /**
+     * @return the number of times the outbound buffer has been flushed to the socket.
+     */
+    long getFlushes();
+
+    /**
+     * Returns the number of flushes per second since this attribute was last read, or since the
+     * MBean was registered.
+     * 
+     * @return the flush rate, in flushes per second
+     */
+    double getFlushRate();
+
+    /**
+     * @return the number of stalls detected on this connection, or 0 if stall detection is not
+     *         enabled.
+     * @see ConnectionFactory#setStallThreshold(long)
+     */
+    long getStalls();
+
+    /**
+     * @return the number of subscriptions on this connection.
+     */
+    int getSubscriptionCount();
+
+    /**
+     * @return the number of messages pending on all subscriptions of this connection.
+     */
+    long getPendingMsgs();
+
+    /**
+     * @return the number of payload bytes pending on all subscriptions of this connection.
+     */
+    long getPendingBytes();
+
+    /**
+     * Resets the connection statistics.
+     * 
+     * @see Connection#resetStats()
+     */
+    void resetStats();
+}
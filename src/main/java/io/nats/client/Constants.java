@@ -174,6 +174,19 @@ public final class Constants {
      * This error message is defined as String {@value #ERR_PROTOCOL}.
      */
     public static final String ERR_PROTOCOL = "nats: protocol error";
+    /**
+     * This error message is defined as String {@value #ERR_SERVICE_OVERLOADED}.
+     */
+    public static final String ERR_SERVICE_OVERLOADED = "nats: service overloaded";
+    /**
+     * This error message is defined as String {@value #ERR_OUTBOUND_BUFFER_FULL}.
+     */
+    public static final String ERR_OUTBOUND_BUFFER_FULL = "nats: outbound buffer full";
+    /**
+     * This error message is defined as String {@value #ERR_PUBLISH_NOT_CONFIRMED}.
+     */
+    public static final String ERR_PUBLISH_NOT_CONFIRMED =
+            "nats: connection lost before publish was confirmed";
 
     // Encoder names
     public static final String DEFAULT_ENCODER = "default";
@@ -0,0 +1,309 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tracks the subjects with the most messages and the most bytes, in bounded memory.
+ *
+ * <p>Counts are kept in a count-min sketch of {@value #DEPTH} rows of {@value #WIDTH} cells, for
+ * messages and for bytes, so a subject's estimate is never below its true count and exceeds it by
+ * at most about 0.3% of the total with high probability, whatever the number of distinct
+ * subjects. The {@code k} subjects with the highest estimates are kept in two small min-heaps,
+ * one by messages and one by bytes; a subject enters a heap when its estimate exceeds the
+ * smallest one in it. Recording a subject hashes its bytes once and allocates only when the
+ * subject enters a heap.
+ *
+ * <p>Recording and querying synchronize on this object. The connection records under its own
+ * lock, so the monitor is only contended while a query copies the heaps.
+ */
+public final class HeavyHitters {
+    static final int DEPTH = 4;
+    static final int WIDTH = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long[] msgCells = new long[DEPTH * WIDTH];
+    private final long[] byteCells = new long[DEPTH * WIDTH];
+    private final TopK byMsgs;
+    private final TopK byBytes;
+    private long totalMsgs;
+    private long totalBytes;
+
+    HeavyHitters(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("nats: heavy hitter count must be greater than 0");
+        }
+        byMsgs = new TopK(k);
+        byBytes = new TopK(k);
+    }
+
+    /**
+     * Records a message on the subject held in {@code subject[offset, offset + length)}.
+     */
+    synchronized void record(byte[] subject, int offset, int length, int size) {
+        long hash = hash(subject, offset, length);
+        // Derive the row indexes from two halves of one hash (Kirsch and Mitzenmacher).
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long msgs = Long.MAX_VALUE;
+        long bytes = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            int cell = i * WIDTH + ((h1 + i * h2) & (WIDTH - 1));
+            msgs = Math.min(msgs, ++msgCells[cell]);
+            bytes = Math.min(bytes, byteCells[cell] += size);
+        }
+        totalMsgs++;
+        totalBytes += size;
+        byMsgs.offer(hash, subject, offset, length, msgs);
+        byBytes.offer(hash, subject, offset, length, bytes);
+    }
+
+    void record(byte[] subject, int size) {
+        record(subject, 0, subject.length, size);
+    }
+
+    // 64-bit FNV-1a followed by a final mix, as FNV alone spreads short subjects poorly.
+    static long hash(byte[] bytes, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            h ^= bytes[i];
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private long estimate(long[] cells, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, cells[i * WIDTH + ((h1 + i * h2) & (WIDTH - 1))]);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the subjects with the most messages, most first.
+     *
+     * @return up to {@link #getK()} subjects, with their estimated message and byte counts
+     */
+    public synchronized List<SubjectCount> getTopByMessages() {
+        return byMsgs.list(false);
+    }
+
+    /**
+     * Returns the subjects with the most bytes, most first.
+     *
+     * @return up to {@link #getK()} subjects, with their estimated message and byte counts
+     */
+    public synchronized List<SubjectCount> getTopByBytes() {
+        return byBytes.list(true);
+    }
+
+    /**
+     * @return the number of subjects tracked in each ranking.
+     */
+    public int getK() {
+        return byMsgs.hashes.length;
+    }
+
+    /**
+     * @return the number of messages recorded since the last reset.
+     */
+    public synchronized long getTotalMessages() {
+        return totalMsgs;
+    }
+
+    /**
+     * @return the number of bytes recorded since the last reset.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Clears the counts, for example to start a new observation window.
+     */
+    public synchronized void reset() {
+        Arrays.fill(msgCells, 0L);
+        Arrays.fill(byteCells, 0L);
+        byMsgs.clear();
+        byBytes.clear();
+        totalMsgs = 0;
+        totalBytes = 0;
+    }
+
+    /**
+     * {@inheritDoc}.
+     */
+    @Override
+    public String toString() {
+        return getTopByMessages().toString();
+    }
+
+    /**
+     * A subject and its estimated message and byte counts. The estimates may exceed the true
+     * counts, but are never below them.
+     */
+    public static final class SubjectCount {
+        private final String subject;
+        private final long msgs;
+        private final long bytes;
+
+        SubjectCount(String subject, long msgs, long bytes) {
+            this.subject = subject;
+            this.msgs = msgs;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the subject.
+         */
+        public String getSubject() {
+            return subject;
+        }
+
+        /**
+         * @return the estimated number of messages.
+         */
+        public long getMessages() {
+            return msgs;
+        }
+
+        /**
+         * @return the estimated number of bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * {@inheritDoc}.
+         */
+        @Override
+        public String toString() {
+            return String.format("%s(msgs=%d, bytes=%d)", subject, msgs, bytes);
+        }
+    }
+
+    /*
+     * A binary min-heap of the k subjects with the highest estimates. Estimates only grow, so an
+     * update is a sift-down. Members are found by a linear scan of their hashes, which for a small
+     * k is cheaper than a map keyed by a subject string that would have to be allocated.
+     */
+    private final class TopK {
+        final long[] hashes;
+        final byte[][] subjects;
+        final long[] counts;
+        int size;
+
+        TopK(int k) {
+            hashes = new long[k];
+            subjects = new byte[k][];
+            counts = new long[k];
+        }
+
+        void offer(long hash, byte[] subject, int offset, int length, long count) {
+            for (int i = 0; i < size; i++) {
+                if (hashes[i] == hash && equals(subjects[i], subject, offset, length)) {
+                    counts[i] = count;
+                    siftDown(i);
+                    return;
+                }
+            }
+            if (size < hashes.length) {
+                set(size, hash, Arrays.copyOfRange(subject, offset, offset + length), count);
+                siftUp(size++);
+            } else if (count > counts[0]) {
+                set(0, hash, Arrays.copyOfRange(subject, offset, offset + length), count);
+                siftDown(0);
+            }
+        }
+
+        private boolean equals(byte[] member, byte[] subject, int offset, int length) {
+            if (member.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (member[i] != subject[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void set(int i, long hash, byte[] subject, long count) {
+            hashes[i] = hash;
+            subjects[i] = subject;
+            counts[i] = count;
+        }
+
+        private void swap(int i, int j) {
+            long hash = hashes[i];
+            byte[] subject = subjects[i];
+            long count = counts[i];
+            set(i, hashes[j], subjects[j], counts[j]);
+            set(j, hash, subject, count);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0 && counts[(i - 1) / 2] > counts[i]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int least = i;
+                int left = 2 * i + 1;
+                if (left < size && counts[left] < counts[least]) {
+                    least = left;
+                }
+                if (left + 1 < size && counts[left + 1] < counts[least]) {
+                    least = left + 1;
+                }
+                if (least == i) {
+                    return;
+                }
+                swap(i, least);
+                i = least;
+            }
+        }
+
+        void clear() {
+            Arrays.fill(subjects, null);
+            size = 0;
+        }
+
+        List<SubjectCount> list(final boolean byBytes) {
+            List<SubjectCount> result = new ArrayList<SubjectCount>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(new SubjectCount(new String(subjects[i], UTF8),
+                        estimate(msgCells, hashes[i]), estimate(byteCells, hashes[i])));
+            }
+            Collections.sort(result, new Comparator<SubjectCount>() {
+                public int compare(SubjectCount a, SubjectCount b) {
+                    long x = byBytes ? a.bytes : a.msgs;
+                    long y = byBytes ? b.bytes : b.msgs;
+                    return (x > y) ? -1 : ((x == y) ? a.subject.compareTo(b.subject) : 1);
+                }
+            });
+            return result;
+        }
+    }
+}
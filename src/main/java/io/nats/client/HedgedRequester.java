@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.Constants.ERR_TIMEOUT;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code HedgedRequester} issues requests that are re-sent once if no reply has arrived by the
+ * subject's observed latency percentile (p95 by default). The first reply to arrive is returned.
+ * This trims tail latency when a single responder in a queue group stalls, at the cost of a small
+ * amount of duplicate work. Requests must therefore be idempotent.
+ *
+ * <p>Each request subscribes to a fresh inbox prefix and sends the original and the hedge with
+ * distinct reply subjects beneath it, so the latency recorded for a subject is that of the copy
+ * that actually answered. A request that times out is recorded at its timeout, so replies that are
+ * lost raise the hedge delay instead of being left out of it. Hedging on a subject starts once {@link #MIN_SAMPLES} latencies have been
+ * observed, and the total number of hedges is capped at a fraction of all requests.
+ */
+public class HedgedRequester {
+    /**
+     * Default latency percentile after which a hedge is sent.
+     */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    /**
+     * Default maximum ratio of hedges to requests.
+     */
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+    /**
+     * Number of latency samples kept per subject.
+     */
+    public static final int DEFAULT_WINDOW = 256;
+    /**
+     * Number of latency samples required before a subject is hedged.
+     */
+    public static final int MIN_SAMPLES = 32;
+    /**
+     * Maximum number of subjects for which latencies are tracked.
+     */
+    public static final int MAX_TRACKED_SUBJECTS = 1024;
+
+    // Unused hedges can accumulate up to this many, to absorb short bursts of slow replies.
+    static final double MAX_HEDGE_BURST = 10.0;
+
+    private final Connection conn;
+    private final double percentile;
+    private final double maxHedgeRatio;
+    private final int window;
+    private final ConcurrentMap<String, LatencyTracker> trackers =
+            new ConcurrentHashMap<String, LatencyTracker>();
+    private double hedgeTokens;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Creates a {@code HedgedRequester} with the default percentile and hedge ratio.
+     *
+     * @param conn the connection to send requests on
+     */
+    public HedgedRequester(Connection conn) {
+        this(conn, DEFAULT_PERCENTILE, DEFAULT_MAX_HEDGE_RATIO);
+    }
+
+    /**
+     * Creates a {@code HedgedRequester}.
+     *
+     * @param conn the connection to send requests on
+     * @param percentile the latency percentile, between 0 and 1, after which a hedge is sent
+     * @param maxHedgeRatio the maximum ratio, between 0 and 1, of hedges to requests
+     */
+    public HedgedRequester(Connection conn, double percentile, double maxHedgeRatio) {
+        this(conn, percentile, maxHedgeRatio, DEFAULT_WINDOW);
+    }
+
+    HedgedRequester(Connection conn, double percentile, double maxHedgeRatio, int window) {
+        if (conn == null) {
+            throw new NullPointerException("nats: connection cannot be null");
+        }
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("nats: percentile must be between 0 and 1");
+        }
+        if (maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("nats: maxHedgeRatio must be between 0 and 1");
+        }
+        this.conn = conn;
+        this.percentile = percentile;
+        this.maxHedgeRatio = maxHedgeRatio;
+        this.window = window;
+    }
+
+    /**
+     * Publishes a request message to the specified subject, hedging it if no reply arrives within
+     * the subject's adaptive hedge delay, and waits up to {@code timeout} for the first response.
+     *
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @param timeout how long to wait for a response message
+     * @param unit the time unit of {@code timeout}
+     * @return the first response message received
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if {@code timeout} elapses before a message is returned
+     * @see Connection#request(String, byte[], long, TimeUnit)
+     */
+    public Message request(String subject, byte[] data, long timeout, TimeUnit unit)
+            throws TimeoutException, IOException {
+        final LatencyTracker tracker = trackerFor(subject);
+        final long delay = tracker == null ? -1 : tracker.percentile(percentile);
+        final long deadline = timeout >= 0 ? System.nanoTime() + unit.toNanos(timeout) : 0;
+        final String inbox = conn.newInbox();
+        final String primaryReply = inbox + ".0";
+        final String hedgeReply = inbox + ".1";
+        requests.incrementAndGet();
+        depositHedgeToken();
+
+        if (Thread.currentThread().isInterrupted()) {
+            Thread.interrupted();
+        }
+        try (SyncSubscription sub = conn.subscribeSync(inbox + ".*")) {
+            sub.autoUnsubscribe(2);
+            final long start = System.nanoTime();
+            conn.publish(subject, primaryReply, data);
+            long hedgeStart = 0;
+            Message msg = null;
+            if (delay >= 0 && (timeout < 0 || delay < deadline - start)) {
+                msg = poll(sub, delay);
+                if (msg == null && tryAcquireHedgeToken()) {
+                    hedgeStart = System.nanoTime();
+                    conn.publish(subject, hedgeReply, data);
+                    hedges.incrementAndGet();
+                }
+            }
+            if (msg == null) {
+                if (timeout < 0) {
+                    msg = sub.nextMessage();
+                } else {
+                    msg = poll(sub, deadline - System.nanoTime());
+                    if (msg == null) {
+                        if (tracker != null) {
+                            // The latency is at least the timeout; dropping the sample would
+                            // bias the percentile low under loss.
+                            tracker.record(unit.toNanos(timeout));
+                        }
+                        throw new TimeoutException(ERR_TIMEOUT);
+                    }
+                }
+            }
+            if (msg != null && tracker != null) {
+                long now = System.nanoTime();
+                if (hedgeStart != 0 && hedgeReply.equals(msg.getSubject())) {
+                    hedgeWins.incrementAndGet();
+                    tracker.record(now - hedgeStart);
+                } else {
+                    tracker.record(now - start);
+                }
+            }
+            return msg;
+        } catch (InterruptedException e) {
+            // There is nothing a caller can do with this, so swallow it.
+            Thread.interrupted();
+            return null;
+        }
+    }
+
+    /**
+     * @see #request(String, byte[], long, TimeUnit)
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @param timeout how long to wait for a response message (in msec)
+     * @return the first response message received
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if {@code timeout} elapses before a message is returned
+     */
+    public Message request(String subject, byte[] data, long timeout)
+            throws TimeoutException, IOException {
+        return request(subject, data, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @see #request(String, byte[], long, TimeUnit)
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @return the first response message received
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException never; the request waits indefinitely
+     */
+    public Message request(String subject, byte[] data) throws TimeoutException, IOException {
+        return request(subject, data, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the current hedge delay for {@code subject}, or -1 if the subject is not yet hedged.
+     *
+     * @param subject the request subject
+     * @param unit the time unit of the returned delay
+     * @return the hedge delay, or -1 if too few latencies have been observed
+     */
+    public long getHedgeDelay(String subject, TimeUnit unit) {
+        LatencyTracker tracker = trackers.get(subject);
+        long delay = tracker == null ? -1 : tracker.percentile(percentile);
+        return delay < 0 ? -1 : unit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of requests issued.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of hedged copies sent.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of requests whose hedged copy replied first.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return the underlying connection.
+     */
+    public Connection getConnection() {
+        return conn;
+    }
+
+    LatencyTracker trackerFor(String subject) {
+        LatencyTracker tracker = trackers.get(subject);
+        if (tracker == null && trackers.size() < MAX_TRACKED_SUBJECTS) {
+            LatencyTracker created = new LatencyTracker(window);
+            tracker = trackers.putIfAbsent(subject, created);
+            if (tracker == null) {
+                tracker = created;
+            }
+        }
+        return tracker;
+    }
+
+    synchronized void depositHedgeToken() {
+        hedgeTokens = Math.min(MAX_HEDGE_BURST, hedgeTokens + maxHedgeRatio);
+    }
+
+    synchronized boolean tryAcquireHedgeToken() {
+        if (hedgeTokens >= 1.0) {
+            hedgeTokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    // Returns null rather than throwing if no message arrives within the wait.
+    static Message poll(SyncSubscription sub, long nanos)
+            throws IOException, InterruptedException {
+        try {
+            return sub.nextMessage(Math.max(0, nanos), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A sliding window of recent latencies. Percentiles are recomputed from a sorted copy of the
+     * window after every {@code window/16} new samples rather than on each request.
+     */
+    static final class LatencyTracker {
+        private final long[] samples;
+        private final int refreshInterval;
+        private int count;
+        private int next;
+        private int sinceRefresh;
+        private long[] sorted;
+
+        LatencyTracker(int window) {
+            this.samples = new long[window];
+            this.refreshInterval = Math.max(1, window / 16);
+        }
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) {
+                count++;
+            }
+            if (++sinceRefresh >= refreshInterval) {
+                sorted = null;
+            }
+        }
+
+        synchronized long percentile(double pct) {
+            if (count < Math.min(MIN_SAMPLES, samples.length)) {
+                return -1;
+            }
+            if (sorted == null) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                sinceRefresh = 0;
+            }
+            int idx = (int) Math.ceil(pct * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(idx, sorted.length - 1))];
+        }
+
+        synchronized int getCount() {
+            return count;
+        }
+    }
+}
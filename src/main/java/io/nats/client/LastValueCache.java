@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@code LastValueCache} subscribes to a subject, usually a wildcard, and keeps the latest
+ * {@link Message} received on each concrete subject.
+ *
+ * <p>Threads that need current state read it with {@link #get(String)}, a single lookup in a
+ * concurrent map that never blocks message delivery, or take a point-in-time copy of every subject
+ * with {@link #snapshot()}, which holds the cache's lock only to start and finish the copy, so it
+ * does not stall delivery either. Entries are evicted least-recently-updated first once either the
+ * entry limit or the byte budget (the sum of payload sizes) is exceeded, and, if a TTL is set, a
+ * subject that has not been updated within the TTL is no longer returned.
+ *
+ * <p>Cached messages are shared between readers, so callers must treat them as read-only.
+ */
+public class LastValueCache implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(LastValueCache.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 16384;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private final Connection conn;
+    private final String subject;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    // Lock-free reads.
+    private final ConcurrentHashMap<String, Entry> values = new ConcurrentHashMap<String, Entry>();
+    // Update order, so iteration starts at the least recently updated subject. Guarded by the
+    // write lock.
+    private final LinkedHashMap<String, Entry> order = new LinkedHashMap<String, Entry>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long bytes;
+    // The undo logs of the snapshots being copied. Registered and removed under the read lock,
+    // and written to under the write lock.
+    private final CopyOnWriteArrayList<UndoLog> undoLogs = new CopyOnWriteArrayList<UndoLog>();
+
+    private Subscription sub;
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Creates a {@code LastValueCache} with the default entry limit and byte budget and no TTL.
+     *
+     * @param conn the connection to subscribe on
+     * @param subject the subject to cache, which may contain {@code *} and {@code >} wildcards
+     */
+    public LastValueCache(Connection conn, String subject) {
+        this(conn, subject, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a {@code LastValueCache}.
+     *
+     * @param conn the connection to subscribe on
+     * @param subject the subject to cache, which may contain {@code *} and {@code >} wildcards
+     * @param maxEntries the maximum number of cached subjects
+     * @param maxBytes the maximum total size, in bytes, of cached payloads
+     * @param ttl how long a value remains current after it is received, or {@code 0} for no
+     *        expiry
+     * @param unit the time unit of {@code ttl}
+     */
+    public LastValueCache(Connection conn, String subject, int maxEntries, long maxBytes,
+            long ttl, TimeUnit unit) {
+        if (conn == null) {
+            throw new NullPointerException("nats: connection cannot be null");
+        }
+        if (subject == null || subject.isEmpty()) {
+            throw new IllegalArgumentException(Constants.ERR_BAD_SUBJECT);
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("nats: maxEntries must be greater than 0");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("nats: maxBytes must be greater than 0");
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("nats: ttl cannot be negative");
+        }
+        this.conn = conn;
+        this.subject = subject;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * Subscribes to the cached subject and starts recording values.
+     *
+     * @return this {@code LastValueCache}
+     */
+    public synchronized LastValueCache start() {
+        if (sub != null) {
+            throw new IllegalStateException("nats: last value cache already started");
+        }
+        sub = conn.subscribe(subject, new MessageHandler() {
+            public void onMessage(Message msg) {
+                update(msg);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Unsubscribes from the cached subject. Cached values remain readable.
+     */
+    @Override
+    public synchronized void close() {
+        if (sub != null) {
+            try {
+                sub.unsubscribe();
+            } catch (IllegalStateException | IOException e) {
+                logger.debug("nats: exception while unsubscribing last value cache", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the latest message received on {@code subject}.
+     *
+     * @param subject a concrete subject
+     * @return the latest message, or {@code null} if none is cached or the cached value has expired
+     */
+    public Message get(String subject) {
+        Entry entry = values.get(subject);
+        if (entry == null || isExpired(entry, System.nanoTime())) {
+            return null;
+        }
+        return entry.msg;
+    }
+
+    /**
+     * Returns a consistent copy of the cached values: every subject reflects the same point in the
+     * update stream. Expired values are omitted.
+     *
+     * <p>The copy is taken from the concurrent map while updates continue. Updates made meanwhile
+     * record the value each subject had when the copy started, and those values are put back into
+     * the copy at the end, so the cost to delivery is one map write per subject changed during the
+     * copy rather than waiting for the whole copy.
+     *
+     * @return an unmodifiable map from subject to latest message
+     */
+    public Map<String, Message> snapshot() {
+        UndoLog undo = new UndoLog();
+        long now;
+        lock.readLock().lock();
+        try {
+            now = System.nanoTime();
+            undoLogs.add(undo);
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, Entry> entries = new HashMap<String, Entry>(values.size() * 4 / 3 + 1);
+        try {
+            entries.putAll(values);
+        } finally {
+            lock.readLock().lock();
+            try {
+                undoLogs.remove(undo);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        for (Map.Entry<String, Entry> e : undo.before.entrySet()) {
+            if (e.getValue() == null) {
+                entries.remove(e.getKey());
+            } else {
+                entries.put(e.getKey(), e.getValue());
+            }
+        }
+        Map<String, Message> copy = new HashMap<String, Message>(entries.size() * 4 / 3 + 1);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (!isExpired(e.getValue(), now)) {
+                copy.put(e.getKey(), e.getValue().msg);
+            }
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return the number of messages recorded.
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+
+    /**
+     * @return the number of values evicted to stay within the entry limit or byte budget.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of values discarded because their TTL had elapsed.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of cached subjects, including any expired values not yet discarded.
+     */
+    public int getSize() {
+        return values.size();
+    }
+
+    /**
+     * @return the total size, in bytes, of the cached payloads.
+     */
+    public long getBytes() {
+        lock.readLock().lock();
+        try {
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}.
+     */
+    public String toString() {
+        NumberFormat nf = NumberFormat.getNumberInstance(Locale.US);
+        return String.format("{lvc: subject=%s updates=%s evictions=%s expirations=%s size=%s "
+                + "bytes=%s}", subject, nf.format(getUpdates()), nf.format(getEvictions()),
+                nf.format(getExpirations()), nf.format(getSize()), nf.format(getBytes()));
+    }
+
+    void update(Message msg) {
+        updates.incrementAndGet();
+        long now = System.nanoTime();
+        long expires = 0;
+        if (ttlNanos != 0) {
+            expires = now + ttlNanos;
+            // 0 means "never"; nudge the rare exact hit.
+            expires = expires == 0 ? 1 : expires;
+        }
+        Entry entry = new Entry(msg, expires);
+        String key = msg.getSubject();
+        lock.writeLock().lock();
+        try {
+            // Re-insert so the subject moves to the most recently updated end. The concurrent map
+            // is overwritten rather than cleared, so readers never miss a cached subject.
+            Entry old = order.remove(key);
+            if (old != null) {
+                bytes -= old.size;
+            }
+            saveForSnapshots(key);
+            if (entry.size > maxBytes) {
+                // Never cacheable; don't flush the whole cache to make room for it.
+                values.remove(key);
+                return;
+            }
+            order.put(key, entry);
+            values.put(key, entry);
+            bytes += entry.size;
+            Iterator<Map.Entry<String, Entry>> it = order.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (isExpired(eldest.getValue(), now)) {
+                    expirations.incrementAndGet();
+                } else if (order.size() > maxEntries || bytes > maxBytes) {
+                    evictions.incrementAndGet();
+                } else {
+                    // Entries are in update order, so nothing newer has expired either.
+                    break;
+                }
+                bytes -= eldest.getValue().size;
+                saveForSnapshots(eldest.getKey());
+                values.remove(eldest.getKey());
+                it.remove();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Records the current value of key, or its absence, in the undo log of each snapshot being
+    // copied that has not recorded it yet. Assumes the write lock is held.
+    private void saveForSnapshots(String key) {
+        if (undoLogs.isEmpty()) {
+            return;
+        }
+        Entry current = values.get(key);
+        for (UndoLog undo : undoLogs) {
+            if (!undo.before.containsKey(key)) {
+                undo.before.put(key, current);
+            }
+        }
+    }
+
+    private static boolean isExpired(Entry entry, long now) {
+        return entry.expires != 0 && now - entry.expires >= 0;
+    }
+
+    // The values subjects had when a snapshot started, for the subjects changed since; null for a
+    // subject that was not cached. Compared by identity, so that each snapshot removes its own.
+    static final class UndoLog {
+        final Map<String, Entry> before = new HashMap<String, Entry>();
+    }
+
+    static final class Entry {
+        final Message msg;
+        final long expires;
+        final int size;
+
+        Entry(Message msg, long expires) {
+            this.msg = msg;
+            this.expires = expires;
+            this.size = msg.getData() == null ? 0 : msg.getData().length;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, with log-linear buckets in the style of an HDR
+ * histogram.
+ *
+ * <p>Each power of two is split into 8 equal buckets, so a reported value is within 12.5% of the
+ * recorded ones, and any non-negative {@code long} can be recorded into a fixed set of 488
+ * buckets. Recording is wait-free: an atomic increment of the bucket, plus an update of the sum
+ * and, rarely, of the maximum. Histograms can be copied with {@link #snapshot()} and combined
+ * with {@link #merge(LatencyHistogram)}; reads are not atomic with respect to concurrent
+ * recording, so take a snapshot to get a consistent view.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency, in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        sum.addAndGet(nanos);
+        long cur = max.get();
+        while (nanos > cur && !max.compareAndSet(cur, nanos)) {
+            cur = max.get();
+        }
+    }
+
+    /**
+     * Returns a copy of this histogram.
+     *
+     * @return a snapshot of this histogram
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.merge(this);
+        return copy;
+    }
+
+    /**
+     * Adds the values recorded in {@code other} to this histogram.
+     *
+     * @param other the histogram to merge into this one
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long cur = max.get();
+        while (otherMax > cur && !max.compareAndSet(cur, otherMax)) {
+            cur = max.get();
+        }
+    }
+
+    /**
+     * Clears the histogram.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        sum.set(0L);
+        max.set(0L);
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param unit the time unit of the returned value
+     * @return the largest recorded value, or 0 if none were recorded.
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the time unit of the returned value
+     * @return the mean of the recorded values, or 0 if none were recorded.
+     */
+    public long getMean(TimeUnit unit) {
+        long count = getCount();
+        return (count == 0) ? 0 : unit.convert(sum.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the value below which {@code percentile} percent of the recorded values fall, to
+     * within the precision of the buckets.
+     *
+     * @param percentile the percentile, from 0 to 100
+     * @param unit the time unit of the returned value
+     * @return the value at the percentile, or 0 if none were recorded
+     */
+    public long getValueAtPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("nats: percentile must be between 0 and 100");
+        }
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return unit.convert(Math.min(highestValue(i), max.get()), TimeUnit.NANOSECONDS);
+            }
+        }
+        return unit.convert(max.get(), TimeUnit.NANOSECONDS);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowestValue(bucket + 1) - 1;
+    }
+
+    /**
+     * {@inheritDoc}.
+     */
+    @Override
+    public String toString() {
+        TimeUnit us = TimeUnit.MICROSECONDS;
+        return String.format("{count=%d mean=%dus p50=%dus p99=%dus p99.9=%dus max=%dus}",
+                getCount(), getMean(us), getValueAtPercentile(50, us),
+                getValueAtPercentile(99, us), getValueAtPercentile(99.9, us), getMax(us));
+    }
+}
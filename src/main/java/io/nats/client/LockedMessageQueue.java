@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base class for the unbounded pending message queues of subscriptions that replace
+ * {@link java.util.concurrent.LinkedBlockingQueue}. A single lock guards the queue; subclasses
+ * provide the storage through the {@code do*} methods, which are always called with the lock held.
+ */
+abstract class LockedMessageQueue extends AbstractQueue<Message>
+        implements BlockingQueue<Message> {
+
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition notEmpty = lock.newCondition();
+
+    /**
+     * Adds {@code msg} to the tail of the queue.
+     *
+     * @return {@code false} if the queue cannot accept the message
+     */
+    abstract boolean doOffer(Message msg);
+
+    /**
+     * Removes and returns the head of the queue, or returns {@code null} if it is empty.
+     */
+    abstract Message doPoll();
+
+    /**
+     * Returns the head of the queue without removing it, or {@code null} if it is empty.
+     */
+    abstract Message doPeek();
+
+    abstract int doSize();
+
+    abstract void doClear();
+
+    /**
+     * Returns an iterator over a snapshot of the queued messages.
+     */
+    abstract Iterator<Message> doSnapshot();
+
+    @Override
+    public boolean offer(Message msg) {
+        if (msg == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (!doOffer(msg)) {
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Message msg) {
+        offer(msg);
+    }
+
+    @Override
+    public boolean offer(Message msg, long timeout, TimeUnit unit) {
+        return offer(msg);
+    }
+
+    @Override
+    public Message poll() {
+        lock.lock();
+        try {
+            return doPoll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (doSize() == 0) {
+                notEmpty.await();
+            }
+            return doPoll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (doSize() == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return doPoll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message peek() {
+        lock.lock();
+        try {
+            return doPeek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return doSize();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            doClear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Message> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Message> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int n = 0;
+            Message msg;
+            while (n < maxElements && (msg = doPoll()) != null) {
+                c.add(msg);
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued messages.
+     */
+    @Override
+    public Iterator<Message> iterator() {
+        lock.lock();
+        try {
+            return doSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -30,6 +30,8 @@ public class Message {
     // private ByteBuffer data;
     private byte[] data;
     protected SubscriptionImpl sub;
+    // When the message was queued for its subscription, for the sojourn histogram; 0 if unknown.
+    long enqueuedNanos;
 
     /**
      * Message constructor.
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * A {@code MessageKeyExtractor} maps a message to the key used to conflate it on a conflating
+ * subscription. A pending message is replaced by a newer message with an equal key.
+ *
+ * @see AbstractConnection#subscribeConflating(String, MessageKeyExtractor, MessageHandler)
+ */
+public interface MessageKeyExtractor {
+
+    /**
+     * Returns the conflation key of a message.
+     *
+     * @param msg the received message
+     * @return the key, or {@code null} if the message should never be conflated
+     */
+    Object extractKey(Message msg);
+}
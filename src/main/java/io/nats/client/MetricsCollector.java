@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import io.nats.client.Constants.ConnState;
+
+/**
+ * Receives metrics from a {@code Connection}, if one has been registered with
+ * {@link ConnectionFactory#setMetricsCollector(MetricsCollector)}.
+ *
+ * <p>Counts are not reported per message. The connection accumulates them in the counters it
+ * already keeps and reports the increments since the previous report every
+ * {@link ConnectionFactory#setMetricsInterval(long) metrics interval}, from its scheduler thread,
+ * and once more when it is closed. Connection events and stalls are reported from the callback
+ * thread. A collector may be shared by several connections, and its methods should return
+ * quickly.
+ *
+ * @see PrometheusMetricsCollector
+ */
+public interface MetricsCollector {
+    /**
+     * Invoked when the connection is first connected ({@code CONNECTED}), is disconnected
+     * ({@code DISCONNECTED}) or is closed ({@code CLOSED}).
+     *
+     * @param conn the connection
+     * @param state the state the connection entered
+     */
+    void connectionEvent(Connection conn, ConnState state);
+
+    /**
+     * Invoked when the connection has reconnected.
+     *
+     * @param conn the connection
+     */
+    void reconnected(Connection conn);
+
+    /**
+     * Reports flushes of the outbound buffer to the socket.
+     *
+     * @param conn the connection
+     * @param count the number of flushes since the previous report
+     */
+    void flushed(Connection conn, long count);
+
+    /**
+     * Reports messages dropped by a subscription as a slow consumer.
+     *
+     * @param conn the connection
+     * @param subject the subject of the subscription
+     * @param count the number of messages dropped since the previous report
+     */
+    void slowConsumerDropped(Connection conn, String subject, long count);
+
+    /**
+     * Reports activations of a subscription's {@link SlowConsumerPolicy}, and the time the reader
+     * spent blocked under {@link SlowConsumerPolicy#BLOCK}.
+     *
+     * @param conn the connection
+     * @param subject the subject of the subscription
+     * @param events the number of messages that triggered the policy since the previous report
+     * @param blockedNanos the time spent blocked since the previous report, in nanoseconds
+     */
+    void slowConsumerEvents(Connection conn, String subject, long events, long blockedNanos);
+
+    /**
+     * Reports messages received for a subscription, including dropped ones.
+     *
+     * @param conn the connection
+     * @param subject the subject (or wildcard subject) of the subscription
+     * @param msgs the number of messages received since the previous report
+     * @param bytes the number of payload bytes received since the previous report
+     */
+    void received(Connection conn, String subject, long msgs, long bytes);
+
+    /**
+     * Reports messages published on subjects matching {@code pattern}, one of the patterns set
+     * with {@link ConnectionFactory#setMetricsSubjectPatterns(String...)}. Publishes matching none
+     * of them, or all publishes if none are set, are reported under {@code ">"}.
+     *
+     * @param conn the connection
+     * @param pattern the subject pattern
+     * @param msgs the number of messages published since the previous report
+     * @param bytes the number of payload bytes published since the previous report
+     */
+    void published(Connection conn, String pattern, long msgs, long bytes);
+
+    /**
+     * Invoked when a connection thread is detected as stalled, if
+     * {@link ConnectionFactory#setStallThreshold(long)} is set.
+     *
+     * @param conn the connection
+     * @param component what stalled, as in {@link StallException#getComponent()}
+     * @param nanos how long the thread had made no progress when the stall was detected
+     */
+    void stalled(Connection conn, String component, long nanos);
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reports the counters of a connection to its {@link MetricsCollector} as increments since the
+ * previous report.
+ *
+ * <p>Received and dropped messages come from the per-subscription counters and flushes from the
+ * connection {@link Statistics}, so the message path does no extra work for them. Published
+ * messages are counted per subject pattern by {@link PatternCounts} only if patterns are set;
+ * otherwise the outbound statistics are reported under {@code ">"}. Reply inbox subscriptions,
+ * such as the one each {@code request()} makes, are reported together under {@code "_INBOX.>"},
+ * so that requests do not add a subject per call.
+ */
+class MetricsReporter implements Runnable {
+    static final String ALL = ">";
+    static final String INBOXES = ConnectionImpl.inboxPrefix + ">";
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+
+    private final ConnectionImpl conn;
+    private final MetricsCollector collector;
+    // Written by the publishing threads under the connection lock; null if there are no patterns.
+    final PatternCounts published;
+    // Subscriptions removed since the last report, whose last increments are still to report.
+    private final Queue<SubscriptionImpl> retired = new ConcurrentLinkedQueue<SubscriptionImpl>();
+
+    private long lastFlushes;
+    private long lastOutMsgs;
+    private long lastOutBytes;
+
+    MetricsReporter(ConnectionImpl conn, MetricsCollector collector, List<String> patterns) {
+        this.conn = conn;
+        this.collector = collector;
+        this.published = (patterns == null || patterns.isEmpty()) ? null
+                : new PatternCounts(patterns);
+    }
+
+    void retire(SubscriptionImpl sub) {
+        retired.add(sub);
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            report();
+        } catch (RuntimeException e) {
+            // A throwing task would not be run again.
+            logger.warn("nats: metrics collector failed", e);
+        }
+    }
+
+    private void report() {
+        long flushes = conn.stats.getFlushes();
+        long delta = increment(flushes, lastFlushes);
+        lastFlushes = flushes;
+        if (delta > 0) {
+            collector.flushed(conn, delta);
+        }
+
+        if (published == null) {
+            long outMsgs = conn.stats.getOutMsgs();
+            long outBytes = conn.stats.getOutBytes();
+            long msgs = increment(outMsgs, lastOutMsgs);
+            long bytes = increment(outBytes, lastOutBytes);
+            lastOutMsgs = outMsgs;
+            lastOutBytes = outBytes;
+            if (msgs > 0) {
+                collector.published(conn, ALL, msgs, bytes);
+            }
+        } else {
+            long[][] counts;
+            conn.mu.lock();
+            try {
+                counts = published.drain();
+            } finally {
+                conn.mu.unlock();
+            }
+            for (int i = 0; i < counts[0].length; i++) {
+                if (counts[0][i] > 0) {
+                    collector.published(conn, published.patterns[i], counts[0][i], counts[1][i]);
+                }
+            }
+        }
+
+        for (SubscriptionImpl sub : conn.subs.values()) {
+            report(sub);
+        }
+        SubscriptionImpl sub;
+        while ((sub = retired.poll()) != null) {
+            report(sub);
+        }
+    }
+
+    private void report(SubscriptionImpl sub) {
+        long msgs = sub.msgs;
+        long bytes = sub.bytes;
+        int dropped = sub.dropped;
+        String subject = sub.getSubject().startsWith(ConnectionImpl.inboxPrefix) ? INBOXES
+                : sub.getSubject();
+        if (msgs > sub.reportedMsgs) {
+            collector.received(conn, subject, msgs - sub.reportedMsgs, bytes - sub.reportedBytes);
+        }
+        if (dropped > sub.reportedDropped) {
+            collector.slowConsumerDropped(conn, subject, dropped - sub.reportedDropped);
+        }
+        long events;
+        long blockedNanos;
+        sub.lock();
+        try {
+            events = sub.slowConsumerEvents;
+            blockedNanos = sub.blockedNanos;
+        } finally {
+            sub.unlock();
+        }
+        if (events > sub.reportedEvents || blockedNanos > sub.reportedBlockedNanos) {
+            collector.slowConsumerEvents(conn, subject, events - sub.reportedEvents,
+                    blockedNanos - sub.reportedBlockedNanos);
+        }
+        sub.reportedMsgs = msgs;
+        sub.reportedBytes = bytes;
+        sub.reportedDropped = dropped;
+        sub.reportedEvents = events;
+        sub.reportedBlockedNanos = blockedNanos;
+    }
+
+    // The statistics may have been reset since the last report.
+    private static long increment(long now, long last) {
+        return (now >= last) ? now - last : now;
+    }
+
+    /**
+     * Counts published messages and bytes per subject pattern. The pattern of a subject is
+     * looked up in a small direct-mapped cache keyed by the subject bytes, so a publish costs a
+     * hash and a comparison of the subject, and no allocation unless the subject is not cached.
+     * Not thread-safe; used under the connection lock.
+     */
+    static final class PatternCounts {
+        private static final int CACHE_SIZE = 1024;
+
+        final String[] patterns;
+        private long[] msgs;
+        private long[] bytes;
+        private final byte[][] keys = new byte[CACHE_SIZE][];
+        private final int[] slots = new int[CACHE_SIZE];
+
+        PatternCounts(List<String> configured) {
+            List<String> all = new ArrayList<String>(configured);
+            all.remove(ALL);
+            all.add(ALL);
+            patterns = all.toArray(new String[all.size()]);
+            msgs = new long[patterns.length];
+            bytes = new long[patterns.length];
+        }
+
+        void record(byte[] subject, int size) {
+            int hash = 1;
+            for (byte b : subject) {
+                hash = 31 * hash + b;
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+            int index;
+            if (keys[slot] != null && Arrays.equals(keys[slot], subject)) {
+                index = slots[slot];
+            } else {
+                index = match(new String(subject));
+                keys[slot] = subject.clone();
+                slots[slot] = index;
+            }
+            msgs[index]++;
+            bytes[index] += size;
+        }
+
+        private int match(String subject) {
+            for (int i = 0; i < patterns.length - 1; i++) {
+                if (SubjectMatcher.matches(patterns[i], subject)) {
+                    return i;
+                }
+            }
+            return patterns.length - 1;
+        }
+
+        // Returns the message and byte counts since the last call.
+        long[][] drain() {
+            long[][] counts = new long[][] {msgs, bytes};
+            msgs = new long[patterns.length];
+            bytes = new long[patterns.length];
+            return counts;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NUID {
 
@@ -31,8 +32,10 @@ public class NUID {
     static final long minInc = 33L;
     static final long maxInc = 333L;
     static final int totalLen = preLen + seqLen;
-    static SecureRandom srand;
+    static final String RESEED_THREAD_NAME = "jnats-nuid-reseed";
+    static volatile SecureRandom srand;
     static Random prand;
+    private static final AtomicBoolean reseedStarted = new AtomicBoolean();
 
     // Instance fields
     char[] pre;
@@ -50,17 +53,23 @@ public class NUID {
 
     /**
      * The default NUID constructor.
+     *
+     * <p>The generator is seeded from non-blocking OS entropy so that constructing a NUID (and
+     * loading this class) never stalls on an entropy-starved host. A strongly seeded
+     * {@link SecureRandom} is created once in the background and used for subsequent prefix
+     * rotations.
      */
     public NUID() {
-        // Generate a cryto random int, 0 <= val < max to seed pseudorandom
-        long seed = 0L;
-        try {
-            srand = SecureRandom.getInstance("SHA1PRNG");
-            seed = bytesToLong(srand.generateSeed(8)); // seed with 8 bytes (64 bits)
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("nats: nuid algorithm not found", e);
+        SecureRandom rnd = srand;
+        if (rnd == null) {
+            rnd = nonBlockingRandom();
+            srand = rnd;
         }
 
+        byte[] seedBytes = new byte[8];
+        rnd.nextBytes(seedBytes); // seed with 8 bytes (64 bits)
+        long seed = bytesToLong(seedBytes);
+
         if (seed != 0L) {
             prand = new Random(seed);
         } else {
@@ -74,6 +83,68 @@ public class NUID {
             pre[i] = '0';
         }
         randomizePrefix();
+        scheduleReseed();
+    }
+
+    /*
+     * Returns a SecureRandom that will not block waiting for entropy. NativePRNGNonBlocking and
+     * NativePRNG both read /dev/urandom where available. As a last resort SHA1PRNG is explicitly
+     * seeded, which prevents it from self-seeding from the (possibly blocking) system seed source.
+     */
+    static SecureRandom nonBlockingRandom() {
+        for (String alg : new String[] { "NativePRNGNonBlocking", "NativePRNG" }) {
+            try {
+                return SecureRandom.getInstance(alg);
+            } catch (NoSuchAlgorithmException e) {
+                logger.trace("nats: nuid algorithm {} not available", alg);
+            }
+        }
+        SecureRandom rnd;
+        try {
+            rnd = SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("nats: nuid algorithm not found", e);
+            rnd = new SecureRandom(longToBytes(System.nanoTime()));
+        }
+        ByteBuffer buf = ByteBuffer.allocate(3 * Long.SIZE / Byte.SIZE);
+        buf.putLong(System.nanoTime());
+        buf.putLong(System.currentTimeMillis());
+        buf.putLong(((long) System.identityHashCode(rnd) << 32) ^ Thread.currentThread().getId());
+        rnd.setSeed(buf.array());
+        return rnd;
+    }
+
+    /*
+     * Replaces the prefix generator with one seeded from the system's strong seed source. This is
+     * only done once per class loader, on a daemon thread, since generateSeed() may block for a
+     * long time on hosts with little entropy.
+     */
+    static void scheduleReseed() {
+        if (!reseedStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                reseed();
+            }
+        }, RESEED_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static void reseed() {
+        try {
+            reseed(SecureRandom.getInstance("SHA1PRNG"));
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("nats: nuid algorithm not found", e);
+        }
+    }
+
+    // Seeds strong from its own seed source, which may block, and makes it the prefix generator.
+    static void reseed(SecureRandom strong) {
+        strong.setSeed(strong.generateSeed(8));
+        srand = strong;
+        logger.trace("nats: nuid prefix generator reseeded");
     }
 
     /**
@@ -146,13 +217,13 @@ public class NUID {
         return val;
     }
 
-    byte[] longToBytes(long x) {
+    static byte[] longToBytes(long x) {
         ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE);
         buffer.putLong(x);
         return buffer.array();
     }
 
-    long bytesToLong(byte[] bytes) {
+    static long bytesToLong(byte[] bytes) {
         ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE);
         buffer.put(bytes);
         buffer.flip();// need flip
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers connections and subscriptions with the platform MBean server.
+ *
+ * <p>The MBeans read the counters the client already keeps when an attribute is read, so they add
+ * nothing to the message path. The MBean server is only looked up once something is registered.
+ * Registration failures are logged and otherwise ignored.
+ */
+final class NatsMBeans {
+    static final String DOMAIN = "io.nats.client";
+
+    private static final Logger logger = LoggerFactory.getLogger(NatsMBeans.class);
+    private static final AtomicLong ids = new AtomicLong();
+
+    private NatsMBeans() {}
+
+    // Initialized on first use.
+    private static class Server {
+        static final MBeanServer INSTANCE = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    static void register(ConnectionImpl conn) {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Connection,id="
+                    + ids.incrementAndGet());
+            Server.INSTANCE.registerMBean(new ConnectionMBean(conn), name);
+            conn.mbeanName = name;
+        } catch (JMException e) {
+            logger.warn("nats: could not register connection MBean", e);
+        }
+    }
+
+    static void register(ConnectionImpl conn, SubscriptionImpl sub) {
+        if (conn.mbeanName == null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Subscription,connection="
+                    + conn.mbeanName.getKeyProperty("id") + ",sid=" + sub.getSid());
+            Server.INSTANCE.registerMBean(new SubscriptionMBean(sub), name);
+            sub.mbeanName = name;
+        } catch (JMException e) {
+            logger.warn("nats: could not register subscription MBean", e);
+        }
+    }
+
+    static void unregister(ConnectionImpl conn) {
+        conn.mbeanName = unregister(conn.mbeanName);
+    }
+
+    static void unregister(SubscriptionImpl sub) {
+        sub.mbeanName = unregister(sub.mbeanName);
+    }
+
+    private static ObjectName unregister(ObjectName name) {
+        if (name != null) {
+            try {
+                Server.INSTANCE.unregisterMBean(name);
+            } catch (JMException e) {
+                logger.debug("nats: could not unregister MBean {}", name, e);
+            }
+        }
+        return null;
+    }
+
+    static final class ConnectionMBean implements ConnectionMXBean {
+        private final ConnectionImpl conn;
+        private long lastFlushes;
+        private long lastNanos = System.nanoTime();
+
+        ConnectionMBean(ConnectionImpl conn) {
+            this.conn = conn;
+            this.lastFlushes = conn.stats.getFlushes();
+        }
+
+        @Override
+        public String getState() {
+            return String.valueOf(conn.getState());
+        }
+
+        @Override
+        public String getConnectedUrl() {
+            return conn.getConnectedUrl();
+        }
+
+        @Override
+        public String getConnectedServerId() {
+            return conn.getConnectedServerId();
+        }
+
+        @Override
+        public long getInMsgs() {
+            return conn.stats.getInMsgs();
+        }
+
+        @Override
+        public long getOutMsgs() {
+            return conn.stats.getOutMsgs();
+        }
+
+        @Override
+        public long getInBytes() {
+            return conn.stats.getInBytes();
+        }
+
+        @Override
+        public long getOutBytes() {
+            return conn.stats.getOutBytes();
+        }
+
+        @Override
+        public long getReconnects() {
+            return conn.stats.getReconnects();
+        }
+
+        @Override
+        public long getFlushes() {
+            return conn.stats.getFlushes();
+        }
+
+        @Override
+        public synchronized double getFlushRate() {
+            long flushes = conn.stats.getFlushes();
+            long now = System.nanoTime();
+            double rate =
+                    (now == lastNanos) ? 0 : (flushes - lastFlushes) * 1e9 / (now - lastNanos);
+            lastFlushes = flushes;
+            lastNanos = now;
+            return Math.max(0, rate);
+        }
+
+        @Override
+        public long getStalls() {
+            StallWatchdog watchdog = conn.watchdog;
+            return (watchdog == null) ? 0 : watchdog.getStalls();
+        }
+
+        @Override
+        public int getSubscriptionCount() {
+            return conn.subs.size();
+        }
+
+        @Override
+        public long getPendingMsgs() {
+            long total = 0;
+            for (SubscriptionImpl sub : conn.subs.values()) {
+                sub.lock();
+                try {
+                    total += sub.pMsgs;
+                } finally {
+                    sub.unlock();
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public long getPendingBytes() {
+            long total = 0;
+            for (SubscriptionImpl sub : conn.subs.values()) {
+                sub.lock();
+                try {
+                    total += sub.pBytes;
+                } finally {
+                    sub.unlock();
+                }
+            }
+            return total;
+        }
+
+        @Override
+        public void resetStats() {
+            conn.resetStats();
+        }
+    }
+
+    // Reads the fields directly rather than through the Subscription getters, which throw once the
+    // subscription is closed.
+    static final class SubscriptionMBean implements SubscriptionMXBean {
+        private final SubscriptionImpl sub;
+
+        SubscriptionMBean(SubscriptionImpl sub) {
+            this.sub = sub;
+        }
+
+        @Override
+        public String getSubject() {
+            return sub.getSubject();
+        }
+
+        @Override
+        public String getQueue() {
+            return sub.getQueue();
+        }
+
+        @Override
+        public int getPendingMsgs() {
+            sub.lock();
+            try {
+                return sub.pMsgs;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public int getPendingBytes() {
+            sub.lock();
+            try {
+                return sub.pBytes;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public int getPendingMsgsMax() {
+            sub.lock();
+            try {
+                return sub.pMsgsMax;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public int getPendingBytesMax() {
+            sub.lock();
+            try {
+                return sub.pBytesMax;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public int getPendingMsgsLimit() {
+            sub.lock();
+            try {
+                return sub.pMsgsLimit;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public int getPendingBytesLimit() {
+            sub.lock();
+            try {
+                return sub.pBytesLimit;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public int getDropped() {
+            return sub.dropped;
+        }
+
+        @Override
+        public long getDelivered() {
+            sub.lock();
+            try {
+                return sub.delivered;
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public long getReceivedMsgs() {
+            return sub.msgs;
+        }
+
+        @Override
+        public long getReceivedBytes() {
+            return sub.bytes;
+        }
+
+        @Override
+        public String getSlowConsumerPolicy() {
+            sub.lock();
+            try {
+                return sub.slowConsumerPolicy.name();
+            } finally {
+                sub.unlock();
+            }
+        }
+
+        @Override
+        public long getSlowConsumerEvents() {
+            return sub.getSlowConsumerEvents();
+        }
+
+        @Override
+        public long getBlockedTimeMillis() {
+            return sub.getBlockedTime(TimeUnit.MILLISECONDS);
+        }
+    }
+}
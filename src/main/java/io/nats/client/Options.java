@@ -9,7 +9,10 @@ package io.nats.client;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
 
@@ -29,6 +32,23 @@ class Options {
     private boolean reconnectAllowed;
     private int maxReconnect;
     private int reconnectBufSize;
+    private long reconnectSpillSize;
+    private String reconnectSpillDir;
+    private String subscriptionSpillDir;
+    private long maxPendingBytes;
+    private boolean latencyHistograms;
+    private boolean jmxEnabled;
+    private MetricsCollector metricsCollector;
+    private long metricsInterval;
+    private List<String> metricsSubjectPatterns;
+    private int heavyHitters;
+    private long stallThreshold;
+    private Map<String, BufferedPublishPolicy> bufferedPublishPolicies =
+            Collections.emptyMap();
+    private long outboundHighWatermark;
+    private long outboundLowWatermark;
+    private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private long backpressureTimeout;
     private long reconnectWait;
     private int connectionTimeout;
     private long pingInterval;
@@ -39,6 +59,7 @@ class Options {
     protected DisconnectedCallback disconnectedCb;
     protected ClosedCallback closedCb;
     protected ReconnectedCallback reconnectedCb;
+    protected BackpressureCallback backpressureCb;
     protected ExceptionHandler asyncErrorCb;
 
     // private List<X509Certificate> certificates =
@@ -228,6 +249,140 @@ class Options {
         this.reconnectBufSize = reconnectBufSize;
     }
 
+    public long getReconnectSpillSize() {
+        return reconnectSpillSize;
+    }
+
+    public void setReconnectSpillSize(long reconnectSpillSize) {
+        this.reconnectSpillSize = reconnectSpillSize;
+    }
+
+    public String getReconnectSpillDir() {
+        return reconnectSpillDir;
+    }
+
+    public void setReconnectSpillDir(String reconnectSpillDir) {
+        this.reconnectSpillDir = reconnectSpillDir;
+    }
+
+    public String getSubscriptionSpillDir() {
+        return subscriptionSpillDir;
+    }
+
+    public void setSubscriptionSpillDir(String subscriptionSpillDir) {
+        this.subscriptionSpillDir = subscriptionSpillDir;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public boolean isLatencyHistograms() {
+        return latencyHistograms;
+    }
+
+    public void setLatencyHistograms(boolean latencyHistograms) {
+        this.latencyHistograms = latencyHistograms;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    public MetricsCollector getMetricsCollector() {
+        return metricsCollector;
+    }
+
+    public void setMetricsCollector(MetricsCollector metricsCollector) {
+        this.metricsCollector = metricsCollector;
+    }
+
+    public long getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public void setMetricsInterval(long metricsInterval) {
+        this.metricsInterval = metricsInterval;
+    }
+
+    public List<String> getMetricsSubjectPatterns() {
+        return metricsSubjectPatterns;
+    }
+
+    public void setMetricsSubjectPatterns(List<String> patterns) {
+        this.metricsSubjectPatterns = (patterns == null) ? null
+                : Collections.unmodifiableList(new ArrayList<String>(patterns));
+    }
+
+    public int getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    public void setHeavyHitters(int heavyHitters) {
+        this.heavyHitters = heavyHitters;
+    }
+
+    public long getStallThreshold() {
+        return stallThreshold;
+    }
+
+    public void setStallThreshold(long stallThreshold) {
+        this.stallThreshold = stallThreshold;
+    }
+
+    public Map<String, BufferedPublishPolicy> getBufferedPublishPolicies() {
+        return bufferedPublishPolicies;
+    }
+
+    public void setBufferedPublishPolicies(Map<String, BufferedPublishPolicy> policies) {
+        if (policies == null || policies.isEmpty()) {
+            this.bufferedPublishPolicies = Collections.emptyMap();
+        } else {
+            this.bufferedPublishPolicies = Collections.unmodifiableMap(
+                    new LinkedHashMap<String, BufferedPublishPolicy>(policies));
+        }
+    }
+
+    public long getOutboundHighWatermark() {
+        return outboundHighWatermark;
+    }
+
+    public void setOutboundHighWatermark(long outboundHighWatermark) {
+        this.outboundHighWatermark = outboundHighWatermark;
+    }
+
+    public long getOutboundLowWatermark() {
+        return outboundLowWatermark;
+    }
+
+    public void setOutboundLowWatermark(long outboundLowWatermark) {
+        this.outboundLowWatermark = outboundLowWatermark;
+    }
+
+    public BackpressurePolicy getBackpressurePolicy() {
+        return backpressurePolicy;
+    }
+
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    public long getBackpressureTimeout() {
+        return backpressureTimeout;
+    }
+
+    public void setBackpressureTimeout(long backpressureTimeout) {
+        this.backpressureTimeout = backpressureTimeout;
+    }
+
     public long getReconnectWait() {
         return reconnectWait;
     }
@@ -284,6 +439,14 @@ class Options {
         this.reconnectedCb = cb;
     }
 
+    public BackpressureCallback getBackpressureCallback() {
+        return backpressureCb;
+    }
+
+    public void setBackpressureCallback(BackpressureCallback cb) {
+        this.backpressureCb = cb;
+    }
+
     public DisconnectedCallback getDisconnectedCallback() {
         return disconnectedCb;
     }
@@ -0,0 +1,716 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The outbound stream of a connected connection.
+ *
+ * <p>Writers append protocol frames to an in-memory queue, under the connection lock, without
+ * touching the socket. {@link #flush()} swaps the queue for an empty one and writes the swapped
+ * frames to the socket stream under a separate write lock. The flusher thread can therefore drain
+ * to a slow socket while other threads keep publishing, and the number of bytes not yet written to
+ * the socket is known at all times.
+ *
+ * <p>Control frames, such as PONG replies and subscription changes, are written to a separate
+ * control lane. {@link #flush()} writes the data frames chunk by chunk and, whenever control frames
+ * are waiting, writes them at the next data frame boundary, so they overtake the queued data
+ * without splitting a frame and wait for at most about one chunk. Each queue records the first
+ * frame boundary in each of its chunks for this purpose. Frames written with
+ * {@link #writeFence(byte[], int, int)}, the PINGs whose PONGs confirm the data before them, stay
+ * in the data lane, and a control frame written with {@code behindFences} does not overtake a
+ * fence that has not been written yet. This keeps PINGs on the wire in the order they were
+ * written.
+ *
+ * <p>When a high watermark is configured, the buffer reports crossing it and falling back below the
+ * low watermark to a {@link WatermarkListener}, and publishers can wait for the buffer to drain.
+ * With drop-oldest enabled, each published frame is indexed by subject, in an open-addressing table
+ * that chains the frames on each subject through the frame index, so indexing a frame allocates
+ * nothing. A new frame published above the high watermark then drops the oldest queued frame on
+ * the same subject that has not started draining. A dropped frame published with
+ * {@link Connection#publishAsync(String, byte[])} fails the fence covering it.
+ *
+ * <p>Writes never touch the socket, since writers hold the connection lock. Once the buffered byte
+ * count reaches the write-through limit, {@link #needsWriteThrough()} tells publishers to drain the
+ * buffer on their own thread before they take the lock, as a plain buffered stream would.
+ */
+class OutboundBuffer extends OutputStream {
+    static final int CHUNK_SIZE = 64 * 1024;
+    // Chunks kept for reuse when a queue is reset.
+    static final int RETAINED_CHUNKS = 4;
+    // Without a high watermark, publishers drain the buffer themselves beyond this many bytes, as a
+    // plain buffered stream would.
+    static final long DEFAULT_WRITE_THROUGH_LIMIT = CHUNK_SIZE;
+
+    /**
+     * Receives watermark transitions. Called with the buffer's monitor held; implementations must
+     * not block.
+     */
+    interface WatermarkListener {
+        void onHighWatermark();
+
+        void onLowWatermark();
+    }
+
+    private final OutputStream out;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final boolean dropOldest;
+    private final WatermarkListener listener;
+    private final long writeThroughLimit;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Guarded by this.
+    private FrameQueue active = new FrameQueue();
+    private FrameQueue spare = new FrameQueue();
+    private FrameQueue control = new FrameQueue();
+    private FrameQueue spareControl = new FrameQueue();
+    private long buffered;
+    private long written;
+    private long dropped;
+    // Whether a data frame is being written.
+    private boolean inFrame;
+    // Fences not yet written to the socket.
+    private int fences;
+    private int openFrame = -1;
+    private byte[] openSubject;
+    private final SubjectIndex bySubject;
+
+    private volatile boolean aboveHighWatermark;
+    private volatile boolean aboveWriteThroughLimit;
+    private volatile boolean controlPending;
+
+    /**
+     * Creates an outbound buffer with no watermarks.
+     *
+     * @param out the socket stream to drain to
+     */
+    OutboundBuffer(OutputStream out) {
+        this(out, 0, 0, false, null);
+    }
+
+    /**
+     * Creates an outbound buffer.
+     *
+     * @param out the socket stream to drain to
+     * @param highWatermark the buffered byte count at which the buffer is considered full, or 0 for
+     *        none
+     * @param lowWatermark the buffered byte count at or below which it is no longer full
+     * @param dropOldest whether to drop the oldest queued frame on the same subject when a frame
+     *        is published above the high watermark
+     * @param listener the watermark listener, or {@code null}
+     */
+    OutboundBuffer(OutputStream out, long highWatermark, long lowWatermark, boolean dropOldest,
+            WatermarkListener listener) {
+        this.out = out;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.dropOldest = dropOldest && highWatermark > 0;
+        this.listener = listener;
+        this.writeThroughLimit =
+                highWatermark > 0 ? 2 * highWatermark : DEFAULT_WRITE_THROUGH_LIMIT;
+        this.bySubject = this.dropOldest ? new SubjectIndex() : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        append(buf, off, len);
+    }
+
+    /**
+     * Writes a control frame. Unless {@code behindFences} is set and a fence is queued, the frame
+     * is written to the socket ahead of all data frames not yet being written.
+     *
+     * @param buf the frame
+     * @param off the offset of the frame in {@code buf}
+     * @param len the length of the frame
+     * @param behindFences whether the frame must stay behind queued fences
+     */
+    synchronized void writeControl(byte[] buf, int off, int len, boolean behindFences) {
+        if (behindFences && fences > 0) {
+            append(buf, off, len);
+        } else {
+            append(control, buf, off, len);
+            controlPending = true;
+        }
+    }
+
+    /**
+     * Writes a fence: a frame in the data lane that control frames written with
+     * {@code behindFences} must not overtake.
+     *
+     * @param buf the frame
+     * @param off the offset of the frame in {@code buf}
+     * @param len the length of the frame
+     */
+    synchronized void writeFence(byte[] buf, int off, int len) {
+        fences++;
+        active.addFence();
+        append(buf, off, len);
+    }
+
+    private synchronized void append(byte[] buf, int off, int len) {
+        append(active, buf, off, len);
+        if (!inFrame) {
+            active.markBoundary();
+        }
+    }
+
+    // Assumes the monitor is held.
+    private void append(FrameQueue queue, byte[] buf, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+        queue.append(buf, off, len);
+        buffered += len;
+        written += len;
+        if (highWatermark > 0 && !aboveHighWatermark && buffered >= highWatermark) {
+            aboveHighWatermark = true;
+            if (listener != null) {
+                listener.onHighWatermark();
+            }
+        }
+        if (buffered >= writeThroughLimit) {
+            aboveWriteThroughLimit = true;
+        }
+    }
+
+    /**
+     * Starts a frame. Bytes written until {@link #endFrame()} form one frame, which control frames
+     * do not split.
+     *
+     * @param subject the subject of a published frame, or {@code null} for a frame that is never
+     *        dropped
+     */
+    synchronized void beginFrame(byte[] subject) {
+        beginFrame(subject, null);
+    }
+
+    /**
+     * Starts a frame published with {@link Connection#publishAsync(String, byte[])}.
+     *
+     * @param subject the subject of the published frame
+     * @param fence the fence covering the frame, which is failed if the frame is dropped, or
+     *        {@code null}
+     */
+    synchronized void beginFrame(byte[] subject, PublishFence fence) {
+        inFrame = true;
+        if (dropOldest && subject != null) {
+            openFrame = active.addFrame(fence);
+            openSubject = subject;
+        }
+    }
+
+    /**
+     * Ends the current frame, applying drop-oldest if enabled.
+     */
+    synchronized void endFrame() {
+        inFrame = false;
+        active.markBoundary();
+        if (openFrame < 0) {
+            return;
+        }
+        active.endFrame();
+        if (openSubject != null) {
+            int slot = bySubject.slot(openSubject);
+            if (aboveHighWatermark) {
+                int oldest = bySubject.oldest[slot];
+                if (oldest >= 0) {
+                    bySubject.oldest[slot] = active.next(oldest);
+                    // The PONG to the frame's fence can no longer confirm it.
+                    PublishFence lost = active.fence(oldest);
+                    if (lost != null) {
+                        lost.lose();
+                    }
+                    buffered -= active.drop(oldest);
+                    dropped++;
+                    checkLowWatermark();
+                }
+            }
+            if (bySubject.oldest[slot] < 0) {
+                bySubject.oldest[slot] = openFrame;
+            } else {
+                active.setNext(bySubject.newest[slot], openFrame);
+            }
+            bySubject.newest[slot] = openFrame;
+        }
+        openFrame = -1;
+        openSubject = null;
+    }
+
+    /**
+     * Writes all queued frames to the socket stream and flushes it, with control frames written
+     * ahead of data frames at frame boundaries. Concurrent calls are serialized, and frames in each
+     * lane are written in the order they were queued.
+     *
+     * @throws IOException if the socket stream fails; the frames being written are discarded
+     */
+    @Override
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            FrameQueue batch;
+            boolean split;
+            synchronized (this) {
+                batch = active;
+                active = spare;
+                spare = null;
+                if (bySubject != null) {
+                    bySubject.clear();
+                }
+                // A frame being written right now continues in the new queue, which is drained
+                // after this batch. Once its head has been drained it can no longer be dropped.
+                openFrame = -1;
+                openSubject = null;
+                split = inFrame && batch.endsInFrame();
+                if (split) {
+                    active.continueFrame();
+                }
+            }
+            try {
+                batch.writeTo(out, this);
+                if (!split) {
+                    drainControl();
+                }
+                out.flush();
+            } finally {
+                long bytes = batch.liveBytes();
+                int batchFences = batch.fences();
+                batch.reset();
+                synchronized (this) {
+                    spare = batch;
+                    fences -= batchFences;
+                    buffered -= bytes;
+                    checkLowWatermark();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Writes the waiting control frames. Called at data frame boundaries with the write lock held.
+    void drainControl() throws IOException {
+        if (!controlPending) {
+            return;
+        }
+        FrameQueue ctl;
+        synchronized (this) {
+            controlPending = false;
+            ctl = control;
+            control = spareControl;
+            spareControl = null;
+        }
+        try {
+            ctl.writeTo(out, null);
+        } finally {
+            long bytes = ctl.liveBytes();
+            ctl.reset();
+            synchronized (this) {
+                spareControl = ctl;
+                buffered -= bytes;
+                checkLowWatermark();
+            }
+        }
+    }
+
+    /**
+     * Waits until the buffer is no longer above its high watermark.
+     *
+     * @param nanos the maximum time to wait, in nanoseconds
+     * @return {@code true} if the buffer is below the high watermark
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized boolean awaitBelowHighWatermark(long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        while (aboveHighWatermark) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            long millis = remaining / 1000000L;
+            wait(millis, (int) (remaining % 1000000L));
+        }
+        return true;
+    }
+
+    // Called whenever the buffered byte count drops. Assumes the monitor is held.
+    private void checkLowWatermark() {
+        if (buffered < writeThroughLimit) {
+            aboveWriteThroughLimit = false;
+        }
+        if (aboveHighWatermark && buffered <= lowWatermark) {
+            aboveHighWatermark = false;
+            notifyAll();
+            if (listener != null) {
+                listener.onLowWatermark();
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the buffered byte count has crossed the high watermark and has not
+     *         yet fallen to the low watermark.
+     */
+    boolean isAboveHighWatermark() {
+        return aboveHighWatermark;
+    }
+
+    /**
+     * @return {@code true} if the buffered byte count has reached the write-through limit, twice
+     *         the high watermark or, without one, {@link #DEFAULT_WRITE_THROUGH_LIMIT}. Nobody is
+     *         keeping up with the buffer then, and a publisher should {@link #flush()} it before
+     *         taking the connection lock.
+     */
+    boolean needsWriteThrough() {
+        return aboveWriteThroughLimit;
+    }
+
+    /**
+     * @return the number of bytes queued or being written to the socket.
+     */
+    synchronized long getBufferedBytes() {
+        return buffered;
+    }
+
+    /**
+     * @return the number of bytes ever written to this buffer. The count only grows, so two reads
+     *         that return the same value bracket a period in which nothing was written.
+     */
+    synchronized long getWrittenBytes() {
+        return written;
+    }
+
+    /**
+     * @return the number of frames dropped by drop-oldest.
+     */
+    synchronized long getDroppedFrames() {
+        return dropped;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * An open-addressing table from subject to the oldest and newest queued frames on it, or -1.
+     * The frames in between are chained through {@link FrameQueue#next(int)}. Subjects are compared
+     * by content, and the table grows only when it is half full, so indexing a frame allocates
+     * nothing once the table has grown to the number of subjects in use.
+     */
+    static final class SubjectIndex {
+        private static final int INITIAL_CAPACITY = 64;
+
+        private byte[][] keys = new byte[INITIAL_CAPACITY][];
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        int[] oldest = new int[INITIAL_CAPACITY];
+        int[] newest = new int[INITIAL_CAPACITY];
+        private int size;
+
+        // Returns the slot of subject, adding it with no frames if it is absent.
+        int slot(byte[] subject) {
+            int hash = Arrays.hashCode(subject);
+            int slot = find(subject, hash);
+            if (keys[slot] != null) {
+                return slot;
+            }
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                slot = find(subject, hash);
+            }
+            keys[slot] = subject;
+            hashes[slot] = hash;
+            oldest[slot] = -1;
+            newest[slot] = -1;
+            size++;
+            return slot;
+        }
+
+        // Returns the slot holding subject, or the empty slot where it belongs.
+        private int find(byte[] subject, int hash) {
+            int mask = keys.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null
+                    && (hashes[slot] != hash || !Arrays.equals(keys[slot], subject))) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            int[] oldOldest = oldest;
+            int[] oldNewest = newest;
+            int cap = oldKeys.length * 2;
+            keys = new byte[cap][];
+            hashes = new int[cap];
+            oldest = new int[cap];
+            newest = new int[cap];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = find(oldKeys[i], oldHashes[i]);
+                    keys[slot] = oldKeys[i];
+                    hashes[slot] = oldHashes[i];
+                    oldest[slot] = oldOldest[i];
+                    newest[slot] = oldNewest[i];
+                }
+            }
+        }
+
+        void clear() {
+            if (size == 0) {
+                return;
+            }
+            if (keys.length > 16 * INITIAL_CAPACITY) {
+                // Do not keep clearing a table sized for a burst of subjects.
+                keys = new byte[INITIAL_CAPACITY][];
+                hashes = new int[INITIAL_CAPACITY];
+                oldest = new int[INITIAL_CAPACITY];
+                newest = new int[INITIAL_CAPACITY];
+            } else {
+                Arrays.fill(keys, null);
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Bytes stored back to back in reusable fixed-size chunks, with an index of the droppable
+     * frames among them and the first frame boundary in each chunk. Dropped frames stay in place
+     * and are skipped when written.
+     */
+    static final class FrameQueue {
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private long size;
+        private long droppedBytes;
+        private int fenceCount;
+
+        // The first frame boundary in each chunk, or -1, and the last boundary in the queue.
+        private long[] boundary = newBoundaries(RETAINED_CHUNKS);
+        private long lastBoundary;
+
+        private int frameCount;
+        private long[] frameStart = new long[64];
+        private int[] frameLength = new int[64];
+        // The next frame on the same subject, or -1; maintained by the subject index.
+        private int[] frameNext = new int[64];
+        private boolean[] frameDropped = new boolean[64];
+        private PublishFence[] frameFence = new PublishFence[64];
+        private boolean frameOpen;
+
+        int addFrame() {
+            return addFrame(null);
+        }
+
+        int addFrame(PublishFence fence) {
+            if (frameCount == frameStart.length) {
+                int cap = frameCount * 2;
+                frameStart = Arrays.copyOf(frameStart, cap);
+                frameLength = Arrays.copyOf(frameLength, cap);
+                frameNext = Arrays.copyOf(frameNext, cap);
+                frameDropped = Arrays.copyOf(frameDropped, cap);
+                frameFence = Arrays.copyOf(frameFence, cap);
+            }
+            frameStart[frameCount] = size;
+            frameLength[frameCount] = 0;
+            frameNext[frameCount] = -1;
+            frameDropped[frameCount] = false;
+            frameFence[frameCount] = fence;
+            frameOpen = true;
+            return frameCount++;
+        }
+
+        int next(int frame) {
+            return frameNext[frame];
+        }
+
+        void setNext(int frame, int next) {
+            frameNext[frame] = next;
+        }
+
+        PublishFence fence(int frame) {
+            return (frame < frameCount) ? frameFence[frame] : null;
+        }
+
+        void endFrame() {
+            frameOpen = false;
+        }
+
+        private static long[] newBoundaries(int n) {
+            long[] b = new long[n];
+            Arrays.fill(b, -1);
+            b[0] = 0;
+            return b;
+        }
+
+        // Records that a frame ends at the current size.
+        void markBoundary() {
+            int idx = (int) (size / CHUNK_SIZE);
+            if (idx >= boundary.length) {
+                int len = boundary.length;
+                boundary = Arrays.copyOf(boundary, Math.max(idx + 1, len * 2));
+                Arrays.fill(boundary, len, boundary.length, -1);
+            }
+            if (boundary[idx] < 0) {
+                boundary[idx] = size;
+            }
+            lastBoundary = size;
+        }
+
+        // Marks the queue, which must be empty, as starting with the rest of a frame begun in the
+        // previous queue.
+        void continueFrame() {
+            boundary[0] = -1;
+            lastBoundary = -1;
+        }
+
+        boolean endsInFrame() {
+            return lastBoundary != size;
+        }
+
+        void addFence() {
+            fenceCount++;
+        }
+
+        int fences() {
+            return fenceCount;
+        }
+
+        void append(byte[] buf, int off, int len) {
+            if (frameOpen) {
+                frameLength[frameCount - 1] += len;
+            }
+            while (len > 0) {
+                int idx = (int) (size / CHUNK_SIZE);
+                int pos = (int) (size % CHUNK_SIZE);
+                if (idx == chunks.size()) {
+                    chunks.add(new byte[CHUNK_SIZE]);
+                }
+                int n = Math.min(len, CHUNK_SIZE - pos);
+                System.arraycopy(buf, off, chunks.get(idx), pos, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Returns the number of bytes no longer live.
+        long drop(int frame) {
+            if (frame >= frameCount || frameDropped[frame]) {
+                return 0;
+            }
+            frameDropped[frame] = true;
+            droppedBytes += frameLength[frame];
+            return frameLength[frame];
+        }
+
+        long liveBytes() {
+            return size - droppedBytes;
+        }
+
+        // Writes the live bytes of the queue. If owner is not null, its waiting control frames are
+        // written at the next known frame boundary after each chunk.
+        void writeTo(OutputStream out, OutboundBuffer owner) throws IOException {
+            long runStart = 0;
+            if (droppedBytes > 0) {
+                for (int i = 0; i < frameCount; i++) {
+                    if (frameDropped[i]) {
+                        writeRange(out, runStart, frameStart[i], owner);
+                        // The start of a dropped frame is a boundary.
+                        if (owner != null) {
+                            owner.drainControl();
+                        }
+                        runStart = frameStart[i] + frameLength[i];
+                    }
+                }
+            }
+            writeRange(out, runStart, size, owner);
+        }
+
+        private void writeRange(OutputStream out, long start, long end, OutboundBuffer owner)
+                throws IOException {
+            long pos = start;
+            while (pos < end) {
+                long stop = Math.min(end, (pos / CHUNK_SIZE + 1) * CHUNK_SIZE);
+                if (owner != null && owner.controlPending) {
+                    long next = nextBoundary(pos, end);
+                    if (next >= 0) {
+                        write(out, pos, next);
+                        owner.drainControl();
+                        pos = next;
+                        continue;
+                    }
+                }
+                write(out, pos, stop);
+                pos = stop;
+            }
+        }
+
+        // Returns the first recorded boundary in [pos, end), or -1.
+        private long nextBoundary(long pos, long end) {
+            int last = (int) Math.min((end - 1) / CHUNK_SIZE, boundary.length - 1);
+            for (int idx = (int) (pos / CHUNK_SIZE); idx <= last; idx++) {
+                long b = boundary[idx];
+                if (b >= end) {
+                    break;
+                }
+                if (b >= pos) {
+                    return b;
+                }
+            }
+            return -1;
+        }
+
+        private void write(OutputStream out, long start, long end) throws IOException {
+            while (start < end) {
+                int idx = (int) (start / CHUNK_SIZE);
+                int pos = (int) (start % CHUNK_SIZE);
+                int n = (int) Math.min(end - start, CHUNK_SIZE - pos);
+                out.write(chunks.get(idx), pos, n);
+                start += n;
+            }
+        }
+
+        void reset() {
+            while (chunks.size() > RETAINED_CHUNKS) {
+                chunks.remove(chunks.size() - 1);
+            }
+            size = 0;
+            droppedBytes = 0;
+            fenceCount = 0;
+            if (boundary.length > RETAINED_CHUNKS) {
+                boundary = newBoundaries(RETAINED_CHUNKS);
+            } else {
+                Arrays.fill(boundary, -1);
+                boundary[0] = 0;
+            }
+            lastBoundary = 0;
+            Arrays.fill(frameFence, 0, frameCount, null);
+            frameCount = 0;
+            frameOpen = false;
+            if (frameStart.length > 4096) {
+                frameStart = new long[64];
+                frameLength = new int[64];
+                frameNext = new int[64];
+                frameDropped = new boolean[64];
+                frameFence = new PublishFence[64];
+            }
+        }
+    }
+}
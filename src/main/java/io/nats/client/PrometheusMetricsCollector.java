@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import io.nats.client.Constants.ConnState;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link MetricsCollector} that keeps counters in memory and exposes them in the Prometheus
+ * text exposition format, either from {@link #scrape()} or from an HTTP endpoint started with
+ * {@link #start(InetSocketAddress)}.
+ *
+ * <p>All counters are labeled with the connection name set with
+ * {@link ConnectionFactory#setConnectionName(String)} (or {@code ""} if none), so a collector
+ * can be shared by several connections:
+ *
+ * <ul>
+ * <li>{@code nats_connection_events_total{connection, state}}</li>
+ * <li>{@code nats_reconnects_total{connection}}</li>
+ * <li>{@code nats_flushes_total{connection}}</li>
+ * <li>{@code nats_slow_consumer_dropped_total{connection, subject}}</li>
+ * <li>{@code nats_slow_consumer_events_total{connection, subject}} and
+ * {@code nats_slow_consumer_blocked_seconds_total{connection, subject}}</li>
+ * <li>{@code nats_received_messages_total{connection, subject}} and
+ * {@code nats_received_bytes_total{connection, subject}}</li>
+ * <li>{@code nats_published_messages_total{connection, pattern}} and
+ * {@code nats_published_bytes_total{connection, pattern}}</li>
+ * <li>{@code nats_stalls_total{connection, component}}</li>
+ * </ul>
+ *
+ * <p>Each subscription subject is a label value, so subscribing on many distinct subjects creates
+ * as many series. Reply inboxes share the single subject label {@code "_INBOX.>"}.
+ */
+public class PrometheusMetricsCollector implements MetricsCollector {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String[][] FAMILIES = {
+        {"nats_connection_events_total", "Connection state changes."},
+        {"nats_reconnects_total", "Reconnections to a server."},
+        {"nats_flushes_total", "Flushes of the outbound buffer to the socket."},
+        {"nats_slow_consumer_dropped_total", "Messages dropped by slow consumers."},
+        {"nats_slow_consumer_events_total", "Messages that triggered a slow consumer policy."},
+        {"nats_slow_consumer_blocked_seconds_total",
+            "Time the reader spent blocked by slow consumers."},
+        {"nats_received_messages_total", "Messages received by subscriptions."},
+        {"nats_received_bytes_total", "Payload bytes received by subscriptions."},
+        {"nats_published_messages_total", "Messages published."},
+        {"nats_published_bytes_total", "Payload bytes published."},
+        {"nats_stalls_total", "Stalls of connection threads."}};
+
+    // Family name to series (rendered labels) to value.
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> families =
+            new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+
+    private HttpServer server;
+
+    /**
+     * Creates a collector with no HTTP endpoint.
+     */
+    public PrometheusMetricsCollector() {
+        for (String[] family : FAMILIES) {
+            families.put(family[0], new ConcurrentHashMap<String, AtomicLong>());
+        }
+    }
+
+    @Override
+    public void connectionEvent(Connection conn, ConnState state) {
+        add("nats_connection_events_total", labels(conn, "state", state.toString()), 1);
+    }
+
+    @Override
+    public void reconnected(Connection conn) {
+        add("nats_reconnects_total", labels(conn, null, null), 1);
+    }
+
+    @Override
+    public void flushed(Connection conn, long count) {
+        add("nats_flushes_total", labels(conn, null, null), count);
+    }
+
+    @Override
+    public void slowConsumerDropped(Connection conn, String subject, long count) {
+        add("nats_slow_consumer_dropped_total", labels(conn, "subject", subject), count);
+    }
+
+    @Override
+    public void slowConsumerEvents(Connection conn, String subject, long events,
+            long blockedNanos) {
+        String labels = labels(conn, "subject", subject);
+        add("nats_slow_consumer_events_total", labels, events);
+        add("nats_slow_consumer_blocked_seconds_total", labels, blockedNanos);
+    }
+
+    @Override
+    public void received(Connection conn, String subject, long msgs, long bytes) {
+        String labels = labels(conn, "subject", subject);
+        add("nats_received_messages_total", labels, msgs);
+        add("nats_received_bytes_total", labels, bytes);
+    }
+
+    @Override
+    public void published(Connection conn, String pattern, long msgs, long bytes) {
+        String labels = labels(conn, "pattern", pattern);
+        add("nats_published_messages_total", labels, msgs);
+        add("nats_published_bytes_total", labels, bytes);
+    }
+
+    @Override
+    public void stalled(Connection conn, String component, long nanos) {
+        add("nats_stalls_total", labels(conn, "component", component), 1);
+    }
+
+    private void add(String family, String labels, long delta) {
+        ConcurrentMap<String, AtomicLong> series = families.get(family);
+        AtomicLong value = series.get(labels);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = series.putIfAbsent(labels, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    private static String labels(Connection conn, String name, String value) {
+        StringBuilder sb = new StringBuilder("{connection=\"");
+        String connName = (conn instanceof ConnectionImpl)
+                ? ((ConnectionImpl) conn).getOptions().getConnectionName() : null;
+        escape(sb, connName == null ? "" : connName);
+        sb.append('"');
+        if (name != null) {
+            sb.append(',').append(name).append("=\"");
+            escape(sb, value);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    sb.append(ch);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the counters in the Prometheus text exposition format, version 0.0.4. Families
+     * without series are omitted, and series are sorted by their labels.
+     *
+     * @return the current value of all counters
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (String[] family : FAMILIES) {
+            Map<String, AtomicLong> series =
+                    new TreeMap<String, AtomicLong>(families.get(family[0]));
+            if (series.isEmpty()) {
+                continue;
+            }
+            sb.append("# HELP ").append(family[0]).append(' ').append(family[1]).append('\n');
+            sb.append("# TYPE ").append(family[0]).append(" counter\n");
+            for (Map.Entry<String, AtomicLong> entry : series.entrySet()) {
+                sb.append(family[0]).append(entry.getKey()).append(' ');
+                long value = entry.getValue().get();
+                if (family[0].endsWith("_seconds_total")) {
+                    // Kept in nanoseconds.
+                    sb.append(value / 1e9);
+                } else {
+                    sb.append(value);
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts an HTTP server on {@code address} that serves {@link #scrape()} at {@code /metrics}.
+     *
+     * @param address the address to listen on; port 0 picks a free port
+     * @throws IOException if the server cannot be bound
+     * @throws IllegalStateException if the server has already been started
+     */
+    public synchronized void start(InetSocketAddress address) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("nats: metrics endpoint already started");
+        }
+        HttpServer srv = HttpServer.create(address, 0);
+        srv.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = scrape().getBytes(UTF8);
+                    exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        srv.start();
+        server = srv;
+    }
+
+    /**
+     * @return the port of the HTTP endpoint, or -1 if it is not started.
+     */
+    public synchronized int getPort() {
+        return (server == null) ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Stops the HTTP endpoint, if started. The counters are kept.
+     */
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The {@code Future} returned by {@link Connection#publishAsync(String, byte[])} and
+ * {@link Connection#flushAsync()}.
+ *
+ * <p>A fence waits for the PONG to one PING. The connection numbers its PINGs, and when it writes
+ * the PING for a fence it records that PING's sequence number in the fence; the PONG with the same
+ * sequence number confirms that the server has processed everything written before the PING. A
+ * publish fence covers every publish made while it was open, so one fence, and therefore one round
+ * trip, is shared by all publishes made between two runs of the flusher. Flush calls that find a
+ * PING already outstanding, with nothing written after it, share that PING's fence. A fence that
+ * covers a publish dropped before reaching the server, for example an expired frame of the
+ * reconnect buffer, fails with {@link Constants#ERR_PUBLISH_NOT_CONFIRMED} when its PONG arrives.
+ */
+class PublishFence implements Future<Void> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Exception error;
+    private int count;
+    // Set if a publish covered by this fence was dropped before reaching the server; guarded by
+    // the connection lock.
+    private boolean lost;
+
+    // The sequence number of this fence's PING; guarded by the connection lock.
+    long seq;
+
+    // Assumes the connection lock is held.
+    void add() {
+        count++;
+    }
+
+    /**
+     * @return the number of publishes covered by this fence.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Records that a publish covered by this fence was dropped, so that the fence fails even if
+     * its PONG arrives.
+     */
+    // Assumes the connection lock is held.
+    void lose() {
+        lost = true;
+    }
+
+    void complete(boolean confirmed) {
+        if (confirmed && !lost) {
+            complete((Exception) null);
+        } else {
+            complete(new IOException(Constants.ERR_PUBLISH_NOT_CONFIRMED));
+        }
+    }
+
+    void complete(Exception err) {
+        if (done.getCount() == 0) {
+            return;
+        }
+        this.error = err;
+        done.countDown();
+    }
+
+    /**
+     * Fences cannot be cancelled, since the messages they cover have already been written.
+     *
+     * @return {@code false}
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException(Constants.ERR_TIMEOUT);
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (error != null) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}.
+     */
+    public String toString() {
+        return String.format("{count=%d done=%b error=%s}", count, isDone(), error);
+    }
+}
@@ -0,0 +1,509 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The outbound buffer used while a connection is reconnecting.
+ *
+ * <p>Writes are appended to a list of fixed-size heap segments, so growth never copies what has
+ * already been buffered, and {@link #writeTo(OutputStream)} replays the segments in place. Once the
+ * heap tier holds {@code heapLimit} bytes, and if a spill size has been configured, further writes
+ * go to regions of a memory-mapped temporary file. The file is created only when it is first
+ * needed and is deleted by {@link #close()}. If the file cannot be created or mapped (for
+ * example, the disk is full), spilling stops and the capacity shrinks to the heap limit plus
+ * what was already mapped, so a spill failure never turns into heap growth.
+ *
+ * <p>Bytes written between {@link #beginFrame(BufferedPublishPolicy.Priority, long)} and
+ * {@link #endFrame()} form a tagged frame with a priority and an optional expiry. All other bytes
+ * (PING, SUB and UNSUB) belong to untagged frames, which never expire and act as barriers: on
+ * replay, expired frames are dropped and the remaining tagged frames between two untagged frames
+ * are written in priority order, preserving their original order within each priority, so no
+ * publish is moved across a PING or a subscription change. If no frame was tagged with a priority
+ * other than {@link BufferedPublishPolicy.Priority#NORMAL} or with an expiry, the buffer is
+ * replayed exactly as written. The connection tags publishes only when buffered publish policies
+ * are configured, and no frame index is kept until the first tag, so without policies the buffer
+ * costs nothing beyond its bytes. The index is kept in fixed-size chunks and its size counts
+ * against the heap limit.
+ *
+ * <p>The publish fences whose PINGs were written to this buffer are registered with
+ * {@link #markFence(PublishFence)}. When replay drops an expired frame, the fence that covers it,
+ * the first one marked after it, is failed.
+ *
+ * <p>Writes are never refused, because a protocol frame is written in several parts and must not
+ * be truncated. Callers enforce the limit by checking {@link #isFull()} before writing a frame.
+ * This class is not thread-safe; the connection lock guards it.
+ */
+class ReconnectBuffer extends OutputStream {
+    static final Logger logger = LoggerFactory.getLogger(ReconnectBuffer.class);
+
+    static final int SEGMENT_SIZE = 64 * 1024;
+    static final int SPILL_REGION_SIZE = 64 * 1024 * 1024;
+    static final int FRAME_CHUNK = 4096;
+
+    private static final BufferedPublishPolicy.Priority[] PRIORITIES =
+            BufferedPublishPolicy.Priority.values();
+    private static final byte NORMAL = (byte) BufferedPublishPolicy.Priority.NORMAL.ordinal();
+    // The priority recorded for untagged frames.
+    private static final byte BARRIER = -1;
+
+    private final long heapLimit;
+    private final long spillLimit;
+    private final File spillDir;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private long[] segmentStart = new long[16];
+    private Segment tail;
+    private long heapBytes;
+    private long spillBytes;
+    private long spillMapped;
+    // Set once mapping the spill file has failed; no further mapping is attempted.
+    private boolean spillFailed;
+
+    // Frame index, one entry per frame in write order, in fixed-size chunks so that it grows
+    // without copying. Its size counts against the heap limit.
+    private final List<FrameChunk> frameChunks = new ArrayList<FrameChunk>();
+    private int frameCount;
+    private long indexBytes;
+    private int openFrame = -1;
+    private boolean tagged;
+    private long expired;
+
+    // Fences marked in this buffer, in order, and the buffer size when each was marked.
+    private final List<PublishFence> fences = new ArrayList<PublishFence>();
+    private long[] fenceAt = new long[16];
+
+    private File spillFile;
+    private RandomAccessFile spillRaf;
+    private FileChannel spillChannel;
+
+    /**
+     * Creates a heap-only buffer.
+     *
+     * @param heapLimit the number of bytes that may be buffered
+     */
+    ReconnectBuffer(long heapLimit) {
+        this(heapLimit, 0, null);
+    }
+
+    /**
+     * Creates a buffer with an optional memory-mapped spill tier.
+     *
+     * @param heapLimit the number of bytes that may be buffered on the heap
+     * @param spillLimit the number of bytes that may be spilled to disk, or 0 to disable spilling
+     * @param spillDir the directory for the spill file, or {@code null} for the default temporary
+     *        directory
+     */
+    ReconnectBuffer(long heapLimit, long spillLimit, File spillDir) {
+        this.heapLimit = heapLimit;
+        this.spillLimit = Math.max(0, spillLimit);
+        this.spillDir = spillDir;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (tail == null || tail.remaining() == 0) {
+            tail = nextSegment();
+        }
+        tail.put((byte) b);
+        account(1);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (tail == null || tail.remaining() == 0) {
+                tail = nextSegment();
+            }
+            int n = Math.min(len, tail.remaining());
+            tail.put(buf, off, n);
+            account(n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Starts a tagged frame. Bytes written until {@link #endFrame()} are replayed, or dropped, as a
+     * unit.
+     *
+     * @param priority the replay priority of the frame
+     * @param expires the {@link System#nanoTime()} after which the frame is dropped, or 0 if it
+     *        never expires
+     */
+    void beginFrame(BufferedPublishPolicy.Priority priority, long expires) {
+        if (frameCount == 0 && size() > 0) {
+            // The untagged bytes written before the first tag become the first barrier frame.
+            int lead = addFrame(BARRIER, 0);
+            frameChunks.get(0).start[lead] = 0;
+            frameChunks.get(0).length[lead] = size();
+        }
+        openFrame = addFrame((byte) priority.ordinal(), expires);
+        if (priority.ordinal() != NORMAL || expires != 0) {
+            tagged = true;
+        }
+    }
+
+    /**
+     * Ends the current tagged frame.
+     */
+    void endFrame() {
+        openFrame = -1;
+    }
+
+    /**
+     * Marks the current end of the buffer as the position of {@code fence}'s PING, or, for a fence
+     * that is still open, as the end of the publishes it covers. The fence is failed if replay
+     * drops an expired frame written after the previous mark and before this one.
+     *
+     * @param fence the fence covering the frames written since the previous mark
+     */
+    void markFence(PublishFence fence) {
+        if (fences.size() == fenceAt.length) {
+            fenceAt = Arrays.copyOf(fenceAt, fenceAt.length * 2);
+        }
+        fenceAt[fences.size()] = size();
+        fences.add(fence);
+    }
+
+    /**
+     * Writes the buffered frames to {@code out}. Heap segments are written directly from their
+     * backing arrays.
+     *
+     * @param out the stream to replay to
+     * @throws IOException if {@code out} fails
+     */
+    void writeTo(OutputStream out) throws IOException {
+        byte[] scratch = null;
+        if (!tagged) {
+            for (Segment seg : segments) {
+                if (seg instanceof SpillSegment && scratch == null) {
+                    scratch = new byte[SEGMENT_SIZE];
+                }
+                seg.writeTo(out, 0, seg.size(), scratch);
+            }
+            return;
+        }
+        scratch = new byte[SEGMENT_SIZE];
+        long now = System.nanoTime();
+        int fence = 0;
+        int run = 0;
+        while (run < frameCount) {
+            // The tagged frames up to the next barrier are reordered among themselves only.
+            int barrier = run;
+            while (barrier < frameCount && priority(barrier) != BARRIER) {
+                barrier++;
+            }
+            for (BufferedPublishPolicy.Priority priority : PRIORITIES) {
+                byte prio = (byte) priority.ordinal();
+                for (int i = run; i < barrier; i++) {
+                    FrameChunk chunk = frameChunks.get(i / FRAME_CHUNK);
+                    int j = i % FRAME_CHUNK;
+                    if (chunk.priority[j] != prio) {
+                        continue;
+                    }
+                    if (chunk.expires[j] != 0 && now - chunk.expires[j] > 0) {
+                        expired++;
+                        while (fence < fences.size() && fenceAt[fence] <= chunk.start[j]) {
+                            fence++;
+                        }
+                        if (fence < fences.size()) {
+                            fences.get(fence).lose();
+                        }
+                        continue;
+                    }
+                    writeRange(out, chunk.start[j], chunk.length[j], scratch);
+                }
+            }
+            if (barrier < frameCount) {
+                FrameChunk chunk = frameChunks.get(barrier / FRAME_CHUNK);
+                int j = barrier % FRAME_CHUNK;
+                writeRange(out, chunk.start[j], chunk.length[j], scratch);
+            }
+            run = barrier + 1;
+        }
+        if (expired > 0) {
+            logger.debug("nats: dropped {} expired frames from reconnect buffer", expired);
+        }
+    }
+
+    /**
+     * @return the number of bytes buffered.
+     */
+    long size() {
+        return heapBytes + spillBytes;
+    }
+
+    /**
+     * @return the number of bytes buffered in the spill file.
+     */
+    long spilledSize() {
+        return spillBytes;
+    }
+
+    /**
+     * @return the number of frames dropped as expired by {@link #writeTo(OutputStream)}.
+     */
+    long expiredFrames() {
+        return expired;
+    }
+
+    /**
+     * @return the total number of bytes this buffer accepts before {@link #isFull()}: the heap
+     *         limit plus the spill limit, or plus only the regions mapped before mapping failed.
+     */
+    long capacity() {
+        return heapLimit + (spillFailed ? spillMapped : spillLimit);
+    }
+
+    /**
+     * @return {@code true} if the buffer, including its frame index, has reached its capacity.
+     */
+    boolean isFull() {
+        return size() + indexBytes >= capacity();
+    }
+
+    /**
+     * @return the number of heap bytes used by the frame index.
+     */
+    long indexSize() {
+        return indexBytes;
+    }
+
+    /**
+     * Releases the buffered segments and deletes the spill file, if any. The mapped regions are
+     * no longer referenced afterwards, but the JDK only unmaps them when they are garbage
+     * collected; until then they keep their address space, though not the file name.
+     */
+    @Override
+    public void close() {
+        segments.clear();
+        tail = null;
+        heapBytes = 0;
+        spillBytes = 0;
+        spillMapped = 0;
+        spillFailed = false;
+        frameChunks.clear();
+        frameCount = 0;
+        indexBytes = 0;
+        openFrame = -1;
+        tagged = false;
+        fences.clear();
+        if (spillChannel != null) {
+            try {
+                spillChannel.close();
+                spillRaf.close();
+            } catch (IOException e) {
+                logger.debug("nats: error closing reconnect spill file", e);
+            }
+            spillChannel = null;
+            spillRaf = null;
+        }
+        if (spillFile != null) {
+            if (!spillFile.delete()) {
+                logger.debug("nats: could not delete reconnect spill file {}", spillFile);
+            }
+            spillFile = null;
+        }
+    }
+
+    private void account(int n) {
+        if (openFrame < 0 && frameCount > 0) {
+            // Untagged bytes; a new untagged frame starts here and runs until the next tag. Before
+            // the first tag there is no index at all.
+            openFrame = addFrame(BARRIER, 0);
+        }
+        if (openFrame >= 0) {
+            frameChunks.get(openFrame / FRAME_CHUNK).length[openFrame % FRAME_CHUNK] += n;
+        }
+        if (tail instanceof SpillSegment) {
+            spillBytes += n;
+        } else {
+            heapBytes += n;
+        }
+    }
+
+    private int addFrame(byte priority, long expires) {
+        int j = frameCount % FRAME_CHUNK;
+        if (j == 0) {
+            frameChunks.add(new FrameChunk());
+            indexBytes += FrameChunk.BYTES;
+        }
+        FrameChunk chunk = frameChunks.get(frameCount / FRAME_CHUNK);
+        chunk.start[j] = size();
+        chunk.length[j] = 0;
+        chunk.expires[j] = expires;
+        chunk.priority[j] = priority;
+        return frameCount++;
+    }
+
+    private byte priority(int frame) {
+        return frameChunks.get(frame / FRAME_CHUNK).priority[frame % FRAME_CHUNK];
+    }
+
+    private void writeRange(OutputStream out, long start, long len, byte[] scratch)
+            throws IOException {
+        int idx = Arrays.binarySearch(segmentStart, 0, segments.size(), start);
+        if (idx < 0) {
+            idx = -idx - 2;
+        }
+        long pos = start;
+        long end = start + len;
+        while (pos < end) {
+            Segment seg = segments.get(idx);
+            int off = (int) (pos - segmentStart[idx]);
+            int n = (int) Math.min(seg.size() - off, end - pos);
+            seg.writeTo(out, off, n, scratch);
+            pos += n;
+            idx++;
+        }
+    }
+
+    // Heap segments are allocated past the heap limit only to finish the frame being written,
+    // as callers check isFull() before each frame.
+    private Segment nextSegment() throws IOException {
+        Segment seg = null;
+        if (heapBytes + indexBytes >= heapLimit && spillMapped < spillLimit && !spillFailed) {
+            seg = mapSpillRegion();
+        }
+        if (seg == null) {
+            seg = new HeapSegment(SEGMENT_SIZE);
+        }
+        if (segments.size() == segmentStart.length) {
+            segmentStart = Arrays.copyOf(segmentStart, segmentStart.length * 2);
+        }
+        segmentStart[segments.size()] = size();
+        segments.add(seg);
+        return seg;
+    }
+
+    // Returns null, and disables spilling, if the spill file cannot be created or mapped.
+    private Segment mapSpillRegion() {
+        try {
+            if (spillChannel == null) {
+                spillFile = File.createTempFile("jnats-reconnect-", ".buf", spillDir);
+                spillRaf = new RandomAccessFile(spillFile, "rw");
+                spillChannel = spillRaf.getChannel();
+                logger.debug("nats: spilling reconnect buffer to {}", spillFile);
+            }
+            int regionSize = (int) Math.min(SPILL_REGION_SIZE, spillLimit - spillMapped);
+            MappedByteBuffer region =
+                    spillChannel.map(FileChannel.MapMode.READ_WRITE, spillMapped, regionSize);
+            spillMapped += regionSize;
+            return new SpillSegment(region);
+        } catch (IOException e) {
+            logger.warn("nats: unable to map reconnect spill file, spilling disabled", e);
+            spillFailed = true;
+            return null;
+        }
+    }
+
+    File getSpillFile() {
+        return spillFile;
+    }
+
+    // Parallel arrays for FRAME_CHUNK frames: start offset, length, expiry and priority.
+    static final class FrameChunk {
+        static final long BYTES = FRAME_CHUNK * (8L + 8L + 8L + 1L);
+
+        final long[] start = new long[FRAME_CHUNK];
+        final long[] length = new long[FRAME_CHUNK];
+        final long[] expires = new long[FRAME_CHUNK];
+        final byte[] priority = new byte[FRAME_CHUNK];
+    }
+
+    abstract static class Segment {
+        abstract int size();
+
+        abstract int remaining();
+
+        abstract void put(byte b);
+
+        abstract void put(byte[] buf, int off, int len);
+
+        abstract void writeTo(OutputStream out, int off, int len, byte[] scratch)
+                throws IOException;
+    }
+
+    static final class HeapSegment extends Segment {
+        final byte[] buf;
+        int len;
+
+        HeapSegment(int size) {
+            buf = new byte[size];
+        }
+
+        int size() {
+            return len;
+        }
+
+        int remaining() {
+            return buf.length - len;
+        }
+
+        void put(byte b) {
+            buf[len++] = b;
+        }
+
+        void put(byte[] src, int off, int n) {
+            System.arraycopy(src, off, buf, len, n);
+            len += n;
+        }
+
+        void writeTo(OutputStream out, int off, int n, byte[] scratch) throws IOException {
+            out.write(buf, off, n);
+        }
+    }
+
+    static final class SpillSegment extends Segment {
+        final MappedByteBuffer region;
+
+        SpillSegment(MappedByteBuffer region) {
+            this.region = region;
+        }
+
+        int size() {
+            return region.position();
+        }
+
+        int remaining() {
+            return region.remaining();
+        }
+
+        void put(byte b) {
+            region.put(b);
+        }
+
+        void put(byte[] src, int off, int n) {
+            region.put(src, off, n);
+        }
+
+        void writeTo(OutputStream out, int off, int n, byte[] scratch) throws IOException {
+            ByteBuffer written = region.duplicate();
+            written.limit(off + n);
+            written.position(off);
+            while (written.hasRemaining()) {
+                int chunk = Math.min(scratch.length, written.remaining());
+                written.get(scratch, 0, chunk);
+                out.write(scratch, 0, chunk);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.Constants.ERR_TIMEOUT;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code RequestCoalescer} is an opt-in, single-flight layer over
+ * {@link Connection#request(String, byte[], long, TimeUnit)}.
+ *
+ * <p>Concurrent requests with the same subject and payload share a single request on the wire,
+ * and every caller receives the same reply {@link Message} instance. Callers must therefore treat
+ * the returned message as read-only. A request that arrives after the in-flight request has
+ * completed starts a new one; replies are never cached.
+ *
+ * <p>Only the caller that issues the wire request (the first one) determines its timeout. A
+ * caller that joins an in-flight request waits at most for its own timeout, and fails with the
+ * in-flight request's exception if that request fails.
+ */
+public class RequestCoalescer {
+    private final Connection conn;
+    private final ConcurrentMap<Key, Call> calls = new ConcurrentHashMap<Key, Call>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Creates a {@code RequestCoalescer} that issues requests on {@code conn}.
+     *
+     * @param conn the connection to send requests on
+     */
+    public RequestCoalescer(Connection conn) {
+        if (conn == null) {
+            throw new NullPointerException("nats: connection cannot be null");
+        }
+        this.conn = conn;
+    }
+
+    /**
+     * Publishes a request message to the specified subject, or joins an identical in-flight
+     * request, waiting up to {@code timeout} for a response.
+     *
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @param timeout how long to wait for a response message
+     * @param unit the time unit of {@code timeout}
+     * @return the response message, shared with any coalesced callers
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if {@code timeout} elapses before a message is returned
+     * @see Connection#request(String, byte[], long, TimeUnit)
+     */
+    public Message request(String subject, byte[] data, long timeout, TimeUnit unit)
+            throws TimeoutException, IOException {
+        if (subject == null) {
+            throw new NullPointerException(Constants.ERR_BAD_SUBJECT);
+        }
+        final Key key = new Key(subject, data);
+        final Call call = new Call();
+        Call existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing.await(timeout, unit);
+        }
+
+        requests.incrementAndGet();
+        try {
+            call.msg = conn.request(subject, data, timeout, unit);
+        } catch (TimeoutException | IOException | RuntimeException e) {
+            call.err = e;
+        } finally {
+            calls.remove(key, call);
+            call.done.countDown();
+        }
+        return call.get();
+    }
+
+    /**
+     * Publishes a request message to the specified subject, or joins an identical in-flight
+     * request, waiting up to {@code timeout} msec for a response.
+     *
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @param timeout how long to wait for a response message (in msec)
+     * @return the response message, shared with any coalesced callers
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if {@code timeout} elapses before a message is returned
+     */
+    public Message request(String subject, byte[] data, long timeout)
+            throws TimeoutException, IOException {
+        return request(subject, data, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes a request message to the specified subject, or joins an identical in-flight
+     * request, waiting for a response until one is available.
+     *
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @return the response message, shared with any coalesced callers
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if the in-flight request times out
+     */
+    public Message request(String subject, byte[] data) throws TimeoutException, IOException {
+        return request(subject, data, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of requests that have been sent on the wire.
+     *
+     * @return the number of requests that have been sent on the wire
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of requests that were satisfied by joining an in-flight request.
+     *
+     * @return the number of coalesced requests
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of distinct requests currently in flight.
+     *
+     * @return the number of distinct requests currently in flight
+     */
+    public int getInFlight() {
+        return calls.size();
+    }
+
+    /**
+     * Returns the underlying connection.
+     *
+     * @return the underlying connection
+     */
+    public Connection getConnection() {
+        return conn;
+    }
+
+    // A subject and payload pair. The payload hash is computed once; equality falls back to a
+    // full payload comparison so that hash collisions never share a reply.
+    static final class Key {
+        final String subject;
+        final byte[] data;
+        final int hash;
+
+        Key(String subject, byte[] data) {
+            this.subject = subject;
+            this.data = data;
+            this.hash = 31 * subject.hashCode() + Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && subject.equals(other.subject)
+                    && Arrays.equals(data, other.data);
+        }
+    }
+
+    // A single in-flight request and its outcome.
+    static final class Call {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Message msg;
+        volatile Exception err;
+
+        Message await(long timeout, TimeUnit unit) throws TimeoutException, IOException {
+            try {
+                if (timeout >= 0) {
+                    if (!done.await(timeout, unit)) {
+                        throw new TimeoutException(ERR_TIMEOUT);
+                    }
+                } else {
+                    done.await();
+                }
+            } catch (InterruptedException e) {
+                // Same contract as Connection#request: swallow and return null.
+                Thread.interrupted();
+                return null;
+            }
+            return get();
+        }
+
+        Message get() throws TimeoutException, IOException {
+            Exception ex = err;
+            if (ex instanceof TimeoutException) {
+                throw (TimeoutException) ex;
+            } else if (ex instanceof IOException) {
+                throw (IOException) ex;
+            } else if (ex != null) {
+                throw (RuntimeException) ex;
+            }
+            return msg;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * A RequestHandler object is used by a {@link ServiceResponder} to compute the reply to a request.
+ *
+ */
+public interface RequestHandler {
+
+    /**
+     * Handles a request and returns the reply payload.
+     *
+     * @param request - the received request message.
+     * @return the reply payload, or {@code null} to send no reply
+     * @throws Exception if the request could not be handled, in which case no reply is sent
+     */
+    byte[] onRequest(Message request) throws Exception;
+
+}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code ResponseCache} serves repeated requests on idempotent subjects from a local cache
+ * instead of making a round trip to a responder.
+ *
+ * <p>Only subjects that match a pattern registered with {@link #cache(String, long, TimeUnit)}
+ * are cached; all other requests pass straight through to the underlying {@link Connection}.
+ * Entries are keyed by subject and request payload, expire after the TTL of the first matching
+ * pattern, and are evicted in least-recently-used order once either the entry limit or the byte
+ * budget (the sum of reply payload sizes) is exceeded. Timeouts and errors are never cached.
+ *
+ * <p>A cache hit returns the same {@link Message} instance that was cached, so callers must treat
+ * replies as read-only.
+ *
+ * <p>Hits, misses and evictions are also added to the connection's {@link Statistics}, summed over
+ * all caches on the connection.
+ */
+public class ResponseCache {
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private final Connection conn;
+    // The connection's statistics, or null if conn is not a ConnectionImpl.
+    private final Statistics stats;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+    // Access-ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<RequestCoalescer.Key, Entry> entries =
+            new LinkedHashMap<RequestCoalescer.Key, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Creates a {@code ResponseCache} with the default entry limit and byte budget.
+     *
+     * @param conn the connection to send requests on
+     */
+    public ResponseCache(Connection conn) {
+        this(conn, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Creates a {@code ResponseCache}.
+     *
+     * @param conn the connection to send requests on
+     * @param maxEntries the maximum number of cached replies
+     * @param maxBytes the maximum total size, in bytes, of cached reply payloads
+     */
+    public ResponseCache(Connection conn, int maxEntries, long maxBytes) {
+        if (conn == null) {
+            throw new NullPointerException("nats: connection cannot be null");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("nats: maxEntries must be greater than 0");
+        }
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("nats: maxBytes must be greater than 0");
+        }
+        this.conn = conn;
+        this.stats = (conn instanceof ConnectionImpl) ? ((ConnectionImpl) conn).stats : null;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Enables caching of replies to requests on subjects matching {@code pattern}. Patterns are
+     * evaluated in registration order and the first match determines the TTL.
+     *
+     * @param pattern the subject pattern, which may contain {@code *} and {@code >} wildcards
+     * @param ttl how long a reply remains valid
+     * @param unit the time unit of {@code ttl}
+     * @return this {@code ResponseCache}
+     */
+    public ResponseCache cache(String pattern, long ttl, TimeUnit unit) {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new IllegalArgumentException(Constants.ERR_BAD_SUBJECT);
+        }
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("nats: ttl must be greater than 0");
+        }
+        rules.add(new Rule(pattern, unit.toNanos(ttl)));
+        return this;
+    }
+
+    /**
+     * Returns a cached reply for this request if one is present and fresh, or otherwise sends the
+     * request and caches its reply if {@code subject} is cacheable.
+     *
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @param timeout how long to wait for a response message
+     * @param unit the time unit of {@code timeout}
+     * @return the response message
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if {@code timeout} elapses before a message is returned
+     * @see Connection#request(String, byte[], long, TimeUnit)
+     */
+    public Message request(String subject, byte[] data, long timeout, TimeUnit unit)
+            throws TimeoutException, IOException {
+        Rule rule = ruleFor(subject);
+        if (rule == null) {
+            return conn.request(subject, data, timeout, unit);
+        }
+
+        RequestCoalescer.Key key =
+                new RequestCoalescer.Key(subject, data == null ? null : data.clone());
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.expires < 0) {
+                    hits.incrementAndGet();
+                    if (stats != null) {
+                        stats.incrementCacheHits();
+                    }
+                    return entry.msg;
+                }
+                remove(key);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        if (stats != null) {
+            stats.incrementCacheMisses();
+        }
+
+        Message msg = conn.request(subject, data, timeout, unit);
+        if (msg != null) {
+            put(key, new Entry(msg, System.nanoTime() + rule.ttlNanos));
+        }
+        return msg;
+    }
+
+    /**
+     * @see #request(String, byte[], long, TimeUnit)
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @param timeout how long to wait for a response message (in msec)
+     * @return the response message
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if {@code timeout} elapses before a message is returned
+     */
+    public Message request(String subject, byte[] data, long timeout)
+            throws TimeoutException, IOException {
+        return request(subject, data, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @see #request(String, byte[], long, TimeUnit)
+     * @param subject the subject to publish the request message to
+     * @param data the request message payload
+     * @return the response message
+     * @throws IOException if a connection-related error occurs
+     * @throws TimeoutException if the request times out
+     */
+    public Message request(String subject, byte[] data) throws TimeoutException, IOException {
+        return request(subject, data, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes all cached replies for subjects matching {@code pattern}.
+     *
+     * @param pattern the subject pattern, which may contain {@code *} and {@code >} wildcards
+     * @return the number of replies removed
+     */
+    public int invalidate(String pattern) {
+        List<RequestCoalescer.Key> matched = new ArrayList<RequestCoalescer.Key>();
+        synchronized (entries) {
+            for (RequestCoalescer.Key key : entries.keySet()) {
+                if (SubjectMatcher.matches(pattern, key.subject)) {
+                    matched.add(key);
+                }
+            }
+            for (RequestCoalescer.Key key : matched) {
+                remove(key);
+            }
+        }
+        return matched.size();
+    }
+
+    /**
+     * Removes all cached replies.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return the number of requests served from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cacheable requests that were sent to a responder.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of replies evicted to stay within the entry limit or byte budget.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of replies discarded because their TTL had elapsed.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of replies currently cached.
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the total size, in bytes, of the cached reply payloads.
+     */
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Clears the hit, miss, eviction and expiration counters.
+     */
+    public void resetStats() {
+        hits.set(0L);
+        misses.set(0L);
+        evictions.set(0L);
+        expirations.set(0L);
+    }
+
+    /**
+     * {@inheritDoc}.
+     */
+    public String toString() {
+        NumberFormat nf = NumberFormat.getNumberInstance(Locale.US);
+        return String.format(
+                "{cache: hits=%s misses=%s evictions=%s expirations=%s size=%s bytes=%s}",
+                nf.format(getHits()), nf.format(getMisses()), nf.format(getEvictions()),
+                nf.format(getExpirations()), nf.format(getSize()), nf.format(getBytes()));
+    }
+
+    /**
+     * @return the underlying connection.
+     */
+    public Connection getConnection() {
+        return conn;
+    }
+
+    Rule ruleFor(String subject) {
+        for (Rule rule : rules) {
+            if (SubjectMatcher.matches(rule.pattern, subject)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private void put(RequestCoalescer.Key key, Entry entry) {
+        synchronized (entries) {
+            remove(key);
+            if (entry.size > maxBytes) {
+                // Never cacheable; don't flush the whole cache to make room for it.
+                return;
+            }
+            entries.put(key, entry);
+            bytes += entry.size;
+            Iterator<Map.Entry<RequestCoalescer.Key, Entry>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                Map.Entry<RequestCoalescer.Key, Entry> eldest = it.next();
+                bytes -= eldest.getValue().size;
+                it.remove();
+                evictions.incrementAndGet();
+                if (stats != null) {
+                    stats.incrementCacheEvictions();
+                }
+            }
+        }
+    }
+
+    // Assumes the entries lock is held.
+    private void remove(RequestCoalescer.Key key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+    }
+
+    static final class Rule {
+        final String pattern;
+        final long ttlNanos;
+
+        Rule(String pattern, long ttlNanos) {
+            this.pattern = pattern;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    static final class Entry {
+        final Message msg;
+        final long expires;
+        final int size;
+
+        Entry(Message msg, long expires) {
+            this.msg = msg;
+            this.expires = expires;
+            this.size = msg.getData() == null ? 0 : msg.getData().length;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.Constants.ERR_SERVICE_OVERLOADED;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@code ServiceResponder} serves requests on a subject with a {@link RequestHandler}.
+ *
+ * <p>Requests are received on a queue-group subscription and dispatched to a bounded pool of
+ * worker threads. Replies are published directly to the request's reply subject bytes, without a
+ * round trip through {@code String}, and are left to the connection's flusher, so replies produced
+ * in a burst share a single flush.
+ *
+ * <p>When the service falls behind, it sheds load instead of letting requests time out: a request
+ * that cannot be queued, or that has waited longer than the maximum sojourn time by the time a
+ * worker picks it up, is answered immediately with {@link Constants#ERR_SERVICE_OVERLOADED} and is
+ * not passed to the handler.
+ */
+public class ServiceResponder implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(ServiceResponder.class);
+
+    public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_SOJOURN = 1000;
+
+    static final String WORKER_EXEC_NAME = "jnats-service-workers";
+
+    static final byte[] OVERLOADED_REPLY = ERR_SERVICE_OVERLOADED.getBytes();
+
+    private final Connection conn;
+    private final String subject;
+    private final String queue;
+    private final RequestHandler handler;
+    private final long maxSojournNanos;
+    private final ThreadPoolExecutor workers;
+    private AsyncSubscription sub;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong replied = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Creates a {@code ServiceResponder} with the default worker count, queue capacity and maximum
+     * sojourn time (in msec).
+     *
+     * @param conn the connection to receive requests and send replies on
+     * @param subject the subject to serve
+     * @param queue the queue group to join, or {@code null}
+     * @param handler the handler that computes replies
+     */
+    public ServiceResponder(Connection conn, String subject, String queue,
+            RequestHandler handler) {
+        this(conn, subject, queue, handler, DEFAULT_WORKERS, DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_MAX_SOJOURN, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a {@code ServiceResponder}.
+     *
+     * @param conn the connection to receive requests and send replies on
+     * @param subject the subject to serve
+     * @param queue the queue group to join, or {@code null}
+     * @param handler the handler that computes replies
+     * @param workers the number of worker threads
+     * @param queueCapacity the maximum number of requests waiting for a worker
+     * @param maxSojourn the maximum time a request may wait for a worker before it is shed
+     * @param unit the time unit of {@code maxSojourn}
+     */
+    public ServiceResponder(Connection conn, String subject, String queue, RequestHandler handler,
+            int workers, int queueCapacity, long maxSojourn, TimeUnit unit) {
+        if (conn == null) {
+            throw new NullPointerException("nats: connection cannot be null");
+        }
+        if (subject == null || subject.isEmpty()) {
+            throw new IllegalArgumentException(Constants.ERR_BAD_SUBJECT);
+        }
+        if (handler == null) {
+            throw new NullPointerException("nats: handler cannot be null");
+        }
+        if (workers <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException(
+                    "nats: workers and queueCapacity must be greater than 0");
+        }
+        this.conn = conn;
+        this.subject = subject;
+        this.queue = queue;
+        this.handler = handler;
+        this.maxSojournNanos = unit.toNanos(maxSojourn);
+        this.workers = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new NatsThreadFactory(WORKER_EXEC_NAME), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Subscribes to the service subject and starts serving requests.
+     *
+     * @return this {@code ServiceResponder}
+     */
+    public synchronized ServiceResponder start() {
+        if (sub != null) {
+            throw new IllegalStateException("nats: service responder already started");
+        }
+        MessageHandler dispatcher = new MessageHandler() {
+            public void onMessage(Message msg) {
+                dispatch(msg);
+            }
+        };
+        sub = (queue == null) ? conn.subscribe(subject, dispatcher)
+                : conn.subscribe(subject, queue, dispatcher);
+        return this;
+    }
+
+    /**
+     * Unsubscribes from the service subject and stops the worker pool. Requests already queued are
+     * still handled.
+     */
+    @Override
+    public synchronized void close() {
+        if (sub != null) {
+            try {
+                sub.unsubscribe();
+            } catch (IllegalStateException | IOException e) {
+                logger.debug("nats: exception while unsubscribing service responder", e);
+            }
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Waits for queued requests to be handled after {@link #close()}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the time unit of {@code timeout}
+     * @return {@code true} if all workers have terminated
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return workers.awaitTermination(timeout, unit);
+    }
+
+    void dispatch(final Message msg) {
+        received.incrementAndGet();
+        final long enqueued = System.nanoTime();
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    handle(msg, enqueued);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            shed(msg);
+        }
+    }
+
+    void handle(Message msg, long enqueued) {
+        if (System.nanoTime() - enqueued > maxSojournNanos) {
+            shed(msg);
+            return;
+        }
+        byte[] reply;
+        try {
+            reply = handler.onRequest(msg);
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            logger.warn("nats: service handler for '{}' failed", subject, e);
+            return;
+        }
+        if (reply != null && reply(msg, reply)) {
+            replied.incrementAndGet();
+        }
+    }
+
+    void shed(Message msg) {
+        shed.incrementAndGet();
+        reply(msg, OVERLOADED_REPLY);
+    }
+
+    boolean reply(Message msg, byte[] data) {
+        byte[] replyTo = msg.getReplyToBytes();
+        if (replyTo == null) {
+            return false;
+        }
+        try {
+            if (conn instanceof ConnectionImpl) {
+                ((ConnectionImpl) conn).publish(replyTo, null, data, false);
+            } else {
+                conn.publish(msg.getReplyTo(), data);
+            }
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException | IOException e) {
+            errors.incrementAndGet();
+            logger.warn("nats: unable to reply to request on '{}'", subject, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of replies sent by the handler.
+     */
+    public long getReplied() {
+        return replied.get();
+    }
+
+    /**
+     * @return the number of requests answered with an overload reply.
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * @return the number of requests whose handler failed or whose reply could not be sent.
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a worker.
+     */
+    public int getQueued() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return the subject being served.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the queue group, or {@code null}.
+     */
+    public String getQueue() {
+        return queue;
+    }
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * What a subscription does with a message that arrives while its pending queue is over its
+ * limits. See {@link Subscription#setPendingLimits(int, int)} and
+ * {@link Subscription#setSlowConsumerPolicy(SlowConsumerPolicy)}.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Drop the arriving message. This is the default.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest pending messages until the arriving message fits within the limits.
+     */
+    DROP_OLDEST,
+    /**
+     * Stop reading from the connection until the handler has caught up, so that TCP backpressure
+     * reaches the server and no message is lost. While the reader waits, no other subscription on
+     * the connection receives messages and server PINGs are not answered, so a handler that stalls
+     * for longer than the server's ping interval gets the connection closed as stale.
+     *
+     * <p>For the same reason, a message handler of a {@code BLOCK} subscription must not wait for
+     * the connection it receives on: {@link Connection#flush()} and the {@code request} methods
+     * need the reader to receive their PONG or reply, and the reader may be waiting for that very
+     * handler to make room, so they fail only when their timeout expires. Publish from the
+     * handler, and flush or make requests on another thread or connection.
+     */
+    BLOCK
+}
@@ -0,0 +1,457 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * The pending message queue of a spilling subscription.
+ *
+ * <p>Up to {@code memoryLimit} payload bytes are queued on the heap. Messages that arrive while the
+ * heap head is full, or while earlier messages are still spilled, are appended to memory-mapped
+ * segment files, so the queue stays in arrival order. The consumer reads the heap head first and
+ * then the segments in order. A fully read segment is rewound and kept mapped on a free list, and
+ * the next segment is taken from that list before a new file is created, so a subscription that
+ * keeps spilling maps no more than {@code spillLimit} bytes in all. A mapping cannot be released
+ * explicitly, so deleting and recreating segments would map more than that until the old mappings
+ * are collected. Once the mapped segments would exceed {@code spillLimit} bytes,
+ * {@link #offer(Message)} refuses the message and the subscription treats it as a slow consumer
+ * drop.
+ *
+ * <p>Segment files are created only when they are needed, with a size of at most
+ * {@code segmentSize} bytes and of at most what is left of {@code spillLimit}. Since messages are
+ * offered on the connection's reader thread, once the tail segment is half full the next one is
+ * created and mapped ahead of time on a background thread, and only the first segment, or one
+ * needed before its predecessor is half full, is created on the reader thread. The files are
+ * deleted by {@link #clear()}, which the subscription calls when it is closed.
+ */
+class SpillingMessageQueue extends LockedMessageQueue {
+    static final Logger logger = LoggerFactory.getLogger(SpillingMessageQueue.class);
+
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    static final String EXEC_NAME = "jnats-spill";
+
+    // Creates segments ahead of time for all spilling queues; its thread exits when idle.
+    private static final ThreadPoolExecutor preparer = new ThreadPoolExecutor(1, 1, 1L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new NatsThreadFactory(EXEC_NAME));
+
+    static {
+        preparer.allowCoreThreadTimeOut(true);
+    }
+
+    private final long memoryLimit;
+    private final long spillLimit;
+    private final int segmentSize;
+    private final File spillDir;
+    private final Executor prepareExec;
+
+    private final ArrayDeque<Message> head = new ArrayDeque<Message>();
+    private long headBytes;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    // Fully read segments, rewound and still mapped, and segments created ahead of time.
+    private final ArrayDeque<Segment> free = new ArrayDeque<Segment>();
+    // Bytes mapped by live and free segments, plus the size of a segment being prepared.
+    private long spillMapped;
+    private boolean preparing;
+    private final Condition prepared = lock.newCondition();
+    // Incremented by clear(), so that a segment prepared for a cleared queue is released.
+    private int generation;
+    private int spilledMsgs;
+    private long spilledTotal;
+
+    // Spilled messages are read back on behalf of this subscription.
+    private SubscriptionImpl sub;
+
+    SpillingMessageQueue(long memoryLimit, long spillLimit, File spillDir) {
+        this(memoryLimit, spillLimit, spillDir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    SpillingMessageQueue(long memoryLimit, long spillLimit, File spillDir, int segmentSize) {
+        this(memoryLimit, spillLimit, spillDir, segmentSize, preparer);
+    }
+
+    SpillingMessageQueue(long memoryLimit, long spillLimit, File spillDir, int segmentSize,
+            Executor prepareExec) {
+        if (memoryLimit < 0 || spillLimit < 0) {
+            throw new IllegalArgumentException("nats: spill limits cannot be negative");
+        }
+        this.memoryLimit = memoryLimit;
+        this.spillLimit = spillLimit;
+        this.spillDir = spillDir;
+        this.segmentSize = segmentSize;
+        this.prepareExec = prepareExec;
+    }
+
+    @Override
+    boolean doOffer(Message msg) {
+        if (sub == null) {
+            sub = msg.sub;
+        }
+        int size = (msg.getData() == null ? 0 : msg.getData().length);
+        if (spilledMsgs == 0 && (head.isEmpty() || headBytes + size <= memoryLimit)) {
+            head.add(msg);
+            headBytes += size;
+            return true;
+        }
+        return spill(msg);
+    }
+
+    @Override
+    Message doPoll() {
+        Message msg = head.poll();
+        if (msg != null) {
+            headBytes -= (msg.getData() == null ? 0 : msg.getData().length);
+            return msg;
+        }
+        if (spilledMsgs == 0) {
+            return null;
+        }
+        Segment seg = segments.peekFirst();
+        msg = seg.read(seg.readPos, sub);
+        seg.readPos += Segment.recordLength(msg);
+        seg.read++;
+        spilledMsgs--;
+        if (seg.read == seg.written) {
+            seg.rewind();
+            if (segments.size() > 1) {
+                // Fully consumed and no longer written to; keep it for reuse.
+                segments.pollFirst();
+                free.add(seg);
+            }
+        }
+        return msg;
+    }
+
+    @Override
+    Message doPeek() {
+        Message msg = head.peek();
+        if (msg == null && spilledMsgs > 0) {
+            Segment seg = segments.peekFirst();
+            msg = seg.read(seg.readPos, sub);
+        }
+        return msg;
+    }
+
+    @Override
+    int doSize() {
+        return head.size() + spilledMsgs;
+    }
+
+    @Override
+    void doClear() {
+        head.clear();
+        headBytes = 0;
+        for (Segment seg : segments) {
+            release(seg);
+        }
+        segments.clear();
+        for (Segment seg : free) {
+            release(seg);
+        }
+        free.clear();
+        spilledMsgs = 0;
+        generation++;
+        preparing = false;
+        prepared.signalAll();
+    }
+
+    @Override
+    Iterator<Message> doSnapshot() {
+        List<Message> copy = new ArrayList<Message>(head);
+        for (Segment seg : segments) {
+            int pos = seg.readPos;
+            for (int i = seg.read; i < seg.written; i++) {
+                Message msg = seg.read(pos, sub);
+                pos += Segment.recordLength(msg);
+                copy.add(msg);
+            }
+        }
+        return copy.iterator();
+    }
+
+    /**
+     * @return the number of queued messages that are held in segment files.
+     */
+    int spilledCount() {
+        lock.lock();
+        try {
+            return spilledMsgs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of messages that have been spilled since the queue was created.
+     */
+    long spilledTotal() {
+        lock.lock();
+        try {
+            return spilledTotal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files holding messages.
+     */
+    int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segment files kept for reuse.
+     */
+    int freeCount() {
+        lock.lock();
+        try {
+            return free.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(Message msg) {
+        int len = Segment.recordLength(msg);
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.remaining() < len) {
+            tail = nextSegment(len);
+            if (tail == null) {
+                return false;
+            }
+            segments.add(tail);
+        }
+        tail.append(msg);
+        spilledMsgs++;
+        spilledTotal++;
+        if (free.isEmpty() && tail.remaining() < tail.buf.capacity() / 2) {
+            prepare();
+        }
+        return true;
+    }
+
+    // Returns a free segment with room for a record of len bytes, or a new one. Returns null if
+    // the spill limit is reached or the file cannot be created or mapped.
+    private Segment nextSegment(int len) {
+        while (free.isEmpty() && preparing) {
+            // The next segment is being mapped; waiting for it costs no more than mapping one
+            // here, and keeps its reservation from refusing the message.
+            prepared.awaitUninterruptibly();
+        }
+        Segment seg = free.poll();
+        if (seg != null) {
+            if (seg.remaining() >= len) {
+                return seg;
+            }
+            // Too small for this record.
+            release(seg);
+        }
+        // Segments are no larger than what is left of the spill limit, so a limit below the
+        // segment size, or not a multiple of it, is used in full.
+        long size = Math.min(segmentSize, spillLimit - spillMapped);
+        size = Math.max(size, len);
+        if (spillMapped + size > spillLimit) {
+            return null;
+        }
+        seg = mapSegment(spillDir, (int) size);
+        if (seg != null) {
+            spillMapped += size;
+        }
+        return seg;
+    }
+
+    // Creates the next segment on the preparer thread, reserving its size under the spill limit
+    // until it is mapped. Assumes the lock is held.
+    private void prepare() {
+        final long size = Math.min(segmentSize, spillLimit - spillMapped);
+        if (preparing || prepareExec == null || size <= 0) {
+            return;
+        }
+        final int gen = generation;
+        spillMapped += size;
+        preparing = true;
+        try {
+            prepareExec.execute(new Runnable() {
+                public void run() {
+                    Segment seg = mapSegment(spillDir, (int) size);
+                    lock.lock();
+                    try {
+                        if (gen != generation) {
+                            // Cleared meanwhile; clear() has already reset preparing.
+                            if (seg != null) {
+                                release(seg);
+                            } else {
+                                spillMapped -= size;
+                            }
+                            return;
+                        }
+                        preparing = false;
+                        if (seg != null) {
+                            free.add(seg);
+                        } else {
+                            spillMapped -= size;
+                        }
+                        prepared.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            spillMapped -= size;
+            preparing = false;
+        }
+    }
+
+    // Creates and maps a segment file. Returns null if it cannot be created or mapped.
+    static Segment mapSegment(File spillDir, int size) {
+        File file = null;
+        try {
+            file = File.createTempFile("jnats-sub-", ".spill", spillDir);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            logger.debug("nats: spilling subscription queue to {}", file);
+            return new Segment(file, raf, channel, buf);
+        } catch (IOException e) {
+            logger.warn("nats: unable to map subscription spill file", e);
+            if (file != null && !file.delete()) {
+                logger.debug("nats: could not delete subscription spill file {}", file);
+            }
+            return null;
+        }
+    }
+
+    private void release(Segment seg) {
+        spillMapped -= seg.buf.capacity();
+        try {
+            seg.channel.close();
+            seg.raf.close();
+        } catch (IOException e) {
+            logger.debug("nats: error closing subscription spill file", e);
+        }
+        if (!seg.file.delete()) {
+            logger.debug("nats: could not delete subscription spill file {}", seg.file);
+        }
+    }
+
+    /**
+     * A memory-mapped segment file. Each record is the message's enqueue time as a {@code long},
+     * for its sojourn time, then the subject, the reply subject and the payload, each preceded by
+     * its length as an {@code int}; a missing reply subject has length -1.
+     */
+    static final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final MappedByteBuffer buf;
+        int writePos;
+        int readPos;
+        int written;
+        int read;
+
+        Segment(File file, RandomAccessFile raf, FileChannel channel, MappedByteBuffer buf) {
+            this.file = file;
+            this.raf = raf;
+            this.channel = channel;
+            this.buf = buf;
+        }
+
+        static int recordLength(Message msg) {
+            byte[] reply = msg.getReplyToBytes();
+            return 20 + msg.getSubjectBytes().length + (reply == null ? 0 : reply.length)
+                    + (msg.getData() == null ? 0 : msg.getData().length);
+        }
+
+        int remaining() {
+            return buf.capacity() - writePos;
+        }
+
+        void append(Message msg) {
+            buf.position(writePos);
+            buf.putLong(msg.enqueuedNanos);
+            byte[] subject = msg.getSubjectBytes();
+            buf.putInt(subject.length);
+            buf.put(subject);
+            byte[] reply = msg.getReplyToBytes();
+            if (reply == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(reply.length);
+                buf.put(reply);
+            }
+            byte[] data = msg.getData();
+            if (data == null) {
+                buf.putInt(0);
+            } else {
+                buf.putInt(data.length);
+                buf.put(data);
+            }
+            writePos = buf.position();
+            written++;
+        }
+
+        Message read(int pos, SubscriptionImpl sub) {
+            buf.position(pos);
+            long enqueuedNanos = buf.getLong();
+            byte[] subject = new byte[buf.getInt()];
+            buf.get(subject);
+            byte[] reply = null;
+            int replyLen = buf.getInt();
+            if (replyLen >= 0) {
+                reply = new byte[replyLen];
+                buf.get(reply);
+            }
+            byte[] data = new byte[buf.getInt()];
+            buf.get(data);
+            Message msg = new Message();
+            msg.setSubject(subject, subject.length);
+            if (reply != null) {
+                msg.setReplyTo(reply, reply.length);
+            }
+            if (data.length > 0) {
+                msg.setData(data);
+            }
+            msg.enqueuedNanos = enqueuedNanos;
+            msg.sub = sub;
+            return msg;
+        }
+
+        void rewind() {
+            writePos = 0;
+            readPos = 0;
+            written = 0;
+            read = 0;
+        }
+    }
+}
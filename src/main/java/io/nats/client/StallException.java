@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports that a connection thread made no progress for longer than the stall threshold set
+ * with {@link ConnectionFactory#setStallThreshold(long)}. It is passed to the
+ * {@link ExceptionHandler} as the cause of a {@link NATSException}, and its stack trace is the
+ * stack of the stalled thread when the stall was detected, not of the code that created it.
+ */
+public class StallException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final String component;
+    private final String threadName;
+    private final long nanos;
+
+    StallException(String component, Thread thread, long nanos, String message,
+            StackTraceElement[] stack) {
+        super(message);
+        this.component = component;
+        this.threadName = thread.getName();
+        this.nanos = nanos;
+        setStackTrace(stack);
+    }
+
+    /**
+     * @return what stalled: {@code "readloop"}, {@code "flusher"}, {@code "dispatcher"} (the
+     *         message handler of an asynchronous subscription) or {@code "lock"} (the connection
+     *         lock held too long).
+     */
+    public String getComponent() {
+        return component;
+    }
+
+    /**
+     * @return the name of the stalled thread.
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * @param unit the time unit of the returned value
+     * @return how long the thread had made no progress when the stall was detected.
+     */
+    public long getDuration(TimeUnit unit) {
+        return unit.convert(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Detects connection threads that make no progress: the read loop, the flusher and the message
+ * dispatchers of asynchronous subscriptions, each through a {@link Heartbeat}, and any thread
+ * holding the connection lock, through {@link TimedLock}.
+ *
+ * <p>A thread marks itself busy when it starts a unit of work (parsing what was read, writing to
+ * the socket, running a message handler) and idle when it is done, so waiting for work is never a
+ * stall. The watchdog runs on the connection's scheduler, never takes the connection lock, and
+ * reports each busy period or lock hold that exceeds the threshold once, with the stack of the
+ * offending thread.
+ */
+class StallWatchdog implements Runnable {
+
+    private final ConnectionImpl conn;
+    private final long thresholdNanos;
+    private final CopyOnWriteArrayList<Heartbeat> heartbeats =
+            new CopyOnWriteArrayList<Heartbeat>();
+    private final AtomicLong stalls = new AtomicLong();
+    // Acquisition time of the lock hold last reported.
+    private long lockReported;
+
+    StallWatchdog(ConnectionImpl conn, long threshold, TimeUnit unit) {
+        this.conn = conn;
+        this.thresholdNanos = unit.toNanos(threshold);
+    }
+
+    /**
+     * @return how often the watchdog should run, in nanoseconds.
+     */
+    long getCheckInterval() {
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(10), thresholdNanos / 4);
+    }
+
+    /**
+     * Registers the calling thread under {@code component}, with the subscription it dispatches
+     * for, if any.
+     */
+    Heartbeat register(String component, SubscriptionImpl sub) {
+        Heartbeat hb = new Heartbeat(component, Thread.currentThread(), sub);
+        heartbeats.add(hb);
+        return hb;
+    }
+
+    void unregister(Heartbeat hb) {
+        heartbeats.remove(hb);
+    }
+
+    /**
+     * @return the number of stalls detected.
+     */
+    long getStalls() {
+        return stalls.get();
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        for (Heartbeat hb : heartbeats) {
+            long since = hb.busySince;
+            if (since != 0 && since != hb.reported && now - since > thresholdNanos) {
+                StackTraceElement[] stack = hb.thread.getStackTrace();
+                // Only report if the thread was still in the same busy period after the capture.
+                if (hb.busySince == since) {
+                    hb.reported = since;
+                    String msg = String.format("nats: %s stalled for %d ms", hb.component,
+                            TimeUnit.NANOSECONDS.toMillis(now - since));
+                    if (hb.sub != null) {
+                        msg += " in the message handler of '" + hb.sub.getSubject() + "'";
+                    }
+                    report(new StallException(hb.component, hb.thread, now - since, msg, stack),
+                            hb.sub);
+                }
+            }
+        }
+
+        TimedLock mu = conn.mu;
+        long since = mu.heldSince;
+        Thread owner = mu.owner();
+        if (since != 0 && since != lockReported && owner != null && now - since > thresholdNanos) {
+            StackTraceElement[] stack = owner.getStackTrace();
+            if (mu.heldSince == since && mu.owner() == owner) {
+                lockReported = since;
+                String msg = String.format("nats: connection lock held by '%s' for %d ms",
+                        owner.getName(), TimeUnit.NANOSECONDS.toMillis(now - since));
+                report(new StallException("lock", owner, now - since, msg, stack), null);
+            }
+        }
+    }
+
+    private void report(StallException ex, SubscriptionImpl sub) {
+        stalls.incrementAndGet();
+        conn.processStall(ex, sub);
+    }
+
+    /**
+     * The busy state of one monitored thread.
+     */
+    static final class Heartbeat {
+        final String component;
+        final Thread thread;
+        final SubscriptionImpl sub;
+        // When the current unit of work started; 0 while idle.
+        private volatile long busySince;
+        // Start of the busy period last reported; only used by the watchdog.
+        private long reported;
+
+        Heartbeat(String component, Thread thread, SubscriptionImpl sub) {
+            this.component = component;
+            this.thread = thread;
+            this.sub = sub;
+        }
+
+        void busy() {
+            busySince = System.nanoTime();
+        }
+
+        void idle() {
+            busySince = 0;
+        }
+    }
+
+    /**
+     * A reentrant lock that, once {@link #setTimed(boolean) timed}, records when its current hold
+     * began. The time is taken when the hold count goes from 0 to 1 and cleared when it returns
+     * to 0, so reentrant acquisitions cost nothing extra.
+     */
+    static final class TimedLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+
+        // Set before the connection starts any thread.
+        private boolean timed;
+        private volatile long heldSince;
+
+        void setTimed(boolean timed) {
+            this.timed = timed;
+        }
+
+        @Override
+        public void lock() {
+            super.lock();
+            acquired();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            super.lockInterruptibly();
+            acquired();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (super.tryLock()) {
+                acquired();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (super.tryLock(timeout, unit)) {
+                acquired();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void unlock() {
+            if (timed && getHoldCount() == 1) {
+                heldSince = 0;
+            }
+            super.unlock();
+        }
+
+        private void acquired() {
+            if (timed && getHoldCount() == 1) {
+                heldSince = System.nanoTime();
+            }
+        }
+
+        Thread owner() {
+            return getOwner();
+        }
+    }
+}
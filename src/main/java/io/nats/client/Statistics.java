@@ -8,29 +8,35 @@ package io.nats.client;
 
 import java.text.NumberFormat;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicLong;
 
 // Tracks various stats received and sent on this connection,
-// including counts for messages and bytes.
+// including counts for messages and bytes. The counters are striped, so the reader
+// thread and publishing threads do not contend on them.
 public class Statistics implements Cloneable {
 
-    private AtomicLong inMsgs = new AtomicLong();
-    private AtomicLong outMsgs = new AtomicLong();
-    private AtomicLong inBytes = new AtomicLong();
-    private AtomicLong outBytes = new AtomicLong();
-    private AtomicLong reconnects = new AtomicLong();
-    private AtomicLong flushes = new AtomicLong();
+    private StripedCounter inMsgs = new StripedCounter();
+    private StripedCounter outMsgs = new StripedCounter();
+    private StripedCounter inBytes = new StripedCounter();
+    private StripedCounter outBytes = new StripedCounter();
+    private StripedCounter reconnects = new StripedCounter();
+    private StripedCounter flushes = new StripedCounter();
+    private StripedCounter cacheHits = new StripedCounter();
+    private StripedCounter cacheMisses = new StripedCounter();
+    private StripedCounter cacheEvictions = new StripedCounter();
 
     public Statistics() {}
 
-    // deep copy contructor
+    // Snapshot constructor: copies the current values, without locking.
     Statistics(Statistics obj) {
-        this.inMsgs = obj.inMsgs;
-        this.inBytes = obj.inBytes;
-        this.outBytes = obj.outBytes;
-        this.outMsgs = obj.outMsgs;
-        this.reconnects = obj.reconnects;
-        this.flushes = obj.flushes;
+        this.inMsgs = new StripedCounter(obj.inMsgs.sum());
+        this.inBytes = new StripedCounter(obj.inBytes.sum());
+        this.outBytes = new StripedCounter(obj.outBytes.sum());
+        this.outMsgs = new StripedCounter(obj.outMsgs.sum());
+        this.reconnects = new StripedCounter(obj.reconnects.sum());
+        this.flushes = new StripedCounter(obj.flushes.sum());
+        this.cacheHits = new StripedCounter(obj.cacheHits.sum());
+        this.cacheMisses = new StripedCounter(obj.cacheMisses.sum());
+        this.cacheEvictions = new StripedCounter(obj.cacheEvictions.sum());
     }
 
     @Override
@@ -42,11 +48,14 @@ public class Statistics implements Cloneable {
      * Clears the statistics.
      */
     public void clear() {
-        this.inBytes.set(0L);
-        this.inMsgs.set(0L);
-        this.outBytes.set(0L);
-        this.outMsgs.set(0L);
-        this.flushes.set(0L);
+        this.inBytes.reset();
+        this.inMsgs.reset();
+        this.outBytes.reset();
+        this.outMsgs.reset();
+        this.flushes.reset();
+        this.cacheHits.reset();
+        this.cacheMisses.reset();
+        this.cacheEvictions.reset();
     }
 
     /**
@@ -54,88 +63,126 @@ public class Statistics implements Cloneable {
      */
     public String toString() {
         return String.format(
-                "{in: msgs=%s bytes=%s out: msgs=%s bytes=%s, reconnects: %s flushes: %s}",
-                NumberFormat.getNumberInstance(Locale.US).format(inMsgs.get()),
-                NumberFormat.getNumberInstance(Locale.US).format(inBytes.get()),
-                NumberFormat.getNumberInstance(Locale.US).format(outMsgs.get()),
-                NumberFormat.getNumberInstance(Locale.US).format(outBytes.get()),
-                NumberFormat.getNumberInstance(Locale.US).format(reconnects.get()),
-                NumberFormat.getNumberInstance(Locale.US).format(flushes.get()));
+                "{in: msgs=%s bytes=%s out: msgs=%s bytes=%s, reconnects: %s flushes: %s, "
+                        + "cache: hits=%s misses=%s evictions=%s}",
+                NumberFormat.getNumberInstance(Locale.US).format(getInMsgs()),
+                NumberFormat.getNumberInstance(Locale.US).format(getInBytes()),
+                NumberFormat.getNumberInstance(Locale.US).format(getOutMsgs()),
+                NumberFormat.getNumberInstance(Locale.US).format(getOutBytes()),
+                NumberFormat.getNumberInstance(Locale.US).format(getReconnects()),
+                NumberFormat.getNumberInstance(Locale.US).format(getFlushes()),
+                NumberFormat.getNumberInstance(Locale.US).format(getCacheHits()),
+                NumberFormat.getNumberInstance(Locale.US).format(getCacheMisses()),
+                NumberFormat.getNumberInstance(Locale.US).format(getCacheEvictions()));
     }
 
     /**
      * @return the number of messages that have been received on this Connection.
      */
     public long getInMsgs() {
-        return inMsgs.get();
+        return inMsgs.sum();
     }
 
     /**
      * Increments the number of messages received on this connection.
      */
-    long incrementInMsgs() {
-        return inMsgs.incrementAndGet();
+    void incrementInMsgs() {
+        inMsgs.increment();
     }
 
     /**
      * @return the number of messages published on this Connection.
      */
     public long getOutMsgs() {
-        return outMsgs.get();
+        return outMsgs.sum();
     }
 
-    long incrementOutMsgs() {
-        return outMsgs.incrementAndGet();
+    void incrementOutMsgs() {
+        outMsgs.increment();
     }
 
     /**
      * @return the number of bytes received on this Connection.
      */
     public long getInBytes() {
-        return inBytes.get();
+        return inBytes.sum();
     }
 
     /*
      * Increments the number of bytes received.
      */
-    long incrementInBytes(long amount) {
-        return inBytes.addAndGet(amount);
+    void incrementInBytes(long amount) {
+        inBytes.add(amount);
     }
 
     /**
      * @return the number of bytes that have been output on this Connection.
      */
     public long getOutBytes() {
-        return outBytes.get();
+        return outBytes.sum();
     }
 
     /*
      * Increments the number of bytes output
      */
-    long incrementOutBytes(long delta) {
-        return outBytes.addAndGet(delta);
+    void incrementOutBytes(long delta) {
+        outBytes.add(delta);
     }
 
     /**
      * @return the number of times this Connection has reconnected.
      */
     public long getReconnects() {
-        return reconnects.get();
+        return reconnects.sum();
     }
 
-    long incrementReconnects() {
-        return reconnects.incrementAndGet();
+    void incrementReconnects() {
+        reconnects.increment();
     }
 
     /**
      * @return the number of times this Connection has reconnected.
      */
     long getFlushes() {
-        return flushes.get();
+        return flushes.sum();
     }
 
-    long incrementFlushes() {
-        return flushes.incrementAndGet();
+    void incrementFlushes() {
+        flushes.increment();
+    }
+
+    /**
+     * @return the number of requests served by the {@link ResponseCache}s of this Connection.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    void incrementCacheHits() {
+        cacheHits.increment();
+    }
+
+    /**
+     * @return the number of cacheable requests that the {@link ResponseCache}s of this Connection
+     *         sent to a responder.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    void incrementCacheMisses() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * @return the number of replies evicted by the {@link ResponseCache}s of this Connection.
+     */
+    public long getCacheEvictions() {
+        return cacheEvictions.sum();
+    }
+
+    void incrementCacheEvictions() {
+        cacheEvictions.increment();
     }
 
 }
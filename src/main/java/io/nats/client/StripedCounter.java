@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for values updated from several threads and read rarely, in the spirit of
+ * {@code java.util.concurrent.atomic.LongAdder} (which is not available on Java 7).
+ *
+ * <p>Updates go to one of several cells chosen by the updating thread, so that, for example, the
+ * reader thread counting inbound messages and a publisher counting outbound messages do not
+ * contend on the same cache line. Each cell is padded to its own 128 bytes, which also keeps
+ * adjacent-line prefetching from pairing two cells. {@link #sum()} adds up the cells without
+ * locking; it is exact when there are no concurrent updates.
+ */
+class StripedCounter {
+
+    // Longs per cell: 128 bytes.
+    private static final int PAD = 16;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final int stripes;
+    private final int pad;
+    private final AtomicLongArray cells;
+
+    StripedCounter() {
+        this(STRIPES, PAD);
+    }
+
+    /**
+     * Creates an unstriped counter starting at {@code initial}, for snapshots, which are not
+     * updated concurrently and should stay small.
+     */
+    StripedCounter(long initial) {
+        this(1, 1);
+        add(initial);
+    }
+
+    private StripedCounter(int stripes, int pad) {
+        this.stripes = stripes;
+        this.pad = pad;
+        this.cells = new AtomicLongArray((stripes + 1) * pad);
+    }
+
+    // A power of two of at least twice the processors, capped at 64.
+    static int stripes(int processors) {
+        int n = 2;
+        while (n < 2 * processors && n < 64) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    void add(long delta) {
+        cells.getAndAdd(index(), delta);
+    }
+
+    void increment() {
+        add(1L);
+    }
+
+    long sum() {
+        long sum = 0L;
+        for (int i = 1; i <= stripes; i++) {
+            sum += cells.get(i * pad);
+        }
+        return sum;
+    }
+
+    /**
+     * Resets the counter to zero. Updates concurrent with the reset may be lost.
+     */
+    void reset() {
+        for (int i = 1; i <= stripes; i++) {
+            cells.set(i * pad, 0L);
+        }
+    }
+
+    // Cell 0 is left unused, so that no cell shares a cache line with the array header.
+    private int index() {
+        if (stripes == 1) {
+            return pad;
+        }
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (1 + ((h >>> 16) & (stripes - 1))) * pad;
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * Client-side matching of literal subjects against NATS subject patterns. A pattern token of
+ * {@code *} matches exactly one subject token, and a trailing {@code >} matches one or more
+ * remaining tokens.
+ */
+final class SubjectMatcher {
+    private SubjectMatcher() {}
+
+    /**
+     * Returns whether the literal {@code subject} matches {@code pattern}.
+     *
+     * @param pattern a subject, optionally containing {@code *} and {@code >} wildcards
+     * @param subject a literal subject
+     * @return {@code true} if {@code subject} matches {@code pattern}
+     */
+    static boolean matches(String pattern, String subject) {
+        int pi = 0;
+        int si = 0;
+        final int plen = pattern.length();
+        final int slen = subject.length();
+        while (pi < plen) {
+            if (si >= slen) {
+                return false;
+            }
+            int pend = pattern.indexOf('.', pi);
+            if (pend < 0) {
+                pend = plen;
+            }
+            int send = subject.indexOf('.', si);
+            if (send < 0) {
+                send = slen;
+            }
+            int ptoklen = pend - pi;
+            if (ptoklen == 1 && pattern.charAt(pi) == '>') {
+                return pend == plen;
+            }
+            if (!(ptoklen == 1 && pattern.charAt(pi) == '*')) {
+                if (ptoklen != send - si || !pattern.regionMatches(pi, subject, si, ptoklen)) {
+                    return false;
+                }
+            }
+            pi = pend + 1;
+            si = send + 1;
+        }
+        return si > slen;
+    }
+}
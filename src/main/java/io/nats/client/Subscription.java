@@ -10,6 +10,7 @@
 package io.nats.client;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A client uses a {@code Subscription} object to receive messages that have been published to a
@@ -133,11 +134,120 @@ public interface Subscription extends AutoCloseable {
      */
     int getPendingBytesLimit();
 
+    /**
+     * Sizes the pending limits of this subscription automatically so that the pending queue holds
+     * what the subscription consumes in {@code burst}. The consumption rate is measured from the
+     * handler latency for asynchronous subscriptions and from the dequeue rate otherwise, and the
+     * limits are recomputed a few times per second, between a small floor and the default limits
+     * (or {@link ConnectionFactory#setMaxPendingBytes(long)}, if set, for bytes).
+     *
+     * <p>{@code 0} turns adaptive limits off and keeps the current limits, as does a later call to
+     * {@link #setPendingLimits(int, int)}.
+     *
+     * @param burst the burst duration the pending queue should absorb
+     * @param unit the time unit of {@code burst}
+     */
+    void setAdaptivePendingLimits(long burst, TimeUnit unit);
+
+    /**
+     * @param unit the time unit of the returned value
+     * @return the burst duration of the adaptive pending limits, or 0 if they are off.
+     */
+    long getAdaptiveBurst(TimeUnit unit);
+
+    /**
+     * Returns the consumption rate measured for the adaptive pending limits.
+     *
+     * @return the estimated consumption rate, in messages per second, or 0 if unknown
+     */
+    double getConsumptionRate();
+
+    /**
+     * Returns the average message handler latency measured for the adaptive pending limits.
+     *
+     * @param unit the time unit of the returned value
+     * @return the estimated handler latency, or 0 if unknown
+     */
+    long getHandlerLatency(TimeUnit unit);
+
+    /**
+     * Returns the number of times the adaptive pending limits changed the pending limits. The
+     * current limits are returned by {@link #getPendingMsgsLimit()} and
+     * {@link #getPendingBytesLimit()}.
+     *
+     * @return the number of pending limit adjustments
+     */
+    long getPendingLimitAdjustments();
+
+    /**
+     * Returns the time messages spent in the pending queue of this subscription, from being
+     * queued by the connection's reader to being handed to the message handler, or returned by
+     * {@code nextMessage}. Recorded only if {@link ConnectionFactory#setLatencyHistograms(boolean)}
+     * is set; messages rebuilt by spilling and compact subscriptions are not measured.
+     * 
+     * @return a snapshot of the sojourn histogram
+     */
+    LatencyHistogram getSojournHistogram();
+
+    /**
+     * Returns the time the message handler of this asynchronous subscription spent on each
+     * message. Recorded only if {@link ConnectionFactory#setLatencyHistograms(boolean)} is set.
+     * 
+     * @return a snapshot of the handler histogram
+     */
+    LatencyHistogram getHandlerHistogram();
+
+    /**
+     * Sets what this subscription does with a message that arrives while its pending queue is over
+     * the limits set by {@link #setPendingLimits(int, int)}.
+     * 
+     * @param policy the slow consumer policy
+     */
+    void setSlowConsumerPolicy(SlowConsumerPolicy policy);
+
+    /**
+     * @return the slow consumer policy of this subscription.
+     */
+    SlowConsumerPolicy getSlowConsumerPolicy();
+
+    /**
+     * Returns the number of messages that arrived while the pending queue was over its limits, and
+     * so triggered the slow consumer policy.
+     * 
+     * @return the number of slow consumer policy activations
+     */
+    long getSlowConsumerEvents();
+
+    /**
+     * Returns how long the connection's reader has spent waiting for this subscription under the
+     * {@link SlowConsumerPolicy#BLOCK} policy.
+     * 
+     * @param unit the time unit of the returned value
+     * @return the total time spent blocked
+     */
+    long getBlockedTime(TimeUnit unit);
+
     /**
      * Clears the the maximum number of unprocessed messages and bytes for this subscription.
      */
     void clearMaxPending();
 
+    /**
+     * Returns the number of messages received for this subscription, including messages that were
+     * dropped or conflated. Reading it does not lock the subscription.
+     * 
+     * @return the number of messages received for this subscription
+     */
+    long getReceivedMsgs();
+
+    /**
+     * Returns the number of payload bytes received for this subscription, including dropped or
+     * conflated messages. Reading it does not lock the subscription.
+     * 
+     * @return the number of payload bytes received for this subscription
+     */
+    long getReceivedBytes();
+
     /**
      * Returns the number of messages that this subscription has dropped due to "slow consumer"
      * condition.
@@ -146,6 +256,15 @@ public interface Subscription extends AutoCloseable {
      */
     int getDropped();
 
+    /**
+     * Returns the number of pending messages that this subscription has replaced with a newer
+     * message with the same key. Only conflating subscriptions replace messages.
+     * 
+     * @return the number of messages that have been conflated by this Subscription
+     * @see AbstractConnection#subscribeConflating(String, MessageHandler)
+     */
+    int getConflated();
+
     /**
      * {@inheritDoc}.
      */
@@ -14,9 +14,11 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import javax.management.ObjectName;
 
 abstract class SubscriptionImpl implements Subscription {
 
@@ -48,10 +50,11 @@ abstract class SubscriptionImpl implements Subscription {
     // only be processed by one member of the group.
     String queue;
 
-    // Number of messages delivered on this subscription
-    long msgs;
+    // Number of messages and bytes received for this subscription, including dropped ones.
+    // Written only by the reader thread, under the lock, and read without it.
+    volatile long msgs;
     long delivered; // uint64
-    long bytes; // uint64
+    volatile long bytes; // uint64
     // int pendingMax; // uint64 in Go, int here due to underlying data structure
     long max; // AutoUnsubscribe max
 
@@ -64,6 +67,8 @@ abstract class SubscriptionImpl implements Subscription {
     ConnectionImpl conn = null;
     BlockingQueue<Message> mch;
     Condition pCond;
+    // Signaled when a pending message is dequeued, for a reader blocked by the BLOCK policy.
+    Condition pSpace;
 
     // Pending stats, async subscriptions, high-speed etc.
     int pMsgs;
@@ -72,7 +77,28 @@ abstract class SubscriptionImpl implements Subscription {
     int pBytesMax; // highest number of pending bytes
     int pMsgsLimit = 65536;
     int pBytesLimit = pMsgsLimit * 1024;
-    int dropped;
+    volatile int dropped;
+    int conflated;
+    SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NEWEST;
+    long slowConsumerEvents;
+    long blockedNanos;
+    // Whether pending bytes count against the connection-wide pending budget.
+    boolean budgeted = true;
+    // Whether this subscription is counted in the connection's fair share of the pending budget.
+    boolean budgetShare;
+    // Non-null when the pending limits are sized from measured consumption.
+    AdaptivePendingLimits adaptive;
+    // Non-null when the connection records latency histograms.
+    final LatencyHistogram sojourn;
+    final LatencyHistogram handlerTime;
+    // Set while registered with the platform MBean server.
+    ObjectName mbeanName;
+    // Counters as of the last metrics report; used only by the MetricsReporter.
+    long reportedMsgs;
+    long reportedBytes;
+    int reportedDropped;
+    long reportedEvents;
+    long reportedBlockedNanos;
 
     SubscriptionImpl(ConnectionImpl conn, String subject, String queue) {
         this(conn, subject, queue, DEFAULT_MAX_PENDING_MSGS, DEFAULT_MAX_PENDING_BYTES);
@@ -87,12 +113,17 @@ abstract class SubscriptionImpl implements Subscription {
         setPendingBytesLimit(pendingBytesLimit);
         this.mch = new LinkedBlockingQueue<Message>();
         pCond = mu.newCondition();
+        pSpace = mu.newCondition();
+        boolean histograms = (conn != null && conn.isLatencyHistograms());
+        sojourn = histograms ? new LatencyHistogram() : null;
+        handlerTime = histograms ? new LatencyHistogram() : null;
     }
 
     void closeChannel() {
         mu.lock();
         try {
             if (mch != null) {
+                releasePendingBytes();
                 mch.clear();
                 mch = null;
             }
@@ -101,6 +132,35 @@ abstract class SubscriptionImpl implements Subscription {
         }
     }
 
+    /**
+     * Adds {@code n}, which may be negative, to the pending byte count and, unless the
+     * subscription is exempt, to the connection-wide pending total. Assumes the lock is held.
+     */
+    void addPendingBytes(int n) {
+        pBytes += n;
+        if (pBytes > pBytesMax) {
+            pBytesMax = pBytes;
+        }
+        if (budgeted && conn != null) {
+            conn.addPendingBytes(n);
+        }
+    }
+
+    /**
+     * Takes the pending bytes of this subscription out of the connection-wide pending total and
+     * exempts it from the budget from now on. Assumes the lock is held.
+     */
+    void releasePendingBytes() {
+        if (budgeted && conn != null) {
+            conn.addPendingBytes(-pBytes);
+        }
+        if (budgetShare && conn != null) {
+            conn.releaseBudgetShare();
+        }
+        budgetShare = false;
+        budgeted = false;
+    }
+
     @Override
     public String getSubject() {
         return subject;
@@ -184,6 +244,16 @@ abstract class SubscriptionImpl implements Subscription {
     }
 
 
+    @Override
+    public long getReceivedMsgs() {
+        return msgs;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return bytes;
+    }
+
     @Override
     public int getDropped() {
         int rv = 0;
@@ -199,6 +269,75 @@ abstract class SubscriptionImpl implements Subscription {
         return rv;
     }
 
+    @Override
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("nats: slow consumer policy cannot be null");
+        }
+        mu.lock();
+        try {
+            slowConsumerPolicy = policy;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        mu.lock();
+        try {
+            return slowConsumerPolicy;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public long getSlowConsumerEvents() {
+        mu.lock();
+        try {
+            return slowConsumerEvents;
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public long getBlockedTime(TimeUnit unit) {
+        mu.lock();
+        try {
+            return unit.convert(blockedNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} if the pending queue, grown by {@code extraMsgs} messages and
+     *         {@code extraBytes} bytes, is over its own limits or over its share of the
+     *         connection-wide pending budget. Assumes the lock is held.
+     */
+    boolean isOverPendingLimits(int extraMsgs, int extraBytes) {
+        return (pMsgsLimit > 0 && pMsgs + extraMsgs > pMsgsLimit)
+                || (pBytesLimit > 0 && pBytes + extraBytes > pBytesLimit)
+                || (budgeted && conn != null && conn.isOverPendingBudget(pBytes, extraBytes));
+    }
+
+    @Override
+    public int getConflated() {
+        int rv = 0;
+        mu.lock();
+        try {
+            if (conn == null) {
+                throw new IllegalStateException(ERR_BAD_SUBSCRIPTION);
+            }
+            rv = conflated;
+        } finally {
+            mu.unlock();
+        }
+        return rv;
+    }
+
     @Override
     public int getPendingMsgsMax() {
         int rv = 0;
@@ -233,10 +372,115 @@ abstract class SubscriptionImpl implements Subscription {
 
     @Override
     public void setPendingLimits(int msgs, int bytes) {
+        mu.lock();
+        try {
+            adaptive = null;
+        } finally {
+            mu.unlock();
+        }
         setPendingMsgsLimit(msgs);
         setPendingBytesLimit(bytes);
     }
 
+    @Override
+    public void setAdaptivePendingLimits(long burst, TimeUnit unit) {
+        mu.lock();
+        try {
+            adaptive = (burst == 0) ? null : new AdaptivePendingLimits(unit.toNanos(burst));
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public long getAdaptiveBurst(TimeUnit unit) {
+        mu.lock();
+        try {
+            return (adaptive == null) ? 0 : adaptive.getBurst(unit);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public double getConsumptionRate() {
+        mu.lock();
+        try {
+            return (adaptive == null) ? 0 : adaptive.getRate();
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public long getHandlerLatency(TimeUnit unit) {
+        mu.lock();
+        try {
+            return (adaptive == null) ? 0
+                    : unit.convert((long) adaptive.getLatency(), TimeUnit.NANOSECONDS);
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public long getPendingLimitAdjustments() {
+        mu.lock();
+        try {
+            return (adaptive == null) ? 0 : adaptive.getAdjustments();
+        } finally {
+            mu.unlock();
+        }
+    }
+
+    @Override
+    public LatencyHistogram getSojournHistogram() {
+        return (sojourn == null) ? new LatencyHistogram() : sojourn.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram getHandlerHistogram() {
+        return (handlerTime == null) ? new LatencyHistogram() : handlerTime.snapshot();
+    }
+
+    // Records the sojourn of a message taken from the pending queue at now.
+    void recordSojourn(Message msg, long now) {
+        if (sojourn != null && msg.enqueuedNanos != 0) {
+            sojourn.record(now - msg.enqueuedNanos);
+        }
+    }
+
+    /**
+     * Feeds a message taken from the pending queue, and the handler time of the previous message
+     * if known ({@code handlerNanos < 0} if not), to the adaptive pending limits, and resizes the
+     * limits when a sample window closes. Does nothing unless adaptive limits are enabled. Assumes
+     * the lock is held.
+     */
+    void recordConsumption(Message msg, long handlerNanos) {
+        if (adaptive == null) {
+            return;
+        }
+        if (handlerNanos >= 0) {
+            adaptive.recordHandled(handlerNanos);
+        }
+        int size = (msg.getData() == null) ? 0 : msg.getData().length;
+        if (!adaptive.recordDequeued(size, System.nanoTime())) {
+            return;
+        }
+        long budget = (conn == null) ? 0 : conn.getMaxPendingBytes();
+        int msgs = adaptive.msgsLimit(DEFAULT_MAX_PENDING_MSGS);
+        int bytes = adaptive.bytesLimit(msgs, budget > 0 ? budget : DEFAULT_MAX_PENDING_BYTES);
+        if (AdaptivePendingLimits.shouldAdjust(pMsgsLimit, msgs)
+                || AdaptivePendingLimits.shouldAdjust(pBytesLimit, bytes)) {
+            logger.debug("nats: pending limits of '{}' adapted from {}/{} to {} msgs/{} bytes "
+                    + "({} msgs/s)", subject, pMsgsLimit, pBytesLimit, msgs, bytes,
+                    (long) adaptive.getRate());
+            pMsgsLimit = msgs;
+            pBytesLimit = bytes;
+            adaptive.adjusted();
+        }
+    }
+
     void setPendingMsgsLimit(int pendingMsgsLimit) {
         mu.lock();
         try {
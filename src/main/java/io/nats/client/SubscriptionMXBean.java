@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+/**
+ * The JMX management interface of a subscription, registered as
+ * {@code io.nats.client:type=Subscription,connection=<n>,sid=<sid>} when
+ * {@link ConnectionFactory#setJmxEnabled(boolean)} is set.
+ */
+public interface SubscriptionMXBean {
+
+    /**
+     * @return the subject of this subscription.
+     */
+    String getSubject();
+
+    /**
+     * @return the queue group of this subscription, or {@code null} if none.
+     */
+    String getQueue();
+
+    /**
+     * @return the number of messages pending on this subscription.
+     */
+    int getPendingMsgs();
+
+    /**
+     * @return the number of payload bytes pending on this subscription.
+     */
+    int getPendingBytes();
+
+    /**
+     * @return the highest number of pending messages seen.
+     */
+    int getPendingMsgsMax();
+
+    /**
+     * @return the highest number of pending bytes seen.
+     */
+    int getPendingBytesMax();
+
+    /**
+     * @return the pending message limit.
+     */
+    int getPendingMsgsLimit();
+
+    /**
+     * @return the pending byte limit.
+     */
+    int getPendingBytesLimit();
+
+    /**
+     * @return the number of messages dropped as a slow consumer.
+     */
+    int getDropped();
+
+    /**
+     * @return the number of messages delivered.
+     */
+    long getDelivered();
+
+    /**
+     * @return the number of messages received for this subscription.
+     */
+    long getReceivedMsgs();
+
+    /**
+     * @return the number of payload bytes received for this subscription.
+     */
+    long getReceivedBytes();
+
+    /**
+     * @return the slow consumer policy of this subscription.
+     */
+    String getSlowConsumerPolicy();
+
+    /**
+     * @return the number of messages that triggered the slow consumer policy.
+     */
+    long getSlowConsumerEvents();
+
+    /**
+     * @return the time, in milliseconds, the reader spent blocked under
+     *         {@link SlowConsumerPolicy#BLOCK}.
+     */
+    long getBlockedTimeMillis();
+}
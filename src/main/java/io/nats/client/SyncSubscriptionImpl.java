@@ -111,7 +111,12 @@ class SyncSubscriptionImpl extends SubscriptionImpl implements SyncSubscription
             this.delivered++;
             long delivered = this.delivered;
             pMsgs--;
-            pBytes -= (msg.getData() != null ? msg.getData().length : 0);
+            addPendingBytes(-(msg.getData() != null ? msg.getData().length : 0));
+            pSpace.signal();
+            recordConsumption(msg, -1L);
+            if (sojourn != null) {
+                recordSojourn(msg, System.nanoTime());
+            }
             mu.unlock();
 
             if (localMax > 0) {
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.AdaptivePendingLimits.MIN_PENDING_BYTES;
+import static io.nats.client.AdaptivePendingLimits.MIN_PENDING_MSGS;
+import static io.nats.client.AdaptivePendingLimits.SAMPLE_INTERVAL_NANOS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class AdaptivePendingLimitsTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testObservedRateSizesLimits() {
+        AdaptivePendingLimits a = new AdaptivePendingLimits(SECOND);
+        // 1000 messages of 100 bytes in one sample window: 4000 msgs/s.
+        long now = 0;
+        for (int i = 0; i < 999; i++) {
+            assertFalse(a.recordDequeued(100, now));
+        }
+        assertTrue(a.recordDequeued(100, now + SAMPLE_INTERVAL_NANOS));
+        assertEquals(4000.0, a.getRate(), 0.001);
+        assertEquals(0.0, a.getLatency(), 0.0);
+
+        int msgs = a.msgsLimit(65536);
+        assertEquals(4000, msgs);
+        assertEquals(800000, a.bytesLimit(msgs, Long.MAX_VALUE));
+        // Both are kept within the bounds.
+        assertEquals(1000, a.msgsLimit(1000));
+        assertEquals(500000, a.bytesLimit(msgs, 500000));
+    }
+
+    @Test
+    public void testHandlerLatencyDrivesRate() {
+        AdaptivePendingLimits a = new AdaptivePendingLimits(SECOND / 10);
+        // A 1ms handler sustains 1000 msgs/s, whatever the arrival rate.
+        a.recordHandled(TimeUnit.MILLISECONDS.toNanos(1));
+        a.recordDequeued(10, 0);
+        a.recordHandled(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(a.recordDequeued(10, SAMPLE_INTERVAL_NANOS));
+        assertEquals(1000.0, a.getRate(), 0.001);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), (long) a.getLatency());
+        assertEquals(100, a.msgsLimit(65536));
+    }
+
+    @Test
+    public void testBytesLimitFitsInt() {
+        AdaptivePendingLimits a = new AdaptivePendingLimits(SECOND);
+        a.recordDequeued(1 << 20, 0);
+        a.recordDequeued(1 << 20, SAMPLE_INTERVAL_NANOS);
+        // 65536 messages of 1MB would allow 128GB.
+        assertEquals(Integer.MAX_VALUE, a.bytesLimit(65536, Long.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, a.bytesLimit(65536, 1L << 40));
+    }
+
+    @Test
+    public void testFloorAndSmoothing() {
+        AdaptivePendingLimits a = new AdaptivePendingLimits(SECOND);
+        a.recordDequeued(0, 0);
+        a.recordDequeued(0, SAMPLE_INTERVAL_NANOS);
+        // 8 msgs/s would allow 8 messages; the floor applies.
+        assertEquals(MIN_PENDING_MSGS, a.msgsLimit(65536));
+        assertEquals(MIN_PENDING_BYTES, a.bytesLimit(MIN_PENDING_MSGS, Long.MAX_VALUE));
+
+        // A faster window moves the estimate only part of the way.
+        long now = SAMPLE_INTERVAL_NANOS;
+        for (int i = 0; i < 100; i++) {
+            a.recordDequeued(0, now);
+        }
+        a.recordDequeued(0, now + SAMPLE_INTERVAL_NANOS);
+        assertTrue(a.getRate() > 8.0);
+        assertTrue(a.getRate() < 404.0);
+    }
+
+    @Test
+    public void testShouldAdjust() {
+        assertTrue(AdaptivePendingLimits.shouldAdjust(-1, 100));
+        assertFalse(AdaptivePendingLimits.shouldAdjust(100, 120));
+        assertTrue(AdaptivePendingLimits.shouldAdjust(100, 130));
+        assertTrue(AdaptivePendingLimits.shouldAdjust(100, 70));
+    }
+
+    @Test
+    public void testInvalidBurst() {
+        thrown.expect(IllegalArgumentException.class);
+        new AdaptivePendingLimits(0);
+    }
+}
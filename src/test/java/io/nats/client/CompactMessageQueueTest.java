@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.UnitTestUtilities.newMockedConnection;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+
+import java.util.Iterator;
+
+@Category(UnitTest.class)
+public class CompactMessageQueueTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    private static Message msg(int i) {
+        return new Message("compact." + i, (i % 3 == 0) ? "_INBOX." + i : null,
+                (i % 5 == 0) ? null : ("payload-" + i).getBytes());
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getSubject(), actual.getSubject());
+        assertEquals(expected.getReplyTo(), actual.getReplyTo());
+        assertArrayEquals(expected.getData(), actual.getData());
+    }
+
+    @Test
+    public void testRoundTripAcrossWrap() {
+        CompactMessageQueue q = new CompactMessageQueue(256);
+        int next = 0;
+        int expected = 0;
+        // Keep a few frames queued so the read and write positions wrap around the ring.
+        for (int i = 0; i < 3; i++) {
+            q.offer(msg(next++));
+        }
+        for (int round = 0; round < 200; round++) {
+            q.offer(msg(next++));
+            assertSameMessage(msg(expected++), q.poll());
+        }
+        assertEquals(256, q.capacity());
+        assertEquals(3, q.size());
+        while (expected < next) {
+            assertSameMessage(msg(expected++), q.poll());
+        }
+        assertNull(q.poll());
+        assertEquals(0, q.usedBytes());
+    }
+
+    @Test
+    public void testGrowsAndShrinks() {
+        CompactMessageQueue q = new CompactMessageQueue(64);
+        int used = 0;
+        for (int i = 0; i < 100; i++) {
+            Message m = msg(i);
+            q.offer(m);
+            used += 12 + m.getSubjectBytes().length
+                    + (m.getReplyToBytes() == null ? 0 : m.getReplyToBytes().length)
+                    + (m.getData() == null ? 0 : m.getData().length);
+        }
+        // Frames are stored back to back: payload, subjects and 12 bytes of framing each.
+        assertEquals(used, q.usedBytes());
+        assertTrue(q.capacity() >= used);
+
+        for (int i = 0; i < 100; i++) {
+            assertSameMessage(msg(i), q.poll());
+        }
+        assertEquals(64, q.capacity());
+    }
+
+    @Test
+    public void testPeekAndSnapshotDoNotConsume() {
+        CompactMessageQueue q = new CompactMessageQueue(64);
+        for (int i = 0; i < 10; i++) {
+            q.offer(msg(i));
+        }
+        assertSameMessage(msg(0), q.peek());
+        Iterator<Message> it = q.iterator();
+        for (int i = 0; i < 10; i++) {
+            assertSameMessage(msg(i), it.next());
+        }
+        assertFalse(it.hasNext());
+        assertEquals(10, q.size());
+        assertSameMessage(msg(0), q.poll());
+
+        q.clear();
+        assertEquals(0, q.size());
+        assertNull(q.peek());
+    }
+
+    @Test
+    public void testOfferFromReadBuffer() throws Exception {
+        Options opts = new ConnectionFactory().options();
+        opts.setLatencyHistograms(true);
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(opts)) {
+            SubscriptionImpl sub = new SyncSubscriptionImpl(c, "foo", null);
+            Parser.MsgArg ma = c.parser.new MsgArg();
+            ma.subject.put("foo".getBytes()).flip();
+            ma.reply.put("bar".getBytes()).flip();
+            byte[] buf = "--hello--".getBytes();
+
+            CompactMessageQueue q = new CompactMessageQueue(64);
+            assertTrue(q.offer(sub, ma, buf, 2, 5, 42L));
+            // The frame carries the enqueue time, since the subscription records sojourn times.
+            assertEquals(20 + 3 + 3 + 5, q.usedBytes());
+            Message m = q.poll();
+            assertEquals("foo", m.getSubject());
+            assertEquals("bar", m.getReplyTo());
+            assertArrayEquals("hello".getBytes(), m.getData());
+            assertEquals(42L, m.enqueuedNanos);
+            assertSame(sub, m.sub);
+        }
+    }
+
+    @Test
+    public void testInvalidCapacity() {
+        thrown.expect(IllegalArgumentException.class);
+        new CompactMessageQueue(0);
+    }
+}
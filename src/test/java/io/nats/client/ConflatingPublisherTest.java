@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+import org.mockito.InOrder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class ConflatingPublisherTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testLatestValuePublishedPerWindow() throws Exception {
+        Connection nc = mock(Connection.class);
+        try (ConflatingPublisher cp = new ConflatingPublisher(nc, 100, TimeUnit.MILLISECONDS)) {
+            byte[] last = null;
+            for (int i = 0; i < 10; i++) {
+                last = String.valueOf(i).getBytes();
+                cp.publish("foo", last);
+            }
+            assertEquals(1, cp.getHeld());
+            verify(nc, never()).publish(anyString(), (String) isNull(), any(byte[].class));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (cp.getSent() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            verify(nc, times(1)).publish(anyString(), (String) isNull(), any(byte[].class));
+            verify(nc).publish(eq("foo"), (String) isNull(), eq(last));
+            assertEquals(10, cp.getPublished());
+            assertEquals(9, cp.getConflated());
+            assertEquals(1, cp.getSent());
+            assertEquals(0, cp.getHeld());
+        }
+    }
+
+    @Test
+    public void testFlushPublishesInFirstPublishedOrder() throws Exception {
+        Connection nc = mock(Connection.class);
+        byte[] bar = "bar2".getBytes();
+        byte[] foo = "foo2".getBytes();
+        try (ConflatingPublisher cp = new ConflatingPublisher(nc, 1, TimeUnit.HOURS)) {
+            cp.publish("bar", "bar1".getBytes());
+            cp.publish("foo", "foo1".getBytes());
+            cp.publish("bar", "_INBOX.bar", bar);
+            cp.publish("foo", foo);
+            cp.flush();
+
+            InOrder order = inOrder(nc);
+            order.verify(nc).publish("bar", "_INBOX.bar", bar);
+            order.verify(nc).publish("foo", null, foo);
+            assertEquals(2, cp.getSent());
+            assertEquals(2, cp.getConflated());
+        }
+    }
+
+    @Test
+    public void testClosePublishesHeldMessages() throws Exception {
+        Connection nc = mock(Connection.class);
+        byte[] data = "hello".getBytes();
+        ConflatingPublisher cp = new ConflatingPublisher(nc, 1, TimeUnit.HOURS);
+        cp.publish("foo", data);
+        cp.close();
+        verify(nc).publish("foo", null, data);
+
+        thrown.expect(IllegalStateException.class);
+        cp.publish("foo", data);
+    }
+
+    @Test
+    public void testPayloadCopied() throws Exception {
+        Connection nc = mock(Connection.class);
+        byte[] data = "hello".getBytes();
+        try (ConflatingPublisher cp = new ConflatingPublisher(nc, 1, TimeUnit.HOURS)) {
+            cp.publish("foo", data);
+            data[0] = 'j';
+            cp.flush();
+            verify(nc).publish("foo", null, "hello".getBytes());
+        }
+    }
+
+    @Test
+    public void testPublishErrorsCounted() throws Exception {
+        Connection nc = mock(Connection.class);
+        doThrow(new IllegalStateException(Constants.ERR_CONNECTION_CLOSED)).when(nc)
+                .publish(eq("foo"), (String) isNull(), any(byte[].class));
+        doThrow(new IOException("broken pipe")).when(nc)
+                .publish(eq("bar"), (String) isNull(), any(byte[].class));
+        try (ConflatingPublisher cp = new ConflatingPublisher(nc, 1, TimeUnit.HOURS)) {
+            cp.publish("foo", "a".getBytes());
+            cp.publish("bar", "b".getBytes());
+            cp.publish("baz", "c".getBytes());
+            cp.flush();
+            assertEquals(2, cp.getErrors());
+            assertEquals(1, cp.getSent());
+        }
+    }
+
+    @Test
+    public void testBadSubject() {
+        Connection nc = mock(Connection.class);
+        try (ConflatingPublisher cp = new ConflatingPublisher(nc, 1, TimeUnit.SECONDS)) {
+            thrown.expect(IllegalArgumentException.class);
+            thrown.expectMessage(Constants.ERR_BAD_SUBJECT);
+            cp.publish("", "a".getBytes());
+        }
+    }
+
+    @Test
+    public void testNullConnection() {
+        thrown.expect(NullPointerException.class);
+        new ConflatingPublisher(null, 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testInvalidWindow() {
+        thrown.expect(IllegalArgumentException.class);
+        new ConflatingPublisher(mock(Connection.class), 0, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class ConflatingQueueTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testReplaceKeepsPosition() {
+        ConflatingQueue q = new ConflatingQueue(ConflatingQueue.SUBJECT);
+        Message a1 = new Message("a", null, "1".getBytes());
+        Message b1 = new Message("b", null, "1".getBytes());
+        Message a2 = new Message("a", null, "2".getBytes());
+
+        q.add(a1);
+        q.add(b1);
+        assertSame(a1, q.replace(a2));
+        assertNull(q.replace(new Message("c", null, null)));
+        assertEquals(2, q.size());
+
+        assertSame(a2, q.poll());
+        assertSame(b1, q.poll());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void testCustomKeyExtractor() {
+        ConflatingQueue q = new ConflatingQueue(new MessageKeyExtractor() {
+            public Object extractKey(Message msg) {
+                // Key by the first byte of the payload.
+                return msg.getData() == null ? null : msg.getData()[0];
+            }
+        });
+        Message x1 = new Message("foo", null, "x1".getBytes());
+        Message x2 = new Message("bar", null, "x2".getBytes());
+        Message none = new Message("foo", null, null);
+
+        q.add(x1);
+        q.add(none);
+        assertSame(x1, q.replace(x2));
+        // Messages without a key are never conflated.
+        assertNull(q.replace(new Message("foo", null, null)));
+        q.add(new Message("foo", null, null));
+        assertEquals(3, q.size());
+
+        List<Message> drained = new ArrayList<Message>();
+        assertEquals(3, q.drainTo(drained));
+        assertSame(x2, drained.get(0));
+        assertSame(none, drained.get(1));
+        assertEquals(0, q.size());
+    }
+
+    @Test
+    public void testTakeBlocksUntilOffer() throws Exception {
+        final ConflatingQueue q = new ConflatingQueue(ConflatingQueue.SUBJECT);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            Future<Message> taken = exec.submit(new Callable<Message>() {
+                public Message call() throws Exception {
+                    return q.take();
+                }
+            });
+            Thread.sleep(50);
+            Message msg = new Message("foo", null, null);
+            q.offer(msg);
+            assertSame(msg, taken.get(5, TimeUnit.SECONDS));
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        ConflatingQueue q = new ConflatingQueue(ConflatingQueue.SUBJECT);
+        assertNull(q.poll(10, TimeUnit.MILLISECONDS));
+        assertNull(q.peek());
+    }
+
+    @Test
+    public void testNullKeyExtractor() {
+        thrown.expect(NullPointerException.class);
+        new ConflatingQueue(null);
+    }
+}
@@ -23,6 +23,8 @@ import static io.nats.client.ConnectionFactory.PROP_PORT;
 import static io.nats.client.ConnectionFactory.PROP_RECONNECTED_CB;
 import static io.nats.client.ConnectionFactory.PROP_RECONNECT_ALLOWED;
 import static io.nats.client.ConnectionFactory.PROP_RECONNECT_BUF_SIZE;
+import static io.nats.client.ConnectionFactory.PROP_RECONNECT_SPILL_DIR;
+import static io.nats.client.ConnectionFactory.PROP_RECONNECT_SPILL_SIZE;
 import static io.nats.client.ConnectionFactory.PROP_RECONNECT_WAIT;
 import static io.nats.client.ConnectionFactory.PROP_SECURE;
 import static io.nats.client.ConnectionFactory.PROP_SERVERS;
@@ -110,6 +112,8 @@ public class ConnectionFactoryTest
     static final int maxReconnect = 14;
     static final int reconnectWait = 100;
     static final int reconnectBufSize = 12 * 1024 * 1024;
+    static final long reconnectSpillSize = 512L * 1024 * 1024;
+    static final String reconnectSpillDir = "/var/tmp/nats";
     static final int timeout = 2000;
     static final int pingInterval = 5000;
     static final int maxPings = 4;
@@ -139,6 +143,8 @@ public class ConnectionFactoryTest
         props.setProperty(PROP_MAX_RECONNECT, Integer.toString(maxReconnect));
         props.setProperty(PROP_RECONNECT_WAIT, Integer.toString(reconnectWait));
         props.setProperty(PROP_RECONNECT_BUF_SIZE, Integer.toString(reconnectBufSize));
+        props.setProperty(PROP_RECONNECT_SPILL_SIZE, Long.toString(reconnectSpillSize));
+        props.setProperty(PROP_RECONNECT_SPILL_DIR, reconnectSpillDir);
         props.setProperty(PROP_CONNECTION_TIMEOUT, Integer.toString(timeout));
         props.setProperty(PROP_PING_INTERVAL, Integer.toString(pingInterval));
         props.setProperty(PROP_MAX_PINGS, Integer.toString(maxPings));
@@ -166,6 +172,8 @@ public class ConnectionFactoryTest
         assertEquals(maxReconnect, cf.getMaxReconnect());
         assertEquals(reconnectWait, cf.getReconnectWait());
         assertEquals(reconnectBufSize, cf.getReconnectBufSize());
+        assertEquals(reconnectSpillSize, cf.getReconnectSpillSize());
+        assertEquals(reconnectSpillDir, cf.getReconnectSpillDir());
         assertEquals(timeout, cf.getConnectionTimeout());
         assertEquals(pingInterval, cf.getPingInterval());
         assertEquals(maxPings, cf.getMaxPingsOut());
@@ -940,4 +948,65 @@ public class ConnectionFactoryTest
         cf.setReconnectBufSize(-14);
         assertEquals(ConnectionFactory.DEFAULT_RECONNECT_BUF_SIZE, cf.getReconnectBufSize());
     }
+
+    @Test
+    public void testSetReconnectSpillSizeNegative() {
+        ConnectionFactory cf = new ConnectionFactory();
+        cf.setReconnectSpillSize(-14);
+        assertEquals(ConnectionFactory.DEFAULT_RECONNECT_SPILL_SIZE, cf.getReconnectSpillSize());
+    }
+
+    @Test
+    public void testReconnectSpillOptions() {
+        ConnectionFactory cf = new ConnectionFactory();
+        cf.setReconnectSpillSize(1024L * 1024 * 1024);
+        cf.setReconnectSpillDir("/var/tmp");
+        ConnectionFactory copy = cf.clone();
+        Options opts = copy.options();
+        assertEquals(1024L * 1024 * 1024, opts.getReconnectSpillSize());
+        assertEquals("/var/tmp", opts.getReconnectSpillDir());
+    }
+
+    @Test
+    public void testBackpressureOptions() {
+        ConnectionFactory cf = new ConnectionFactory();
+        assertEquals(ConnectionFactory.DEFAULT_OUTBOUND_HIGH_WATERMARK,
+                cf.getOutboundHighWatermark());
+        assertEquals(BackpressurePolicy.BLOCK, cf.getBackpressurePolicy());
+        cf.setOutboundHighWatermark(1024 * 1024);
+        cf.setOutboundLowWatermark(256 * 1024);
+        cf.setBackpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+        cf.setBackpressureTimeout(500);
+        BackpressureCallback cb = new BackpressureCallback() {
+            public void onHighWatermark(ConnectionEvent event) {}
+
+            public void onLowWatermark(ConnectionEvent event) {}
+        };
+        cf.setBackpressureCallback(cb);
+        Options opts = cf.clone().options();
+        assertEquals(1024 * 1024, opts.getOutboundHighWatermark());
+        assertEquals(256 * 1024, opts.getOutboundLowWatermark());
+        assertEquals(BackpressurePolicy.DROP_OLDEST, opts.getBackpressurePolicy());
+        assertEquals(500, opts.getBackpressureTimeout());
+        assertEquals(cb, opts.getBackpressureCallback());
+    }
+
+    @Test
+    public void testBackpressureProperties() {
+        Properties props = new Properties();
+        props.setProperty(ConnectionFactory.PROP_OUTBOUND_HIGH_WATERMARK, "4096");
+        props.setProperty(ConnectionFactory.PROP_OUTBOUND_LOW_WATERMARK, "1024");
+        props.setProperty(ConnectionFactory.PROP_BACKPRESSURE_POLICY, "fail_fast");
+        props.setProperty(ConnectionFactory.PROP_BACKPRESSURE_TIMEOUT, "250");
+        ConnectionFactory cf = new ConnectionFactory(props);
+        assertEquals(4096, cf.getOutboundHighWatermark());
+        assertEquals(1024, cf.getOutboundLowWatermark());
+        assertEquals(BackpressurePolicy.FAIL_FAST, cf.getBackpressurePolicy());
+        assertEquals(250, cf.getBackpressureTimeout());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetOutboundHighWatermarkNegative() {
+        new ConnectionFactory().setOutboundHighWatermark(-1);
+    }
 }
@@ -28,7 +28,9 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
@@ -79,9 +81,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -115,9 +120,6 @@ public class ConnectionImplTest {
     @Mock
     private Message msgMock;
 
-    @Mock
-    private BlockingQueue<Boolean> pongsMock;
-
     @Mock
     private BufferedOutputStream bwMock;
 
@@ -125,7 +127,7 @@ public class ConnectionImplTest {
     private InputStream brMock;
 
     @Mock
-    private ByteArrayOutputStream pendingMock;
+    private ReconnectBuffer pendingMock;
 
     @Mock
     private ByteBuffer pubProtoBufMock;
@@ -276,9 +278,8 @@ public class ConnectionImplTest {
     @Test
     public void testFlushReconnectPendingItems() throws IOException, TimeoutException {
         try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
-            ByteArrayOutputStream baos = mock(ByteArrayOutputStream.class);
-            when(baos.size()).thenReturn(c.pingProtoBytesLen);
-            when(baos.toByteArray()).thenReturn(c.pingProtoBytes);
+            ReconnectBuffer baos = mock(ReconnectBuffer.class);
+            when(baos.size()).thenReturn((long) c.pingProtoBytesLen);
 
             assertNull(c.getPending());
             assertEquals(0, c.getPendingByteCount());
@@ -287,8 +288,9 @@ public class ConnectionImplTest {
             c.setPending(baos);
             c.setOutputStream(bwMock);
             c.flushReconnectPendingItems();
-            verify(baos, times(1)).toByteArray();
-            verify(bwMock, times(1)).write(eq(c.pingProtoBytes), eq(0), eq(c.pingProtoBytesLen));
+            verify(baos, times(1)).writeTo(bwMock);
+            verify(baos, times(1)).close();
+            assertNull(c.getPending());
 
             // Test with PING pending
             doThrow(new IOException("IOException from testFlushReconnectPendingItems")).when(bwMock)
@@ -299,8 +301,7 @@ public class ConnectionImplTest {
             c.setOutputStream(bwMock);
             c.flushReconnectPendingItems();
             verifier.verifyLogMsgEquals(Level.ERROR, "Error flushing pending items");
-            verify(baos, times(2)).toByteArray();
-            verify(bwMock, times(2)).write(eq(c.pingProtoBytes), eq(0), eq(c.pingProtoBytesLen));
+            verify(baos, times(2)).writeTo(bwMock);
         }
     }
 
@@ -391,27 +392,124 @@ public class ConnectionImplTest {
     }
 
     @Test
-    public void testRemoveFlushEntry() {
+    public void testPongsMatchedBySequence() throws Exception {
         try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
-            ArrayList<BlockingQueue<Boolean>> pongs = new ArrayList<BlockingQueue<Boolean>>();
-            c.setPongs(pongs);
-            assertEquals(pongs, c.getPongs());
-            // Basic case
-            BlockingQueue<Boolean> testChan = new LinkedBlockingQueue<Boolean>();
-            testChan.add(true);
-            pongs.add(testChan);
-            assertTrue("Failed to find chan", c.removeFlushEntry(testChan));
-
-            BlockingQueue<Boolean> testChan2 = new LinkedBlockingQueue<Boolean>();
-            testChan2.add(false);
-            pongs.add(testChan);
-            assertFalse("Should not have found chan", c.removeFlushEntry(testChan2));
-
-            pongs.clear();
-            assertFalse("Should have returned false", c.removeFlushEntry(testChan));
+            long sent = c.getPingsSent();
+            c.flush();
+            c.flush();
+            assertEquals(sent + 2, c.getPingsSent());
+            assertEquals(c.getPingsSent(), c.getPongsReceived());
+            assertEquals(0, c.getPongWaiterCount());
+        }
+    }
 
-        } catch (IOException | TimeoutException e) {
-            fail("Unexpected exception: " + e.getMessage());
+    @Test
+    public void testFlushAsyncPiggybacksOnOutstandingPing() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection();
+                SyncSubscription sub = c.subscribeSync("foo")) {
+            TcpConnectionMock mock = (TcpConnectionMock) c.getTcpConnection();
+            mock.setNoPongs(true);
+            long sent = c.getPingsSent();
+            Future<Void> first = c.flushAsync();
+            Future<Void> second = c.flushAsync();
+            // Nothing was written in between, so both wait on the same PING.
+            assertSame(first, second);
+            assertEquals(sent + 1, c.getPingsSent());
+            try {
+                c.flush(100);
+                fail("Should have timed out");
+            } catch (TimeoutException e) {
+                assertEquals(ERR_TIMEOUT, e.getMessage());
+            }
+            assertEquals(sent + 1, c.getPingsSent());
+            assertEquals(1, c.getPongWaiterCount());
+
+            // A publish after the PING is not covered by it.
+            c.publish("foo", "bar".getBytes());
+            Future<Void> third = c.flushAsync();
+            assertNotSame(first, third);
+            assertEquals(sent + 2, c.getPingsSent());
+            assertFalse(first.isDone());
+
+            c.close();
+            assertEquals(0, c.getPongWaiterCount());
+            try {
+                third.get(1, TimeUnit.SECONDS);
+                fail("Should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(first.isDone());
+        }
+    }
+
+    @Test
+    public void testFlushDoesNotPiggybackOnKeepalive() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection();
+                SyncSubscription sub = c.subscribeSync("foo")) {
+            TcpConnectionMock mock = (TcpConnectionMock) c.getTcpConnection();
+            mock.setNoPongs(true);
+            long sent = c.getPingsSent();
+            c.publish("foo", "bar".getBytes());
+            // The keepalive may overtake the queued publish, so it cannot confirm it.
+            c.mu.lock();
+            try {
+                c.sendPing(null);
+            } finally {
+                c.mu.unlock();
+            }
+            Future<Void> flushed = c.flushAsync();
+            assertEquals(sent + 2, c.getPingsSent());
+            c.processPong();
+            assertFalse(flushed.isDone());
+            c.processPong();
+            assertNull(flushed.get(1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testClearPendingFlushCallsKeepsUnsentPings() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection();
+                SyncSubscription sub = c.subscribeSync("foo")) {
+            TcpConnectionMock mock = (TcpConnectionMock) c.getTcpConnection();
+            mock.setNoPongs(true);
+            long sent = c.getPingsSent();
+            Future<Void> lost = c.flushAsync();
+            c.publish("foo", "bar".getBytes());
+            Future<Void> pending = c.flushAsync();
+            // As after a disconnect in which only the first PING reached the old socket.
+            c.mu.lock();
+            try {
+                c.clearPendingFlushCalls(sent + 1);
+            } finally {
+                c.mu.unlock();
+            }
+            assertTrue(lost.isDone());
+            assertFalse(pending.isDone());
+            assertEquals(sent + 1, c.getPongsReceived());
+            // The replayed PING's PONG confirms the second flush.
+            c.processPong();
+            assertNull(pending.get(1, TimeUnit.SECONDS));
+            assertEquals(0, c.getPongWaiterCount());
+        }
+    }
+
+    @Test
+    public void testFlushAsyncConfirmedByPong() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            Future<Void> f = c.flushAsync();
+            assertNull(f.get(5, TimeUnit.SECONDS));
+            assertEquals(c.getPingsSent(), c.getPongsReceived());
+        }
+    }
+
+    @Test
+    public void testFlushAsyncClosedFailure() throws Exception {
+        thrown.expect(IllegalStateException.class);
+        thrown.expectMessage(ERR_CONNECTION_CLOSED);
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            c.close();
+            c.flushAsync();
         }
     }
 
@@ -843,6 +941,91 @@ public class ConnectionImplTest {
         }
     }
 
+    @Test
+    public void testPublishAsyncConfirmedByPong() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            // The mock server echoes publishes, so give them a subscriber.
+            c.subscribeSync("foo");
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(c.publishAsync("foo", ("msg" + i).getBytes()));
+            }
+            for (Future<Void> f : futures) {
+                assertNull(f.get(5, TimeUnit.SECONDS));
+                assertTrue(f.isDone());
+            }
+            assertEquals(100, c.getStats().getOutMsgs());
+        }
+    }
+
+    @Test
+    public void testPublishAsyncFenceBatchesPublishes() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            c.subscribeSync("foo");
+            c.subscribeSync("bar");
+            // Hold the lock so that the flusher cannot close the fence in between.
+            c.mu.lock();
+            Future<Void> f1;
+            Future<Void> f2;
+            try {
+                f1 = c.publishAsync("foo", "a".getBytes());
+                f2 = c.publishAsync("bar", "b".getBytes());
+            } finally {
+                c.mu.unlock();
+            }
+            assertSame(f1, f2);
+            f1.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPublishAsyncFailsOnClose() throws Exception {
+        ConnectionImpl c = (ConnectionImpl) newMockedConnection();
+        Future<Void> f;
+        c.mu.lock();
+        try {
+            f = c.publishAsync("foo", "a".getBytes());
+        } finally {
+            c.mu.unlock();
+        }
+        c.close();
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            fail("Should have thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals(Constants.ERR_PUBLISH_NOT_CONFIRMED, e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testPublishAsyncFailsOnDisconnect() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            Future<Void> f;
+            c.mu.lock();
+            try {
+                f = c.publishAsync("foo", "a".getBytes());
+                c.processOpError(new IOException("testPublishAsyncFailsOnDisconnect()"));
+            } finally {
+                c.mu.unlock();
+            }
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                fail("Should have thrown");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+                assertEquals(Constants.ERR_PUBLISH_NOT_CONFIRMED, e.getCause().getMessage());
+            }
+            // A publish while reconnecting opens a new fence rather than joining the old one.
+            c.mu.lock();
+            try {
+                assertNotSame(f, c.publishAsync("foo", "b".getBytes()));
+            } finally {
+                c.mu.unlock();
+            }
+        }
+    }
+
     @Test
     public void testPublishClosedConnection() throws IOException, TimeoutException {
         thrown.expect(IllegalStateException.class);
@@ -853,13 +1036,41 @@ public class ConnectionImplTest {
         }
     }
 
+    @Test
+    public void testPublishReconnectingAppliesBufferedPublishPolicy()
+            throws IOException, TimeoutException {
+        ConnectionFactory cf = new ConnectionFactory();
+        cf.setBufferedPublishPolicy("ticks.>",
+                new BufferedPublishPolicy(BufferedPublishPolicy.Priority.LOW));
+        cf.setBufferedPublishPolicy("orders",
+                new BufferedPublishPolicy(BufferedPublishPolicy.Priority.HIGH));
+        cf.setBufferedPublishPolicy("quotes", new BufferedPublishPolicy(
+                BufferedPublishPolicy.Priority.NORMAL, 1, TimeUnit.NANOSECONDS));
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(cf.options())) {
+            ReconnectBuffer pending = c.createReconnectBuffer();
+            c.setPending(pending);
+            c.setOutputStream(pending);
+            c.status = ConnState.RECONNECTING;
+            c.publish("ticks.a", "1".getBytes());
+            c.publish("other", "2".getBytes());
+            c.publish("quotes", "4".getBytes());
+            c.publish("orders", "3".getBytes());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pending.writeTo(out);
+            assertEquals("PUB orders 1\r\n3\r\nPUB other 1\r\n2\r\nPUB ticks.a 1\r\n1\r\n",
+                    new String(out.toByteArray()));
+            assertEquals(1, pending.expiredFrames());
+        }
+    }
+
     @Test
     public void testPublishReconnectingFlushError() throws IOException, TimeoutException {
         OutputStream os = mock(OutputStream.class);
         doThrow(new IOException("test")).when(os).flush();
         try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
             c.setOutputStream(os);
-            c.setPending(mock(ByteArrayOutputStream.class));
+            c.setPending(mock(ReconnectBuffer.class));
             c.status = ConnState.RECONNECTING;
             c.publish("foo", null);
             verifier.verifyLogMsgEquals(Level.ERROR, "I/O exception during flush");
@@ -875,7 +1086,7 @@ public class ConnectionImplTest {
         try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
             c.setOutputStream(bwMock);
             c.setPending(pendingMock);
-            when(pendingMock.size()).thenReturn(c.opts.getReconnectBufSize() + 10);
+            when(pendingMock.isFull()).thenReturn(true);
             c.status = ConnState.RECONNECTING;
             c.publish("foo", null);
             verifier.verifyLogMsgEquals(Level.ERROR, "I/O exception during flush");
@@ -1225,22 +1436,20 @@ public class ConnectionImplTest {
     public void testFlushFalsePongFailure() throws Exception {
         thrown.expect(IllegalStateException.class);
         thrown.expectMessage(ERR_CONNECTION_CLOSED);
-        @SuppressWarnings("unchecked")
-        BlockingQueue<Boolean> ch = (BlockingQueue<Boolean>) mock(BlockingQueue.class);
+        PublishFence waiter = new PublishFence();
+        waiter.complete(false);
         try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
-            when(c.createBooleanChannel(1)).thenReturn(ch);
-            when(ch.poll(500, TimeUnit.MILLISECONDS)).thenReturn(false);
+            doReturn(waiter).when(c).createPongWaiter();
             c.flush(500);
         }
     }
 
     @Test
     public void testFlushPollInterrupted() throws Exception {
-        @SuppressWarnings("unchecked")
-        BlockingQueue<Boolean> ch = (BlockingQueue<Boolean>) mock(BlockingQueue.class);
+        PublishFence waiter = mock(PublishFence.class);
         try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
-            when(c.createBooleanChannel(1)).thenReturn(ch);
-            doThrow(new InterruptedException()).when(ch).poll(500, TimeUnit.MILLISECONDS);
+            doReturn(waiter).when(c).createPongWaiter();
+            doThrow(new InterruptedException()).when(waiter).get(500, TimeUnit.MILLISECONDS);
             setLogLevel(Level.DEBUG);
             c.flush(500);
             assertTrue(Thread.interrupted());
@@ -1275,6 +1484,7 @@ public class ConnectionImplTest {
 
             Condition pendingCondMock = mock(Condition.class);
             sub.pCond = pendingCondMock;
+            sub.pSpace = mock(Condition.class);
 
             sub.max = 1; // To make sure the message is removed after one
 
@@ -1531,6 +1741,307 @@ public class ConnectionImplTest {
 
     }
 
+    @Test
+    public void testProcessMsgDropOldest() throws IOException, TimeoutException {
+        final long sid = 4L;
+        try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            SubscriptionImpl sub = new AsyncSubscriptionImpl(c, "foo", null, mcbMock);
+            c.ps.ma.sid = sid;
+            when(subsMock.get(eq(sid))).thenReturn(sub);
+            c.setSubs(subsMock);
+            sub.setPendingLimits(2, 1024);
+            sub.setSlowConsumerPolicy(SlowConsumerPolicy.DROP_OLDEST);
+
+            for (int i = 0; i < 5; i++) {
+                byte[] data = String.valueOf(i).getBytes();
+                c.ps.ma.size = data.length;
+                c.processMsg(data, 0, data.length);
+            }
+
+            assertEquals(2, sub.getPendingMsgs());
+            assertEquals(3, sub.getDropped());
+            assertEquals(3, sub.getSlowConsumerEvents());
+            assertEquals(5, sub.getReceivedMsgs());
+            assertEquals(5, sub.getReceivedBytes());
+            assertEquals("3", new String(sub.getChannel().poll().getData()));
+            assertEquals("4", new String(sub.getChannel().poll().getData()));
+            verify(c, times(0)).handleSlowConsumer(eq(sub), any(Message.class));
+        }
+    }
+
+    @Test
+    public void testProcessMsgPendingBudget() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            c.opts.setMaxPendingBytes(100);
+            SubscriptionImpl hog = new AsyncSubscriptionImpl(c, "foo", null, mcbMock);
+            SubscriptionImpl other = new AsyncSubscriptionImpl(c, "bar", null, mcbMock);
+            hog.setSid(1L);
+            other.setSid(2L);
+            Map<Long, SubscriptionImpl> subs = new ConcurrentHashMap<Long, SubscriptionImpl>();
+            subs.put(1L, hog);
+            subs.put(2L, other);
+            c.setSubs(subs);
+
+            byte[] data = "0123456789".getBytes();
+            c.ps.ma.size = data.length;
+            // While the budget has room, one subscription may use all of it.
+            c.ps.ma.sid = 1L;
+            for (int i = 0; i < 12; i++) {
+                c.processMsg(data, 0, data.length);
+            }
+            assertEquals(10, hog.getPendingMsgs());
+            assertEquals(2, hog.getDropped());
+
+            // Once it is exhausted, the others can still fill their fair share of 50 bytes.
+            c.ps.ma.sid = 2L;
+            for (int i = 0; i < 6; i++) {
+                c.processMsg(data, 0, data.length);
+            }
+            assertEquals(5, other.getPendingMsgs());
+            assertEquals(1, other.getDropped());
+            assertEquals(150, c.getPendingBytes());
+
+            // Removing a subscription releases its share of the budget.
+            c.removeSub(hog);
+            assertEquals(50, c.getPendingBytes());
+        }
+    }
+
+    @Test
+    public void testPendingBudgetSharedByBudgetedSubs() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            c.opts.setMaxPendingBytes(100);
+            SubscriptionImpl hog = new AsyncSubscriptionImpl(c, "foo", null, mcbMock);
+            SubscriptionImpl other = new AsyncSubscriptionImpl(c, "bar", null, mcbMock);
+            SubscriptionImpl inbox = new AsyncSubscriptionImpl(c, "_INBOX.abc", null, mcbMock);
+            SubscriptionImpl exempt = new AsyncSubscriptionImpl(c, "baz", null, mcbMock);
+            exempt.releasePendingBytes();
+            Map<Long, SubscriptionImpl> subs = new ConcurrentHashMap<Long, SubscriptionImpl>();
+            long sid = 0;
+            for (SubscriptionImpl sub : new SubscriptionImpl[] {hog, other, inbox, exempt}) {
+                sub.setSid(++sid);
+                subs.put(sid, sub);
+            }
+            c.setSubs(subs);
+
+            byte[] data = "0123456789".getBytes();
+            c.ps.ma.size = data.length;
+            c.ps.ma.sid = hog.getSid();
+            for (int i = 0; i < 10; i++) {
+                c.processMsg(data, 0, data.length);
+            }
+            // Neither the inbox nor the exempt subscription shrinks the fair share of 50 bytes.
+            c.ps.ma.sid = other.getSid();
+            for (int i = 0; i < 6; i++) {
+                c.processMsg(data, 0, data.length);
+            }
+            assertEquals(5, other.getPendingMsgs());
+            assertEquals(1, other.getDropped());
+
+            // Removing the hog frees its part of the budget.
+            c.removeSub(hog);
+            c.processMsg(data, 0, data.length);
+            assertEquals(6, other.getPendingMsgs());
+        }
+    }
+
+    @Test
+    public void testLatencyHistograms() throws Exception {
+        Options opts = new ConnectionFactory().options();
+        opts.setLatencyHistograms(true);
+        try (Connection c = newMockedConnection(opts)) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            try (AsyncSubscription sub = c.subscribe("foo", new MessageHandler() {
+                public void onMessage(Message msg) {
+                    latch.countDown();
+                }
+            })) {
+                c.publish("foo", "hello".getBytes());
+                c.flush();
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+                // Recorded once the handler returns, and once the flusher has run.
+                for (int i = 0; i < 50 && (sub.getHandlerHistogram().getCount() == 0
+                        || c.getPublishFlushHistogram().getCount() == 0); i++) {
+                    Thread.sleep(100);
+                }
+                assertEquals(1, sub.getSojournHistogram().getCount());
+                assertEquals(1, sub.getHandlerHistogram().getCount());
+                assertEquals(1, c.getHandlerHistogram().getCount());
+                assertEquals(1, c.getSojournHistogram().getCount());
+                assertTrue(c.getPublishFlushHistogram().getCount() >= 1);
+                assertTrue(c.getPingRttHistogram().getCount() >= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testHeavyHitters() throws Exception {
+        try (Connection c = newMockedConnection()) {
+            assertNull(c.getInboundHeavyHitters());
+            assertNull(c.getOutboundHeavyHitters());
+        }
+
+        Options opts = new ConnectionFactory().options();
+        opts.setHeavyHitters(2);
+        try (Connection c = newMockedConnection(opts)) {
+            try (SyncSubscription foo = c.subscribeSync("foo");
+                    SyncSubscription bar = c.subscribeSync("bar")) {
+                for (int i = 0; i < 3; i++) {
+                    c.publish("foo", "hello".getBytes());
+                }
+                c.publish("bar", "a much longer payload".getBytes());
+                c.flush();
+                for (int i = 0; i < 3; i++) {
+                    assertNotNull(foo.nextMessage(5000));
+                }
+                assertNotNull(bar.nextMessage(5000));
+
+                HeavyHitters out = c.getOutboundHeavyHitters();
+                assertEquals(4, out.getTotalMessages());
+                assertEquals("foo", out.getTopByMessages().get(0).getSubject());
+                assertEquals(3, out.getTopByMessages().get(0).getMessages());
+                assertEquals("bar", out.getTopByBytes().get(0).getSubject());
+                assertEquals(21, out.getTopByBytes().get(0).getBytes());
+
+                HeavyHitters in = c.getInboundHeavyHitters();
+                assertEquals(4, in.getTotalMessages());
+                assertEquals("foo", in.getTopByMessages().get(0).getSubject());
+                assertEquals(15, in.getTopByMessages().get(0).getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void testProcessMsgBlockPolicy() throws Exception {
+        final long sid = 4L;
+        try (final ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            final SubscriptionImpl sub = new AsyncSubscriptionImpl(c, "foo", null, mcbMock);
+            c.ps.ma.sid = sid;
+            when(subsMock.get(eq(sid))).thenReturn(sub);
+            c.setSubs(subsMock);
+            sub.setPendingLimits(1, 1024);
+            sub.setSlowConsumerPolicy(SlowConsumerPolicy.BLOCK);
+
+            final byte[] first = "first".getBytes();
+            c.ps.ma.size = first.length;
+            c.processMsg(first, 0, first.length);
+
+            final byte[] second = "second".getBytes();
+            c.ps.ma.size = second.length;
+            ExecutorService exec = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> reader = exec.submit(new Runnable() {
+                    public void run() {
+                        c.processMsg(second, 0, second.length);
+                    }
+                });
+                Thread.sleep(100);
+                assertFalse(reader.isDone());
+                // The connection lock is not held while the reader is blocked.
+                assertTrue(c.mu.tryLock());
+                c.mu.unlock();
+
+                // Consume the first message, as waitForMsgs would.
+                sub.lock();
+                try {
+                    Message msg = sub.getChannel().poll();
+                    assertArrayEquals(first, msg.getData());
+                    sub.pMsgs--;
+                    sub.pBytes -= msg.getData().length;
+                    sub.pSpace.signal();
+                } finally {
+                    sub.unlock();
+                }
+
+                reader.get(5, TimeUnit.SECONDS);
+            } finally {
+                exec.shutdownNow();
+            }
+            assertArrayEquals(second, sub.getChannel().poll().getData());
+            assertEquals(0, sub.getDropped());
+            assertEquals(1, sub.getSlowConsumerEvents());
+            assertTrue(sub.getBlockedTime(TimeUnit.MILLISECONDS) >= 50);
+        }
+    }
+
+    @Test
+    public void testSubscribeSpilling() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            try (AsyncSubscriptionImpl sub = (AsyncSubscriptionImpl) c.subscribeSpilling("foo",
+                    null, mcbMock, 1024, 1024 * 1024)) {
+                assertTrue(sub.getChannel() instanceof SpillingMessageQueue);
+                assertEquals(-1, sub.getPendingMsgsLimit());
+                assertEquals(-1, sub.getPendingBytesLimit());
+            }
+        }
+    }
+
+    @Test
+    public void testSubscribeCompact() throws Exception {
+        final long sid = 4L;
+        try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            SubscriptionImpl sub = (SubscriptionImpl) c.subscribeCompact("foo", null, mcbMock);
+            assertTrue(sub.getChannel() instanceof CompactMessageQueue);
+            // Take the delivery thread out of the picture.
+            sub.setChannel(new CompactMessageQueue());
+            c.ps.ma.sid = sid;
+            when(subsMock.get(eq(sid))).thenReturn(sub);
+            c.setSubs(subsMock);
+
+            byte[] subj = "foo".getBytes();
+            c.ps.ma.subject = ByteBuffer.allocate(subj.length);
+            c.ps.ma.subject.put(subj);
+            byte[] data = "hello".getBytes();
+            c.ps.ma.size = data.length;
+            c.processMsg(data, 0, data.length);
+
+            assertEquals(1, sub.getPendingMsgs());
+            Message msg = sub.getChannel().poll();
+            assertEquals("foo", msg.getSubject());
+            assertArrayEquals(data, msg.getData());
+            assertSame(sub, msg.getSubscription());
+        }
+    }
+
+    @Test
+    public void testProcessMsgConflates() throws IOException, TimeoutException {
+        final long sid = 4L;
+        try (ConnectionImpl c = (ConnectionImpl) Mockito.spy(newMockedConnection())) {
+            SubscriptionImpl sub = new AsyncSubscriptionImpl(c, "foo.*", null, mcbMock);
+            sub.setChannel(new ConflatingQueue(ConflatingQueue.SUBJECT));
+            c.ps.ma.sid = sid;
+            when(subsMock.get(eq(sid))).thenReturn(sub);
+            c.setSubs(subsMock);
+            sub.setPendingLimits(2, 1024);
+
+            String[] subjects = { "foo.a", "foo.b", "foo.a", "foo.a", "foo.b" };
+            for (int i = 0; i < subjects.length; i++) {
+                byte[] subj = subjects[i].getBytes();
+                c.ps.ma.subject = ByteBuffer.allocate(subj.length);
+                c.ps.ma.subject.put(subj);
+                byte[] data = String.valueOf(i).getBytes();
+                c.ps.ma.size = data.length;
+                c.processMsg(data, 0, data.length);
+            }
+
+            // Two keys pending, so the pending limit of 2 is never exceeded.
+            verify(c, times(0)).handleSlowConsumer(eq(sub), any(Message.class));
+            assertEquals(2, sub.getPendingMsgs());
+            assertEquals(2, sub.getPendingBytes());
+            assertEquals(3, sub.getConflated());
+            assertEquals(0, sub.getDropped());
+
+            // Keys keep their first position and carry the newest message.
+            Message msg = sub.getChannel().poll();
+            assertEquals("foo.a", msg.getSubject());
+            assertEquals("3", new String(msg.getData()));
+            msg = sub.getChannel().poll();
+            assertEquals("foo.b", msg.getSubject());
+            assertEquals("4", new String(msg.getData()));
+        }
+    }
+
     @Test
     public void testProcessSlowConsumer()
             throws IOException, TimeoutException, InterruptedException {
@@ -1775,7 +2286,7 @@ public class ConnectionImplTest {
         try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
             doThrow(new IOException("Mock OutputStream write exception")).when(bwMock).flush();
             c.setOutputStream(bwMock);
-            c.sendPing(new LinkedBlockingQueue<Boolean>());
+            c.sendPing(new PublishFence());
             assertTrue(c.getLastException() instanceof IOException);
             assertEquals("Mock OutputStream write exception", c.getLastException().getMessage());
         }
@@ -1791,9 +2302,10 @@ public class ConnectionImplTest {
 
             // Ensure bw write error is logged
             c.status = ConnState.CONNECTED;
-            doThrow(new IOException("test")).when(bwMock).write(any(byte[].class));
+            doThrow(new IOException("test")).when(bwMock).write(any(byte[].class), anyInt(),
+                    anyInt());
             c.sendSubscriptionMessage(mockSub);
-            verify(bwMock, times(1)).write(any(byte[].class));
+            verify(bwMock, times(1)).write(any(byte[].class), anyInt(), anyInt());
             verifier.verifyLogMsgEquals(Level.WARN,
                     "nats: I/O exception while sending subscription message");
         }
@@ -1896,7 +2408,7 @@ public class ConnectionImplTest {
             SynchronousExecutorService sexec = new SynchronousExecutorService();
             sexec.execute(nc.new PingTimerTask());
             verify(nc, times(1)).processOpError(any(IOException.class));
-            verify(nc, times(0)).sendPing(any(BlockingQueue.class));
+            verify(nc, times(0)).sendPing(any(PublishFence.class));
             assertTrue(nc.getLastException() instanceof IOException);
             assertEquals(ERR_STALE_CONNECTION, nc.getLastException().getMessage());
             assertTrue(nc.isClosed());
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.nats.client.HeavyHitters.SubjectCount;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+
+import java.util.List;
+import java.util.Random;
+
+@Category(UnitTest.class)
+public class HeavyHittersTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void testTopSubjectsAmongManyDistinct() {
+        HeavyHitters hh = new HeavyHitters(3);
+        Random rand = new Random(42);
+        // Many more distinct subjects than sketch cells, plus three hot ones.
+        for (int i = 0; i < 100000; i++) {
+            hh.record(("noise." + rand.nextInt(20000)).getBytes(), 10);
+            if (i % 10 == 0) {
+                hh.record("hot.a".getBytes(), 10);
+            }
+            if (i % 20 == 0) {
+                hh.record("hot.b".getBytes(), 10);
+            }
+            if (i % 50 == 0) {
+                hh.record("hot.c".getBytes(), 1000);
+            }
+        }
+
+        List<SubjectCount> top = hh.getTopByMessages();
+        assertEquals(3, top.size());
+        assertEquals("hot.a", top.get(0).getSubject());
+        assertEquals("hot.b", top.get(1).getSubject());
+        assertEquals("hot.c", top.get(2).getSubject());
+        // Never below the true count, and within the error bound of the sketch.
+        long total = hh.getTotalMessages();
+        assertTrue(top.get(0).getMessages() >= 10000);
+        assertTrue(top.get(0).getMessages() <= 10000 + total * Math.E / HeavyHitters.WIDTH);
+
+        top = hh.getTopByBytes();
+        assertEquals("hot.c", top.get(0).getSubject());
+        assertTrue(top.get(0).getBytes() >= 2000 * 1000);
+    }
+
+    @Test
+    public void testRecordSlice() {
+        HeavyHitters hh = new HeavyHitters(2);
+        byte[] buf = "xxfoo.baryy".getBytes();
+        hh.record(buf, 2, 7, 5);
+        hh.record("foo.bar".getBytes(), 5);
+        List<SubjectCount> top = hh.getTopByMessages();
+        assertEquals(1, top.size());
+        assertEquals("foo.bar", top.get(0).getSubject());
+        assertEquals(2, top.get(0).getMessages());
+        assertEquals(10, top.get(0).getBytes());
+    }
+
+    @Test
+    public void testReset() {
+        HeavyHitters hh = new HeavyHitters(2);
+        hh.record("foo".getBytes(), 5);
+        hh.reset();
+        assertEquals(0, hh.getTotalMessages());
+        assertEquals(0, hh.getTotalBytes());
+        assertTrue(hh.getTopByMessages().isEmpty());
+        hh.record("bar".getBytes(), 1);
+        assertEquals("bar", hh.getTopByBytes().get(0).getSubject());
+        assertEquals(1, hh.getTopByBytes().get(0).getMessages());
+    }
+
+    @Test
+    public void testInvalidCount() {
+        thrown.expect(IllegalArgumentException.class);
+        new HeavyHitters(0);
+    }
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@Category(UnitTest.class)
+public class HedgedRequesterTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    ScheduledExecutorService sched;
+    BlockingQueue<Message> mch;
+    Connection nc;
+    // Reply delays (msec) for the original and the hedged copy; negative means never reply.
+    volatile long primaryDelay;
+    volatile long hedgeDelay;
+
+    @Before
+    public void setUp() throws Exception {
+        sched = Executors.newScheduledThreadPool(2);
+        mch = new LinkedBlockingQueue<Message>();
+        nc = mock(Connection.class);
+        when(nc.newInbox()).thenReturn("_INBOX.test");
+
+        SyncSubscription sub = mock(SyncSubscription.class);
+        when(nc.subscribeSync("_INBOX.test.*")).thenReturn(sub);
+        doAnswer(new Answer<Message>() {
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                long timeout = (Long) invocation.getArguments()[0];
+                TimeUnit unit = (TimeUnit) invocation.getArguments()[1];
+                Message msg = mch.poll(timeout, unit);
+                if (msg == null) {
+                    throw new TimeoutException(Constants.ERR_TIMEOUT);
+                }
+                return msg;
+            }
+        }).when(sub).nextMessage(anyLong(), any(TimeUnit.class));
+
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final String reply = (String) invocation.getArguments()[1];
+                long delay = reply.endsWith(".1") ? hedgeDelay : primaryDelay;
+                if (delay >= 0) {
+                    sched.schedule(new Runnable() {
+                        public void run() {
+                            mch.add(new Message(reply, null, reply.getBytes()));
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+                return null;
+            }
+        }).when(nc).publish(anyString(), anyString(), any(byte[].class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sched.shutdownNow();
+    }
+
+    void warmUp(HedgedRequester hr, int count) throws Exception {
+        primaryDelay = 0;
+        for (int i = 0; i < count; i++) {
+            hr.request("foo", "help".getBytes(), 1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testNoHedgeUntilWarm() throws Exception {
+        HedgedRequester hr = new HedgedRequester(nc, 0.95, 1.0, 8);
+        primaryDelay = 0;
+        hedgeDelay = 0;
+        hr.request("foo", "help".getBytes(), 1, TimeUnit.SECONDS);
+        assertEquals(-1, hr.getHedgeDelay("foo", TimeUnit.NANOSECONDS));
+        warmUp(hr, 7);
+        assertTrue(hr.getHedgeDelay("foo", TimeUnit.NANOSECONDS) >= 0);
+        assertEquals(0, hr.getHedges());
+        assertEquals(8, hr.getRequests());
+    }
+
+    @Test
+    public void testHedgeWinsWhenPrimaryStalls() throws Exception {
+        HedgedRequester hr = new HedgedRequester(nc, 0.95, 1.0, 8);
+        warmUp(hr, 8);
+        primaryDelay = 5000;
+        hedgeDelay = 0;
+        long start = System.nanoTime();
+        Message msg = hr.request("foo", "help".getBytes(), 2, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals("_INBOX.test.1", msg.getSubject());
+        assertTrue("took " + elapsed + "ms", elapsed < 1000);
+        assertEquals(1, hr.getHedges());
+        assertEquals(1, hr.getHedgeWins());
+    }
+
+    @Test
+    public void testHedgeRatioCap() throws Exception {
+        HedgedRequester hr = new HedgedRequester(nc, 0.95, 0.0, 8);
+        warmUp(hr, 8);
+        primaryDelay = 100;
+        hedgeDelay = 0;
+        Message msg = hr.request("foo", "help".getBytes(), 2, TimeUnit.SECONDS);
+        assertEquals("_INBOX.test.0", msg.getSubject());
+        assertEquals(0, hr.getHedges());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        thrown.expect(TimeoutException.class);
+        HedgedRequester hr = new HedgedRequester(nc, 0.95, 1.0, 8);
+        warmUp(hr, 8);
+        primaryDelay = -1;
+        hedgeDelay = -1;
+        try {
+            hr.request("foo", "help".getBytes(), 200, TimeUnit.MILLISECONDS);
+        } finally {
+            assertEquals(1, hr.getHedges());
+        }
+        fail("Should have timed out");
+    }
+
+    @Test
+    public void testTimeoutsRecordedAtTimeout() throws Exception {
+        HedgedRequester hr = new HedgedRequester(nc, 0.5, 0.0, 8);
+        warmUp(hr, 8);
+        primaryDelay = -1;
+        for (int i = 0; i < 8; i++) {
+            try {
+                hr.request("foo", "help".getBytes(), 20, TimeUnit.MILLISECONDS);
+                fail("Should have timed out");
+            } catch (TimeoutException e) {
+                // expected
+            }
+        }
+        // Every sample in the window is now a timeout.
+        assertEquals(20, hr.getHedgeDelay("foo", TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLatencyTrackerPercentile() {
+        HedgedRequester.LatencyTracker tracker = new HedgedRequester.LatencyTracker(100);
+        for (int i = 1; i <= 100; i++) {
+            tracker.record(i);
+        }
+        assertEquals(95, tracker.percentile(0.95));
+        assertEquals(50, tracker.percentile(0.50));
+        assertEquals(100, tracker.getCount());
+    }
+
+    @Test
+    public void testBadPercentile() {
+        thrown.expect(IllegalArgumentException.class);
+        new HedgedRequester(nc, 1.5, 0.05);
+    }
+}
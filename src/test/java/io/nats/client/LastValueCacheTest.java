@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Category(UnitTest.class)
+public class LastValueCacheTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testKeepsLatestValuePerSubject() throws Exception {
+        Connection nc = mock(Connection.class);
+        AsyncSubscription sub = mock(AsyncSubscription.class);
+        when(nc.subscribe(eq("prices.>"), any(MessageHandler.class))).thenReturn(sub);
+
+        try (LastValueCache lvc = new LastValueCache(nc, "prices.>").start()) {
+            ArgumentCaptor<MessageHandler> handler = ArgumentCaptor.forClass(MessageHandler.class);
+            verify(nc).subscribe(eq("prices.>"), handler.capture());
+
+            Message a1 = new Message("prices.a", null, "1".getBytes());
+            Message a2 = new Message("prices.a", null, "2".getBytes());
+            Message b1 = new Message("prices.b", null, "10".getBytes());
+            handler.getValue().onMessage(a1);
+            handler.getValue().onMessage(b1);
+            handler.getValue().onMessage(a2);
+
+            assertSame(a2, lvc.get("prices.a"));
+            assertSame(b1, lvc.get("prices.b"));
+            assertNull(lvc.get("prices.c"));
+            assertEquals(3, lvc.getUpdates());
+            assertEquals(2, lvc.getSize());
+            assertEquals(3, lvc.getBytes());
+        }
+        verify(sub).unsubscribe();
+    }
+
+    @Test
+    public void testSnapshotIsACopy() {
+        LastValueCache lvc = new LastValueCache(mock(Connection.class), ">");
+        Message a1 = new Message("a", null, "1".getBytes());
+        lvc.update(a1);
+        Map<String, Message> snap = lvc.snapshot();
+        lvc.update(new Message("a", null, "2".getBytes()));
+        lvc.update(new Message("b", null, "1".getBytes()));
+
+        assertEquals(1, snap.size());
+        assertSame(a1, snap.get("a"));
+        assertEquals(2, lvc.snapshot().size());
+    }
+
+    @Test
+    public void testSnapshotConsistentDuringUpdates() throws Exception {
+        final LastValueCache lvc = new LastValueCache(mock(Connection.class), ">");
+        final int keys = 1000;
+        final AtomicBoolean done = new AtomicBoolean();
+        final CountDownLatch firstRound = new CountDownLatch(1);
+        // Each round sets every subject, in order, to the round number.
+        Thread updater = new Thread() {
+            public void run() {
+                for (int round = 1; !done.get(); round++) {
+                    byte[] data = Integer.toString(round).getBytes();
+                    for (int i = 0; i < keys; i++) {
+                        lvc.update(new Message("k" + i, null, data));
+                    }
+                    firstRound.countDown();
+                }
+            }
+        };
+        updater.start();
+        try {
+            assertTrue(firstRound.await(10, TimeUnit.SECONDS));
+            for (int n = 0; n < 200; n++) {
+                Map<String, Message> snap = lvc.snapshot();
+                assertEquals(keys, snap.size());
+                // A consistent copy sees a prefix of the subjects at one round and the rest at
+                // the round before.
+                int first = Integer.parseInt(new String(snap.get("k0").getData()));
+                int prev = first;
+                for (int i = 1; i < keys; i++) {
+                    int round = Integer.parseInt(new String(snap.get("k" + i).getData()));
+                    assertTrue(round <= prev && round >= first - 1);
+                    prev = round;
+                }
+            }
+        } finally {
+            done.set(true);
+            updater.join();
+        }
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUpdated() {
+        LastValueCache lvc = new LastValueCache(mock(Connection.class), ">", 2, 1024, 0,
+                TimeUnit.SECONDS);
+        lvc.update(new Message("a", null, "1".getBytes()));
+        lvc.update(new Message("b", null, "1".getBytes()));
+        // Updating "a" makes "b" the least recently updated.
+        lvc.update(new Message("a", null, "2".getBytes()));
+        lvc.update(new Message("c", null, "1".getBytes()));
+
+        assertNull(lvc.get("b"));
+        assertEquals("2", new String(lvc.get("a").getData()));
+        assertEquals(1, lvc.getEvictions());
+        assertEquals(2, lvc.getSize());
+    }
+
+    @Test
+    public void testByteBudget() {
+        LastValueCache lvc = new LastValueCache(mock(Connection.class), ">", 100, 10, 0,
+                TimeUnit.SECONDS);
+        lvc.update(new Message("a", null, "123456".getBytes()));
+        lvc.update(new Message("b", null, "123456".getBytes()));
+        assertNull(lvc.get("a"));
+        assertEquals(6, lvc.getBytes());
+
+        // A value larger than the whole budget is not cached, and does not flush the cache.
+        lvc.update(new Message("c", null, new byte[11]));
+        assertNull(lvc.get("c"));
+        assertEquals(1, lvc.getSize());
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        LastValueCache lvc = new LastValueCache(mock(Connection.class), ">", 100, 1024, 50,
+                TimeUnit.MILLISECONDS);
+        lvc.update(new Message("a", null, "1".getBytes()));
+        assertEquals(1, lvc.snapshot().size());
+        Thread.sleep(100);
+        assertNull(lvc.get("a"));
+        assertTrue(lvc.snapshot().isEmpty());
+
+        // Expired values are discarded on the next update.
+        lvc.update(new Message("b", null, "1".getBytes()));
+        assertEquals(1, lvc.getExpirations());
+        assertEquals(1, lvc.getSize());
+    }
+
+    @Test
+    public void testNullConnection() {
+        thrown.expect(NullPointerException.class);
+        new LastValueCache(null, ">");
+    }
+
+    @Test
+    public void testBadSubject() {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage(Constants.ERR_BAD_SUBJECT);
+        new LastValueCache(mock(Connection.class), "");
+    }
+}
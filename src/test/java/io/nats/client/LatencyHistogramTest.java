@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class LatencyHistogramTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testBucketBounds() {
+        for (long v : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L,
+                Long.MAX_VALUE / 3, Long.MAX_VALUE}) {
+            int b = LatencyHistogram.bucket(v);
+            assertTrue(b >= 0 && b < LatencyHistogram.BUCKETS);
+            assertTrue(LatencyHistogram.lowestValue(b) <= v);
+            assertTrue(LatencyHistogram.highestValue(b) >= v);
+            // Buckets are at most 12.5% wide.
+            assertTrue(LatencyHistogram.highestValue(b) - LatencyHistogram.lowestValue(b)
+                    <= Math.max(0, v / 8));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+        for (int b = 1; b < LatencyHistogram.BUCKETS; b++) {
+            assertEquals(LatencyHistogram.highestValue(b - 1) + 1, LatencyHistogram.lowestValue(b));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, h.getCount());
+        assertEquals(1000, h.getMax(TimeUnit.MICROSECONDS));
+        assertEquals(500, h.getMean(TimeUnit.MICROSECONDS));
+        assertWithin(500, h.getValueAtPercentile(50, TimeUnit.MICROSECONDS));
+        assertWithin(990, h.getValueAtPercentile(99, TimeUnit.MICROSECONDS));
+        assertEquals(1000, h.getValueAtPercentile(100, TimeUnit.MICROSECONDS));
+        assertWithin(1, h.getValueAtPercentile(0, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    public void testSnapshotAndMerge() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(100);
+        b.record(200);
+        b.record(-5);
+
+        LatencyHistogram snap = a.snapshot();
+        a.record(300);
+        assertEquals(1, snap.getCount());
+
+        snap.merge(b);
+        assertEquals(3, snap.getCount());
+        assertEquals(200, snap.getMax(TimeUnit.NANOSECONDS));
+        assertEquals(100, snap.getMean(TimeUnit.NANOSECONDS));
+        assertEquals(0, snap.getValueAtPercentile(0, TimeUnit.NANOSECONDS));
+
+        snap.reset();
+        assertEquals(0, snap.getCount());
+        assertEquals(0, snap.getMax(TimeUnit.NANOSECONDS));
+        assertEquals(0, snap.getValueAtPercentile(99, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void testInvalidPercentile() {
+        thrown.expect(IllegalArgumentException.class);
+        new LatencyHistogram().getValueAtPercentile(101, TimeUnit.NANOSECONDS);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected / 8 + 1);
+    }
+}
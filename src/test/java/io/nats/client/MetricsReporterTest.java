@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import io.nats.client.MetricsReporter.PatternCounts;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Arrays;
+
+@Category(UnitTest.class)
+public class MetricsReporterTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testPatternCounts() {
+        PatternCounts counts = new PatternCounts(Arrays.asList("orders.*", "audit.>"));
+        assertArrayEquals(new String[] {"orders.*", "audit.>", ">"}, counts.patterns);
+
+        counts.record("orders.new".getBytes(), 10);
+        counts.record("orders.new".getBytes(), 10);
+        counts.record("orders.new.eu".getBytes(), 1);
+        counts.record("audit.login.ok".getBytes(), 3);
+        long[][] drained = counts.drain();
+        assertArrayEquals(new long[] {2, 1, 1}, drained[0]);
+        assertArrayEquals(new long[] {20, 3, 1}, drained[1]);
+
+        drained = counts.drain();
+        assertArrayEquals(new long[] {0, 0, 0}, drained[0]);
+    }
+
+    @Test
+    public void testCatchAllIsLast() {
+        PatternCounts counts = new PatternCounts(Arrays.asList(">", "foo"));
+        assertArrayEquals(new String[] {"foo", ">"}, counts.patterns);
+        counts.record("foo".getBytes(), 1);
+        assertEquals(1, counts.drain()[0][0]);
+    }
+}
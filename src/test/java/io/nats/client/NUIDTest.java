@@ -7,6 +7,7 @@ package io.nats.client;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import org.junit.After;
@@ -19,9 +20,11 @@ import org.junit.experimental.categories.Category;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.security.SecureRandom;
 import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NUIDTest {
     final Logger logger = LoggerFactory.getLogger(NUIDTest.class);
@@ -78,6 +81,45 @@ public class NUIDTest {
                 NUID.totalLen, nuid.length());
     }
 
+    @Test
+    @Category(UnitTest.class)
+    public void testNonBlockingRandom() {
+        SecureRandom rnd = NUID.nonBlockingRandom();
+        assertNotNull(rnd);
+        byte[] bytes = new byte[NUID.preLen];
+        rnd.nextBytes(bytes);
+        assertNotEquals(new String(new byte[NUID.preLen]), new String(bytes));
+    }
+
+    @Test(timeout = 30000)
+    @Category(UnitTest.class)
+    public void testDeferredReseed() {
+        NUID nuid = new NUID();
+        SecureRandom before = NUID.srand;
+        final AtomicInteger seedRequests = new AtomicInteger();
+        // Stands in for the strong generator, whose seed source may block on entropy.
+        SecureRandom strong = new SecureRandom(new byte[8]) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public byte[] generateSeed(int numBytes) {
+                seedRequests.incrementAndGet();
+                return new byte[numBytes];
+            }
+        };
+        try {
+            NUID.reseed(strong);
+            assertEquals(1, seedRequests.get());
+            assertSame("Expected prefix generator to be replaced", strong, NUID.srand);
+            char[] oldPre = Arrays.copyOf(nuid.getPre(), nuid.getPre().length);
+            nuid.randomizePrefix();
+            assertNotEquals(new String(oldPre), new String(nuid.getPre()));
+            assertEquals(NUID.totalLen, nuid.next().length());
+        } finally {
+            NUID.srand = before;
+        }
+    }
+
     @Test(timeout = 5000)
     @Category(PerfTest.class)
     public void testProperPrefix() {
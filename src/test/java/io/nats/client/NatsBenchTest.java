@@ -40,13 +40,16 @@ import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.SocketFactory;
@@ -399,6 +402,95 @@ public class NatsBenchTest {
         }
     }
 
+    @Test
+    public void testStartupToFirstPublish() throws Exception {
+        try (NatsServer srv = runDefaultServer()) {
+            final long t0 = System.nanoTime();
+            ConnectionFactory cf = new ConnectionFactory();
+            try (Connection c = cf.createConnection()) {
+                long t1 = System.nanoTime();
+                c.publish("foo", "hello".getBytes());
+                c.flush();
+                long t2 = System.nanoTime();
+                assertEquals(1, c.getStats().getOutMsgs());
+                logger.info("new ConnectionFactory() to connected: {}ms", String.format("%.2f",
+                        (double) TimeUnit.NANOSECONDS.toMicros(t1 - t0) / 1000));
+                logger.info("new ConnectionFactory() to first publish flushed: {}ms",
+                        String.format("%.2f",
+                                (double) TimeUnit.NANOSECONDS.toMicros(t2 - t0) / 1000));
+            }
+        }
+    }
+
+    @Test
+    public void testPingRttUnderPublishLoad() throws Exception {
+        final int samples = 100;
+        final byte[] payload = new byte[1024];
+        try (NatsServer srv = runDefaultServer()) {
+            ConnectionFactory cf = new ConnectionFactory();
+            cf.setOutboundHighWatermark(8 * 1024 * 1024);
+            try (final ConnectionImpl c = (ConnectionImpl) cf.createConnection()) {
+                final AtomicBoolean done = new AtomicBoolean();
+                Future<?> publisher = service.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            while (!done.get()) {
+                                c.publish("foo", payload);
+                            }
+                        } catch (IOException e) {
+                            logger.error("publisher failed", e);
+                        }
+                    }
+                });
+                // Let the outbound buffer fill up.
+                Thread.sleep(1000);
+
+                long[] keepalive = new long[samples];
+                long[] flush = new long[samples];
+                for (int i = 0; i < samples; i++) {
+                    // A keepalive PING, written to the control lane.
+                    long seq;
+                    long t0 = System.nanoTime();
+                    c.mu.lock();
+                    try {
+                        c.sendPing(null);
+                        seq = c.getPingsSent();
+                    } finally {
+                        c.mu.unlock();
+                    }
+                    while (true) {
+                        c.mu.lock();
+                        try {
+                            if (c.getPongsReceived() >= seq) {
+                                break;
+                            }
+                        } finally {
+                            c.mu.unlock();
+                        }
+                        Thread.sleep(0, 100000);
+                    }
+                    keepalive[i] = System.nanoTime() - t0;
+
+                    // A flush PING, which follows the queued publishes.
+                    t0 = System.nanoTime();
+                    c.flush();
+                    flush[i] = System.nanoTime() - t0;
+                }
+                done.set(true);
+                publisher.get();
+
+                Arrays.sort(keepalive);
+                Arrays.sort(flush);
+                logger.info("PING RTT under publish load: keepalive median {}us p99 {}us, "
+                        + "flush median {}us p99 {}us",
+                        TimeUnit.NANOSECONDS.toMicros(keepalive[samples / 2]),
+                        TimeUnit.NANOSECONDS.toMicros(keepalive[samples * 99 / 100]),
+                        TimeUnit.NANOSECONDS.toMicros(flush[samples / 2]),
+                        TimeUnit.NANOSECONDS.toMicros(flush[samples * 99 / 100]));
+            }
+        }
+    }
+
     // @Test
     // @Category(PerfTest.class)
     // public void testManyConnections() throws Exception {
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.UnitTestUtilities.newMockedConnection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+@Category(UnitTest.class)
+public class NatsMBeansTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    private static Options jmxOptions() {
+        Options opts = new ConnectionFactory().options();
+        opts.setJmxEnabled(true);
+        return opts;
+    }
+
+    @Test
+    public void testConnectionAndSubscriptionMBeans() throws Exception {
+        ObjectName connName;
+        ObjectName subName;
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(jmxOptions())) {
+            connName = c.mbeanName;
+            assertNotNull(connName);
+            assertTrue(server.isRegistered(connName));
+
+            ConnectionMXBean conn = JMX.newMXBeanProxy(server, connName, ConnectionMXBean.class);
+            assertEquals("CONNECTED", conn.getState());
+            assertNotNull(conn.getConnectedUrl());
+
+            SyncSubscriptionImpl sub = (SyncSubscriptionImpl) c.subscribeSync("foo");
+            subName = sub.mbeanName;
+            assertNotNull(subName);
+            SubscriptionMXBean s = JMX.newMXBeanProxy(server, subName, SubscriptionMXBean.class);
+            assertEquals("foo", s.getSubject());
+            assertEquals("DROP_NEWEST", s.getSlowConsumerPolicy());
+            assertEquals(0, s.getSlowConsumerEvents());
+            assertEquals(0, s.getBlockedTimeMillis());
+            assertEquals(1, conn.getSubscriptionCount());
+
+            c.publish("foo", "hello".getBytes());
+            c.flush();
+            assertNotNull(sub.nextMessage(5000));
+            assertEquals(1, conn.getInMsgs());
+            assertEquals(1, conn.getOutMsgs());
+            assertEquals(1, s.getReceivedMsgs());
+            assertEquals(1, s.getDelivered());
+            assertEquals(0, conn.getPendingMsgs());
+            assertTrue(conn.getFlushRate() >= 0);
+
+            // Reply inboxes are not registered.
+            SubscriptionImpl inbox = (SubscriptionImpl) c.subscribeSync(c.newInbox());
+            assertNull(inbox.mbeanName);
+
+            sub.unsubscribe();
+            assertFalse(server.isRegistered(subName));
+        }
+        assertFalse(server.isRegistered(connName));
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            assertNull(c.mbeanName);
+            assertNull(((SubscriptionImpl) c.subscribeSync("foo")).mbeanName);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Category(UnitTest.class)
+public class OutboundBufferTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    static void publish(OutboundBuffer ob, String subject, String payload) throws Exception {
+        ob.beginFrame(subject.getBytes());
+        ob.write(String.format("PUB %s %d\r\n", subject, payload.length()).getBytes());
+        ob.write(payload.getBytes());
+        ob.write("\r\n".getBytes());
+        ob.endFrame();
+    }
+
+    static class CountingListener implements OutboundBuffer.WatermarkListener {
+        final AtomicInteger high = new AtomicInteger();
+        final AtomicInteger low = new AtomicInteger();
+
+        public void onHighWatermark() {
+            high.incrementAndGet();
+        }
+
+        public void onLowWatermark() {
+            low.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testWritesAreQueuedUntilFlush() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 1024 * 1024, 0, false, null);
+        byte[] data = new byte[3 * OutboundBuffer.CHUNK_SIZE + 5];
+        new Random(7).nextBytes(data);
+        ob.write(data, 0, 100);
+        ob.write(data, 100, data.length - 100);
+        assertEquals(0, sock.size());
+        assertEquals(data.length, ob.getBufferedBytes());
+
+        ob.flush();
+        assertArrayEquals(data, sock.toByteArray());
+        assertEquals(0, ob.getBufferedBytes());
+
+        // The drained queue is reused.
+        ob.write('x');
+        ob.flush();
+        assertEquals(data.length + 1, sock.size());
+    }
+
+    @Test
+    public void testWriteThroughWithoutWatermark() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock);
+        ob.write(new byte[(int) OutboundBuffer.DEFAULT_WRITE_THROUGH_LIMIT - 1]);
+        assertFalse(ob.needsWriteThrough());
+        ob.write('x');
+        // Writes never drain the buffer themselves; the publisher does, outside the lock.
+        assertEquals(0, sock.size());
+        assertTrue(ob.needsWriteThrough());
+        ob.flush();
+        assertEquals(OutboundBuffer.DEFAULT_WRITE_THROUGH_LIMIT, sock.size());
+        assertFalse(ob.needsWriteThrough());
+    }
+
+    @Test
+    public void testWatermarks() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        CountingListener listener = new CountingListener();
+        OutboundBuffer ob = new OutboundBuffer(sock, 100, 50, false, listener);
+
+        ob.write(new byte[60]);
+        assertFalse(ob.isAboveHighWatermark());
+        ob.write(new byte[60]);
+        assertTrue(ob.isAboveHighWatermark());
+        ob.write(new byte[60]);
+        assertEquals(1, listener.high.get());
+        assertEquals(0, listener.low.get());
+        assertFalse(ob.awaitBelowHighWatermark(TimeUnit.MILLISECONDS.toNanos(10)));
+
+        ob.flush();
+        assertFalse(ob.isAboveHighWatermark());
+        assertEquals(1, listener.low.get());
+        assertTrue(ob.awaitBelowHighWatermark(0));
+    }
+
+    @Test
+    public void testAwaitReleasedByFlush() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        final OutboundBuffer ob = new OutboundBuffer(sock, 10, 0, false, null);
+        ob.write(new byte[15]);
+        assertEquals(0, sock.size());
+        Thread flusher = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    ob.flush();
+                } catch (Exception e) {
+                    /* NOOP */
+                }
+            }
+        };
+        flusher.start();
+        assertTrue(ob.awaitBelowHighWatermark(TimeUnit.SECONDS.toNanos(5)));
+        flusher.join();
+    }
+
+    @Test
+    public void testDropOldestPerSubject() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 40, 0, true, null);
+        publish(ob, "a", "a1");
+        publish(ob, "b", "b1");
+        publish(ob, "a", "a2");
+        assertFalse(ob.isAboveHighWatermark());
+        ob.write("PING\r\n".getBytes());
+        assertTrue(ob.isAboveHighWatermark());
+        // Above the watermark: each new frame on a subject drops that subject's oldest.
+        publish(ob, "a", "a3");
+        publish(ob, "c", "c1");
+        assertEquals(1, ob.getDroppedFrames());
+
+        ob.flush();
+        assertEquals("PUB b 2\r\nb1\r\nPUB a 2\r\na2\r\nPING\r\nPUB a 2\r\na3\r\nPUB c 2\r\nc1\r\n",
+                new String(sock.toByteArray()));
+        assertEquals(0, ob.getBufferedBytes());
+    }
+
+    @Test
+    public void testDropOldestAcrossManySubjects() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 1, 0, true, null);
+        // Enough subjects to grow the subject index several times, each with two frames.
+        int subjects = 500;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < subjects; i++) {
+                publish(ob, "s" + i, "r" + round);
+            }
+        }
+        // Past the watermark from the first frame, so each subject's second frame dropped its
+        // first.
+        assertEquals(subjects, ob.getDroppedFrames());
+        publish(ob, "s7", "r2");
+        assertEquals(subjects + 1, ob.getDroppedFrames());
+
+        ob.flush();
+        String wire = new String(sock.toByteArray());
+        assertFalse(wire.contains("PUB s7 2\r\nr0"));
+        assertFalse(wire.contains("PUB s7 2\r\nr1"));
+        assertTrue(wire.contains("PUB s7 2\r\nr2"));
+        assertTrue(wire.contains("PUB s499 2\r\nr1"));
+        assertEquals(0, ob.getBufferedBytes());
+    }
+
+    @Test
+    public void testDropOldestFailsFence() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 18, 0, true, null);
+        PublishFence dropped = new PublishFence();
+        PublishFence kept = new PublishFence();
+        ob.beginFrame("a".getBytes(), dropped);
+        ob.write("PUB a 2\r\na1\r\n".getBytes());
+        ob.endFrame();
+        ob.writeFence("PING\r\n".getBytes(), 0, 6);
+        assertTrue(ob.isAboveHighWatermark());
+        ob.beginFrame("a".getBytes(), kept);
+        ob.write("PUB a 2\r\na2\r\n".getBytes());
+        ob.endFrame();
+        assertEquals(1, ob.getDroppedFrames());
+
+        dropped.complete(true);
+        kept.complete(true);
+        kept.get();
+        try {
+            dropped.get();
+            fail("fence covering a dropped frame should fail");
+        } catch (ExecutionException e) {
+            assertEquals(Constants.ERR_PUBLISH_NOT_CONFIRMED, e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testNoDropWithoutDropOldest() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 10, 0, false, null);
+        publish(ob, "a", "a1");
+        publish(ob, "a", "a2");
+        ob.flush();
+        assertEquals(0, ob.getDroppedFrames());
+        assertEquals("PUB a 2\r\na1\r\nPUB a 2\r\na2\r\n", new String(sock.toByteArray()));
+    }
+
+    @Test
+    public void testFlushDuringFrameKeepsFrameWhole() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 20, 0, true, null);
+        publish(ob, "a", "a1");
+        ob.beginFrame("a".getBytes());
+        ob.write("PUB a 2\r\n".getBytes());
+        // The flusher drains the head of the open frame.
+        ob.flush();
+        ob.write("a2\r\n".getBytes());
+        ob.endFrame();
+        publish(ob, "a", "a3");
+        ob.flush();
+        assertEquals(0, ob.getDroppedFrames());
+        assertEquals("PUB a 2\r\na1\r\nPUB a 2\r\na2\r\nPUB a 2\r\na3\r\n",
+                new String(sock.toByteArray()));
+    }
+
+    @Test
+    public void testControlFramesJumpQueuedData() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 1024 * 1024, 0, false, null);
+        publish(ob, "a", "a1");
+        publish(ob, "a", "a2");
+        ob.writeControl("PONG\r\n".getBytes(), 0, 6, false);
+        ob.writeControl("SUB b 1\r\n".getBytes(), 0, 9, false);
+        assertEquals(41, ob.getBufferedBytes());
+        ob.flush();
+        assertEquals("PONG\r\nSUB b 1\r\nPUB a 2\r\na1\r\nPUB a 2\r\na2\r\n",
+                new String(sock.toByteArray()));
+        assertEquals(0, ob.getBufferedBytes());
+    }
+
+    @Test
+    public void testControlFramesWaitForFrameBoundary() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 1024 * 1024, 0, false, null);
+        ob.beginFrame("a".getBytes());
+        ob.write("PUB a 6\r\n".getBytes());
+        ob.flush();
+        ob.writeControl("PONG\r\n".getBytes(), 0, 6, false);
+        ob.write("a1".getBytes());
+        // The batch is all the middle of the open frame.
+        ob.flush();
+        assertEquals("PUB a 6\r\na1", new String(sock.toByteArray()));
+        ob.write("a2a3\r\n".getBytes());
+        ob.endFrame();
+        publish(ob, "b", "b1");
+        ob.flush();
+        assertEquals("PUB a 6\r\na1a2a3\r\nPONG\r\nPUB b 2\r\nb1\r\n",
+                new String(sock.toByteArray()));
+        assertEquals(0, ob.getBufferedBytes());
+    }
+
+    @Test
+    public void testControlFramesBehindFences() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 1024 * 1024, 0, false, null);
+        publish(ob, "a", "a1");
+        ob.writeFence("PING\r\n".getBytes(), 0, 6);
+        // A keepalive PING must not overtake the fence, but a PONG may.
+        ob.writeControl("ping\r\n".getBytes(), 0, 6, true);
+        ob.writeControl("PONG\r\n".getBytes(), 0, 6, false);
+        ob.flush();
+        assertEquals("PONG\r\nPUB a 2\r\na1\r\nPING\r\nping\r\n",
+                new String(sock.toByteArray()));
+
+        // Once the fence has been swapped out, keepalives jump ahead again.
+        publish(ob, "a", "a2");
+        ob.writeControl("ping\r\n".getBytes(), 0, 6, true);
+        ob.flush();
+        assertTrue(new String(sock.toByteArray()).endsWith("ping\r\nPUB a 2\r\na2\r\n"));
+    }
+
+    @Test
+    public void testControlFramesWithDroppedFrames() throws Exception {
+        ByteArrayOutputStream sock = new ByteArrayOutputStream();
+        OutboundBuffer ob = new OutboundBuffer(sock, 20, 0, true, null);
+        ob.beginFrame("a".getBytes());
+        ob.write("PUB a 2\r\n".getBytes());
+        ob.flush();
+        ob.write("a1\r\n".getBytes());
+        ob.endFrame();
+        publish(ob, "b", "b1");
+        publish(ob, "b", "b2");
+        publish(ob, "b", "b3");
+        assertEquals(2, ob.getDroppedFrames());
+        ob.writeControl("PONG\r\n".getBytes(), 0, 6, false);
+        ob.flush();
+        assertEquals("PUB a 2\r\na1\r\nPONG\r\nPUB b 2\r\nb3\r\n",
+                new String(sock.toByteArray()));
+        assertEquals(0, ob.getBufferedBytes());
+    }
+
+    @Test
+    public void testControlFramesInterleaveLargeBatch() throws Exception {
+        final AtomicInteger writes = new AtomicInteger();
+        final OutboundBuffer[] holder = new OutboundBuffer[1];
+        ByteArrayOutputStream sock = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] buf, int off, int len) {
+                super.write(buf, off, len);
+                if (writes.incrementAndGet() == 1) {
+                    // A PONG arrives while the first chunk of the batch is being written.
+                    try {
+                        holder[0].writeControl("PONG\r\n".getBytes(), 0, 6, false);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        };
+        OutboundBuffer ob = new OutboundBuffer(sock, 16 * 1024 * 1024, 0, false, null);
+        holder[0] = ob;
+        char[] fill = new char[1000];
+        Arrays.fill(fill, 'x');
+        String payload = new String(fill);
+        int frameLen = String.format("PUB a %d\r\n%s\r\n", payload.length(), payload).length();
+        int frames = 4 * OutboundBuffer.CHUNK_SIZE / frameLen;
+        for (int i = 0; i < frames; i++) {
+            publish(ob, "a", payload);
+        }
+        ob.flush();
+
+        String wire = new String(sock.toByteArray());
+        int pong = wire.indexOf("PONG\r\n");
+        // Written at the first frame boundary after the first chunk, well before the batch ends.
+        assertTrue(pong > 0);
+        assertEquals(0, pong % frameLen);
+        assertTrue(pong < 2 * OutboundBuffer.CHUNK_SIZE);
+        assertEquals(frames * frameLen + 6, wire.length());
+        assertEquals(0, ob.getBufferedBytes());
+    }
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.UnitTestUtilities.newMockedConnection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import io.nats.client.Constants.ConnState;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+@Category(UnitTest.class)
+public class PrometheusMetricsCollectorTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testScrape() {
+        PrometheusMetricsCollector collector = new PrometheusMetricsCollector();
+        assertEquals("", collector.scrape());
+
+        Connection conn = mock(Connection.class);
+        collector.received(conn, "foo", 2, 10);
+        collector.received(conn, "foo", 1, 5);
+        collector.received(conn, "a\"b\\c", 1, 1);
+        collector.connectionEvent(conn, ConnState.CONNECTED);
+
+        String text = collector.scrape();
+        assertTrue(text.contains("# HELP nats_received_messages_total "));
+        assertTrue(text.contains("# TYPE nats_received_messages_total counter\n"));
+        assertTrue(text.contains(
+                "nats_received_messages_total{connection=\"\",subject=\"foo\"} 3\n"));
+        assertTrue(text.contains(
+                "nats_received_bytes_total{connection=\"\",subject=\"foo\"} 15\n"));
+        assertTrue(text.contains(
+                "nats_received_messages_total{connection=\"\",subject=\"a\\\"b\\\\c\"} 1\n"));
+        assertTrue(text.contains(
+                "nats_connection_events_total{connection=\"\",state=\"CONNECTED\"} 1\n"));
+        assertTrue(!text.contains("nats_flushes_total"));
+    }
+
+    @Test
+    public void testSlowConsumerEvents() {
+        PrometheusMetricsCollector collector = new PrometheusMetricsCollector();
+        Connection conn = mock(Connection.class);
+        collector.slowConsumerEvents(conn, "foo", 3, 1500000000L);
+        collector.slowConsumerEvents(conn, "foo", 1, 500000000L);
+
+        String text = collector.scrape();
+        assertTrue(text.contains(
+                "nats_slow_consumer_events_total{connection=\"\",subject=\"foo\"} 4\n"));
+        assertTrue(text.contains(
+                "nats_slow_consumer_blocked_seconds_total{connection=\"\",subject=\"foo\"} 2.0\n"));
+    }
+
+    @Test
+    public void testHttpEndpoint() throws Exception {
+        PrometheusMetricsCollector collector = new PrometheusMetricsCollector();
+        assertEquals(-1, collector.getPort());
+        collector.start(new InetSocketAddress("127.0.0.1", 0));
+        try {
+            collector.flushed(mock(Connection.class), 7);
+            URL url = new URL("http://127.0.0.1:" + collector.getPort() + "/metrics");
+            HttpURLConnection http = (HttpURLConnection) url.openConnection();
+            assertEquals(200, http.getResponseCode());
+            assertEquals(PrometheusMetricsCollector.CONTENT_TYPE, http.getContentType());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = http.getInputStream()) {
+                byte[] buf = new byte[1024];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    body.write(buf, 0, n);
+                }
+            }
+            assertEquals(collector.scrape(), body.toString("UTF-8"));
+            assertTrue(collector.scrape().contains("nats_flushes_total{connection=\"\"} 7\n"));
+        } finally {
+            collector.close();
+        }
+        assertEquals(-1, collector.getPort());
+    }
+
+    @Test
+    public void testConnectionReporting() throws Exception {
+        PrometheusMetricsCollector collector = new PrometheusMetricsCollector();
+        Options opts = new ConnectionFactory().options();
+        opts.setConnectionName("test");
+        opts.setMetricsCollector(collector);
+        opts.setMetricsInterval(60000);
+        opts.setMetricsSubjectPatterns(Arrays.asList("orders.>"));
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(opts)) {
+            SyncSubscription sub = c.subscribeSync("foo");
+            SyncSubscription orders = c.subscribeSync("orders.new");
+            c.publish("foo", "hello".getBytes());
+            c.publish("orders.new", "abc".getBytes());
+            c.flush();
+            assertTrue(sub.nextMessage(5000) != null);
+            assertTrue(orders.nextMessage(5000) != null);
+
+            c.metrics.run();
+            String text = collector.scrape();
+            assertTrue(text, text.contains(
+                    "nats_received_messages_total{connection=\"test\",subject=\"foo\"} 1\n"));
+            assertTrue(text, text.contains(
+                    "nats_received_bytes_total{connection=\"test\",subject=\"foo\"} 5\n"));
+            assertTrue(text, text.contains(
+                    "nats_published_messages_total{connection=\"test\",pattern=\"orders.>\"} 1\n"));
+            assertTrue(text, text.contains(
+                    "nats_published_bytes_total{connection=\"test\",pattern=\">\"} 5\n"));
+
+            // Increments are reported once, including for removed subscriptions.
+            c.publish("foo", "world".getBytes());
+            c.flush();
+            assertTrue(sub.nextMessage(5000) != null);
+            sub.unsubscribe();
+        }
+        String text = collector.scrape();
+        assertTrue(text, text.contains(
+                "nats_received_messages_total{connection=\"test\",subject=\"foo\"} 2\n"));
+        assertTrue(text, text.contains(
+                "nats_published_messages_total{connection=\"test\",pattern=\">\"} 2\n"));
+
+        // Connection events are reported from the callback thread.
+        String closed = "nats_connection_events_total{connection=\"test\",state=\"CLOSED\"} 1\n";
+        for (int i = 0; i < 50 && !collector.scrape().contains(closed); i++) {
+            Thread.sleep(100);
+        }
+        text = collector.scrape();
+        assertTrue(text, text.contains(closed));
+        assertTrue(text, text.contains(
+                "nats_connection_events_total{connection=\"test\",state=\"CONNECTED\"} 1\n"));
+    }
+
+    @Test
+    public void testInboxesShareOneSeries() throws Exception {
+        PrometheusMetricsCollector collector = new PrometheusMetricsCollector();
+        Options opts = new ConnectionFactory().options();
+        opts.setConnectionName("test");
+        opts.setMetricsCollector(collector);
+        opts.setMetricsInterval(60000);
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(opts)) {
+            for (int i = 0; i < 3; i++) {
+                String inbox = c.newInbox();
+                SyncSubscription sub = c.subscribeSync(inbox);
+                c.publish(inbox, "reply".getBytes());
+                c.flush();
+                assertTrue(sub.nextMessage(5000) != null);
+                sub.unsubscribe();
+            }
+            c.metrics.run();
+            String text = collector.scrape();
+            assertTrue(text, text.contains(
+                    "nats_received_messages_total{connection=\"test\",subject=\"_INBOX.>\"} 3\n"));
+            assertEquals(text, 1, text.split("nats_received_messages_total\\{").length - 1);
+        }
+    }
+}
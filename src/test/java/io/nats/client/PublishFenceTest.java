@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@Category(UnitTest.class)
+public class PublishFenceTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testPongCompletesFence() throws Exception {
+        PublishFence fence = new PublishFence();
+        fence.add();
+        fence.add();
+        assertEquals(2, fence.size());
+        assertFalse(fence.isDone());
+        // As delivered by processPong().
+        fence.complete(true);
+        assertTrue(fence.isDone());
+        assertNull(fence.get());
+        assertNull(fence.get(1, TimeUnit.MILLISECONDS));
+        assertFalse(fence.cancel(true));
+        assertFalse(fence.isCancelled());
+    }
+
+    @Test
+    public void testClearedPongsFailFence() throws Exception {
+        PublishFence fence = new PublishFence();
+        // As delivered by clearPendingFlushCalls().
+        fence.complete(false);
+        try {
+            fence.get();
+            fail("Should have thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals(Constants.ERR_PUBLISH_NOT_CONFIRMED, e.getCause().getMessage());
+        }
+        // The first outcome sticks.
+        fence.complete(true);
+        try {
+            fence.get();
+            fail("Should have thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testGetTimeout() throws Exception {
+        new PublishFence().get(10, TimeUnit.MILLISECONDS);
+    }
+}
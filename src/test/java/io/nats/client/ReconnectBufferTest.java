@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class ReconnectBufferTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    static byte[] randomBytes(int len) {
+        byte[] buf = new byte[len];
+        new Random(len).nextBytes(buf);
+        return buf;
+    }
+
+    static byte[] replay(ReconnectBuffer rb) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rb.writeTo(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testHeapSegmentsReplayInOrder() throws Exception {
+        byte[] data = randomBytes(3 * ReconnectBuffer.SEGMENT_SIZE + 17);
+        ReconnectBuffer rb = new ReconnectBuffer(1024 * 1024);
+        // Uneven writes so that frames straddle segment boundaries.
+        int off = 0;
+        int chunk = 1;
+        while (off < data.length) {
+            int n = Math.min(chunk, data.length - off);
+            rb.write(data, off, n);
+            off += n;
+            chunk = chunk * 3 + 1;
+        }
+        rb.write('!');
+        assertEquals(data.length + 1, rb.size());
+        assertEquals(0, rb.spilledSize());
+
+        byte[] out = replay(rb);
+        assertEquals(data.length + 1, out.length);
+        assertEquals('!', out[data.length]);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], out[i]);
+        }
+        rb.close();
+        assertEquals(0, rb.size());
+    }
+
+    @Test
+    public void testIsFull() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(10);
+        assertFalse(rb.isFull());
+        rb.write(randomBytes(9), 0, 9);
+        assertFalse(rb.isFull());
+        // A frame in progress is never truncated.
+        rb.write(randomBytes(5), 0, 5);
+        assertTrue(rb.isFull());
+        assertEquals(14, rb.size());
+        assertNull(rb.getSpillFile());
+    }
+
+    @Test
+    public void testFrameIndexCountsAgainstLimit() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(ReconnectBuffer.FrameChunk.BYTES + 1024);
+        // Untagged writes need no index.
+        rb.write(randomBytes(10), 0, 10);
+        rb.write(randomBytes(10), 0, 10);
+        assertEquals(0, rb.indexSize());
+        assertFalse(rb.isFull());
+        for (int i = 0; i < ReconnectBuffer.FRAME_CHUNK; i++) {
+            rb.beginFrame(BufferedPublishPolicy.Priority.NORMAL, 0);
+            rb.write(randomBytes(1), 0, 1);
+            rb.endFrame();
+        }
+        // The second chunk, rather than the bytes themselves, fills the buffer.
+        assertEquals(2 * ReconnectBuffer.FrameChunk.BYTES, rb.indexSize());
+        assertTrue(rb.size() < 1024 + ReconnectBuffer.FRAME_CHUNK);
+        assertTrue(rb.isFull());
+        rb.close();
+        assertEquals(0, rb.indexSize());
+    }
+
+    @Test
+    public void testSpillToMappedFile() throws Exception {
+        File dir = tmp.newFolder();
+        int heap = ReconnectBuffer.SEGMENT_SIZE;
+        ReconnectBuffer rb = new ReconnectBuffer(heap, 1024 * 1024, dir);
+        assertEquals(heap + 1024 * 1024, rb.capacity());
+
+        byte[] data = randomBytes(heap + 300 * 1024);
+        rb.write(data, 0, data.length);
+        assertEquals(data.length, rb.size());
+        assertEquals(300 * 1024, rb.spilledSize());
+        File spill = rb.getSpillFile();
+        assertNotNull(spill);
+        assertEquals(dir, spill.getParentFile());
+        assertTrue(spill.exists());
+
+        assertArrayEquals(data, replay(rb));
+
+        rb.close();
+        assertFalse(spill.exists());
+        assertNull(rb.getSpillFile());
+    }
+
+    @Test
+    public void testSpillExhaustedFallsBackToHeap() throws Exception {
+        File dir = tmp.newFolder();
+        int heap = ReconnectBuffer.SEGMENT_SIZE;
+        int spill = 4096;
+        ReconnectBuffer rb = new ReconnectBuffer(heap, spill, dir);
+        byte[] data = randomBytes(heap + spill + 1000);
+        rb.write(data, 0, data.length);
+        assertTrue(rb.isFull());
+        assertEquals(spill, rb.spilledSize());
+        assertArrayEquals(data, replay(rb));
+        rb.close();
+    }
+
+    @Test
+    public void testSpillFailureShrinksCapacity() throws Exception {
+        // The spill file cannot be created in a missing directory.
+        File dir = new File(tmp.getRoot(), "missing");
+        int heap = ReconnectBuffer.SEGMENT_SIZE;
+        ReconnectBuffer rb = new ReconnectBuffer(heap, 1024 * 1024, dir);
+        assertEquals(heap + 1024 * 1024, rb.capacity());
+        byte[] data = randomBytes(heap + 1000);
+        rb.write(data, 0, data.length);
+        assertEquals(0, rb.spilledSize());
+        assertNull(rb.getSpillFile());
+        assertEquals(heap, rb.capacity());
+        assertTrue(rb.isFull());
+        assertArrayEquals(data, replay(rb));
+        rb.close();
+    }
+
+    static void writeFrame(ReconnectBuffer rb, BufferedPublishPolicy.Priority prio, long expires,
+            String frame) throws Exception {
+        if (prio != null) {
+            rb.beginFrame(prio, expires);
+        }
+        byte[] bytes = frame.getBytes();
+        rb.write(bytes, 0, bytes.length);
+        if (prio != null) {
+            rb.endFrame();
+        }
+    }
+
+    @Test
+    public void testPriorityReplayOrder() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(1024 * 1024);
+        writeFrame(rb, null, 0, "n1;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.LOW, 0, "l1;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.HIGH, 0, "h1;");
+        writeFrame(rb, null, 0, "n2;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.HIGH, 0, "h2;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.NORMAL, 0, "n3;");
+        // Untagged frames are barriers; only the frames between them are reordered.
+        assertEquals("n1;h1;l1;n2;h2;n3;", new String(replay(rb)));
+    }
+
+    @Test
+    public void testLowPriorityPublishNotMovedPastPing() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(1024 * 1024);
+        writeFrame(rb, BufferedPublishPolicy.Priority.LOW, 0, "l1;");
+        writeFrame(rb, null, 0, "PING;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.HIGH, 0, "h1;");
+        assertEquals("l1;PING;h1;", new String(replay(rb)));
+    }
+
+    @Test
+    public void testExpiredFrameFailsCoveringFence() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(1024 * 1024);
+        long now = System.nanoTime();
+        PublishFence first = new PublishFence();
+        PublishFence second = new PublishFence();
+        PublishFence open = new PublishFence();
+        writeFrame(rb, BufferedPublishPolicy.Priority.NORMAL, 0, "a;");
+        rb.markFence(first);
+        writeFrame(rb, null, 0, "PING;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.NORMAL, now - 1000, "stale;");
+        rb.markFence(second);
+        writeFrame(rb, null, 0, "PING;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.NORMAL, 0, "b;");
+        rb.markFence(open);
+        assertEquals("a;PING;PING;b;", new String(replay(rb)));
+
+        first.complete(true);
+        second.complete(true);
+        open.complete(true);
+        first.get();
+        open.get();
+        try {
+            second.get();
+            fail("fence covering an expired frame should fail");
+        } catch (ExecutionException e) {
+            assertEquals(Constants.ERR_PUBLISH_NOT_CONFIRMED, e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testExpiredFramesDropped() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(1024 * 1024);
+        long now = System.nanoTime();
+        writeFrame(rb, BufferedPublishPolicy.Priority.NORMAL, now - 1000, "stale;");
+        writeFrame(rb, null, 0, "keep;");
+        writeFrame(rb, BufferedPublishPolicy.Priority.NORMAL, now + TimeUnit.MINUTES.toNanos(1), "fresh;");
+        assertEquals("keep;fresh;", new String(replay(rb)));
+        assertEquals(1, rb.expiredFrames());
+    }
+
+    @Test
+    public void testTaggedFramesAcrossSegmentsAndSpill() throws Exception {
+        File dir = tmp.newFolder();
+        ReconnectBuffer rb = new ReconnectBuffer(ReconnectBuffer.SEGMENT_SIZE, 1024 * 1024, dir);
+        byte[] low = randomBytes(ReconnectBuffer.SEGMENT_SIZE + 100);
+        byte[] high = randomBytes(3000);
+        rb.beginFrame(BufferedPublishPolicy.Priority.LOW, 0);
+        rb.write(low, 0, low.length);
+        rb.endFrame();
+        rb.beginFrame(BufferedPublishPolicy.Priority.HIGH, 0);
+        rb.write(high, 0, high.length);
+        rb.endFrame();
+        assertTrue(rb.spilledSize() > 0);
+
+        byte[] out = replay(rb);
+        byte[] expected = new byte[high.length + low.length];
+        System.arraycopy(high, 0, expected, 0, high.length);
+        System.arraycopy(low, 0, expected, high.length, low.length);
+        assertArrayEquals(expected, out);
+        rb.close();
+    }
+
+    @Test
+    public void testSpillDisabledByDefault() throws Exception {
+        ReconnectBuffer rb = new ReconnectBuffer(1024);
+        rb.write(randomBytes(4096), 0, 4096);
+        assertEquals(0, rb.spilledSize());
+        assertNull(rb.getSpillFile());
+        assertEquals(1024, rb.capacity());
+    }
+}
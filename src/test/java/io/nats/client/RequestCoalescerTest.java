@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@Category(UnitTest.class)
+public class RequestCoalescerTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testConcurrentIdenticalRequestsCoalesce() throws Exception {
+        final int callers = 8;
+        final Connection nc = mock(Connection.class);
+        final Message reply = new Message("_INBOX.foo", null, "answer".getBytes());
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Message>() {
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                release.await(5, TimeUnit.SECONDS);
+                return reply;
+            }
+        }).when(nc).request(eq("foo"), any(byte[].class), anyLong(), any(TimeUnit.class));
+
+        final RequestCoalescer rc = new RequestCoalescer(nc);
+        ExecutorService exec = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<Message>> results = new ArrayList<Future<Message>>();
+            for (int i = 0; i < callers; i++) {
+                results.add(exec.submit(new Callable<Message>() {
+                    public Message call() throws Exception {
+                        return rc.request("foo", "help".getBytes(), 5, TimeUnit.SECONDS);
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (rc.getCoalesced() < callers - 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(callers - 1, rc.getCoalesced());
+            assertEquals(1, rc.getInFlight());
+            release.countDown();
+
+            for (Future<Message> f : results) {
+                assertSame(reply, f.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+        verify(nc, times(1)).request(eq("foo"), any(byte[].class), anyLong(),
+                any(TimeUnit.class));
+        assertEquals(1, rc.getRequests());
+        assertEquals(0, rc.getInFlight());
+    }
+
+    @Test
+    public void testDistinctPayloadsDoNotCoalesce() throws Exception {
+        Connection nc = mock(Connection.class);
+        RequestCoalescer rc = new RequestCoalescer(nc);
+        rc.request("foo", "a".getBytes(), 100);
+        rc.request("foo", "b".getBytes(), 100);
+        rc.request("bar", "a".getBytes(), 100);
+        rc.request("foo", null, 100);
+        assertEquals(4, rc.getRequests());
+        assertEquals(0, rc.getCoalesced());
+        assertEquals(0, rc.getInFlight());
+    }
+
+    @Test
+    public void testErrorIsSharedAndKeyReleased() throws Exception {
+        Connection nc = mock(Connection.class);
+        doAnswer(new Answer<Message>() {
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                throw new TimeoutException(Constants.ERR_TIMEOUT);
+            }
+        }).when(nc).request(eq("foo"), any(byte[].class), anyLong(), any(TimeUnit.class));
+        RequestCoalescer rc = new RequestCoalescer(nc);
+        try {
+            rc.request("foo", "help".getBytes(), 10);
+            fail("Should have thrown TimeoutException");
+        } catch (TimeoutException e) {
+            assertEquals(Constants.ERR_TIMEOUT, e.getMessage());
+        }
+        assertEquals(0, rc.getInFlight());
+    }
+
+    @Test
+    public void testFollowerTimesOut() throws Exception {
+        Connection nc = mock(Connection.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Message>() {
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(nc).request(eq("foo"), any(byte[].class), anyLong(), any(TimeUnit.class));
+        final RequestCoalescer rc = new RequestCoalescer(nc);
+        Thread leader = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    rc.request("foo", "help".getBytes(), 5000);
+                } catch (IOException | TimeoutException e) {
+                    /* NOOP */
+                }
+            }
+        });
+        leader.start();
+        while (rc.getInFlight() == 0) {
+            Thread.sleep(5);
+        }
+        try {
+            rc.request("foo", "help".getBytes(), 50);
+            fail("Should have thrown TimeoutException");
+        } catch (TimeoutException e) {
+            assertTrue(rc.getCoalesced() == 1);
+        } finally {
+            release.countDown();
+            leader.join(5000);
+        }
+    }
+
+    @Test
+    public void testNullConnection() {
+        thrown.expect(NullPointerException.class);
+        new RequestCoalescer(null);
+    }
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+@Category(UnitTest.class)
+public class ResponseCacheTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    static Connection echoConnection() throws Exception {
+        Connection nc = mock(Connection.class);
+        doAnswer(new Answer<Message>() {
+            public Message answer(InvocationOnMock invocation) throws Throwable {
+                byte[] data = (byte[]) invocation.getArguments()[1];
+                return new Message("_INBOX.reply", null, data == null ? null : data.clone());
+            }
+        }).when(nc).request(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class));
+        return nc;
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        Connection nc = echoConnection();
+        ResponseCache rc = new ResponseCache(nc).cache("config.>", 1, TimeUnit.MINUTES);
+
+        Message m1 = rc.request("config.get", "a".getBytes(), 100);
+        Message m2 = rc.request("config.get", "a".getBytes(), 100);
+        assertSame(m1, m2);
+        Message m3 = rc.request("config.get", "b".getBytes(), 100);
+        assertEquals("b", new String(m3.getData()));
+
+        assertEquals(1, rc.getHits());
+        assertEquals(2, rc.getMisses());
+        assertEquals(2, rc.getSize());
+        assertEquals(2, rc.getBytes());
+        verify(nc, times(2)).request(eq("config.get"), any(byte[].class), anyLong(),
+                any(TimeUnit.class));
+    }
+
+    @Test
+    public void testConnectionStatistics() throws Exception {
+        ConnectionImpl nc = mock(ConnectionImpl.class);
+        nc.stats = new Statistics();
+        when(nc.request(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class)))
+                .thenReturn(new Message("_INBOX.reply", null, "r".getBytes()));
+        ResponseCache rc = new ResponseCache(nc, 1, 1024).cache(">", 1, TimeUnit.MINUTES);
+        rc.request("a", "1".getBytes(), 100);
+        rc.request("a", "1".getBytes(), 100);
+        rc.request("b", "1".getBytes(), 100);
+
+        Statistics stats = new Statistics(nc.stats);
+        assertEquals(1, stats.getCacheHits());
+        assertEquals(2, stats.getCacheMisses());
+        assertEquals(1, stats.getCacheEvictions());
+        nc.stats.clear();
+        assertEquals(0, nc.stats.getCacheHits());
+    }
+
+    @Test
+    public void testUncachedSubjectPassesThrough() throws Exception {
+        Connection nc = echoConnection();
+        ResponseCache rc = new ResponseCache(nc).cache("config.>", 1, TimeUnit.MINUTES);
+        rc.request("orders.new", "a".getBytes(), 100);
+        rc.request("orders.new", "a".getBytes(), 100);
+        assertEquals(0, rc.getHits());
+        assertEquals(0, rc.getMisses());
+        assertEquals(0, rc.getSize());
+        verify(nc, times(2)).request(eq("orders.new"), any(byte[].class), anyLong(),
+                any(TimeUnit.class));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        Connection nc = echoConnection();
+        ResponseCache rc = new ResponseCache(nc).cache("config.*", 20, TimeUnit.MILLISECONDS);
+        rc.request("config.get", "a".getBytes(), 100);
+        Thread.sleep(50);
+        rc.request("config.get", "a".getBytes(), 100);
+        assertEquals(0, rc.getHits());
+        assertEquals(2, rc.getMisses());
+        assertEquals(1, rc.getExpirations());
+        assertEquals(1, rc.getSize());
+    }
+
+    @Test
+    public void testLruEvictionByCount() throws Exception {
+        Connection nc = echoConnection();
+        ResponseCache rc = new ResponseCache(nc, 2, 1024).cache(">", 1, TimeUnit.MINUTES);
+        rc.request("a", "1".getBytes(), 100);
+        rc.request("b", "1".getBytes(), 100);
+        // Touch "a" so that "b" becomes the eldest.
+        rc.request("a", "1".getBytes(), 100);
+        rc.request("c", "1".getBytes(), 100);
+        assertEquals(1, rc.getEvictions());
+        assertEquals(2, rc.getSize());
+
+        long misses = rc.getMisses();
+        rc.request("a", "1".getBytes(), 100);
+        assertEquals(misses, rc.getMisses());
+        rc.request("b", "1".getBytes(), 100);
+        assertEquals(misses + 1, rc.getMisses());
+    }
+
+    @Test
+    public void testEvictionByBytes() throws Exception {
+        Connection nc = echoConnection();
+        ResponseCache rc = new ResponseCache(nc, 100, 10).cache(">", 1, TimeUnit.MINUTES);
+        rc.request("a", "12345".getBytes(), 100);
+        rc.request("b", "12345".getBytes(), 100);
+        assertEquals(10, rc.getBytes());
+        rc.request("c", "1".getBytes(), 100);
+        assertEquals(1, rc.getEvictions());
+        assertEquals(6, rc.getBytes());
+
+        // Larger than the whole budget: returned, never cached.
+        rc.request("d", "12345678901".getBytes(), 100);
+        assertEquals(1, rc.getEvictions());
+        assertEquals(2, rc.getSize());
+    }
+
+    @Test
+    public void testTimeoutNotCached() throws Exception {
+        Connection nc = mock(Connection.class);
+        when(nc.request(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class)))
+                .thenThrow(new TimeoutException(Constants.ERR_TIMEOUT)).thenReturn(null);
+        ResponseCache rc = new ResponseCache(nc).cache(">", 1, TimeUnit.MINUTES);
+        try {
+            rc.request("foo", "a".getBytes(), 10);
+        } catch (TimeoutException e) {
+            assertEquals(Constants.ERR_TIMEOUT, e.getMessage());
+        }
+        assertNull(rc.request("foo", "a".getBytes(), 10));
+        assertEquals(0, rc.getSize());
+        assertEquals(2, rc.getMisses());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        Connection nc = echoConnection();
+        ResponseCache rc = new ResponseCache(nc).cache(">", 1, TimeUnit.MINUTES);
+        rc.request("config.a", "1".getBytes(), 100);
+        rc.request("config.b", "1".getBytes(), 100);
+        rc.request("other", "1".getBytes(), 100);
+        assertEquals(2, rc.invalidate("config.*"));
+        assertEquals(1, rc.getSize());
+        assertEquals(1, rc.getBytes());
+        rc.invalidateAll();
+        assertEquals(0, rc.getSize());
+        assertEquals(0, rc.getBytes());
+    }
+
+    @Test
+    public void testBadTtl() {
+        thrown.expect(IllegalArgumentException.class);
+        new ResponseCache(mock(Connection.class)).cache("foo", 0, TimeUnit.SECONDS);
+    }
+}
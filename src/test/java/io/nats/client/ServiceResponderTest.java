@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.UnitTestUtilities.newMockedConnection;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class ServiceResponderTest {
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    static final RequestHandler ECHO = new RequestHandler() {
+        public byte[] onRequest(Message request) {
+            return request.getData();
+        }
+    };
+
+    @Test
+    public void testRequestReply() throws Exception {
+        try (Connection nc = newMockedConnection()) {
+            try (ServiceResponder svc =
+                    new ServiceResponder(nc, "svc.echo", "workers", ECHO).start()) {
+                try (SyncSubscription inbox = nc.subscribeSync("_INBOX.test")) {
+                    nc.publish("svc.echo", "_INBOX.test", "hello".getBytes());
+                    Message reply = inbox.nextMessage(2, TimeUnit.SECONDS);
+                    assertArrayEquals("hello".getBytes(), reply.getData());
+                }
+                // The worker counts the reply after publishing it.
+                long deadline = System.currentTimeMillis() + 2000;
+                while (svc.getReplied() == 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(1, svc.getReceived());
+                assertEquals(1, svc.getReplied());
+                assertEquals(0, svc.getShed());
+            }
+        }
+    }
+
+    @Test
+    public void testShedWhenQueueFull() throws Exception {
+        Connection nc = mock(Connection.class);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        RequestHandler blocking = new RequestHandler() {
+            public byte[] onRequest(Message request) throws Exception {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return "ok".getBytes();
+            }
+        };
+        ServiceResponder svc = new ServiceResponder(nc, "svc", null, blocking, 1, 1, 10,
+                TimeUnit.SECONDS);
+        try {
+            svc.dispatch(new Message("svc", "_INBOX.1", null));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            svc.dispatch(new Message("svc", "_INBOX.2", null));
+            // Worker busy and queue full: shed immediately.
+            svc.dispatch(new Message("svc", "_INBOX.3", null));
+            verify(nc, times(1)).publish("_INBOX.3", ServiceResponder.OVERLOADED_REPLY);
+            assertEquals(1, svc.getShed());
+            assertEquals(1, svc.getQueued());
+        } finally {
+            release.countDown();
+            svc.close();
+            assertTrue(svc.awaitTermination(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, svc.getReplied());
+        assertEquals(3, svc.getReceived());
+    }
+
+    @Test
+    public void testShedOnSojourn() throws Exception {
+        Connection nc = mock(Connection.class);
+        RequestHandler handler = mock(RequestHandler.class);
+        ServiceResponder svc = new ServiceResponder(nc, "svc", null, handler, 1, 10, 100,
+                TimeUnit.MILLISECONDS);
+        try {
+            Message msg = new Message("svc", "_INBOX.1", null);
+            svc.handle(msg, System.nanoTime() - TimeUnit.SECONDS.toNanos(1));
+            verify(handler, never()).onRequest(any(Message.class));
+            verify(nc, times(1)).publish("_INBOX.1", ServiceResponder.OVERLOADED_REPLY);
+            assertEquals(1, svc.getShed());
+        } finally {
+            svc.close();
+        }
+    }
+
+    @Test
+    public void testHandlerErrorSendsNoReply() throws Exception {
+        Connection nc = mock(Connection.class);
+        RequestHandler failing = new RequestHandler() {
+            public byte[] onRequest(Message request) throws Exception {
+                throw new IllegalStateException("boom");
+            }
+        };
+        ServiceResponder svc = new ServiceResponder(nc, "svc", null, failing);
+        try {
+            svc.handle(new Message("svc", "_INBOX.1", null), System.nanoTime());
+            verify(nc, never()).publish(anyString(), any(byte[].class));
+            assertEquals(1, svc.getErrors());
+        } finally {
+            svc.close();
+        }
+    }
+
+    @Test
+    public void testNoReplySubject() throws Exception {
+        Connection nc = mock(Connection.class);
+        ServiceResponder svc = new ServiceResponder(nc, "svc", null, ECHO);
+        try {
+            svc.handle(new Message("svc", null, "x".getBytes()), System.nanoTime());
+            verify(nc, never()).publish(anyString(), eq("x".getBytes()));
+            assertEquals(0, svc.getReplied());
+        } finally {
+            svc.close();
+        }
+    }
+
+    @Test
+    public void testStartTwice() throws Exception {
+        thrown.expect(IllegalStateException.class);
+        try (Connection nc = newMockedConnection()) {
+            try (ServiceResponder svc = new ServiceResponder(nc, "svc", null, ECHO)) {
+                svc.start();
+                svc.start();
+            }
+        }
+    }
+}
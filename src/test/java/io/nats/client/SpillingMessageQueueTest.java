@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class SpillingMessageQueueTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    // Runs segment preparation on the offering thread, so that file counts are deterministic.
+    private static final Executor direct = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static Message msg(int i) {
+        return new Message("audit." + i, (i % 2 == 0) ? "_INBOX." + i : null,
+                ("payload-" + i).getBytes());
+    }
+
+    @Test
+    public void testSpillsInOrderAndReusesSegments() throws Exception {
+        File dir = tmp.newFolder();
+        SpillingMessageQueue q = new SpillingMessageQueue(32, 1024 * 1024, dir, 128, direct);
+        int count = 50;
+        int files = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < count; i++) {
+                assertTrue(q.offer(msg(i)));
+            }
+            assertEquals(count, q.size());
+            assertTrue(q.spilledCount() > 0);
+            assertTrue(q.segmentCount() > 1);
+            // The next segment is prepared before it is needed.
+            assertEquals(1, q.freeCount());
+            assertEquals(q.segmentCount() + q.freeCount(), dir.list().length);
+
+            for (int i = 0; i < count; i++) {
+                Message expected = msg(i);
+                Message m = q.poll();
+                assertEquals(expected.getSubject(), m.getSubject());
+                assertEquals(expected.getReplyTo(), m.getReplyTo());
+                assertArrayEquals(expected.getData(), m.getData());
+            }
+            assertNull(q.poll());
+            // Consumed segments are kept for reuse, so later rounds create no files.
+            assertEquals(1, q.segmentCount());
+            if (round == 0) {
+                files = dir.list().length;
+            }
+            assertEquals(files, dir.list().length);
+            assertEquals(files, q.segmentCount() + q.freeCount());
+        }
+
+        q.clear();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testSpilledMessagesKeepEnqueueTime() throws Exception {
+        SpillingMessageQueue q = new SpillingMessageQueue(0, 1024 * 1024, tmp.newFolder(), 128);
+        for (int i = 0; i < 3; i++) {
+            Message m = msg(i);
+            m.enqueuedNanos = 1000L + i;
+            assertTrue(q.offer(m));
+        }
+        assertEquals(2, q.spilledCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1000L + i, q.poll().enqueuedNanos);
+        }
+        q.clear();
+    }
+
+    @Test
+    public void testHeapOnlyBelowMemoryLimit() throws Exception {
+        File dir = tmp.newFolder();
+        SpillingMessageQueue q = new SpillingMessageQueue(1024, 1024, dir, 128);
+        Message m = msg(1);
+        q.offer(m);
+        assertEquals(0, q.spilledCount());
+        assertEquals(0, dir.list().length);
+        // Heap messages are returned as is.
+        assertTrue(m == q.peek());
+        assertTrue(m == q.poll());
+    }
+
+    @Test
+    public void testSpillLimitRefusesMessages() throws Exception {
+        File dir = tmp.newFolder();
+        SpillingMessageQueue q = new SpillingMessageQueue(0, 256, dir, 128);
+        int accepted = 0;
+        while (q.offer(msg(accepted))) {
+            accepted++;
+            assertTrue(accepted < 100);
+        }
+        assertEquals(2, q.segmentCount());
+        assertEquals(accepted, q.size());
+
+        // Draining frees the segments, so messages are accepted again.
+        while (q.poll() != null) {
+            // drain
+        }
+        assertTrue(q.offer(msg(0)));
+    }
+
+    @Test
+    public void testSpillLimitBelowSegmentSize() throws Exception {
+        File dir = tmp.newFolder();
+        SpillingMessageQueue q = new SpillingMessageQueue(0, 200, dir);
+        int accepted = 0;
+        while (q.offer(msg(accepted))) {
+            accepted++;
+            assertTrue(accepted < 100);
+        }
+        assertTrue(accepted > 0);
+        assertEquals(1, q.segmentCount());
+        assertEquals(200, dir.listFiles()[0].length());
+        q.clear();
+    }
+
+    @Test
+    public void testSnapshotDoesNotConsume() throws Exception {
+        SpillingMessageQueue q = new SpillingMessageQueue(16, 1024 * 1024, tmp.newFolder(), 128);
+        for (int i = 0; i < 10; i++) {
+            q.offer(msg(i));
+        }
+        Iterator<Message> it = q.iterator();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("audit." + i, it.next().getSubject());
+        }
+        assertFalse(it.hasNext());
+        assertEquals(10, q.size());
+        assertEquals("audit.0", q.poll().getSubject());
+    }
+
+    @Test
+    public void testTakeReadsSpilledMessages() throws Exception {
+        final SpillingMessageQueue q =
+                new SpillingMessageQueue(0, 1024 * 1024, tmp.newFolder(), 128);
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            Future<Message> taken = exec.submit(new Callable<Message>() {
+                public Message call() throws Exception {
+                    return q.take();
+                }
+            });
+            Thread.sleep(50);
+            q.offer(msg(7));
+            assertEquals("audit.7", taken.get(5, TimeUnit.SECONDS).getSubject());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static io.nats.client.UnitTestUtilities.newMockedConnection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@Category(UnitTest.class)
+public class StallWatchdogTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    private static Options stallOptions(final BlockingQueue<NATSException> errors) {
+        Options opts = new ConnectionFactory().options();
+        opts.setStallThreshold(100);
+        opts.setExceptionHandler(new ExceptionHandler() {
+            public void onException(NATSException ex) {
+                if (ex.getCause() instanceof StallException) {
+                    errors.add(ex);
+                }
+            }
+        });
+        return opts;
+    }
+
+    private static boolean contains(StackTraceElement[] stack, String method) {
+        for (StackTraceElement frame : stack) {
+            if (frame.getMethodName().equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testBlockedMessageHandler() throws Exception {
+        BlockingQueue<NATSException> errors = new LinkedBlockingQueue<NATSException>();
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(stallOptions(errors))) {
+            final CountDownLatch release = new CountDownLatch(1);
+            try (AsyncSubscription sub = c.subscribe("foo", new MessageHandler() {
+                public void onMessage(Message msg) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            })) {
+                c.publish("foo", "hello".getBytes());
+                c.flush();
+
+                NATSException ex = errors.poll(5, TimeUnit.SECONDS);
+                release.countDown();
+                assertTrue(ex != null);
+                assertEquals(sub, ex.getSubscription());
+                StallException stall = (StallException) ex.getCause();
+                assertEquals("dispatcher", stall.getComponent());
+                assertTrue(stall.getDuration(TimeUnit.MILLISECONDS) >= 100);
+                assertTrue(stall.getMessage().contains("'foo'"));
+                // The stack is that of the handler thread.
+                assertTrue(contains(stall.getStackTrace(), "onMessage"));
+                assertEquals(1, c.watchdog.getStalls());
+            }
+        }
+    }
+
+    @Test
+    public void testLockHeldTooLong() throws Exception {
+        BlockingQueue<NATSException> errors = new LinkedBlockingQueue<NATSException>();
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection(stallOptions(errors))) {
+            c.mu.lock();
+            try {
+                c.mu.lock();
+                c.mu.unlock();
+                // Still held: the reentrant release does not end the hold.
+                Thread.sleep(400);
+            } finally {
+                c.mu.unlock();
+            }
+
+            NATSException ex = errors.poll(5, TimeUnit.SECONDS);
+            assertTrue(ex != null);
+            StallException stall = (StallException) ex.getCause();
+            assertEquals("lock", stall.getComponent());
+            assertEquals(Thread.currentThread().getName(), stall.getThreadName());
+            assertTrue(contains(stall.getStackTrace(), "testLockHeldTooLong"));
+            // Reported once per hold.
+            assertNull(errors.poll(300, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        try (ConnectionImpl c = (ConnectionImpl) newMockedConnection()) {
+            assertNull(c.watchdog);
+            c.mu.lock();
+            c.mu.unlock();
+        }
+    }
+}
@@ -83,6 +83,19 @@ public class StatisticsTest {
         assertEquals(stats.getReconnects(), stats2.getReconnects());
     }
 
+    @Test
+    public void testSnapshot() {
+        Statistics stats = createDummyStats();
+        Statistics snapshot = new Statistics(stats);
+        stats.incrementInMsgs();
+        stats.incrementOutBytes(1);
+        assertEquals(1, snapshot.getInMsgs());
+        assertEquals(199, snapshot.getOutBytes());
+        assertEquals(44, snapshot.getInBytes());
+        assertEquals(1, snapshot.getFlushes());
+        assertEquals(2, stats.getInMsgs());
+    }
+
     @Test
     public void testToString() {
         assertNotNull(createDummyStats().toString());
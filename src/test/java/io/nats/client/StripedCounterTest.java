@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Category(UnitTest.class)
+public class StripedCounterTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testConcurrentUpdatesAreNotLost() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 8;
+        final int count = 100000;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < count; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertEquals((long) threads * count, counter.sum());
+
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testSnapshotCounter() {
+        StripedCounter counter = new StripedCounter(42);
+        assertEquals(42, counter.sum());
+        counter.add(-2);
+        assertEquals(40, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    @Test
+    public void testStripes() {
+        assertEquals(2, StripedCounter.stripes(1));
+        assertEquals(8, StripedCounter.stripes(3));
+        assertEquals(16, StripedCounter.stripes(8));
+        assertEquals(64, StripedCounter.stripes(256));
+    }
+}
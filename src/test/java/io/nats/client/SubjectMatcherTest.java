@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015-2016 Apcera Inc. All rights reserved. This program and the accompanying
+ * materials are made available under the terms of the MIT License (MIT) which accompanies this
+ * distribution, and is available at http://opensource.org/licenses/MIT
+ *******************************************************************************/
+
+package io.nats.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+@Category(UnitTest.class)
+public class SubjectMatcherTest {
+    @Rule
+    public TestCasePrinterRule pr = new TestCasePrinterRule(System.out);
+
+    @Test
+    public void testLiteral() {
+        assertTrue(SubjectMatcher.matches("foo", "foo"));
+        assertTrue(SubjectMatcher.matches("foo.bar", "foo.bar"));
+        assertFalse(SubjectMatcher.matches("foo", "foo.bar"));
+        assertFalse(SubjectMatcher.matches("foo.bar", "foo"));
+        assertFalse(SubjectMatcher.matches("foo.bar", "foo.baz"));
+        assertFalse(SubjectMatcher.matches("foo", "fo"));
+    }
+
+    @Test
+    public void testPartialWildcard() {
+        assertTrue(SubjectMatcher.matches("foo.*", "foo.bar"));
+        assertTrue(SubjectMatcher.matches("*.bar", "foo.bar"));
+        assertTrue(SubjectMatcher.matches("foo.*.baz", "foo.bar.baz"));
+        assertFalse(SubjectMatcher.matches("foo.*", "foo"));
+        assertFalse(SubjectMatcher.matches("foo.*", "foo.bar.baz"));
+    }
+
+    @Test
+    public void testFullWildcard() {
+        assertTrue(SubjectMatcher.matches(">", "foo"));
+        assertTrue(SubjectMatcher.matches("foo.>", "foo.bar"));
+        assertTrue(SubjectMatcher.matches("foo.>", "foo.bar.baz"));
+        assertTrue(SubjectMatcher.matches("*.>", "foo.bar"));
+        assertFalse(SubjectMatcher.matches("foo.>", "foo"));
+        assertFalse(SubjectMatcher.matches("foo.>", "bar.baz"));
+    }
+}
@@ -38,6 +38,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 @Category(UnitTest.class)
 public class SubscriptionImplTest {
@@ -122,6 +123,53 @@ public class SubscriptionImplTest {
         }
     }
 
+    @Test
+    public void testSlowConsumerPolicy() {
+        ConnectionImpl nc = mock(ConnectionImpl.class);
+        try (SyncSubscriptionImpl s = new SyncSubscriptionImpl(nc, "foo", null)) {
+            assertEquals(SlowConsumerPolicy.DROP_NEWEST, s.getSlowConsumerPolicy());
+            s.setSlowConsumerPolicy(SlowConsumerPolicy.BLOCK);
+            assertEquals(SlowConsumerPolicy.BLOCK, s.getSlowConsumerPolicy());
+            assertEquals(0, s.getSlowConsumerEvents());
+            assertEquals(0, s.getBlockedTime(TimeUnit.NANOSECONDS));
+
+            thrown.expect(NullPointerException.class);
+            s.setSlowConsumerPolicy(null);
+        }
+    }
+
+    @Test
+    public void testAdaptivePendingLimits() throws Exception {
+        ConnectionImpl nc = mock(ConnectionImpl.class);
+        try (SyncSubscriptionImpl s = new SyncSubscriptionImpl(nc, "foo", null)) {
+            assertEquals(0, s.getAdaptiveBurst(TimeUnit.MILLISECONDS));
+            s.setAdaptivePendingLimits(2, TimeUnit.SECONDS);
+            assertEquals(2000, s.getAdaptiveBurst(TimeUnit.MILLISECONDS));
+
+            Message msg = new Message("foo", null, new byte[10]);
+            s.lock();
+            try {
+                s.recordConsumption(msg, -1L);
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(
+                        AdaptivePendingLimits.SAMPLE_INTERVAL_NANOS) + 10);
+                s.recordConsumption(msg, -1L);
+            } finally {
+                s.unlock();
+            }
+            // A trickle of messages shrinks the default limits to the floor.
+            assertTrue(s.getConsumptionRate() > 0);
+            assertEquals(1, s.getPendingLimitAdjustments());
+            assertEquals(AdaptivePendingLimits.MIN_PENDING_MSGS, s.getPendingMsgsLimit());
+            assertEquals(AdaptivePendingLimits.MIN_PENDING_BYTES, s.getPendingBytesLimit());
+
+            // Explicit limits turn adaptive mode off.
+            s.setPendingLimits(100, 1000);
+            assertEquals(0, s.getAdaptiveBurst(TimeUnit.MILLISECONDS));
+            assertEquals(0, s.getPendingLimitAdjustments());
+            assertEquals(100, s.getPendingMsgsLimit());
+        }
+    }
+
     @Test
     public void testClearMaxPending() {
         ConnectionImpl nc = mock(ConnectionImpl.class);